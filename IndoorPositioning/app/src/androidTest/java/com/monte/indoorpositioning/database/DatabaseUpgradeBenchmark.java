@@ -0,0 +1,148 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures how long upgrading a large database of the first version takes, from the first
+ * getWritableDatabase() until every upgrade step is done. The database is written with the
+ * version 1 schema straight through SQLite, including locations which were stored twice and
+ * signals whose location is missing, and then opened with the IndoorDatabaseHelper. The numbers
+ * are logged:
+ *
+ * adb logcat -s DatabaseUpgradeBenchmark
+ */
+public class DatabaseUpgradeBenchmark extends AndroidTestCase {
+    private static final String TAG = "DatabaseUpgradeBenchmark";
+    private static final String DATABASE_NAME = "upgradeBenchmark.db";
+    // Half a million signals of 1000 locations, every tenth location stored twice like version 1 did
+    private static final int SIGNALS = 500000;
+    private static final int LOCATIONS = 1000;
+    private static final int ROUTERS = 50;
+    // Signals of deleted locations and signals without any, which version 1 left behind
+    private static final int ORPHANS = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+
+        File file = getContext().getDatabasePath(DATABASE_NAME);
+        // nothing might have created the folder of the databases yet
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.beginTransaction();
+            try {
+                // The schema of version 1
+                db.execSQL("CREATE TABLE indoorLocations(id INTEGER PRIMARY KEY, floor INTEGER, room TEXT, " +
+                        "building TEXT, lat REAL, lng REAL)");
+                db.execSQL("CREATE TABLE indoorSignals(id INTEGER PRIMARY KEY, " +
+                        "locationId INTEGER REFERENCES indoorLocations, timestamp INTEGER, bssid TEXT, ssid TEXT, level REAL)");
+
+                SQLiteStatement insertLocation = db.compileStatement(
+                        "INSERT INTO indoorLocations (id, floor, room, building, lat, lng) VALUES (?, ?, ?, ?, ?, ?)");
+                for (int l = 0; l < LOCATIONS + LOCATIONS / 10; l++) {
+                    // the last ones repeat the coordinates of every tenth location
+                    int position = l < LOCATIONS ? l : (l - LOCATIONS) * 10;
+                    insertLocation.bindLong(1, l + 1);
+                    insertLocation.bindLong(2, position % 3);
+                    insertLocation.bindString(3, "room " + position / 10);
+                    insertLocation.bindString(4, "Benchmark");
+                    insertLocation.bindDouble(5, 55.92 + (position % 30) * 0.00003);
+                    insertLocation.bindDouble(6, -3.17 + (position / 30) * 0.00005);
+                    insertLocation.executeInsert();
+                }
+                insertLocation.close();
+
+                Random random = new Random(SIGNALS);
+                SQLiteStatement insertSignal = db.compileStatement(
+                        "INSERT INTO indoorSignals (locationId, timestamp, bssid, ssid, level) VALUES (?, ?, ?, ?, ?)");
+                for (int s = 0; s < SIGNALS + ORPHANS; s++) {
+                    if (s < SIGNALS) {
+                        insertSignal.bindLong(1, 1 + random.nextInt(LOCATIONS + LOCATIONS / 10));
+                    } else if (s % 2 == 0) {
+                        // the location was deleted
+                        insertSignal.bindLong(1, 10 * LOCATIONS + s);
+                    } else {
+                        insertSignal.bindNull(1);
+                    }
+                    int router = random.nextInt(ROUTERS);
+                    insertSignal.bindLong(2, 1490000000000L + s * 100L);
+                    insertSignal.bindString(3, String.format("a4:2b:b0:%02x:%02x:%02x", router, router * 7 % 256, router * 13 % 256));
+                    insertSignal.bindString(4, "eduroam");
+                    insertSignal.bindDouble(5, -40 - random.nextInt(50));
+                    insertSignal.executeInsert();
+                }
+                insertSignal.close();
+                db.setVersion(1);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion1() throws Exception {
+        IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(getContext(), DATABASE_NAME);
+        try {
+            // every upgrade step runs here
+            long start = SystemClock.elapsedRealtime();
+            databaseHelper.getWritableDatabase();
+            long upgrade = SystemClock.elapsedRealtime() - start;
+
+            final int[] signals = {0};
+            databaseHelper.forEachSignal(new IndoorDatabaseHelper.SignalVisitor() {
+                @Override
+                public void onSignal(long locationId, IndoorLocation location, int accessPointId, String bssid,
+                                     String ssid, double level, long timestamp) {
+                    signals[0]++;
+                }
+            });
+
+            Log.i(TAG, SIGNALS + " signals (and " + ORPHANS + " without a location) of " + LOCATIONS
+                    + " locations upgraded in " + upgrade + " ms ("
+                    + Math.round(SIGNALS * 1000.0 / Math.max(1, upgrade)) + " signals/s)");
+            // only the signals without a location are left out, the merged locations keep theirs
+            assertEquals(SIGNALS, signals[0]);
+        } finally {
+            databaseHelper.close();
+        }
+    }
+}
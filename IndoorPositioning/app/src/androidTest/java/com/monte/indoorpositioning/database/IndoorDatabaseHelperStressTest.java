@@ -0,0 +1,190 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads the database on several threads while the writer thread stores signals one after another,
+ * the way the training activity collects them. Thanks to write-ahead logging no read should wait
+ * for the writes, thus reading on the UI thread while collecting never drops a frame.
+ */
+public class IndoorDatabaseHelperStressTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "stressTest.db";
+    private static final int WRITES = 2000;
+    private static final int READERS = 3;
+    // A frame is 16 ms, a read of this small database takes a few ms unless it waits for a write
+    private static final long MAX_READ_MILLIS = 50;
+
+    private IndoorDatabaseHelper databaseHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        databaseHelper = IndoorDatabaseHelper.getInstance(getContext(), DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        databaseHelper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReadsDoNotWaitForWrites() throws Exception {
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicLong slowestRead = new AtomicLong();
+        final AtomicReference<Throwable> readError = new AtomicReference<>();
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+
+        for (int i = 0; i < READERS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (isWriting.get()) {
+                            long start = SystemClock.uptimeMillis();
+                            databaseHelper.getDataVersion();
+                            databaseHelper.getProcessedSignals(0);
+                            long took = SystemClock.uptimeMillis() - start;
+                            long slowest = slowestRead.get();
+                            while (took > slowest && !slowestRead.compareAndSet(slowest, took)) {
+                                slowest = slowestRead.get();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        readError.set(e);
+                    } finally {
+                        readersDone.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        // Every signal is a write of its own, of 50 locations and 10 routers
+        List<Future<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < WRITES; i++) {
+            IndoorLocation location = new IndoorLocation(0, "room", "Stress Test", 55.92 + (i % 50) * 0.0001, -3.17);
+            IndoorSignal signal = new IndoorSignal(location, "00:00:00:00:00:0" + (i % 10), "router", -40 - i % 30, i);
+            writes.add(databaseHelper.addSignalAsync(signal, null));
+        }
+        for (Future<Void> write : writes) {
+            write.get();
+        }
+        isWriting.set(false);
+        assertTrue(readersDone.await(10, TimeUnit.SECONDS));
+
+        assertNull("Read failed: " + readError.get(), readError.get());
+        assertTrue("The slowest read took " + slowestRead.get() + " ms", slowestRead.get() < MAX_READ_MILLIS);
+        // every write was done
+        assertEquals(WRITES, databaseHelper.getAllSignals().size());
+        assertEquals(50, databaseHelper.getProcessedSignals(0).size());
+    }
+
+    public void testFailedWriteIsPassedToListener() throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        // a missing path throws straight away on the writer thread
+        Future<Integer> merge = databaseHelper.mergeDatabaseAsync(null, null,
+                new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+                    @Override
+                    public void onWriteFinished(Integer result) {
+                        finished.countDown();
+                    }
+
+                    @Override
+                    public void onWriteFailed(Exception e) {
+                        failure.set(e);
+                        finished.countDown();
+                    }
+                });
+
+        try {
+            merge.get();
+            fail("The merge should have failed");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertNotNull(failure.get());
+
+        // the writer thread goes on with the next writes
+        IndoorLocation location = new IndoorLocation(0, "room", "Stress Test", 55.92, -3.17);
+        databaseHelper.addSignalAsync(new IndoorSignal(location, "00:00:00:00:00:01", "router", -50, 0), null).get();
+        assertEquals(1, databaseHelper.getAllSignals().size());
+    }
+
+    public void testFailedScanIsPassedToListener() throws Exception {
+        // every new location is rejected by the database, like a full disk would do
+        databaseHelper.getWritableDatabase().execSQL("CREATE TEMP TRIGGER rejectLocations " +
+                "BEFORE INSERT ON indoorLocations BEGIN SELECT RAISE(ABORT, 'rejected'); END");
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final AtomicBoolean isFinished = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(1);
+        IndoorLocation location = new IndoorLocation(0, "room", "Stress Test", 55.92, -3.17);
+        Future<Integer> scan = databaseHelper.addScanAsync(location, new ArrayList<ScanResult>(), 0,
+                new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+                    @Override
+                    public void onWriteFinished(Integer result) {
+                        isFinished.set(true);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onWriteFailed(Exception e) {
+                        failure.set(e);
+                        done.countDown();
+                    }
+                });
+
+        try {
+            scan.get();
+            fail("The scan should have failed");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse("The failed scan was reported as stored", isFinished.get());
+        assertNotNull(failure.get());
+        assertTrue(databaseHelper.getAllSignals().isEmpty());
+
+        // once the database accepts the location again the same write goes through
+        databaseHelper.getWritableDatabase().execSQL("DROP TRIGGER temp.rejectLocations");
+        databaseHelper.addSignalAsync(new IndoorSignal(location, "00:00:00:00:00:01", "router", -50, 0), null).get();
+        assertEquals(1, databaseHelper.getAllSignals().size());
+    }
+}
@@ -0,0 +1,176 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the RadioMapArchive with the copy of the database file: the size of both exports, how
+ * long writing them takes and how long importing them into an empty database takes. The archive is
+ * also read on its own, which is all positioning straight from it needs. The numbers are logged:
+ *
+ * adb logcat -s RadioMapArchiveBenchmark
+ */
+public class RadioMapArchiveBenchmark extends AndroidTestCase {
+    private static final String TAG = "RadioMapArchiveBenchmark";
+    private static final String DATABASE_NAME = "archiveBenchmark.db";
+    private static final String IMPORT_DATABASE_NAME = "archiveBenchmarkImport.db";
+    // A floor of a building: locations every few metres, the same routers heard in most of them
+    private static final int LOCATIONS = 100;
+    private static final int ROUTERS = 20;
+    private static final int SCANS = 10;
+
+    private IndoorDatabaseHelper databaseHelper;
+    private File databaseCopy;
+    private File archive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        getContext().deleteDatabase(IMPORT_DATABASE_NAME);
+        databaseHelper = IndoorDatabaseHelper.getInstance(getContext(), DATABASE_NAME);
+        databaseCopy = new File(getContext().getCacheDir(), "archiveBenchmark.db");
+        archive = new File(getContext().getCacheDir(), "archiveBenchmark" + RadioMapArchive.FILE_EXTENSION);
+        databaseCopy.delete();
+        archive.delete();
+
+        // Every scan of every location hears most of the routers, about 2 s after the previous scan
+        Random random = new Random(LOCATIONS);
+        long timestamp = 1490000000000L;
+        for (int l = 0; l < LOCATIONS; l++) {
+            IndoorLocation location = new IndoorLocation(0, "room " + l / 10, "Benchmark",
+                    55.92 + (l % 10) * 0.00003, -3.17 + (l / 10) * 0.00005);
+            for (int s = 0; s < SCANS; s++) {
+                timestamp += 1500 + random.nextInt(1000);
+                for (int r = 0; r < ROUTERS; r++) {
+                    if (random.nextInt(10) < 8) {
+                        String bssid = String.format("a4:2b:b0:%02x:%02x:%02x", r, r * 7 % 256, r * 13 % 256);
+                        databaseHelper.addSignal(new IndoorSignal(location, bssid, "eduroam",
+                                -40 - random.nextInt(50), timestamp));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        databaseHelper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        getContext().deleteDatabase(IMPORT_DATABASE_NAME);
+        databaseCopy.delete();
+        archive.delete();
+        super.tearDown();
+    }
+
+    public void testArchiveAgainstDatabaseCopy() throws Exception {
+        int signals = databaseHelper.getAllSignals().size();
+
+        long start = SystemClock.elapsedRealtime();
+        assertTrue(databaseHelper.exportDatabase(databaseCopy.getAbsolutePath()));
+        long copyWrite = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        assertTrue(databaseHelper.exportRadioMapArchive(archive.getAbsolutePath()));
+        long archiveWrite = SystemClock.elapsedRealtime() - start;
+
+        // Reading the whole archive, raw signals included
+        final int[] readSignals = {0};
+        start = SystemClock.elapsedRealtime();
+        RadioMapArchive.read(archive, new RadioMapArchive.Visitor() {
+            @Override
+            public void onLocation(int index, IndoorLocation location) {
+            }
+
+            @Override
+            public void onAccessPoint(int index, int accessPointId, String bssid, String ssid) {
+            }
+
+            @Override
+            public void onStatistics(int location, int accessPoint, SignalStatistics statistics) {
+            }
+
+            @Override
+            public void onSignal(int location, int accessPoint, long timestamp, double level) {
+                readSignals[0]++;
+            }
+        }, true);
+        long archiveRead = SystemClock.elapsedRealtime() - start;
+        assertEquals(signals, readSignals[0]);
+        // Only the radio map, the way positioning reads it
+        start = SystemClock.elapsedRealtime();
+        assertEquals(LOCATIONS, RadioMapArchive.load(archive).getProcessedSignals(0).size());
+        long archiveLoad = SystemClock.elapsedRealtime() - start;
+
+        // Importing each of them into an empty database
+        long copyImport = importInto(databaseCopy, signals);
+        long archiveImport = importInto(archive, signals);
+
+        Log.i(TAG, signals + " signals of " + LOCATIONS + " locations and " + ROUTERS + " routers");
+        Log.i(TAG, "size:   database copy " + databaseCopy.length() + " B, archive " + archive.length()
+                + " B (" + String.format("%.1f", (double) databaseCopy.length() / archive.length()) + "x smaller)");
+        Log.i(TAG, "write:  database copy " + copyWrite + " ms, archive " + archiveWrite + " ms ("
+                + signalsPerSecond(signals, archiveWrite) + " signals/s)");
+        Log.i(TAG, "read:   archive " + archiveRead + " ms (" + signalsPerSecond(signals, archiveRead)
+                + " signals/s), radio map only " + archiveLoad + " ms");
+        Log.i(TAG, "import: database copy " + copyImport + " ms, archive " + archiveImport + " ms");
+
+        // The whole point of the archive
+        assertTrue(archive.length() < databaseCopy.length());
+    }
+
+    /**
+     * Merges the file into an empty database and checks every signal got there.
+     * @param file
+     * @param signals   - number of signals the file holds
+     * @return how long the merge took in ms
+     * @throws Exception
+     */
+    private long importInto(File file, int signals) throws Exception {
+        getContext().deleteDatabase(IMPORT_DATABASE_NAME);
+        IndoorDatabaseHelper importHelper = IndoorDatabaseHelper.getInstance(getContext(), IMPORT_DATABASE_NAME);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(signals, importHelper.mergeDatabase(file.getAbsolutePath(), null));
+            long took = SystemClock.elapsedRealtime() - start;
+            assertEquals(signals, importHelper.getAllSignals().size());
+            return took;
+        } finally {
+            importHelper.close();
+        }
+    }
+
+    /**
+     * @param signals
+     * @param millis
+     * @return signals per second, rounded
+     */
+    private static long signalsPerSecond(int signals, long millis) {
+        return Math.round(signals * 1000.0 / Math.max(1, millis));
+    }
+}
@@ -0,0 +1,146 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares storing wifi scans with addScan() against storing the same signals one by one with
+ * addSignal(), the way the training activity used to. Every scan is written into its own empty
+ * database by both of them, and the numbers are logged:
+ *
+ * adb logcat -s ScanIngestBenchmark
+ */
+public class ScanIngestBenchmark extends AndroidTestCase {
+    private static final String TAG = "ScanIngestBenchmark";
+    private static final String SIGNAL_DATABASE_NAME = "signalIngestBenchmark.db";
+    private static final String SCAN_DATABASE_NAME = "scanIngestBenchmark.db";
+    // A survey of a floor: a few scans in every location, about 40 routers heard by a scan
+    private static final int LOCATIONS = 50;
+    private static final int SCANS = 4;
+    private static final int ROUTERS = 40;
+
+    private final List<IndoorLocation> locations = new ArrayList<>();
+    private final List<List<ScanResult>> scans = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(SIGNAL_DATABASE_NAME);
+        getContext().deleteDatabase(SCAN_DATABASE_NAME);
+
+        Random random = new Random(LOCATIONS);
+        for (int l = 0; l < LOCATIONS; l++) {
+            IndoorLocation location = new IndoorLocation(0, "room " + l / 10, "Benchmark",
+                    55.92 + (l % 10) * 0.00003, -3.17 + (l / 10) * 0.00005);
+            for (int s = 0; s < SCANS; s++) {
+                List<ScanResult> scan = new ArrayList<>(ROUTERS);
+                for (int r = 0; r < ROUTERS; r++) {
+                    scan.add(newScanResult(String.format("a4:2b:b0:%02x:%02x:%02x", r, r * 7 % 256, r * 13 % 256),
+                            "eduroam", -40 - random.nextInt(50)));
+                }
+                locations.add(location);
+                scans.add(scan);
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(SIGNAL_DATABASE_NAME);
+        getContext().deleteDatabase(SCAN_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testAddScanAgainstAddSignal() throws Exception {
+        int signals = scans.size() * ROUTERS;
+        long timestamp = 1490000000L;
+
+        // Every signal in its own transaction, the location is looked up for each of them
+        IndoorDatabaseHelper signalHelper = IndoorDatabaseHelper.getInstance(getContext(), SIGNAL_DATABASE_NAME);
+        long signalTime;
+        try {
+            signalHelper.getWritableDatabase();
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < scans.size(); i++) {
+                for (ScanResult result : scans.get(i)) {
+                    signalHelper.addSignal(new IndoorSignal(locations.get(i), result.BSSID, result.SSID,
+                            result.level, timestamp + i));
+                }
+            }
+            signalTime = SystemClock.elapsedRealtime() - start;
+            assertEquals(signals, signalHelper.getAllSignals().size());
+        } finally {
+            signalHelper.close();
+        }
+
+        // Every scan in a single transaction
+        IndoorDatabaseHelper scanHelper = IndoorDatabaseHelper.getInstance(getContext(), SCAN_DATABASE_NAME);
+        long scanTime;
+        try {
+            scanHelper.getWritableDatabase();
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < scans.size(); i++) {
+                assertEquals(ROUTERS, scanHelper.addScan(locations.get(i), scans.get(i), timestamp + i));
+            }
+            scanTime = SystemClock.elapsedRealtime() - start;
+            assertEquals(signals, scanHelper.getAllSignals().size());
+        } finally {
+            scanHelper.close();
+        }
+
+        Log.i(TAG, scans.size() + " scans of " + ROUTERS + " routers in " + LOCATIONS + " locations");
+        Log.i(TAG, "addSignal: " + signalTime + " ms (" + signalTime * 1000 / scans.size() + " us per scan)");
+        Log.i(TAG, "addScan:   " + scanTime + " ms (" + scanTime * 1000 / scans.size() + " us per scan, "
+                + String.format("%.1f", (double) signalTime / Math.max(1, scanTime)) + "x faster)");
+
+        // The whole point of addScan()
+        assertTrue(scanTime < signalTime);
+    }
+
+    /**
+     * ScanResult has no public constructor before API 30, the hidden one is used instead.
+     * @param bssid
+     * @param ssid
+     * @param level
+     * @return
+     * @throws Exception
+     */
+    private static ScanResult newScanResult(String bssid, String ssid, int level) throws Exception {
+        Constructor<ScanResult> constructor = ScanResult.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        ScanResult result = constructor.newInstance();
+        result.BSSID = bssid;
+        result.SSID = ssid;
+        result.level = level;
+        return result;
+    }
+}
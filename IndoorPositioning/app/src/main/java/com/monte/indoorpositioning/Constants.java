@@ -41,6 +41,10 @@ public class Constants {
     // Password used when deleting the database. Can't delete without it.
     public static final String DELETE_PASSWORD = "2468";
 
+    // Raw signals older than this (in seconds) are deleted by the database compaction.
+    // Their signal statistics are kept, thus positioning is not affected.
+    public static final long RAW_SIGNALS_MAX_AGE = 30 * 24 * 60 * 60;
+
     // Method which makes the status bar translucent / transparent
     static void setStatusBarTranslucent(boolean makeTranslucent, Window window) {
         if (makeTranslucent) {
@@ -0,0 +1,181 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * The k nearest locations found by KNN so far, as a max-heap of a fixed size: the farthest of
+ * them is at the top, thus a new location only has to be compared with it. Locations are
+ * ordered by their euclidian distance and then by their number, which is the order the whole
+ * sorted list of locations had, thus the k locations are the same as its first k.
+ *
+ * Besides the euclidian distance the square before the root is kept, which KNN compares its
+ * partial sums with to stop summing a location which can't get in anymore, see getWorstSquare().
+ */
+public class KnnHeap {
+    private final int[] locations;          // numbers of the locations, heap ordered
+    private final double[] distances;       // euclidian distances of the locations
+    private final double[] squares;         // squared euclidian distances of the locations
+    private int size = 0;
+    private boolean isSorted = false;       // see sort()
+
+    /**
+     * Constructor.
+     * @param capacity  - k, the number of locations which are kept
+     */
+    public KnnHeap(int capacity) {
+        locations = new int[capacity];
+        distances = new double[capacity];
+        squares = new double[capacity];
+    }
+
+    /**
+     * @return squared euclidian distance a location must not exceed to get into the heap, infinity
+     * while the heap isn't full
+     */
+    public double getWorstSquare() {
+        return size < locations.length ? Double.POSITIVE_INFINITY : squares[0];
+    }
+
+    /**
+     * Adds the location if it is nearer than the farthest one in the heap, which is then dropped.
+     * @param location  - number of the location
+     * @param square    - squared euclidian distance
+     * @param distance  - euclidian distance
+     */
+    public void offer(int location, double square, double distance) {
+        if (isSorted) {
+            throw new IllegalStateException("The heap is sorted already");
+        }
+        if (size < locations.length) {
+            // not full yet, the new location goes to the bottom and moves up
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isFarther(location, distance, locations[parent], distances[parent])) {
+                    break;
+                }
+                set(i, locations[parent], squares[parent], distances[parent]);
+                i = parent;
+            }
+            set(i, location, square, distance);
+        } else if (size > 0 && isFarther(locations[0], distances[0], location, distance)) {
+            // replaces the farthest location at the top and moves down
+            siftDown(0, size, location, square, distance);
+        }
+    }
+
+    /**
+     * Offers every location of another heap, which isn't sorted yet. Used to merge the heaps of
+     * candidates scored separately.
+     * @param other
+     */
+    public void offerAll(KnnHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.locations[i], other.squares[i], other.distances[i]);
+        }
+    }
+
+    /**
+     * @return number of locations in the heap
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sorts the locations nearest first (heapsort, in place). Call once every location was offered,
+     * the heap can't take any more locations afterwards.
+     */
+    public void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            // the farthest of the remaining locations goes right after them
+            int location = locations[end];
+            double square = squares[end];
+            double distance = distances[end];
+            set(end, locations[0], squares[0], distances[0]);
+            siftDown(0, end, location, square, distance);
+        }
+        isSorted = true;
+    }
+
+    /**
+     * @param i - position in the sorted heap, 0 is the nearest location
+     * @return number of the location
+     */
+    public int getLocation(int i) {
+        checkSorted();
+        return locations[i];
+    }
+
+    /**
+     * @param i - position in the sorted heap, 0 is the nearest location
+     * @return euclidian distance of the location
+     */
+    public double getDistance(int i) {
+        checkSorted();
+        return distances[i];
+    }
+
+    private void checkSorted() {
+        if (!isSorted) {
+            throw new IllegalStateException("The heap has to be sorted first");
+        }
+    }
+
+    /**
+     * Puts the location at position i of the first size ones, or lower until it is farther than
+     * both of its children.
+     */
+    private void siftDown(int i, int size, int location, double square, double distance) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && isFarther(locations[child + 1], distances[child + 1],
+                    locations[child], distances[child])) {
+                child++;
+            }
+            if (!isFarther(locations[child], distances[child], location, distance)) {
+                break;
+            }
+            set(i, locations[child], squares[child], distances[child]);
+            i = child;
+        }
+        set(i, location, square, distance);
+    }
+
+    private void set(int i, int location, double square, double distance) {
+        locations[i] = location;
+        squares[i] = square;
+        distances[i] = distance;
+    }
+
+    /**
+     * @return true if the first location comes after the second one in the sorted list
+     */
+    private static boolean isFarther(int location1, double distance1, int location2, double distance2) {
+        return distance1 > distance2 || (distance1 == distance2 && location1 > location2);
+    }
+}
@@ -0,0 +1,276 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the euclidian distances of the candidate locations of a single KNN query on a
+ * RadioMapIndex, see WifiCollector.getKnn(). Holds everything the query compares with, thus the
+ * candidates can be scored in any number of chunks at once.
+ *
+ * On a dense floor the levels are read from the columns of the index's RadioMapMatrix, otherwise
+ * the location is searched for in the posting list of every test router.
+ *
+ * Small queries are scored on the calling thread. When there are many candidates (the user's
+ * position is unknown and the whole campus is compared) they are split into chunks which are
+ * scored on a ForkJoinPool, each into its own KnnHeap, and the heaps are then merged. Locations
+ * are ordered by their distance and number in every heap, thus the result is the same whichever
+ * chunk a location was scored in.
+ */
+class KnnScoring {
+    static final int PARALLEL_THRESHOLD = 8192;     // fewer candidates are scored on the calling thread
+    private static final int CHUNK_SIZE = 2048;     // candidates scored by a single task
+
+    // Created on the first parallel query. Not the common pool, which needs API 24
+    private static ForkJoinPool pool;
+
+    private final RadioMapIndex index;
+    private final RadioMapIndex.Postings[] testPostings;    // posting list of every test router
+    private final double[] levels;                          // level of every test router
+    private final double[] weights;                         // weight of every test router
+    private final boolean isWeighted;
+    private final boolean isAverageOrMedian;
+    private final double lat;                               // position of the user
+    private final double lng;
+    private final int floor;
+    private final boolean isIgnoringDistance;
+    private final double maxDistance;
+    private final int maxLocations;                         // 0 keeps every location
+    // Columns of the test routers when the index has a matrix, otherwise null
+    private final float[][] testColumns;                    // level of every test router in every location
+    private final BitSet[] testCollected;                   // locations every test router was collected in
+    private final int[] floors;                             // floor of every location
+    // Thread which scored the last part of the candidates, checked by the tests
+    volatile Thread scoringThread;
+
+    /**
+     * Constructor, see WifiCollector.getKnn() for the meaning of the parameters.
+     * @param index
+     * @param accessPointIds    - id of every test router
+     * @param testPostings
+     * @param levels
+     * @param isWeighted
+     * @param isAverageOrMedian
+     * @param lat
+     * @param lng
+     * @param floor
+     * @param isIgnoringDistance
+     * @param maxDistance
+     * @param maxLocations
+     */
+    KnnScoring(RadioMapIndex index, int[] accessPointIds, RadioMapIndex.Postings[] testPostings, double[] levels, boolean isWeighted,
+               boolean isAverageOrMedian, double lat, double lng, int floor, boolean isIgnoringDistance,
+               double maxDistance, int maxLocations) {
+        this.index = index;
+        this.testPostings = testPostings;
+        this.levels = levels;
+        this.isWeighted = isWeighted;
+        this.isAverageOrMedian = isAverageOrMedian;
+        this.lat = lat;
+        this.lng = lng;
+        this.floor = floor;
+        this.isIgnoringDistance = isIgnoringDistance;
+        this.maxDistance = maxDistance;
+        this.maxLocations = maxLocations;
+
+        // We can also weight the signal according to it's signal strength -
+        // the stringer the signal, the more trusful it is
+        weights = new double[levels.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = isWeighted ? (Math.abs(1.0 / levels[i])) : 1.0;
+        }
+
+        // Every test router has a posting list, thus a column of the matrix too
+        RadioMapMatrix matrix = index.getMatrix();
+        if (matrix != null) {
+            testColumns = new float[testPostings.length][];
+            testCollected = new BitSet[testPostings.length];
+            for (int i = 0; i < testPostings.length; i++) {
+                int column = matrix.getColumn(accessPointIds[i]);
+                testColumns[i] = isAverageOrMedian ? matrix.getAverages(column) : matrix.getMedians(column);
+                testCollected[i] = matrix.getCollected(column);
+            }
+            floors = matrix.floors;
+        } else {
+            testColumns = null;
+            testCollected = null;
+            floors = null;
+        }
+    }
+
+    /**
+     * Scores every candidate, in parallel if there are at least PARALLEL_THRESHOLD of them.
+     * @param candidates    - numbers of the locations, increasing
+     * @return the nearest locations (all of them if maxLocations is 0), not sorted yet
+     */
+    KnnHeap score(int[] candidates) {
+        if (candidates.length < PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() < 2) {
+            return score(candidates, 0, candidates.length);
+        }
+        return score(candidates, getPool());
+    }
+
+    /**
+     * Scores every candidate in chunks on the given pool, however many there are. Used by score()
+     * and to compare pools of different sizes.
+     * @param candidates    - numbers of the locations, increasing
+     * @param pool
+     * @return the nearest locations (all of them if maxLocations is 0), not sorted yet
+     */
+    KnnHeap score(int[] candidates, ForkJoinPool pool) {
+        return pool.invoke(new ScoreTask(candidates, 0, candidates.length));
+    }
+
+    /**
+     * Scores a part of the candidates on the calling thread. The locations are visited in the order
+     * of their numbers, walking all of the posting lists at once, and summing up a location stops as
+     * soon as it is farther than the farthest of the nearest ones found so far.
+     * @param candidates
+     * @param from      - first candidate of the part
+     * @param to        - the part ends before this one
+     * @return the nearest locations of the part
+     */
+    KnnHeap score(int[] candidates, int from, int to) {
+        scoringThread = Thread.currentThread();
+        KnnHeap heap = new KnnHeap(getCapacity(to - from));
+        // position of every posting list, they only move forward as the candidates are increasing
+        int[] cursors = new int[testPostings.length];
+
+        for (int c = from; c < to; c++) {
+            int location = candidates[c];
+
+            // Ignore the location if it is from the wrong floor
+            if ((floors != null ? floors[location] : index.getLocation(location).floor) != floor){
+                continue;
+            }
+
+            // make sure that we only consider signals within a certain range,
+            // the distance in meters comes from the positions computed with the index
+            double locationDistance = index.getDistance(location, lat, lng);
+            if (locationDistance > maxDistance && !isIgnoringDistance){
+                continue;
+            }
+
+            // weights for the distance. The further away the signal the bigger the weight is
+            double distance = Math.pow(locationDistance, 2) / 100.0;
+            double distanceWeight = isWeighted ? 1.0 / distance : 1;
+
+            // euclidian distance, summed in the order of the test signals
+            double sum = 0;
+            double worstSquare = heap.getWorstSquare();
+            boolean isCandidate = true;
+            for (int i = 0; i < testPostings.length && isCandidate; i++) {
+                double trainValue;
+                if (testColumns != null) {
+                    // the level is read straight from the router's column of the matrix
+                    if (!testCollected[i].get(location)) {
+                        isCandidate = false;
+                        break;
+                    }
+                    trainValue = testColumns[i][location];
+                } else {
+                    int[] routerLocations = testPostings[i].locations;
+                    // the candidates might skip far ahead in the list, thus the location is searched for
+                    int found = cursors[i] < routerLocations.length ?
+                            Arrays.binarySearch(routerLocations, cursors[i], routerLocations.length, location) : -1;
+                    if (found < 0) {
+                        // the router wasn't collected in this location, the next candidates are after it
+                        cursors[i] = Math.max(cursors[i], -found - 1);
+                        isCandidate = false;
+                        break;
+                    }
+                    cursors[i] = found;
+                    // get either averag or median value
+                    trainValue = isAverageOrMedian ? testPostings[i].averages[found] :
+                            testPostings[i].medians[found];
+                }
+                // and add a value to the total sum of euclidian distance
+                double difference = levels[i] - trainValue;
+                sum += difference * difference * weights[i];
+                // the sum only grows, thus the location can't be among the nearest anymore
+                if (sum * distanceWeight > worstSquare) {
+                    isCandidate = false;
+                }
+            }
+            if (isCandidate) {
+                // square root of the weighted sum as the distance...
+                double square = sum * distanceWeight;
+                heap.offer(location, square, Math.sqrt(square));
+            }
+        }
+        return heap;
+    }
+
+    /**
+     * @param locationCount - number of locations which could get into the heap
+     * @return capacity of a heap
+     */
+    private int getCapacity(int locationCount) {
+        int capacity = maxLocations > 0 ? Math.min(maxLocations, locationCount) : locationCount;
+        return Math.max(capacity, 1);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Scores a part of the candidates. Parts larger than CHUNK_SIZE are split in half, the halves
+     * are scored at once and their heaps merged.
+     */
+    private class ScoreTask extends RecursiveTask<KnnHeap> {
+        private final int[] candidates;
+        private final int from;
+        private final int to;
+
+        ScoreTask(int[] candidates, int from, int to) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected KnnHeap compute() {
+            if (to - from <= CHUNK_SIZE) {
+                return score(candidates, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            ScoreTask left = new ScoreTask(candidates, from, middle);
+            left.fork();
+            KnnHeap rightHeap = new ScoreTask(candidates, middle, to).compute();
+            KnnHeap leftHeap = left.join();
+
+            KnnHeap heap = new KnnHeap(getCapacity(leftHeap.size() + rightHeap.size()));
+            heap.offerAll(leftHeap);
+            heap.offerAll(rightHeap);
+            return heap;
+        }
+    }
+}
@@ -149,6 +149,7 @@ public class MotionSensorManager implements SensorEventListener{
     private List<Float> altitudeHistory = new ArrayList<>();        // collected altitude values in history
     private float pressure = SensorManager.PRESSURE_STANDARD_ATMOSPHERE;
     private boolean isFirstPressureReading = true;
+    private boolean isFloorChangeStarted = false;                   // altitude started changing, listener was told
     /**
      * Function used to check for floor changes.
      * @param rawPressureValues
@@ -182,6 +183,17 @@ public class MotionSensorManager implements SensorEventListener{
             float first = altitude;
             float last = altitudeHistory.get(0);
 
+            // Once the altitude starts moving (half of the floor change threshold) tell about it
+            // only once per movement. This allows preparing for the floor change in advance.
+            if (Math.abs(first - last) > 1) {
+                if (!isFloorChangeStarted && motionSensorManagerListener != null) {
+                    motionSensorManagerListener.onFloorChangeStarted(first - last > 0);
+                }
+                isFloorChangeStarted = true;
+            } else {
+                isFloorChangeStarted = false;
+            }
+
             // Check that if the value difference is 2m, then determine if user went up or down.
             // Call the listener method.
             if (first - last > 2) {
@@ -190,11 +202,13 @@ public class MotionSensorManager implements SensorEventListener{
                 }
                 // remove all of the values because floor was updated!
                 altitudeHistory.clear();
+                isFloorChangeStarted = false;
             } else if (first - last < -2) {
                 if (motionSensorManagerListener != null){
                     motionSensorManagerListener.onFloorChange(false);
                 }
                 altitudeHistory.clear();
+                isFloorChangeStarted = false;
             }
             // update the previous time
             previousTime = currTime;
@@ -297,5 +311,6 @@ public class MotionSensorManager implements SensorEventListener{
         void onGyroOrientationCalculated(float[] orientation);
         void onRotationOrientationCalculated(float[] orientation);
         void onFloorChange(boolean offset);
+        void onFloorChangeStarted(boolean offset);
     }
 }
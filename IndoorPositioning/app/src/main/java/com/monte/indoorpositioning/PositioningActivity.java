@@ -52,11 +52,11 @@ import com.jjoe64.graphview.GraphView;
 import com.monte.indoorpositioning.map.*;
 import com.monte.indoorpositioning.database.*;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 /**
  *
@@ -68,7 +68,8 @@ import java.util.Map;
  *
  * The activity works in these steps:
  * 1) It initialises all of the basic views such as buttons, seekBars etc.
- * 2) It reads the database information and parses that into an easily readable Map structure (for cache - quicker access)
+ * 2) It reads the database information and parses that into an easily readable Map structure (for cache - quicker access).
+ * Once the building is told from the routers of a scan, only the database of that building is used (see DatabaseCatalog).
  * 3) (EXTRA FEATURE) It then setups the Map and floor plans of the ground and the first floors of the Fleeming Jenkins Building.
  * 4) Initialises the custom red dot and then hides it from the user until it's indoor location is being detected.
  * 5) Now the wifi scan starts. Whenever a new scan is received, it's info is being sent here.
@@ -102,8 +103,19 @@ public class PositioningActivity extends FragmentActivity implements OnMapReadyC
     private TextToSpeech textToSpeech;                  // Text to speech is used to tell the location
     private boolean isDebug;                            // if Debug was selected this becomes positive and starts showing debug windows
     private IndoorMapManager mIndoorMapManager;         // Used to control indoor map view - create ground overlays, markers and the red dot
-    private Map<IndoorLocation, List<ProcessedSignal>> processedMap = new HashMap<>();  // Processed database is stored here
+    private RadioMapHolder radioMapHolder;              // Processed database is loaded here one floor at a time
+    private IndoorDatabaseHelper databaseHelper;        // Database the radio map is loaded from, null if an archive is used
+    private DatabaseCatalog databaseCatalog;            // Tells the building from a scan and gives its database
+    private String currentBuilding;                     // Building whose database is used, null while the survey database is used
+    private boolean isDetectingBuilding = false;        // The building is being detected in the background
+    private static final int BUILDING_DETECTION_SCANS = 5;          // While no building is known, it's detected every few scans
+    private int scansSinceDetection = BUILDING_DETECTION_SCANS;     // Scans since the building was last detected, the first scan detects it
+    private long lastRadioMapRefresh = 0;               // When the radio map was last checked for a new version (ms)
+    private static final long RADIO_MAP_REFRESH_INTERVAL = 30 * 1000;  // How often to check for a new version (ms)
     private ProcessedLocation currentLocation;          // The closest location, which determines where the user is at the moment
+    private static final String SNAPSHOT_FILE_PREFIX = "radiomap_";     // Compiled radio maps in the app files, one per database
+    public static final String RADIO_MAP_ARCHIVE_KEY = "RADIO_MAP_ARCHIVE_KEY"; // Path of an archive to position with instead of the database
+    private static final int MAX_KNN_LOCATIONS = 5;     // Nearest locations used by the algorithms which don't need all of them
 
     // Values being used when processing using KNN algorithm
     private List<Marker> markerList = new ArrayList<>();// All of the added markers are put here in order to easily be able to remove them from the map
@@ -165,15 +177,63 @@ public class PositioningActivity extends FragmentActivity implements OnMapReadyC
     }
 
     /**
-     * Database is being setup here.
+     * Database is being setup here. The radio map itself is loaded in the background, see onResume().
      */
     private void setupDatabase (){
-        // Get database instance
-        final IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
-        // Get all saved signals from the database
-        List<IndoorSignal> signals = databaseHelper.getAllSignals();
-        // Process signals (for all of the locations calculates the average and median) and sort them by average
-        processedMap = WifiCollector.sortByAverage(WifiCollector.getProcessed(signals));
+        // A radio map archive (e.g. picked in the training activity) is used as it is, without any database
+        String archivePath = getIntent().getStringExtra(RADIO_MAP_ARCHIVE_KEY);
+        if (archivePath != null) {
+            radioMapHolder = new RadioMapHolder(new File(archivePath));
+            return;
+        }
+        // Get database instance. The survey database with every building is used until the building is known
+        databaseCatalog = DatabaseCatalog.getInstance(this);
+        useDatabase(IndoorDatabaseHelper.getInstance(this));
+    }
+
+    /**
+     * Replaces the database the radio map is loaded from.
+     * @param helper
+     */
+    private void useDatabase(IndoorDatabaseHelper helper) {
+        if (radioMapHolder != null) {
+            radioMapHolder.close();
+        }
+        databaseHelper = helper;
+        radioMapHolder = new RadioMapHolder(databaseHelper, new File(getFilesDir(),
+                SNAPSHOT_FILE_PREFIX + databaseHelper.getDatabaseName() + RadioMapSnapshot.FILE_EXTENSION));
+    }
+
+    /**
+     * Tells the building from the scan in the background and switches to its database, if it has one.
+     * @param spots
+     */
+    private void detectBuilding(List<ScanResult> spots) {
+        isDetectingBuilding = true;
+        scansSinceDetection = 0;
+        // The catalog is read away from the UI thread, the scan list is copied since it's reused
+        databaseCatalog.detectBuildingAsync(new ArrayList<ScanResult>(spots), new DatabaseCatalog.OnBuildingDetectedListener() {
+            @Override
+            public void onBuildingDetected(String building, IndoorDatabaseHelper shard) {
+                isDetectingBuilding = false;
+                // the activity might have been closed meanwhile
+                if (shard == null || building.equals(currentBuilding) || isDestroyed()) {
+                    return;
+                }
+                Log.i("detectBuilding", "Using the database of " + building);
+                currentBuilding = building;
+                useDatabase(shard);
+                refreshRadioMap();
+            }
+        });
+    }
+
+    /**
+     * Checks in the background if the radio map was changed and swaps in the new version.
+     */
+    private void refreshRadioMap() {
+        lastRadioMapRefresh = System.currentTimeMillis();
+        radioMapHolder.refresh(currentFloor);
     }
 
     /**
@@ -401,6 +461,9 @@ public class PositioningActivity extends FragmentActivity implements OnMapReadyC
         mWifiCollector.registerWifiReceiver();
         // Start motion sensors updates
         mMotionSensorManager.registerMotionSensors();
+        // Load the radio map, or a new version of it if the database was changed while paused
+        // (e.g. a survey was imported). Until the first version is loaded wifi scans are ignored.
+        refreshRadioMap();
         // setup text to speech engine
         setupTextToSpeech();
 //        mWifiCollector.startWifiScan();
@@ -410,6 +473,7 @@ public class PositioningActivity extends FragmentActivity implements OnMapReadyC
     @Override
     public void onDestroy() {
         super.onDestroy();
+        radioMapHolder.close();
         Runtime.getRuntime().gc();
         mMap.clear();
     }
@@ -422,15 +486,46 @@ public class PositioningActivity extends FragmentActivity implements OnMapReadyC
      */
     @Override
     public void onWifiCollected(List<ScanResult> spots) {
+        // Every now and then check if the user is in another building or the radio map changed, the new
+        // version is swapped in once it's loaded in the background. While no building is known it's
+        // detected every few scans, and only one detection runs at a time
+        scansSinceDetection++;
+        boolean isDetectionDue = currentBuilding == null ? scansSinceDetection >= BUILDING_DETECTION_SCANS :
+                System.currentTimeMillis() - lastRadioMapRefresh > RADIO_MAP_REFRESH_INTERVAL;
+        // An archive has no other buildings to switch to
+        if (databaseHelper != null && !isDetectingBuilding && isDetectionDue) {
+            detectBuilding(spots);
+        }
+        if (System.currentTimeMillis() - lastRadioMapRefresh > RADIO_MAP_REFRESH_INTERVAL) {
+            refreshRadioMap();
+        }
+
+        // The same version of the radio map is used for the whole scan, even if a new one is swapped in meanwhile
+        RadioMapCache radioMapCache = radioMapHolder.get();
+        // The radio map is still being loaded
+        if (radioMapCache == null) {
+            return;
+        }
+
+        // Only the locations of the current floor are used, through the index built when the floor was loaded.
+        // A floor which isn't loaded yet is loaded on the prefetch thread, the scans are skipped until then
+        RadioMapIndex floorIndex = radioMapCache.getFloorIndexIfLoaded(currentFloor);
+        if (floorIndex == null) {
+            return;
+        }
+
         // If nothing to process skip this
-        if (processedMap.size() == 0){
+        if (floorIndex.size() == 0){
             return;
         }
 
         // Otherwise process the spots into IndoorLocation List for later processing
         List<IndoorSignal> hotSpots = new ArrayList<>();
         for (ScanResult ap : spots){
-            hotSpots.add(new IndoorSignal(ap.BSSID, ap.SSID, ap.level));
+            IndoorSignal hotSpot = new IndoorSignal(ap.BSSID, ap.SSID, ap.level);
+            // routers are compared by their ids from the database or the archive
+            hotSpot.accessPointId = radioMapHolder.getAccessPointId(ap.BSSID);
+            hotSpots.add(hotSpot);
         }
 
         // print some log messages
@@ -439,9 +534,12 @@ public class PositioningActivity extends FragmentActivity implements OnMapReadyC
         // Complex function which performs KNN algorithm with several various settings
         // Go into the function to find out what are these parameters. It returns an ordered
         // list from the smallest euclidian distance to the largest one
-        List<ProcessedLocation> orderedLocations = WifiCollector.getKnn(processedMap, hotSpots,
-                false, knnNumber, true, mIndoorMapManager.getCurrentPosition(), currentFloor,
-                !isUserIndoors, maxDistance);
+        // Routers are chosen with the help of their priors, loaded together with the radio map.
+        // Only the weighted algorithm uses every location, the others only the first few of them
+        int maxLocations = algorithmOption == 2 ? 0 : MAX_KNN_LOCATIONS;
+        List<ProcessedLocation> orderedLocations = WifiCollector.getKnn(floorIndex, hotSpots,
+                radioMapHolder.getAccessPointPriors(), false, knnNumber, true, mIndoorMapManager.getCurrentPosition(), currentFloor,
+                !isUserIndoors, maxDistance, maxLocations);
 
         // We receive a list, which is sorted, check that it is a valid list, meaning it's not null and size > 0
         if (orderedLocations != null && orderedLocations.size() > 0) {
@@ -724,9 +822,28 @@ public class PositioningActivity extends FragmentActivity implements OnMapReadyC
             currentFloor = 0;
         }
 
+        // floors which were not visited for a while are no longer kept in memory
+        RadioMapCache radioMapCache = radioMapHolder.get();
+        if (radioMapCache != null) {
+            radioMapCache.releaseUnusedFloors(currentFloor);
+        }
+
         Toast.makeText(this, "Moved " + (offset ? "UP" : "DOWN"), Toast.LENGTH_SHORT).show();
     }
 
+    /**
+     * Called as soon as the barometer shows that the user started moving up or down, before the
+     * floor actually changes. The radio map of the next floor is then loaded in the background.
+     * @param offset
+     */
+    @Override
+    public void onFloorChangeStarted(boolean offset) {
+        RadioMapCache radioMapCache = radioMapHolder.get();
+        if (radioMapCache != null) {
+            radioMapCache.prefetchFloor(offset ? currentFloor + 1 : currentFloor - 1);
+        }
+    }
+
     /**
      * Check button allows locking the camera and unlocking from the red dot
      * @param buttonView
@@ -0,0 +1,346 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.util.Log;
+
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.ProcessedSignal;
+import com.monte.indoorpositioning.database.RadioMapSource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Radio map (processed signals of every location) split into one partition per floor. KNN only
+ * ever uses the locations of the current floor, thus a partition is read from the database (or a snapshot file) only
+ * when its floor is needed. When the barometer shows that the user started going up or down, the
+ * next floor can be prefetched in the background so it is ready once the floor actually changes.
+ * Floors which were not used for a while are released to save memory.
+ *
+ * A cache belongs to a single data version of the radio map. When the database changes a new
+ * cache is created for the new version instead of updating this one, see RadioMapHolder. Small
+ * changes don't need a new source: applyChanges() creates the new cache from this one, with the
+ * changed locations kept in an overlay which is put over every floor loaded from the source.
+ *
+ * Together with a floor its inverted index (see RadioMapIndex) is built, on the thread which loads
+ * it, thus KNN gets it ready with getFloorIndex(). The UI thread uses getFloorIndexIfLoaded(),
+ * which leaves the loading to the prefetch thread.
+ */
+public class RadioMapCache {
+    private static final String TAG = "RadioMapCache";
+    private static final long RELEASE_AFTER = 60 * 1000;   // unused floors are released after a minute (ms)
+
+    private final RadioMapSource source;    // database or snapshot file the partitions are loaded from
+    private final long dataVersion;         // IndoorDatabaseHelper.getDataVersion() of the source
+    // Shared by every version, thus an old cache which nobody holds anymore has no thread to stop
+    private static final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+
+    // Locations which changed since the source was written, by their position (see RadioMapIndex.positionOf()).
+    // Never modified, applyChanges() makes a copy.
+    private final Map<IndoorLocation, Change> overlay;
+
+    // Loaded (or currently loading) partitions by floor. Guarded by "this".
+    private final Map<Long, Partition> partitions = new HashMap<>();
+
+    /**
+     * The newest state of a changed location.
+     */
+    private static class Change {
+        final IndoorLocation location;          // null if the location was deleted
+        final List<ProcessedSignal> signals;    // sorted by average, null if the location was deleted
+
+        Change(IndoorLocation location, List<ProcessedSignal> signals) {
+            this.location = location;
+            this.signals = signals;
+        }
+    }
+
+    /**
+     * One floor of the radio map. The task loads the floor and indexes it only once, whoever gets
+     * to run it first (a prefetch or a getFloor() call), every other caller simply waits for the result.
+     * A loaded partition is shared by the newer versions which didn't change its floor, thus it
+     * doesn't refer to the cache which created it, so old versions are left to the garbage collector.
+     */
+    private static class Partition {
+        final FutureTask<RadioMapIndex> task;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Partition(final RadioMapSource source, final long floor, final Map<IndoorLocation, Change> overlay) {
+            task = new FutureTask<>(new Callable<RadioMapIndex>() {
+                @Override
+                public RadioMapIndex call() throws Exception {
+                    // sort by average the same way the whole map used to be sorted
+                    Map<IndoorLocation, List<ProcessedSignal>> floorMap =
+                            WifiCollector.sortByAverage(source.getProcessedSignals(floor));
+                    return patch(new RadioMapIndex(Collections.unmodifiableMap(floorMap)), floor, overlay);
+                }
+            });
+        }
+
+        /**
+         * Partition which is loaded already.
+         * @param index
+         */
+        Partition(final RadioMapIndex index) {
+            task = new FutureTask<>(new Callable<RadioMapIndex>() {
+                @Override
+                public RadioMapIndex call() {
+                    return index;
+                }
+            });
+            task.run();
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param source
+     * @param dataVersion   - version of the radio map in the source
+     */
+    public RadioMapCache(RadioMapSource source, long dataVersion) {
+        this(source, dataVersion, Collections.<IndoorLocation, Change>emptyMap());
+    }
+
+    /**
+     * Constructor of a cache with changes on top of the source, see applyChanges().
+     * @param source
+     * @param dataVersion
+     * @param overlay
+     */
+    private RadioMapCache(RadioMapSource source, long dataVersion, Map<IndoorLocation, Change> overlay) {
+        this.source = source;
+        this.dataVersion = dataVersion;
+        this.overlay = overlay;
+    }
+
+    /**
+     * Creates the cache of a newer version which differs only in a few locations, thus the source
+     * doesn't have to be read again. Loaded floors without any of the locations are shared with
+     * this cache, the indexes of the other loaded floors are patched (see RadioMapIndex.patch()),
+     * which takes time in the order of the changes and not of the floor. Floors which are still loading
+     * are left out and are loaded again by the new cache, with the changes put over them.
+     * This cache stays valid (as the old version) for whoever still holds it.
+     * @param dataVersion   - version of the radio map after the change
+     * @param affected      - every location which was added, changed or deleted
+     * @param changed       - new processed signals of the affected locations; an affected location
+     *                        which isn't here was deleted (or has no processed signals anymore)
+     * @return the new cache
+     */
+    public RadioMapCache applyChanges(long dataVersion, Collection<? extends IndoorLocation> affected,
+                                      Map<IndoorLocation, List<ProcessedSignal>> changed) {
+        Map<IndoorLocation, Change> changes = new HashMap<>();
+        Set<Long> affectedFloors = new HashSet<>();
+        for (IndoorLocation location : affected) {
+            changes.put(RadioMapIndex.positionOf(location), new Change(null, null));
+            affectedFloors.add(location.floor);
+        }
+        for (Map.Entry<IndoorLocation, List<ProcessedSignal>> entry : WifiCollector.sortByAverage(changed).entrySet()) {
+            changes.put(RadioMapIndex.positionOf(entry.getKey()), new Change(entry.getKey(), entry.getValue()));
+            affectedFloors.add(entry.getKey().floor);
+        }
+
+        Map<IndoorLocation, Change> nextOverlay = new HashMap<>(overlay);
+        nextOverlay.putAll(changes);
+        RadioMapCache next = new RadioMapCache(source, dataVersion, nextOverlay);
+
+        // Copies of the loaded partitions, so nothing is read from the source while holding the lock
+        Map<Long, Partition> loaded = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<Long, Partition> entry : partitions.entrySet()) {
+                if (entry.getValue().task.isDone()) {
+                    loaded.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<Long, Partition> entry : loaded.entrySet()) {
+            RadioMapIndex index;
+            try {
+                index = entry.getValue().task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                // failed to load, the new cache tries again
+                continue;
+            }
+            long floor = entry.getKey();
+            if (affectedFloors.contains(floor)) {
+                next.partitions.put(floor, new Partition(patch(index, floor, changes)));
+            } else {
+                next.partitions.put(floor, entry.getValue());
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return number of locations which are put over the source, the larger it is the more time
+     * is spent by loading a floor
+     */
+    public int getOverlaySize() {
+        return overlay.size();
+    }
+
+    /**
+     * Patches the index of the floor with the changes of its locations.
+     * @param index
+     * @param floor
+     * @param changes   - changes by position, of any floor
+     * @return the patched index, or the same one if none of the changes is on the floor
+     */
+    private static RadioMapIndex patch(RadioMapIndex index, long floor, Map<IndoorLocation, Change> changes) {
+        Set<IndoorLocation> removed = new HashSet<>();
+        Map<IndoorLocation, List<ProcessedSignal>> added = new HashMap<>();
+        for (Map.Entry<IndoorLocation, Change> entry : changes.entrySet()) {
+            if (entry.getKey().floor == floor) {
+                removed.add(entry.getKey());
+            }
+            Change change = entry.getValue();
+            if (change.location != null && change.location.floor == floor) {
+                added.put(change.location, change.signals);
+            }
+        }
+        return removed.isEmpty() && added.isEmpty() ? index : index.patch(removed, added);
+    }
+
+    /**
+     * @return version of the radio map the cache was loaded from
+     */
+    public long getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * Returns the radio map of the given floor. If the floor isn't loaded yet it is read from the
+     * source on the calling thread, if it is being prefetched then waits for the prefetch to finish.
+     * A prefetch which is still only queued is simply run here instead.
+     * @param floor
+     * @return unmodifiable map of locations and their processed signals (empty if nothing was collected)
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getFloor(long floor) {
+        return getFloorIndex(floor).getLocationMap();
+    }
+
+    /**
+     * Same as getFloor() but returns the inverted index of the floor, which KNN is run on.
+     * @param floor
+     * @return index of the floor (empty if nothing was collected)
+     */
+    public RadioMapIndex getFloorIndex(long floor) {
+        Partition partition;
+        synchronized (this) {
+            partition = partitions.get(floor);
+            if (partition == null) {
+                partition = new Partition(source, floor, overlay);
+                partitions.put(floor, partition);
+            }
+        }
+        partition.lastUsed = System.currentTimeMillis();
+        // does nothing if the task is already running or finished
+        partition.task.run();
+        try {
+            return partition.task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Failed to load floor " + floor, e);
+            // forget the failed partition so it's loaded again the next time
+            synchronized (this) {
+                if (partitions.get(floor) == partition) {
+                    partitions.remove(floor);
+                }
+            }
+            return new RadioMapIndex(Collections.<IndoorLocation, List<ProcessedSignal>>emptyMap());
+        }
+    }
+
+    /**
+     * Same as getFloorIndex() but never waits for the floor. If it isn't loaded yet it is prefetched
+     * instead and null is returned, thus the UI thread can skip a scan rather than read the floor.
+     * @param floor
+     * @return index of the floor (empty if nothing was collected) or null if it is still being loaded
+     */
+    public RadioMapIndex getFloorIndexIfLoaded(long floor) {
+        Partition partition;
+        synchronized (this) {
+            partition = partitions.get(floor);
+        }
+        if (partition == null || !partition.task.isDone()) {
+            prefetchFloor(floor);
+            return null;
+        }
+        // returns straight away, a failed partition is forgotten so the next call prefetches it again
+        return getFloorIndex(floor);
+    }
+
+    /**
+     * Starts loading the given floor in the background if it isn't loaded yet.
+     * @param floor
+     */
+    public void prefetchFloor(long floor) {
+        Partition partition;
+        synchronized (this) {
+            if (partitions.containsKey(floor)) {
+                return;
+            }
+            partition = new Partition(source, floor, overlay);
+            partitions.put(floor, partition);
+        }
+        prefetchExecutor.execute(partition.task);
+    }
+
+    /**
+     * Releases the partitions of all floors (except the current one) which weren't used recently.
+     * @param currentFloor
+     */
+    public synchronized void releaseUnusedFloors(long currentFloor) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Long, Partition>> iterator = partitions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Partition> entry = iterator.next();
+            if (entry.getKey() != currentFloor && entry.getValue().task.isDone() &&
+                    now - entry.getValue().lastUsed > RELEASE_AFTER) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Releases every partition and cancels the prefetches which didn't start yet. Only needed when
+     * the radio map isn't used anymore at all (the activity is destroyed), an old version which was
+     * replaced by a newer one is simply left to the garbage collector, since it might still be in use.
+     */
+    public synchronized void close() {
+        for (Partition partition : partitions.values()) {
+            partition.task.cancel(false);
+        }
+        partitions.clear();
+    }
+}
@@ -0,0 +1,376 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.util.Log;
+
+import com.monte.indoorpositioning.database.AccessPointPrior;
+import com.monte.indoorpositioning.database.DatabaseChange;
+import com.monte.indoorpositioning.database.IndoorDatabaseHelper;
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.ProcessedSignal;
+import com.monte.indoorpositioning.database.RadioMapArchive;
+import com.monte.indoorpositioning.database.RadioMapSnapshot;
+import com.monte.indoorpositioning.database.SampledLocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the radio map which is currently used for positioning and replaces it when the database
+ * changes (e.g. another survey was imported), without restarting the activity.
+ *
+ * Every version of the radio map is a separate RadioMapCache loaded from a RadioMapSnapshot, which
+ * never changes once it is written. A new version is built on a background thread: the snapshot
+ * is compiled from the database, opened and the current floor is loaded from it. Only then it is
+ * swapped in with a single atomic reference update. The first version is swapped in as soon as
+ * the snapshot left from the last run is opened, its floor is loaded by the prefetch thread and
+ * its checksum verified afterwards. Positioning gets the cache once per wifi scan,
+ * thus a scan which is being processed keeps using the old version until it is finished and never
+ * sees a mix of the two versions nor waits for the new one.
+ *
+ * Changes written while positioning (e.g. a scan collected in the training activity) arrive
+ * through the change feed of the database. Only the changed locations are read again and put over
+ * the current version with RadioMapCache.applyChanges(), the snapshot is compiled again only when
+ * too many changes piled up or the whole database was replaced.
+ *
+ * Together with every compiled version the priors of the routers (see AccessPointPrior) are read
+ * again. A change only reads the priors of the routers in its signals and updates them in place,
+ * thus applying it doesn't depend on the number of routers in the database. Only a deleted
+ * location reads every prior again, as its routers aren't known anymore.
+ *
+ * The radio map can also be read straight from a RadioMapArchive, e.g. one exported on another
+ * device, without importing it into the database. It is then loaded once and never changes, and
+ * the routers are identified by the ids stored in the archive, see getAccessPointId().
+ */
+public class RadioMapHolder implements IndoorDatabaseHelper.OnDatabaseChangedListener {
+    private static final String TAG = "RadioMapHolder";
+    // Changed locations kept over the snapshot before it is compiled again
+    private static final int MAX_OVERLAY_LOCATIONS = 500;
+
+    private final IndoorDatabaseHelper databaseHelper;     // null if the radio map is read from an archive
+    private final File snapshotFile;        // the newest compiled snapshot
+    private final File archiveFile;         // archive the radio map is read from, null if the database is used
+    private volatile RadioMapArchive archive;   // null until the archive is loaded
+    private final AtomicReference<RadioMapCache> current = new AtomicReference<>();
+    // null until the first version is loaded, changes update it in place
+    private volatile Map<Integer, AccessPointPrior> accessPointPriors;
+    private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean isRefreshing = new AtomicBoolean(false);
+    private volatile boolean isClosed = false;
+    private volatile long currentFloor = 0;     // floor of the last refresh(), loaded first by a rebuild
+
+    /**
+     * Constructor. Nothing is loaded until refresh() is called, but the changes of the database
+     * are followed from now on, until close().
+     * @param databaseHelper
+     * @param snapshotFile      - where the compiled snapshot is kept between runs
+     */
+    public RadioMapHolder(IndoorDatabaseHelper databaseHelper, File snapshotFile) {
+        this.databaseHelper = databaseHelper;
+        this.snapshotFile = snapshotFile;
+        this.archiveFile = null;
+        databaseHelper.addOnDatabaseChangedListener(this);
+    }
+
+    /**
+     * Constructor of a radio map which is read from an archive instead of the database. Nothing is
+     * loaded until refresh() is called, the archive is read in the background the first time.
+     * @param archiveFile   - written by IndoorDatabaseHelper.exportRadioMapArchive()
+     */
+    public RadioMapHolder(File archiveFile) {
+        this.databaseHelper = null;
+        this.snapshotFile = null;
+        this.archiveFile = archiveFile;
+    }
+
+    /**
+     * The returned cache never changes its version, keep the reference for the whole computation.
+     * @return the current radio map or null if none was loaded yet
+     */
+    public RadioMapCache get() {
+        return current.get();
+    }
+
+    /**
+     * @return priors of the routers by their id, read together with the current radio map, or
+     * null if none was loaded yet or the radio map is read from an archive
+     */
+    public Map<Integer, AccessPointPrior> getAccessPointPriors() {
+        return accessPointPriors;
+    }
+
+    /**
+     * The radio map stores the ids of the routers rather than their bssids, thus the routers of a
+     * scan have to be looked up where the radio map came from: the database or the archive.
+     * @param bssid
+     * @return id of the router or 0 if it isn't in the radio map
+     */
+    public int getAccessPointId(String bssid) {
+        if (databaseHelper != null) {
+            return databaseHelper.getAccessPointId(bssid);
+        }
+        RadioMapArchive loaded = archive;
+        return loaded == null ? 0 : loaded.getAccessPointId(bssid);
+    }
+
+    /**
+     * Checks the version of the database in the background and, if it changed, builds the new
+     * version of the radio map and swaps it in. Does nothing if a refresh is already running.
+     * @param currentFloor  - floor which is loaded before the swap, so positioning doesn't wait for it
+     */
+    public void refresh(final long currentFloor) {
+        this.currentFloor = currentFloor;
+        if (!isRefreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            buildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        build(currentFloor, false);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Failed to build the radio map", e);
+                    } finally {
+                        isRefreshing.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // closed already
+            isRefreshing.set(false);
+        }
+    }
+
+    /**
+     * Called by the database after every committed change, on the thread which wrote it. The
+     * change is handled on the build thread, in the same order the changes were committed.
+     * @param change
+     */
+    @Override
+    public void onDatabaseChanged(final DatabaseChange change) {
+        try {
+            buildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        applyChange(change);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Failed to apply a database change", e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // closed already
+        }
+    }
+
+    /**
+     * Puts the change over the current version. Runs on the build thread.
+     * @param change
+     */
+    private void applyChange(DatabaseChange change) {
+        RadioMapCache old = current.get();
+        if (old == null || isClosed) {
+            // nothing loaded yet, the first build reads the database as it is
+            return;
+        }
+        if (change.isReset || old.getOverlaySize() > MAX_OVERLAY_LOCATIONS) {
+            build(currentFloor, true);
+            return;
+        }
+
+        // Every location touched by the change, the added ones are read again as a whole, thus
+        // applying a change which is already in the snapshot doesn't count its signals twice
+        List<IndoorLocation> affected = new ArrayList<>();
+        Set<Long> changedIds = new HashSet<>();
+        for (DatabaseChange.SignalDelta signal : change.insertedSignals) {
+            if (changedIds.add(signal.locationId)) {
+                affected.add(signal.location);
+            }
+        }
+        for (SampledLocation location : change.updatedLocations) {
+            affected.add(location);
+            changedIds.add(location.id);
+        }
+        affected.addAll(change.deletedLocations);
+        Map<IndoorLocation, List<ProcessedSignal>> changed = databaseHelper.getProcessedSignals(changedIds, null);
+
+        RadioMapCache next = old.applyChanges(change.dataVersion, affected, changed);
+        Map<Integer, AccessPointPrior> priors = accessPointPriors;
+        if (priors == null || !change.deletedLocations.isEmpty()) {
+            // the routers of the deleted locations aren't known anymore, thus every prior is read again
+            priors = new ConcurrentHashMap<>(databaseHelper.getAccessPointPriors());
+        } else {
+            // only the routers of the new signals changed, their samples only grew thus they're all returned
+            Set<Integer> changedRouters = new HashSet<>();
+            for (DatabaseChange.SignalDelta signal : change.insertedSignals) {
+                // signals without a bssid have no router
+                if (signal.bssid != null) {
+                    changedRouters.add(signal.accessPointId);
+                }
+            }
+            if (!changedRouters.isEmpty()) {
+                priors.putAll(databaseHelper.getAccessPointPriors(changedRouters));
+            }
+        }
+        if (!swap(old, next, priors)) {
+            // closed meanwhile
+            next.close();
+        }
+    }
+
+    /**
+     * Makes the next version the current one, unless the holder was closed or the current version
+     * isn't the expected one anymore. The old version isn't closed: a scan which got it before the
+     * swap keeps using it (with its loaded floors) until it's finished, and then it's left to the
+     * garbage collector. Synchronized with close(), thus nothing is swapped in after it.
+     * @param expected  - version the next one was built from, null if any
+     * @param next
+     * @param priors    - priors of the routers read together with the next version, updated in place
+     *                  by the next changes thus it has to be safe to read while it's written
+     * @return true if swapped
+     */
+    private synchronized boolean swap(RadioMapCache expected, RadioMapCache next, Map<Integer, AccessPointPrior> priors) {
+        if (isClosed || (expected != null && current.get() != expected)) {
+            return false;
+        }
+        accessPointPriors = priors;
+        current.set(next);
+        return true;
+    }
+
+    /**
+     * Builds the new version if the database changed. Runs on the build thread.
+     * @param currentFloor
+     * @param isForced      - compile the snapshot again even if the version didn't change
+     */
+    private void build(long currentFloor, boolean isForced) {
+        if (databaseHelper == null) {
+            loadArchive(currentFloor);
+            return;
+        }
+        long dataVersion = databaseHelper.getDataVersion();
+        RadioMapCache old = current.get();
+        if (dataVersion == -1 || (!isForced && old != null && old.getDataVersion() == dataVersion)) {
+            return;
+        }
+
+        // The snapshot left from the last run is used if it is still up to date. Opening it only
+        // reads the header, its checksum is verified once it's in use
+        RadioMapSnapshot snapshot = isForced ? null : RadioMapSnapshot.open(snapshotFile);
+        boolean isCompiled = snapshot == null || snapshot.getDataVersion() != dataVersion;
+        if (isCompiled) {
+            try {
+                // Replaces the file by renaming, the old version stays mapped for as long as it's used
+                databaseHelper.exportRadioMapSnapshot(snapshotFile.getAbsolutePath());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to compile the radio map snapshot", e);
+                return;
+            }
+            snapshot = RadioMapSnapshot.open(snapshotFile);
+            if (snapshot == null) {
+                return;
+            }
+        }
+
+        RadioMapCache next = new RadioMapCache(snapshot, snapshot.getDataVersion());
+        if (old != null) {
+            // Load the floor in use before anyone can see the new version, the old one is used meanwhile
+            next.getFloor(currentFloor);
+        } else {
+            // Nothing is used yet, thus the new version is swapped in straight away and positioning
+            // skips the scans until the prefetch thread loaded the floor
+            next.prefetchFloor(currentFloor);
+        }
+        Map<Integer, AccessPointPrior> priors = new ConcurrentHashMap<>(databaseHelper.getAccessPointPriors());
+        if (!swap(null, next, priors)) {
+            next.close();
+            return;
+        }
+        Log.i(TAG, "Radio map version " + next.getDataVersion() + " is used now");
+
+        // A snapshot left from the last run might have been damaged, it's compiled again if so
+        if (!isCompiled && !snapshot.verify()) {
+            Log.e(TAG, "The radio map snapshot is damaged, compiling it again");
+            build(currentFloor, true);
+        }
+    }
+
+    /**
+     * Reads the archive, only the first time as it never changes. Runs on the build thread.
+     * @param currentFloor
+     */
+    private void loadArchive(long currentFloor) {
+        if (current.get() != null) {
+            return;
+        }
+        RadioMapArchive loaded;
+        try {
+            // The raw signals are skipped, only the statistics are read
+            loaded = RadioMapArchive.load(archiveFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the radio map archive", e);
+            return;
+        }
+
+        // The priors are kept in the database, without them every router of a scan is compared
+        RadioMapCache next = new RadioMapCache(loaded, loaded.getDataVersion());
+        next.getFloor(currentFloor);
+        archive = loaded;
+        if (!swap(null, next, null)) {
+            next.close();
+            return;
+        }
+        Log.i(TAG, "Radio map of " + archiveFile.getName() + " is used now");
+    }
+
+    /**
+     * Releases the radio map and stops the building. Call when the activity is destroyed.
+     */
+    public void close() {
+        if (databaseHelper != null) {
+            databaseHelper.removeOnDatabaseChangedListener(this);
+        }
+        buildExecutor.shutdownNow();
+        RadioMapCache previous;
+        synchronized (this) {
+            isClosed = true;
+            previous = current.getAndSet(null);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import com.monte.indoorpositioning.database.GridCell;
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.ProcessedSignal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index of a radio map: for every router the list (posting list) of the locations it was
+ * collected in, together with its average and median level there. KNN then only reads the posting
+ * lists of the scanned routers instead of searching through the signals of every location.
+ *
+ * Locations are numbered by their position in getLocations(), every posting list is in the
+ * increasing order of the numbers. The index never changes once it is built, thus it can be
+ * shared by any number of threads, see RadioMapCache.getFloorIndex().
+ *
+ * The locations are also put into a uniform grid (see GridCell), thus the locations around the
+ * user are found by reading only the few cells around them, see getLocationsNear(). Their
+ * positions are kept in metres from the first location, as within a building the map is flat,
+ * and the distance to the user is a square root instead of a geodesic computation.
+ *
+ * A few changed locations don't need the whole index to be built again, see patch(): the patched
+ * index keeps the index of the whole floor as its base and indexes only the changed locations,
+ * which are numbered after the base. The old versions of the changed locations are left out of
+ * the base's posting lists and cells, the lists of a router are merged when it's first compared.
+ *
+ * A dense floor, where most routers are heard in most locations, also gets its levels as a
+ * RadioMapMatrix, which KNN reads instead of searching the posting lists. A patched index has
+ * none, its base's locations are numbered differently, thus KNN uses the merged lists until the
+ * floor is loaded again.
+ */
+public class RadioMapIndex {
+    private final Map<IndoorLocation, List<ProcessedSignal>> locationMap;  // the locations indexed here, without the base
+    private final IndoorLocation[] locations;                               // locations by their number (after the base)
+    private final Map<Integer, Postings> postings;                          // posting lists by router id
+    private final Map<Long, int[]> cells;                                   // numbers of the locations in every grid cell
+    private final double originLat;                                         // metres are measured from here
+    private final double originLng;
+    private final double[] norths;                                          // metres north of the origin of every location
+    private final double[] easts;                                           // metres east of the origin of every location
+    private final RadioMapMatrix matrix;                                    // null if the floor is sparse or the index patched
+
+    // Only set in a patched index
+    private final RadioMapIndex base;                                       // index of the whole floor, never patched itself
+    private final int[] removed;                                            // numbers of the base's locations which were changed, increasing
+    private final Map<Integer, Postings> mergedPostings = new ConcurrentHashMap<>();   // of the base and this index, by router id
+    private volatile Map<IndoorLocation, List<ProcessedSignal>> mergedLocationMap;
+
+    // Only used by a base, built on the first patch
+    private volatile Map<IndoorLocation, Integer> numbersByPosition;
+
+    // Stands for a router which has no locations left in the merged posting lists
+    private static final Postings NO_POSTINGS = new Postings(new int[0], new double[0], new double[0]);
+
+    /**
+     * Locations in which a single router was collected, as three arrays of the same length.
+     */
+    public static class Postings {
+        public final int[] locations;           // numbers of the locations, increasing
+        public final double[] averages;         // average level of the router in the location
+        public final double[] medians;          // median level of the router in the location
+
+        Postings(int[] locations, double[] averages, double[] medians) {
+            this.locations = locations;
+            this.averages = averages;
+            this.medians = medians;
+        }
+
+        /**
+         * @return number of locations the router was collected in
+         */
+        public int size() {
+            return locations.length;
+        }
+    }
+
+    /**
+     * Builds the index, which reads every processed signal once.
+     * @param locationMap   - radio map, e.g. a single floor of RadioMapCache
+     */
+    public RadioMapIndex(Map<IndoorLocation, List<ProcessedSignal>> locationMap) {
+        this(locationMap, null, null);
+    }
+
+    /**
+     * Builds the index of the locations, put after the base if there is one.
+     * @param locationMap
+     * @param base      - can be null
+     * @param removed   - locations of the base which are left out, null if there is no base
+     */
+    private RadioMapIndex(Map<IndoorLocation, List<ProcessedSignal>> locationMap, RadioMapIndex base, int[] removed) {
+        this.locationMap = locationMap;
+        this.base = base;
+        this.removed = removed;
+        locations = new IndoorLocation[locationMap.size()];
+
+        // Posting lists are collected into growing lists first, as their lengths are not known yet
+        Map<Integer, List<ProcessedSignal>> signalsByRouter = new HashMap<>();
+        Map<Integer, List<Integer>> locationsByRouter = new HashMap<>();
+        int number = 0;
+        for (Map.Entry<IndoorLocation, List<ProcessedSignal>> entry : locationMap.entrySet()) {
+            locations[number] = entry.getKey();
+            for (ProcessedSignal signal : entry.getValue()) {
+                List<Integer> routerLocations = locationsByRouter.get(signal.accessPointId);
+                if (routerLocations == null) {
+                    routerLocations = new ArrayList<>();
+                    locationsByRouter.put(signal.accessPointId, routerLocations);
+                    signalsByRouter.put(signal.accessPointId, new ArrayList<ProcessedSignal>());
+                } else if (routerLocations.get(routerLocations.size() - 1) == number) {
+                    // KNN only ever used the first signal of a router in a location
+                    continue;
+                }
+                routerLocations.add(number);
+                signalsByRouter.get(signal.accessPointId).add(signal);
+            }
+            number++;
+        }
+
+        // then copied into arrays of primitives, which is what KNN reads
+        Map<Integer, Postings> postings = new HashMap<>();
+        for (Map.Entry<Integer, List<Integer>> entry : locationsByRouter.entrySet()) {
+            List<Integer> routerLocations = entry.getValue();
+            List<ProcessedSignal> signals = signalsByRouter.get(entry.getKey());
+            int[] numbers = new int[routerLocations.size()];
+            double[] averages = new double[numbers.length];
+            double[] medians = new double[numbers.length];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = routerLocations.get(i);
+                averages[i] = signals.get(i).average;
+                medians[i] = signals.get(i).median;
+            }
+            postings.put(entry.getKey(), new Postings(numbers, averages, medians));
+        }
+        this.postings = Collections.unmodifiableMap(postings);
+
+        // Dense floors get the matrix too, numbered the same as the posting lists
+        if (base == null) {
+            int[] floors = new int[locations.length];
+            for (int i = 0; i < floors.length; i++) {
+                floors[i] = (int) locations[i].floor;
+            }
+            matrix = RadioMapMatrix.build(floors, postings);
+        } else {
+            matrix = null;
+        }
+
+        // Positions in metres and the grid, the numbers in every cell are increasing as well.
+        // Locations after a base are measured from the same origin, so all distances are alike
+        if (base != null) {
+            originLat = base.originLat;
+            originLng = base.originLng;
+        } else {
+            originLat = locations.length > 0 ? locations[0].lat : 0;
+            originLng = locations.length > 0 ? locations[0].lng : 0;
+        }
+        norths = new double[locations.length];
+        easts = new double[locations.length];
+        Map<Long, List<Integer>> locationsByCell = new HashMap<>();
+        for (int i = 0; i < locations.length; i++) {
+            norths[i] = GridCell.northOf(locations[i].lat, originLat);
+            easts[i] = GridCell.eastOf(locations[i].lng, originLng, originLat);
+            long cell = GridCell.of(locations[i].lat, locations[i].lng);
+            List<Integer> cellLocations = locationsByCell.get(cell);
+            if (cellLocations == null) {
+                cellLocations = new ArrayList<>();
+                locationsByCell.put(cell, cellLocations);
+            }
+            cellLocations.add(i);
+        }
+        cells = new HashMap<>();
+        for (Map.Entry<Long, List<Integer>> entry : locationsByCell.entrySet()) {
+            int[] numbers = new int[entry.getValue().size()];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = entry.getValue().get(i);
+            }
+            cells.put(entry.getKey(), numbers);
+        }
+    }
+
+    /**
+     * Returns the index with some of the locations changed. Only the changed locations are
+     * indexed, thus it takes time in the order of the changes and not of the whole floor, and
+     * this index is shared with the new one. Patching a patched index indexes its changed
+     * locations again together with the new changes, so there is never more than one base.
+     * @param removedPositions  - positions (see positionOf()) of every changed or deleted location
+     * @param added             - new state of the changed and added locations, which have to be
+     *                            among the removed positions too
+     * @return the patched index
+     */
+    public RadioMapIndex patch(Set<IndoorLocation> removedPositions, Map<IndoorLocation, List<ProcessedSignal>> added) {
+        if (base != null) {
+            // the locations changed before which didn't change again are kept
+            Map<IndoorLocation, List<ProcessedSignal>> changed = new HashMap<>();
+            for (Map.Entry<IndoorLocation, List<ProcessedSignal>> entry : locationMap.entrySet()) {
+                if (!removedPositions.contains(positionOf(entry.getKey()))) {
+                    changed.put(entry.getKey(), entry.getValue());
+                }
+            }
+            changed.putAll(added);
+            return base.patch(removed, removedPositions, changed);
+        }
+        return patch(new int[0], removedPositions, added);
+    }
+
+    /**
+     * Patches the base (this index).
+     * @param removedBefore     - numbers of the locations which were removed by the earlier patches
+     * @param removedPositions
+     * @param changed           - every changed location which isn't in the base anymore
+     * @return
+     */
+    private RadioMapIndex patch(int[] removedBefore, Set<IndoorLocation> removedPositions,
+                                Map<IndoorLocation, List<ProcessedSignal>> changed) {
+        Map<IndoorLocation, Integer> numbers = getNumbersByPosition();
+        int[] removed = Arrays.copyOf(removedBefore, removedBefore.length + removedPositions.size());
+        int count = removedBefore.length;
+        for (IndoorLocation position : removedPositions) {
+            Integer number = numbers.get(position);
+            if (number != null) {
+                removed[count++] = number;
+            }
+        }
+        // the same location might have been removed before, the numbers have to be unique
+        Arrays.sort(removed, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || removed[unique - 1] != removed[i]) {
+                removed[unique++] = removed[i];
+            }
+        }
+        return new RadioMapIndex(Collections.unmodifiableMap(changed), this, Arrays.copyOf(removed, unique));
+    }
+
+    /**
+     * @return number of every location of the base by its position, built once
+     */
+    private Map<IndoorLocation, Integer> getNumbersByPosition() {
+        Map<IndoorLocation, Integer> numbers = numbersByPosition;
+        if (numbers == null) {
+            numbers = new HashMap<>();
+            for (int i = 0; i < locations.length; i++) {
+                numbers.put(positionOf(locations[i]), i);
+            }
+            numbersByPosition = numbers;
+        }
+        return numbers;
+    }
+
+    /**
+     * Locations are unique by their coordinates and floor, the room might change.
+     * @param location
+     * @return key which is equal for every version of the location
+     */
+    static IndoorLocation positionOf(IndoorLocation location) {
+        return new IndoorLocation(location.floor, null, null, location.lat, location.lng);
+    }
+
+    /**
+     * Returns the locations in the grid cells which overlap the square around the given point.
+     * Every location within the radius is among them, but so are some which are farther away,
+     * thus check them with getDistance().
+     * @param lat
+     * @param lng
+     * @param radius    - in metres
+     * @return numbers of the locations, increasing
+     */
+    public int[] getLocationsNear(double lat, double lng, double radius) {
+        int[] numbers = getOwnLocationsNear(lat, lng, radius);
+        if (base == null) {
+            return numbers;
+        }
+        // the base's locations come first, without the removed ones
+        int[] baseNumbers = remove(base.getOwnLocationsNear(lat, lng, radius), removed);
+        int offset = base.size();
+        int[] merged = Arrays.copyOf(baseNumbers, baseNumbers.length + numbers.length);
+        for (int i = 0; i < numbers.length; i++) {
+            merged[baseNumbers.length + i] = numbers[i] + offset;
+        }
+        return merged;
+    }
+
+    /**
+     * Same as getLocationsNear() but only of the locations indexed here, numbered from 0.
+     * @param lat
+     * @param lng
+     * @param radius
+     * @return
+     */
+    private int[] getOwnLocationsNear(double lat, double lng, double radius) {
+        double latDelta = GridCell.latitudeDegrees(radius);
+        double lngDelta = GridCell.longitudeDegrees(radius, lat);
+        long firstRow = GridCell.row(lat - latDelta);
+        long lastRow = GridCell.row(lat + latDelta);
+        long firstColumn = GridCell.column(lng - lngDelta);
+        long lastColumn = GridCell.column(lng + lngDelta);
+
+        List<int[]> found = new ArrayList<>();
+        int count = 0;
+        if ((lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) <= cells.size()) {
+            // look up every cell of the square
+            for (long row = firstRow; row <= lastRow; row++) {
+                for (long column = firstColumn; column <= lastColumn; column++) {
+                    int[] cellLocations = cells.get(GridCell.of(row, column));
+                    if (cellLocations != null) {
+                        found.add(cellLocations);
+                        count += cellLocations.length;
+                    }
+                }
+            }
+        } else {
+            // the square is larger than the map, thus it's quicker to check every cell which has locations
+            for (Map.Entry<Long, int[]> entry : cells.entrySet()) {
+                long row = GridCell.rowOf(entry.getKey());
+                long column = GridCell.columnOf(entry.getKey());
+                if (row >= firstRow && row <= lastRow && column >= firstColumn && column <= lastColumn) {
+                    found.add(entry.getValue());
+                    count += entry.getValue().length;
+                }
+            }
+        }
+
+        int[] numbers = new int[count];
+        int position = 0;
+        for (int[] cellLocations : found) {
+            System.arraycopy(cellLocations, 0, numbers, position, cellLocations.length);
+            position += cellLocations.length;
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * @param numbers   - increasing
+     * @param removed   - increasing
+     * @return the numbers which are not removed
+     */
+    private static int[] remove(int[] numbers, int[] removed) {
+        if (removed.length == 0) {
+            return numbers;
+        }
+        int[] kept = new int[numbers.length];
+        int count = 0;
+        int r = 0;
+        for (int number : numbers) {
+            while (r < removed.length && removed[r] < number) {
+                r++;
+            }
+            if (r == removed.length || removed[r] != number) {
+                kept[count++] = number;
+            }
+        }
+        return count == kept.length ? numbers : Arrays.copyOf(kept, count);
+    }
+
+    /**
+     * @param location  - number of the location
+     * @param lat
+     * @param lng
+     * @return distance between the location and the point in metres
+     */
+    public double getDistance(int location, double lat, double lng) {
+        if (base != null) {
+            if (location < base.size()) {
+                return base.getDistance(location, lat, lng);
+            }
+            location -= base.size();
+        }
+        double north = GridCell.northOf(lat, originLat) - norths[location];
+        double east = GridCell.eastOf(lng, originLng, originLat) - easts[location];
+        return Math.sqrt(north * north + east * east);
+    }
+
+    /**
+     * @return the radio map the index was built from, with the changes of a patched index put over
+     * the base (which is copied the first time it's asked for)
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getLocationMap() {
+        if (base == null) {
+            return locationMap;
+        }
+        Map<IndoorLocation, List<ProcessedSignal>> merged = mergedLocationMap;
+        if (merged == null) {
+            merged = new HashMap<>();
+            for (Map.Entry<IndoorLocation, List<ProcessedSignal>> entry : base.locationMap.entrySet()) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+            for (int number : removed) {
+                merged.remove(base.locations[number]);
+            }
+            merged.putAll(locationMap);
+            merged = Collections.unmodifiableMap(merged);
+            mergedLocationMap = merged;
+        }
+        return merged;
+    }
+
+    /**
+     * @param number
+     * @return location with the given number
+     */
+    public IndoorLocation getLocation(int number) {
+        if (base != null) {
+            if (number < base.size()) {
+                return base.getLocation(number);
+            }
+            number -= base.size();
+        }
+        return locations[number];
+    }
+
+    /**
+     * @return number of locations. Numbers of the changed locations of the base (see patch()) are
+     * counted too, but they are never in the posting lists nor in getLocationsNear()
+     */
+    public int size() {
+        return base == null ? locations.length : base.size() + locations.length;
+    }
+
+    /**
+     * @return levels of every router in every location, or null if the floor is too sparse for a
+     * matrix or the index is patched
+     */
+    public RadioMapMatrix getMatrix() {
+        return matrix;
+    }
+
+    /**
+     * @param accessPointId
+     * @return locations in which the router was collected, or null if it wasn't collected anywhere
+     */
+    public Postings getPostings(int accessPointId) {
+        if (base == null) {
+            return postings.get(accessPointId);
+        }
+        Postings merged = mergedPostings.get(accessPointId);
+        if (merged == null) {
+            merged = mergePostings(base.postings.get(accessPointId), postings.get(accessPointId));
+            mergedPostings.put(accessPointId, merged);
+        }
+        return merged == NO_POSTINGS ? null : merged;
+    }
+
+    /**
+     * Leaves the removed locations out of the base's posting list and puts the list of the
+     * changed locations after it.
+     * @param basePostings  - can be null
+     * @param ownPostings   - can be null
+     * @return merged list or NO_POSTINGS if it has no locations
+     */
+    private Postings mergePostings(Postings basePostings, Postings ownPostings) {
+        int baseCount = basePostings == null ? 0 : basePostings.size();
+        int ownCount = ownPostings == null ? 0 : ownPostings.size();
+        int[] numbers = new int[baseCount + ownCount];
+        double[] averages = new double[numbers.length];
+        double[] medians = new double[numbers.length];
+        int count = 0;
+        int r = 0;
+        for (int i = 0; i < baseCount; i++) {
+            int number = basePostings.locations[i];
+            while (r < removed.length && removed[r] < number) {
+                r++;
+            }
+            if (r < removed.length && removed[r] == number) {
+                continue;
+            }
+            numbers[count] = number;
+            averages[count] = basePostings.averages[i];
+            medians[count] = basePostings.medians[i];
+            count++;
+        }
+        int offset = base.size();
+        for (int i = 0; i < ownCount; i++) {
+            numbers[count] = ownPostings.locations[i] + offset;
+            averages[count] = ownPostings.averages[i];
+            medians[count] = ownPostings.medians[i];
+            count++;
+        }
+        if (count == 0) {
+            return NO_POSTINGS;
+        }
+        if (count < numbers.length) {
+            numbers = Arrays.copyOf(numbers, count);
+            averages = Arrays.copyOf(averages, count);
+            medians = Arrays.copyOf(medians, count);
+        }
+        return new Postings(numbers, averages, medians);
+    }
+}
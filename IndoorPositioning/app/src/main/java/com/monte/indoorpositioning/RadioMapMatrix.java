@@ -0,0 +1,156 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Radio map of a floor as a dense matrix of locations and routers, kept in arrays of primitives.
+ * Every router has its own column: the float levels of every location and a BitSet of the locations
+ * it was collected in, both indexed by the number of the location in the RadioMapIndex. Thus
+ * KNN reads the level of a test router in a location straight from the column, instead of
+ * searching for the location in the router's posting list, and the increasing candidates are
+ * read as one forward run through every column.
+ *
+ * Memory grows with locations times routers, thus the matrix is only built for floors where most
+ * routers are heard in most places, see build(). Columns are separate arrays, thus no index is
+ * ever larger than the number of locations. Once built the matrix never changes and can be shared
+ * by threads.
+ */
+public class RadioMapMatrix {
+    // Most cells the matrix may have, about 8 MB with the averages, medians and bits
+    static final long MAX_CELLS = 1024 * 1024;
+    // Share of the cells which have to be collected, sparser floors are left to the posting lists
+    static final double MIN_FILL = 0.5;
+
+    private final Map<Integer, Integer> columns;        // column of every router by its id
+    public final int[] floors;                          // floor of every location
+    private final float[][] averages;                   // average level of every location, by the column
+    private final float[][] medians;                    // median level of every location, by the column
+    private final BitSet[] collected;                   // set if the router was collected in the location, by the column
+
+    /**
+     * Constructor takes the filled columns. Use build() instead.
+     * @param columns
+     * @param floors
+     * @param averages
+     * @param medians
+     * @param collected
+     */
+    private RadioMapMatrix(Map<Integer, Integer> columns, int[] floors, float[][] averages, float[][] medians,
+                           BitSet[] collected) {
+        this.columns = columns;
+        this.floors = floors;
+        this.averages = averages;
+        this.medians = medians;
+        this.collected = collected;
+    }
+
+    /**
+     * Builds the matrix from the posting lists of an index, if the floor is dense enough.
+     * @param floors        - floor of every location by its number
+     * @param postings      - posting lists by router id
+     * @return the matrix or null if it would have more than MAX_CELLS cells or less than MIN_FILL of
+     * them collected
+     */
+    static RadioMapMatrix build(int[] floors, Map<Integer, RadioMapIndex.Postings> postings) {
+        // counted in longs, locations times routers doesn't fit into an int on a large campus
+        long cells = (long) floors.length * postings.size();
+        long filled = 0;
+        for (RadioMapIndex.Postings routerPostings : postings.values()) {
+            filled += routerPostings.size();
+        }
+        if (cells == 0 || cells > MAX_CELLS || filled < MIN_FILL * cells) {
+            return null;
+        }
+
+        Map<Integer, Integer> columns = new HashMap<>();
+        float[][] averages = new float[postings.size()][];
+        float[][] medians = new float[postings.size()][];
+        BitSet[] collected = new BitSet[postings.size()];
+        for (Map.Entry<Integer, RadioMapIndex.Postings> entry : postings.entrySet()) {
+            int column = columns.size();
+            columns.put(entry.getKey(), column);
+            averages[column] = new float[floors.length];
+            medians[column] = new float[floors.length];
+            collected[column] = new BitSet(floors.length);
+            RadioMapIndex.Postings routerPostings = entry.getValue();
+            for (int i = 0; i < routerPostings.size(); i++) {
+                int location = routerPostings.locations[i];
+                averages[column][location] = (float) routerPostings.averages[i];
+                medians[column][location] = (float) routerPostings.medians[i];
+                collected[column].set(location);
+            }
+        }
+        return new RadioMapMatrix(columns, floors, averages, medians, collected);
+    }
+
+    /**
+     * @param accessPointId
+     * @return column of the router, or -1 if it wasn't collected anywhere
+     */
+    public int getColumn(int accessPointId) {
+        Integer column = columns.get(accessPointId);
+        return column != null ? column : -1;
+    }
+
+    /**
+     * @param column
+     * @return average level of the router in every location, 0 where it wasn't collected
+     */
+    public float[] getAverages(int column) {
+        return averages[column];
+    }
+
+    /**
+     * @param column
+     * @return median level of the router in every location, 0 where it wasn't collected
+     */
+    public float[] getMedians(int column) {
+        return medians[column];
+    }
+
+    /**
+     * @param column
+     * @return locations the router was collected in
+     */
+    public BitSet getCollected(int column) {
+        return collected[column];
+    }
+
+    /**
+     * @return number of locations (rows)
+     */
+    public int getLocationCount() {
+        return floors.length;
+    }
+
+    /**
+     * @return number of routers (columns)
+     */
+    public int getAccessPointCount() {
+        return columns.size();
+    }
+}
@@ -55,17 +55,13 @@ import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.monte.indoorpositioning.database.IndoorDatabaseHelper;
 import com.monte.indoorpositioning.database.IndoorLocation;
-import com.monte.indoorpositioning.database.IndoorSignal;
 
 import com.monte.indoorpositioning.map.*;
 import com.monte.indoorpositioning.database.*;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  *
@@ -77,7 +73,7 @@ import java.util.Map;
  *
  * The activity works in these steps:
  * 1) It initialises all of the basic views such as buttons, seekBars etc.
- * 2) It reads the database information and parses that into an easily readable Map structure (for cache - quicker access)
+ * 2) It reads the database information only when it is needed: the locations of a single floor or the summary of a single location
  * 3) (EXTRA FEATURE) It then setups the Map and floor plans of the ground and the first floors of the Fleeming Jenkins Building.
  * 4) Now the storing of the data can begin. The user selects the floor number using the buttons on the bottom-right.
  * He then enters the building and the room information about the location in a form of "building/room"
@@ -98,13 +94,16 @@ import java.util.Map;
  * This allows seeing the information but it also allows to updated the information with a new one.
  * 9) To delete a single marker from the database firstly select it and then press "SINGLE DB" black button
  * which will then delete that information from the database.
+ * To delete many of them at once press "BOX DB" and select two opposite corners of a box on the map,
+ * then choose to delete the locations in the box, the whole floor or a whole building.
  * 10) To delete all of the database information press "CLEAR DB". It then asks you for the password,
  * which can be found in Constants.DELETE_PASSWORD field = "2468". Without the password you won't be able to delete info.
  * 11) To export the database into the phone memory press "EXPORT!". It then asks you for the filename.
  * Filename has to be a different from the ones already existing. Database is stored into folder "IndoorDatabase".
  * 12) The existing database can be imported by from the phone. Press the button "IMPORT!" and
  * File Chooser file open up where you can find your database to be imported. Then simply click on a file
- * and if asked, import it as a "File Way".
+ * and if asked, import it as a "File Way". The imported database is merged into the one on the phone,
+ * thus nothing which was already collected is lost.
  */
 
 public class TrainingActivity extends FragmentActivity implements OnMapReadyCallback,
@@ -122,9 +121,7 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
     private int selectedFloor = 0;                  // Selected floor for data collection
     private Marker selectedMarker;                  // Selected marker on the map
     private IndoorMapManager mIndoorMapManager;     // Instance iof Indoor map manager which manages indoor maps
-
-    // Processed and sorted info from the database is stored in the given map structure
-    private Map<IndoorLocation, List<ProcessedSignal>> processedMap = new HashMap<>();
+    private DatabaseQueries databaseQueries;        // Database is read in the background through this
 
     // Constant when calling activity for result when finding the database file
     private static final int READ_REQUEST_CODE = 42;
@@ -138,6 +135,9 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
         Constants.setStatusBarTranslucent(true, getWindow());                   // status bar transparent
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);   // screen is always on
 
+        // queries are cancelled when the activity is paused
+        databaseQueries = new DatabaseQueries(IndoorDatabaseHelper.getInstance(this));
+
         // Obtain the SupportMapFragment and get notified when the map is ready to be used.
         SupportMapFragment mapFragment = (SupportMapFragment) getSupportFragmentManager()
                 .findFragmentById(R.id.map);
@@ -229,6 +229,8 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
         super.onPause();
         // stop wifi updates
         mWifiCollector.unregisterWifiReceiver();
+        // results of the database queries are no longer needed
+        databaseQueries.cancelAll();
     }
 
     /**
@@ -288,6 +290,11 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
      */
     @Override
     public void onMapClick(LatLng latLng) {
+        // While selecting the box of locations to delete the clicks are its corners
+        if (isSelectingDeleteBox) {
+            selectDeleteBoxCorner(latLng);
+            return;
+        }
         // add the marker
         markerList.add(mIndoorMapManager.addMarker(latLng, BitmapLoader.getInstance().blueMarker));
         // check if grid is generated or not
@@ -441,10 +448,20 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
                         // If the entered password is correct, wipe out the database
                         if (password.getText().toString().equals(Constants.DELETE_PASSWORD)) {
                             // continue with delete. get database instance and then delete the location
+                            // The delete is done on the database writer thread
                             IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(getApplicationContext());
-                            databaseHelper.deleteAllLocationsAndSignals();
-                            // display some message
-                            Toast.makeText(getApplicationContext(), "Database is deleted!!", Toast.LENGTH_SHORT).show();
+                            databaseHelper.deleteAllLocationsAndSignalsAsync(new IndoorDatabaseHelper.OnWriteFinishedListener<Void>() {
+                                @Override
+                                public void onWriteFinished(Void result) {
+                                    // display some message
+                                    Toast.makeText(getApplicationContext(), "Database is deleted!!", Toast.LENGTH_SHORT).show();
+                                }
+
+                                @Override
+                                public void onWriteFailed(Exception e) {
+                                    Toast.makeText(getApplicationContext(), "Failed to delete the database!", Toast.LENGTH_SHORT).show();
+                                }
+                            });
                         } else {
                             Toast.makeText(getApplicationContext(), "Password is incorrect!", Toast.LENGTH_SHORT).show();
                         }
@@ -459,6 +476,154 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
         builder.show();
     }
 
+    private boolean isSelectingDeleteBox = false;   // set to true when the next map clicks are the corners of the box
+    private LatLng firstDeleteBoxCorner;            // first selected corner of the box
+
+    /**
+     * Used to tell which markers belong to the deleted locations.
+     */
+    private interface LocationFilter {
+        boolean matches(IndoorLocation location);
+    }
+
+    /**
+     * When "BOX DB" button is pressed the next two clicks on the map select the opposite corners of
+     * a box. Then the locations in the box, the whole floor or a whole building can be deleted
+     * from the database at once, instead of deleting every marker one by one.
+     * @param v
+     */
+    public void onClickBoxDeleteDB(View v){
+        isSelectingDeleteBox = true;
+        firstDeleteBoxCorner = null;
+        Toast.makeText(this, "Set First Corner of the Box!", Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Called with the map clicks while selecting the box of locations to delete.
+     * @param latLng
+     */
+    private void selectDeleteBoxCorner(LatLng latLng){
+        if (firstDeleteBoxCorner == null) {
+            firstDeleteBoxCorner = latLng;
+            Toast.makeText(this, "Set Opposite Corner of the Box!", Toast.LENGTH_LONG).show();
+            return;
+        }
+        isSelectingDeleteBox = false;
+        showBoxDeleteDialog(firstDeleteBoxCorner, latLng);
+    }
+
+    /**
+     * Asks what to delete: the locations in the box, the whole floor or a whole building of the
+     * locations in the box. Each of them is deleted in a single transaction on the database writer thread.
+     * @param corner1
+     * @param corner2
+     */
+    private void showBoxDeleteDialog(final LatLng corner1, final LatLng corner2){
+        final long floor = selectedFloor;
+        final double south = Math.min(corner1.latitude, corner2.latitude);
+        final double north = Math.max(corner1.latitude, corner2.latitude);
+        final double west = Math.min(corner1.longitude, corner2.longitude);
+        final double east = Math.max(corner1.longitude, corner2.longitude);
+        final LocationFilter inBox = new LocationFilter() {
+            @Override
+            public boolean matches(IndoorLocation location) {
+                return location.floor == floor && location.lat >= south && location.lat <= north &&
+                        location.lng >= west && location.lng <= east;
+            }
+        };
+
+        // Buildings of the markers in the box can be deleted as a whole
+        int markersInBox = 0;
+        final List<String> buildings = new ArrayList<>();
+        for (Marker m : markerList) {
+            if (m.getTag() instanceof IndoorLocation && inBox.matches((IndoorLocation) m.getTag())) {
+                markersInBox++;
+                String building = ((IndoorLocation) m.getTag()).building;
+                if (building != null && !buildings.contains(building)) {
+                    buildings.add(building);
+                }
+            }
+        }
+        final List<String> options = new ArrayList<>();
+        options.add("Locations in the Box (" + markersInBox + " on the map)");
+        options.add("Whole Floor " + floor);
+        for (String building : buildings) {
+            options.add("Whole Building " + building);
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("Delete From Database?")
+                .setItems(options.toArray(new String[options.size()]), new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(getApplicationContext());
+                        IndoorDatabaseHelper.OnWriteFinishedListener<Integer> listener;
+                        if (which == 0) {
+                            listener = deletedLocationsListener(inBox);
+                            databaseHelper.deleteLocationsInBoxAsync(floor, south, west, north, east, listener);
+                        } else if (which == 1) {
+                            listener = deletedLocationsListener(new LocationFilter() {
+                                @Override
+                                public boolean matches(IndoorLocation location) {
+                                    return location.floor == floor;
+                                }
+                            });
+                            databaseHelper.deleteLocationsOnFloorAsync(floor, listener);
+                        } else {
+                            final String building = buildings.get(which - 2);
+                            listener = deletedLocationsListener(new LocationFilter() {
+                                @Override
+                                public boolean matches(IndoorLocation location) {
+                                    return building.equals(location.building);
+                                }
+                            });
+                            databaseHelper.deleteLocationsInBuildingAsync(building, listener);
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.no, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        // do nothing
+                    }
+                })
+                .setIcon(android.R.drawable.ic_dialog_alert)
+                .show();
+    }
+
+    /**
+     * Creates the listener of a bulk delete, which removes the markers of the deleted locations from the map.
+     * @param filter    - matches the deleted locations
+     * @return
+     */
+    private IndoorDatabaseHelper.OnWriteFinishedListener<Integer> deletedLocationsListener(final LocationFilter filter){
+        return new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+            @Override
+            public void onWriteFinished(Integer result) {
+                List<Marker> deleted = new ArrayList<>();
+                for (Marker m : markerList) {
+                    if (m.getTag() instanceof IndoorLocation && filter.matches((IndoorLocation) m.getTag())) {
+                        deleted.add(m);
+                    }
+                }
+                for (Marker m : deleted) {
+                    m.remove();
+                    markerList.remove(m);
+                    // the selected marker is gone, thus there's no more info to show
+                    if (m.equals(selectedMarker)) {
+                        selectedMarker = null;
+                        showInfoDialogButton.setEnabled(false);
+                        showInfoDialogButton.setText("F");
+                    }
+                }
+                Toast.makeText(getApplicationContext(), result + " locations deleted!", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onWriteFailed(Exception e) {
+                Toast.makeText(getApplicationContext(), "Failed to delete the locations!", Toast.LENGTH_SHORT).show();
+            }
+        };
+    }
+
     IndoorLocation mCurrentIndoorLocation = new IndoorLocation();
 
     private boolean isScanSaving = false;
@@ -515,31 +680,44 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
     }
 
     /**
-     * When a button "DB" is pressed from the screen all of the data from the database is being read
-     * and then the markers for the specific floor are being added on the map. Which floor data to be
+     * When a button "DB" is pressed from the screen the locations of the selected floor are read
+     * from the database and their markers are added on the map. Which floor data to be
      * imported is decided with the button presses on the bottom-right side.
+     * Only the location rows of the floor are read (through an index) in the background, no signals.
+     * Markers are added in small batches while the locations are still being read.
      * @param v
      */
     public void onClickFromDatabase (View v) {
-        // So firstly read all of the database and import all of the signals. The process them and sort by average
-        IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
-        List<IndoorSignal> signals = databaseHelper.getAllSignals();
-        processedMap = WifiCollector.sortByAverage(WifiCollector.getProcessed(signals));
-
-        // total number of markers
-        int total = 0;
-        // Go through all locations and select the ones which are on the correct floor only
-        for (Map.Entry<IndoorLocation, List<ProcessedSignal>> entry : processedMap.entrySet()) {
-            if (entry.getKey().floor == selectedFloor) {    // If correct floor
-                total++;                                    // increment total
-                // Then add a new marker and set the correct tag. Add the marker to the marker List.
-                Marker m = mIndoorMapManager.addMarker(new LatLng(entry.getKey().lat, entry.getKey().lng), BitmapLoader.getInstance().greenMarker);
-                m.setTag(entry.getKey());
-                markerList.add(m);
+        databaseQueries.getLocations(selectedFloor, new DatabaseQueries.OnRowsLoadedListener<SampledLocation>() {
+            @Override
+            public void onRowsLoaded(List<SampledLocation> rows) {
+                addDatabaseMarkers(rows);
             }
+        }, new DatabaseQueries.OnQueryFinishedListener<Integer>() {
+            @Override
+            public void onQueryFinished(Integer total) {
+                // Display how many markers were imported
+                Toast.makeText(getApplicationContext(), "You have " + total + " locations in this Floor!", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onQueryFailed(Exception e) {
+                Toast.makeText(getApplicationContext(), "Failed to read the locations!", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Adds markers of the locations read from the database.
+     * @param locations
+     */
+    private void addDatabaseMarkers(List<SampledLocation> locations) {
+        for (SampledLocation location : locations) {
+            // Add a new marker and set the correct tag. Add the marker to the marker List.
+            Marker m = mIndoorMapManager.addMarker(new LatLng(location.lat, location.lng), BitmapLoader.getInstance().greenMarker);
+            m.setTag(location);
+            markerList.add(m);
         }
-        // Display how many markers were imported
-        Toast.makeText(this, "You have " + total + " locations in this Floor!", Toast.LENGTH_SHORT).show();
     }
 
 
@@ -625,6 +803,23 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
         super.onDestroy();
         Runtime.getRuntime().gc();
         mMap.clear();
+        // Collection is finished, thus fold old raw signals away in the background
+        final IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
+        final DatabaseCatalog databaseCatalog = DatabaseCatalog.getInstance(this);
+        // and then write the databases of the surveyed buildings, which positioning uses. The split reads
+        // the whole survey, thus it waits until the compaction (and a possible VACUUM) is finished
+        databaseHelper.compactSignalsInBackground(Constants.RAW_SIGNALS_MAX_AGE,
+                new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+                    @Override
+                    public void onWriteFinished(Integer deleted) {
+                        databaseCatalog.splitIntoShardsInBackground(databaseHelper);
+                    }
+
+                    @Override
+                    public void onWriteFailed(Exception e) {
+                        databaseCatalog.splitIntoShardsInBackground(databaseHelper);
+                    }
+                });
     }
 
     /**
@@ -638,14 +833,19 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
         // get the database instance
         IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
 
-        // Go through all of the collected signals and
-        for (ScanResult spot : spots) {
-            // An instance of IndoorSignal to be stored in a database
-            IndoorSignal signal = new IndoorSignal(mCurrentIndoorLocation, spot.BSSID,
-                    spot.SSID, spot.level, timestamp);
-            // sotre it in the database
-            databaseHelper.addSignal(signal);
-        }
+        // store the whole scan at once in a single transaction. This is done on the database
+        // writer thread, thus collecting never blocks the UI
+        databaseHelper.addScanAsync(mCurrentIndoorLocation, spots, timestamp, new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+            @Override
+            public void onWriteFinished(Integer result) {
+                Log.i("addToDatabase", "Stored " + result + " signals");
+            }
+
+            @Override
+            public void onWriteFailed(Exception e) {
+                Toast.makeText(getApplicationContext(), "Failed to store the signals!", Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     /**
@@ -663,12 +863,12 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
                         public void onClick(DialogInterface dialog, int which) {
                             // continue with delete, thus get database instance and call a function to delete the location
                             // which also deletes the signals associated with the location
+                            // The delete itself is done on the database writer thread
+                            IndoorLocation location = (IndoorLocation) selectedMarker.getTag();
                             IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(getApplicationContext());
-                            databaseHelper.deleteSingleLocation((IndoorLocation) selectedMarker.getTag());
+                            databaseHelper.deleteSingleLocationAsync(location, null);
                             // Need to set the tag to smth which is not instanceof IndoorLocation
                             selectedMarker.setTag(0);
-                            // Remove the marker from out processed map
-                            processedMap.remove(selectedMarker.getTag());
                             // Change the status of the button whic allows getting more info about the location
                             showInfoDialogButton.setEnabled(false);
                             showInfoDialogButton.setText("F");
@@ -693,29 +893,49 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
      * @param v
      */
     public void onClickShowInfoDialog(View v){
-        String message = "";
+        // The summary of the single location is read from the database in the background
+        if (selectedMarker == null || !(selectedMarker.getTag() instanceof IndoorLocation)) {
+            return;
+        }
+        final IndoorLocation location = (IndoorLocation) selectedMarker.getTag();
+        databaseQueries.getSignalSummary(location, new DatabaseQueries.OnQueryFinishedListener<List<SignalSummary>>() {
+            @Override
+            public void onQueryFinished(List<SignalSummary> result) {
+                showInfoDialog(location, result);
+            }
 
-        // If the collected marker isn't inside the processed map, that means the info is in database
-        // thus need to get all signals from there and again sort my average like at the beginning
-        if (!processedMap.containsKey(selectedMarker.getTag())){
-            IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
-            List<IndoorSignal> signals = databaseHelper.getAllSignals();
-            processedMap = WifiCollector.sortByAverage(WifiCollector.getProcessed(signals));
+            @Override
+            public void onQueryFailed(Exception e) {
+                Toast.makeText(getApplicationContext(), "Failed to read the signals!", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Shows the averages of the collected signals of the selected marker in a dialog.
+     * @param loc       - location whose summary was read
+     * @param summaries - summary of every router, strongest average first
+     */
+    private void showInfoDialog(IndoorLocation loc, List<SignalSummary> summaries) {
+        // The marker might have been deselected or deleted while the database was being read
+        if (selectedMarker == null || !loc.equals(selectedMarker.getTag())) {
+            return;
         }
+        StringBuilder message = new StringBuilder();
+        message.append("Room: ").append(loc.room).append(", Floor: ").append(loc.floor).append('\n');
 
         // Total number of signals in the location
-        message += "Total " + processedMap.get(selectedMarker.getTag()).size() + " Signals\n";
-        // Then need to populate the message with the info. I use SSID and average signal level.
-        for (ProcessedSignal s : processedMap.get(selectedMarker.getTag())){
-            message += String.format("%s      %.2fdBm\n", s.ssid, s.average);
+        message.append("Total ").append(summaries.size()).append(" Signals\n");
+        // Then need to populate the message with the info. I use SSID, average signal level,
+        // number of samples and the range of the levels.
+        for (SignalSummary s : summaries){
+            message.append(String.format("%s      %.2fdBm  (%d, %.0f..%.0f)\n", s.ssid, s.average, s.count, s.min, s.max));
         }
 
-        // Get indoor location instance to get the room and floor level
-        IndoorLocation loc = (IndoorLocation) selectedMarker.getTag();
         // Create a dialog to display info
         new AlertDialog.Builder(this)
                 .setTitle(loc.building)
-                .setMessage("Room: " + loc.room + ", Floor: " + loc.floor + "\n" + message)
+                .setMessage(message)
                 .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
                         // continue with delete
@@ -792,23 +1012,122 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
         for (int i = 0; i < split.length; i++)
             Log.e("split files", split[i]);
 
-        // If the last value in the parsed array isn't equal to "db", then it's a wrong file format
-        if (!split[split.length-1].equals("db")){
-            Toast.makeText(this, "Please select a database file *.db!", Toast.LENGTH_LONG).show();
+        // If the last value in the parsed array isn't equal to "db" or "rmz" (radio map archive),
+        // then it's a wrong file format
+        String extension = split[split.length-1];
+        if (!extension.equals("db") && !("." + extension).equals(RadioMapArchive.FILE_EXTENSION)){
+            Toast.makeText(this, "Please select a database file *.db or *.rmz!", Toast.LENGTH_LONG).show();
+            return;
         }
 
-        // Else we can proceed by getting database instance and then
-        // use the function fro mthe database to import the file
+        // A database can also be the one of a single building (exported as Building/name.db), thus ask
+        // for the building, whose database is then written right away
+        final String importPath = uri.getPath();
+        if (extension.equals("db")) {
+            AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                    .setTitle("Import the database of one building?")
+                    .setMessage("Enter the building, or leave it empty to merge the whole file.");
+            final EditText buildingName = new EditText(this);
+            builder.setView(buildingName);
+            builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    String building = buildingName.getText().toString().trim();
+                    if (building.isEmpty()) {
+                        mergeIntoDatabase(importPath);
+                    } else {
+                        importBuilding(building, importPath);
+                    }
+                }
+            });
+            builder.setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    // do nothing
+                }
+            });
+            builder.show();
+        } else {
+            // An archive can also be positioned with straight away, without importing it
+            new AlertDialog.Builder(this)
+                    .setTitle("Radio map archive")
+                    .setMessage("Import the archive into the database, or position with it as it is?")
+                    .setPositiveButton("Import", new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            mergeIntoDatabase(importPath);
+                        }
+                    })
+                    .setNeutralButton("Position", new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            Intent intent = new Intent(TrainingActivity.this, PositioningActivity.class);
+                            intent.putExtra(PositioningActivity.RADIO_MAP_ARCHIVE_KEY, importPath);
+                            startActivity(intent);
+                        }
+                    })
+                    .setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            // do nothing
+                        }
+                    })
+                    .show();
+        }
+    }
+
+    /**
+     * Merges the file into the database in the background, thus the already collected data is kept.
+     * @param importPath
+     */
+    private void mergeIntoDatabase(String importPath) {
+        // Get database instance and then merge the file into the database in the background
         IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
-        try {
-            boolean status = databaseHelper.importDatabase(uri.getPath());
-            if (status){
-                Toast.makeText(this, "Database imported!", Toast.LENGTH_LONG).show();
-            } else {
-                Toast.makeText(this, "Failed to import!", Toast.LENGTH_LONG).show();
+        Toast.makeText(this, "Importing...", Toast.LENGTH_SHORT).show();
+        databaseHelper.mergeDatabaseAsync(importPath, new IndoorDatabaseHelper.OnMergeProgressListener() {
+            @Override
+            public void onMergeProgress(int mergedLocations, int totalLocations) {
+                Log.i("importFromDatabase", "Merged " + mergedLocations + " of " + totalLocations + " locations");
+            }
+        }, new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+            @Override
+            public void onWriteFinished(Integer result) {
+                showImportResult(result);
+            }
+
+            @Override
+            public void onWriteFailed(Exception e) {
+                showImportResult(-1);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        });
+    }
+
+    /**
+     * Merges the file into the database and then writes the database of the building from it,
+     * both in the background.
+     * @param building
+     * @param importPath
+     */
+    private void importBuilding(String building, String importPath) {
+        Toast.makeText(this, "Importing " + building + "...", Toast.LENGTH_SHORT).show();
+        DatabaseCatalog.getInstance(this).importShardAsync(IndoorDatabaseHelper.getInstance(this), building,
+                importPath, new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+                    @Override
+                    public void onWriteFinished(Integer result) {
+                        showImportResult(result);
+                    }
+
+                    @Override
+                    public void onWriteFailed(Exception e) {
+                        showImportResult(-1);
+                    }
+                });
+    }
+
+    /**
+     * Displays if the import was a success or not.
+     * @param result - number of imported signals or -1 if the import failed
+     */
+    private void showImportResult(int result) {
+        if (result >= 0){
+            Toast.makeText(getApplicationContext(), "Database imported! " + result + " signals added", Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(getApplicationContext(), "Failed to import!", Toast.LENGTH_LONG).show();
         }
     }
 
@@ -827,71 +1146,161 @@ public class TrainingActivity extends FragmentActivity implements OnMapReadyCall
                     new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE},
                     Constants.MY_PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE);
         } else {
-            //create a dialog box with a text field to enter the folder name for storing data
-            android.support.v7.app.AlertDialog.Builder builder = new android.support.v7.app.AlertDialog.Builder(this);
-            builder.setTitle("Enter file Name (with .db)");
-
-            // Set up the input text field
-            final EditText fileName = new EditText(this);
-            // Specify the type of input expected
-            fileName.setInputType(InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD);
-            builder.setView(fileName);
-            // Set up the buttons
-            builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    //calls a method for storing files
-                    exportToFile (fileName.getText().toString());
-                }
-            });
-            builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            // The buildings which can be exported on their own are read from their databases in the background
+            DatabaseCatalog.getInstance(this).getBuildingSummariesAsync(
+                    new DatabaseCatalog.OnCatalogReadListener<List<DatabaseCatalog.BuildingSummary>>() {
                 @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    //else does nothing
-                    dialog.cancel();
+                public void onCatalogRead(List<DatabaseCatalog.BuildingSummary> summaries) {
+                    // without the summaries the buildings simply aren't offered
+                    showExportDialog(summaries != null ? summaries :
+                            new ArrayList<DatabaseCatalog.BuildingSummary>());
                 }
             });
-            // show the dialog
-            builder.show();
         }
     }
 
+    /**
+     * Opens up a dialog where the user is asked to enter the name of the database to be exported.
+     * @param summaries - number of locations and samples of every building, which are listed
+     */
+    private void showExportDialog(List<DatabaseCatalog.BuildingSummary> summaries) {
+        if (isDestroyed()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        for (DatabaseCatalog.BuildingSummary summary : summaries) {
+            message.append(String.format("%s: %d locations, %d samples\n",
+                    summary.building, summary.locationCount, summary.sampleCount));
+        }
+        //create a dialog box with a text field to enter the folder name for storing data
+        android.support.v7.app.AlertDialog.Builder builder = new android.support.v7.app.AlertDialog.Builder(this);
+        builder.setTitle("Enter file Name (with .db, .rmz or .rmap, Building/name.db for one building)");
+        // the buildings which have their own database
+        if (message.length() > 0) {
+            builder.setMessage(message);
+        }
+
+        // Set up the input text field
+        final EditText fileName = new EditText(this);
+        // Specify the type of input expected
+        fileName.setInputType(InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD);
+        builder.setView(fileName);
+        // Set up the buttons
+        builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                //calls a method for storing files
+                exportToFile (fileName.getText().toString());
+            }
+        });
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                //else does nothing
+                dialog.cancel();
+            }
+        });
+        // show the dialog
+        builder.show();
+    }
+
     /**
      * Function handles exporting the database to the mobile device.
      * It calls my database which manages file transfers.
-     * @param fileName - string filename such as my_database.db, which will be exported to IndoorDatabase folder
+     * @param fileName - string filename such as my_database.db (my_data.rmz for the compressed archive,
+     *                 my_map.rmap for the radio map snapshot or Building/my_building.db for a single building),
+     *                 which will be exported to IndoorDatabase folder
      */
     private void exportToFile (String fileName){
         // Get the instance of database
-        IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
+        final IndoorDatabaseHelper databaseHelper = IndoorDatabaseHelper.getInstance(this);
         // Get the external directory of the phone where data can be stored
         File root = Environment.getExternalStorageDirectory();
 
-        try {
-            // If can write to file (permission given) etc.
-            if (root.canWrite()){
-                // get the full path of the folder to which export the database
-                File dir = new File (root.getAbsolutePath() + "/IndoorDatabase/");
-                // If such folder doesn't exist, create one, otherwise ignore this
-                if (!dir.exists()) {
-                    dir.mkdirs();
+        // If can write to file (permission given) etc.
+        if (root.canWrite()){
+            // get the full path of the folder to which export the database
+            File dir = new File (root.getAbsolutePath() + "/IndoorDatabase/");
+            // If such folder doesn't exist, create one, otherwise ignore this
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            // "Building/name.db" gets the database of that building only
+            if (fileName.contains("/")) {
+                String building = fileName.substring(0, fileName.lastIndexOf('/')).trim();
+                exportBuilding(building, dir, fileName.substring(fileName.lastIndexOf('/') + 1).trim());
+                return;
+            }
+            // Try to export the database to the specific file which was specified in the text field.
+            // Files ending with .rmap get the compiled radio map snapshot instead of the database copy
+            // and files ending with .rmz the compressed archive, which is a lot smaller to share.
+            // Both read the whole radio map, thus every export is written in the background
+            final String exportName = fileName;
+            final String exportPath = dir.getAbsolutePath() + "/" + fileName;
+            Toast.makeText(this, "Exporting...", Toast.LENGTH_SHORT).show();
+            DatabaseQueries.OnQueryFinishedListener<Boolean> listener = new DatabaseQueries.OnQueryFinishedListener<Boolean>() {
+                @Override
+                public void onQueryFinished(Boolean isExported) {
+                    // Display the message if the export was a success or not.
+                    showExportResult(isExported, exportName);
                 }
-                // Try to export the database to the specific file which was specified in the text field
-                boolean status = databaseHelper.exportDatabase(dir.getAbsolutePath()+ "/"+fileName);
-                // Display the message if the export was a success or not.
-                if (status){
-                    Toast.makeText(this, "Exported to IndoorDatabase/"+fileName, Toast.LENGTH_LONG).show();
-                } else {
-                    Toast.makeText(this, "File IndoorDatabase/"+fileName+" already Exists!", Toast.LENGTH_LONG).show();
+
+                @Override
+                public void onQueryFailed(Exception e) {
+                    Log.e("exportToFile", "Failed to export " + exportName, e);
+                    showExportResult(false, exportName);
                 }
+            };
+            if (exportName.endsWith(RadioMapSnapshot.FILE_EXTENSION)) {
+                databaseQueries.exportRadioMapSnapshot(exportPath, listener);
+            } else if (exportName.endsWith(RadioMapArchive.FILE_EXTENSION)) {
+                databaseQueries.exportRadioMapArchive(exportPath, listener);
+            } else {
+                databaseQueries.exportDatabase(exportPath, listener);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
         // Print the full path to the exported file
         Log.i("database path", databaseHelper.getDatabasePath());
     }
 
+    /**
+     * Exports the database of a single building. The building databases are brought up to date with
+     * everything collected so far in the background first, then the one of the building is copied.
+     * @param building
+     * @param dir       - folder to export to
+     * @param fileName
+     */
+    private void exportBuilding(final String building, File dir, final String fileName) {
+        final DatabaseCatalog databaseCatalog = DatabaseCatalog.getInstance(this);
+        final String exportPath = dir.getAbsolutePath() + "/" + fileName;
+        databaseCatalog.splitIntoShardsInBackground(IndoorDatabaseHelper.getInstance(this),
+                new DatabaseCatalog.OnSplitFinishedListener() {
+            @Override
+            public void onSplitFinished(int written) {
+                // copying the file is kept away from the UI thread too
+                databaseCatalog.exportShardAsync(building, exportPath, new DatabaseCatalog.OnCatalogReadListener<Boolean>() {
+                    @Override
+                    public void onCatalogRead(Boolean isExported) {
+                        showExportResult(Boolean.TRUE.equals(isExported), fileName);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Displays the message if the export was a success or not.
+     * @param status
+     * @param fileName
+     */
+    private void showExportResult(boolean status, String fileName) {
+        if (status){
+            Toast.makeText(this, "Exported to IndoorDatabase/"+fileName, Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, "File IndoorDatabase/"+fileName+" already Exists!", Toast.LENGTH_LONG).show();
+        }
+    }
+
     // Methods have to be implemented if we want the marker to change it's location LatLng
     // When it is being dragged. They are not used but are needed to be implemented!
     @Override
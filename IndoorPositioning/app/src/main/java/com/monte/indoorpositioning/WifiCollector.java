@@ -28,7 +28,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.location.Location;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
@@ -37,6 +36,7 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.google.android.gms.maps.model.LatLng;
+import com.monte.indoorpositioning.database.AccessPointPrior;
 import com.monte.indoorpositioning.database.IndoorLocation;
 import com.monte.indoorpositioning.database.IndoorSignal;
 import com.monte.indoorpositioning.database.ProcessedLocation;
@@ -65,6 +65,7 @@ public class WifiCollector {
     private OnWifiCollectorListener collectorListener;  // Wifi receive listener is being called when wifi is received
     private Context context;                            // Activity context
     private static int INTERVAL = 1000;                 // Describes how frequent wifi scans have to be performed in ms
+    private static final int MIN_ACCESS_POINT_LOCATIONS = 2;    // Routers collected in fewer locations are not compared by KNN
 
     /**
      * Constructor.
@@ -114,46 +115,13 @@ public class WifiCollector {
     public static Map<IndoorLocation, List<ProcessedSignal>> getProcessed (List<IndoorSignal> signals){
         // Create a map to return to
         Map<IndoorLocation, List<ProcessedSignal>> returnMap = new HashMap<>();
-        // Create another map used for processing purposes
-        // IndoorLocation is the location of the marker, String is the bssid of the router
-        // and IndoorSignal is a single response from a single router
-        Map<IndoorLocation, Map<String, List<IndoorSignal>>> locationMap = new HashMap<>();
-
-        // Go through all signals and then group them into the given map structure
-        for (IndoorSignal s : signals) {
-            // Firstly need to add the IndoorLocation to the map if it doesn't contain one
-            // or else add the map of bssid's if it doesn't have one as well.
-
-            // So if we already contain the location in the map, proccess from here
-            if (locationMap.containsKey(s.location)) {
-                // check if we have the bssid of the signal. If we do, we get
-                // the list the map is holding and then add a new value to the list
-                if (locationMap.get(s.location).containsKey(s.bssid)){
-                    locationMap.get(s.location).get(s.bssid).add(s);
-                    // else means we don't have the list. Create one, append it
-                    // with a new value and then put the value back into the location map
-                } else {
-                    List<IndoorSignal> tmpList = new ArrayList<>();
-                    tmpList.add(s);
-                    locationMap.get(s.location).put(s.bssid, tmpList);
-                }
-                // means we don't have the location nor the map of signals etc.
-            } else {
-                // create a list to store signals and append the new signal to it
-                List<IndoorSignal> tmpList = new ArrayList<>();
-                tmpList.add(s);
-                // Create a new map and put the newly created list inside the map
-                Map<String, List<IndoorSignal>> tmpMap = new HashMap<>();
-                tmpMap.put(s.bssid, tmpList);
-                // finally put the map inside the location map
-                locationMap.put(s.location, tmpMap);
-            }
-        }
+        // Signals grouped by their location and router
+        Map<IndoorLocation, Map<Integer, List<IndoorSignal>>> locationMap = groupSignals(signals);
 
         // now that we have the processed information we need to calculate the averages and medians
         // for all of the bssids thus go through all location in the locationMap
-        for (Map.Entry<IndoorLocation, Map<String, List<IndoorSignal>>> trainLocation : locationMap.entrySet()) {
-            Map<String, List<IndoorSignal>> value = trainLocation.getValue();   // map value is another map
+        for (Map.Entry<IndoorLocation, Map<Integer, List<IndoorSignal>>> trainLocation : locationMap.entrySet()) {
+            Map<Integer, List<IndoorSignal>> value = trainLocation.getValue();   // map value is another map
             IndoorLocation key = trainLocation.getKey();                        // key is the location
 
             // We wil now start to populate our return map
@@ -166,13 +134,14 @@ public class WifiCollector {
 
             // Go through all of the collected signals and calculate their averages and
             // medians each of the collected bssids
-            for (Map.Entry<String, List<IndoorSignal>> trainSignals : value.entrySet()) {
+            for (Map.Entry<Integer, List<IndoorSignal>> trainSignals : value.entrySet()) {
                 // new instance of processed Signal
                 ProcessedSignal processedSignal = new ProcessedSignal();
                 // calcualte averages and medians using external functions
                 processedSignal.average = calculateAverage(trainSignals.getValue());
                 processedSignal.median = calculateMedian(trainSignals.getValue());
-                // Set the locations, bssid and ssid of the signal
+                // Set the locations, router id, bssid and ssid of the signal
+                processedSignal.accessPointId = trainSignals.getKey();
                 processedSignal.bssid = trainSignals.getValue().get(0).bssid;
                 processedSignal.ssid = trainSignals.getValue().get(0).ssid;
                 processedSignal.location = trainSignals.getValue().get(0).location;
@@ -184,6 +153,51 @@ public class WifiCollector {
         return returnMap;
     }
 
+    /**
+     * Groups the signals by their location and then by their router.
+     * @param signals
+     * @return
+     */
+    private static Map<IndoorLocation, Map<Integer, List<IndoorSignal>>> groupSignals (List<IndoorSignal> signals){
+        // Create a map used for processing purposes
+        // IndoorLocation is the location of the marker, Integer is the id of the router
+        // and IndoorSignal is a single response from a single router
+        Map<IndoorLocation, Map<Integer, List<IndoorSignal>>> locationMap = new HashMap<>();
+
+        // Go through all signals and then group them into the given map structure
+        for (IndoorSignal s : signals) {
+            // Firstly need to add the IndoorLocation to the map if it doesn't contain one
+            // or else add the map of bssid's if it doesn't have one as well.
+
+            // So if we already contain the location in the map, proccess from here
+            if (locationMap.containsKey(s.location)) {
+                // check if we have the bssid of the signal. If we do, we get
+                // the list the map is holding and then add a new value to the list
+                if (locationMap.get(s.location).containsKey(s.accessPointId)){
+                    locationMap.get(s.location).get(s.accessPointId).add(s);
+                    // else means we don't have the list. Create one, append it
+                    // with a new value and then put the value back into the location map
+                } else {
+                    List<IndoorSignal> tmpList = new ArrayList<>();
+                    tmpList.add(s);
+                    locationMap.get(s.location).put(s.accessPointId, tmpList);
+                }
+                // means we don't have the location nor the map of signals etc.
+            } else {
+                // create a list to store signals and append the new signal to it
+                List<IndoorSignal> tmpList = new ArrayList<>();
+                tmpList.add(s);
+                // Create a new map and put the newly created list inside the map
+                Map<Integer, List<IndoorSignal>> tmpMap = new HashMap<>();
+                tmpMap.put(s.accessPointId, tmpList);
+                // finally put the map inside the location map
+                locationMap.put(s.location, tmpMap);
+            }
+        }
+
+        return locationMap;
+    }
+
     /**
      * Function used to sort all of the processed values by their averages.
      * @param locationMap
@@ -225,11 +239,50 @@ public class WifiCollector {
     }
 
     /**
-     * The largest function. It is responsible for performing KNN algorithm using several of the parameters.
-     * We pass in the locationMap, which has all of the information about the locations and then calculate
-     * the euclidian distance for all of the locations.
+     * Same as getKnn() on a RadioMapIndex, the index is built from the given map first and every
+     * location is returned. Use the index of RadioMapCache.getFloorIndex() instead when the same
+     * map is used for many scans.
      * @param locationMap
-     * @param testSignals           - Signals which were received by the wifi scan at the current time
+     * @param testSignals
+     * @param priors
+     * @param isWeighted
+     * @param knnNumber
+     * @param isAverageOrMedian
+     * @param currPosition
+     * @param currFloor
+     * @param isIgnoringDistance
+     * @param maxDistance
+     * @return
+     */
+    public static List<ProcessedLocation> getKnn (Map<IndoorLocation, List<ProcessedSignal>> locationMap,
+                                                           List<IndoorSignal> testSignals,
+                                                           Map<Integer, AccessPointPrior> priors, boolean isWeighted,
+                                                           int knnNumber, boolean isAverageOrMedian, LatLng currPosition,
+                                                           int currFloor, boolean isIgnoringDistance, double maxDistance){
+        return getKnn(new RadioMapIndex(locationMap), testSignals, priors, isWeighted, knnNumber, isAverageOrMedian,
+                currPosition, currFloor, isIgnoringDistance, maxDistance, 0);
+    }
+
+    /**
+     * The largest function. It is responsible for performing KNN algorithm using several of the parameters.
+     * We pass in the index of the radio map, which has all of the information about the locations and then
+     * calculate the euclidian distance for the locations which have every one of the compared routers.
+     * Only the posting lists of the compared routers are read, thus the time depends on how many
+     * locations the routers were collected in and not on the size of the radio map.
+     *
+     * The locations are visited in the order of their numbers, walking all of the posting lists at
+     * once. When the distance to the user is limited and the grid cells around the user have fewer
+     * locations than the posting lists, only the locations of those cells are visited instead.
+     * Distances to the user are planar, see RadioMapIndex.getDistance(). Many candidates (e.g. the
+     * whole campus while the position is unknown) are scored in parallel, see KnnScoring.
+     * When only the nearest maxLocations are needed they are kept in a KnnHeap, and summing up
+     * a location stops as soon as it is farther than the farthest of them. The result is the same
+     * as the first maxLocations of the whole list, which is returned when maxLocations is 0.
+     * @param index
+     * @param testSignals           - Signals which were received by the wifi scan at the current time, with
+     *                                their accessPointId looked up by IndoorDatabaseHelper.getAccessPointId()
+     * @param priors                - priors of the routers by id (IndoorDatabaseHelper.getAccessPointPriors()),
+     *                                routers which were (almost) never collected are not compared. Can be null
      * @param isWeighted            - value defining if the euclidian distance should be weighted or not
      * @param knnNumber             - number of routers being used to determine the location (basically KNN number)
      * @param isAverageOrMedian     - Tell if the average or median should be used to get the euclidian distance
@@ -237,104 +290,113 @@ public class WifiCollector {
      * @param currFloor             - current floor of the user, which reduces computational power
      * @param isIgnoringDistance    - should we ignore maxDistance or not
      * @param maxDistance           - max distance to the training spots which are still considered to be plausible
+     * @param maxLocations          - number of the nearest locations which are returned, 0 returns all of them
      * @return
      */
-    public static List<ProcessedLocation> getKnn (Map<IndoorLocation, List<ProcessedSignal>> locationMap,
-                                                           List<IndoorSignal> testSignals, boolean isWeighted,
+    public static List<ProcessedLocation> getKnn (RadioMapIndex index, List<IndoorSignal> testSignals,
+                                                           Map<Integer, AccessPointPrior> priors, boolean isWeighted,
                                                            int knnNumber, boolean isAverageOrMedian, LatLng currPosition,
-                                                           int currFloor, boolean isIgnoringDistance, double maxDistance){
-        // A priority queue stores the Processed locations in the incrementing euclidian distance order
-        List<ProcessedLocation> orderedLocations = new ArrayList<>();//PriorityQueue<>(10, new LocationComparator());
-
-        // Firstly need to sort the test signals (collected signals in the incrementing signal order)
-        Collections.sort(testSignals, new IndoorSignalComparator());
-
-        // Use KNN number of signals if available and if not available, use
-        // every signal which is available
-        if (testSignals.size() >= knnNumber){
-            testSignals = testSignals.subList(0, knnNumber);
+                                                           int currFloor, boolean isIgnoringDistance, double maxDistance,
+                                                           int maxLocations){
+        // The locations in the incrementing euclidian distance order
+        List<ProcessedLocation> orderedLocations = new ArrayList<>();
+
+        // The strongest routers which are worth comparing
+        testSignals = selectTestSignals(testSignals, priors, knnNumber);
+
+        // A location is only a candidate if it has every test router, thus if one of them
+        // isn't anywhere in the radio map no location can be
+        if (testSignals.isEmpty()) {
+            return orderedLocations;
         }
-
-        // Current location instance has method require to find the
-        // distance from one location to another in meters
-        Location currLocation = new Location("currentLocation");
-        currLocation.setLatitude(currPosition.latitude);
-        currLocation.setLongitude(currPosition.longitude);
-
-        // Go through all of the locations in the locationMap
-        for (Map.Entry<IndoorLocation, List<ProcessedSignal>> trainLocation : locationMap.entrySet()) {
-            IndoorLocation key = trainLocation.getKey();        // get the location, which is the key
-
-            if (key.floor != currFloor){                        // Ignore the location if it is from the wrong floor
-                continue;
+        RadioMapIndex.Postings[] testPostings = new RadioMapIndex.Postings[testSignals.size()];
+        int shortest = 0;
+        for (int i = 0; i < testPostings.length; i++) {
+            testPostings[i] = index.getPostings(testSignals.get(i).accessPointId);
+            if (testPostings[i] == null) {
+                return orderedLocations;
             }
+            if (testPostings[i].size() < testPostings[shortest].size()) {
+                shortest = i;
+            }
+        }
 
-            // an instance of the location of the IndoorLocation
-            Location loc = new Location("pointLocation");
-            loc.setLatitude(key.lat);
-            loc.setLongitude(key.lng);
-
-            // make sure that we only consider signals within a certain range
-            if (currLocation.distanceTo(loc) > maxDistance && !isIgnoringDistance){
-                continue;
+        // only consider the locatinos which all had the processed signals.
+        // This is important as let's say we are in a completely different
+        // room thus not all signals are reachable and we oly reach a single out of 5
+        // signals. Euclidian distance is then very small however the location is wrong!
+        // Every such location is in the shortest posting list, thus it is the list of candidates.
+        int[] candidates = testPostings[shortest].locations;
+        // unless the locations within the max distance are even fewer
+        if (!isIgnoringDistance) {
+            int[] nearLocations = index.getLocationsNear(currPosition.latitude, currPosition.longitude, maxDistance);
+            if (nearLocations.length < candidates.length) {
+                candidates = nearLocations;
             }
+        }
+        if (candidates.length == 0) {
+            return orderedLocations;
+        }
+
+        // Compute the distances, in parallel when there are many candidates
+        int[] accessPointIds = new int[testSignals.size()];
+        double[] levels = new double[testSignals.size()];
+        for (int i = 0; i < levels.length; i++) {
+            accessPointIds[i] = testSignals.get(i).accessPointId;
+            levels[i] = testSignals.get(i).level;
+        }
+        KnnHeap heap = new KnnScoring(index, accessPointIds, testPostings, levels, isWeighted, isAverageOrMedian, currPosition.latitude,
+                currPosition.longitude, currFloor, isIgnoringDistance, maxDistance, maxLocations).score(candidates);
+
+        // The heap sorts them in incrementing euclidian distance order
+        heap.sort();
+        for (int i = 0; i < heap.size(); i++) {
+            IndoorLocation key = index.getLocation(heap.getLocation(i));
+            // Processed location instance
+            ProcessedLocation p = new ProcessedLocation();
+            // need to set the correct value from the indoor location
+            p.euclidian = heap.getDistance(i);
+            p.floor = key.floor;
+            p.building = key.building;
+            p.lat = key.lat;
+            p.lng = key.lng;
+            p.room = key.room;
+            orderedLocations.add(p);
+        }
+        return orderedLocations;
+    }
 
-            // weights for the distance. The further away the signal the bigger the weight is
-            double distance = Math.pow(currLocation.distanceTo(loc), 2) / 100.0;
-            double distanceWeight = isWeighted ? 1.0 / distance : 1;
-
-            // euclidian distance
-            double sum = 0;
-
-            // number of used spots. If the number is not equal to test size, then wrong location
-            int usedSpots = 0;
-
-            // Go through all of the test signals
-            for (IndoorSignal testSignal : testSignals){
-                // Need to compare them with the data in the database
-                for (ProcessedSignal trainSignal : trainLocation.getValue()){
-                    // We can also weight the signal according to it's signal strength -
-                    // the stringer the signal, the more trusful it is
-                    double weight = isWeighted ? (Math.abs(1.0 / testSignal.level)) : 1.0;
-
-                    // so if the test location BSSID is the same as train location BSSID
-                    if (testSignal.bssid.equals(trainSignal.bssid)){
-                        // get either averag or median value
-                        double trainValue = isAverageOrMedian ? trainSignal.average : trainSignal.median;
-                        // and add a value to the total sum of euclidian distance
-                        sum += Math.pow(testSignal.level - trainValue, 2) * weight * distanceWeight;
-                        // increment used spots. will use later
-                        usedSpots++;
-                        break;
-                    }
+    /**
+     * Chooses the test signals KNN compares: the routers which are not in the radio map (or only
+     * in a single location) can't be matched by the locations, thus they would only make every
+     * location fail the check of used spots. Of the rest only the knnNumber strongest are used.
+     * @param testSignals
+     * @param priors        - can be null, then no router is left out
+     * @param knnNumber
+     * @return the chosen signals, strongest first. Empty if none is worth comparing
+     */
+    private static List<IndoorSignal> selectTestSignals (List<IndoorSignal> testSignals,
+                                                         Map<Integer, AccessPointPrior> priors, int knnNumber){
+        if (priors != null) {
+            List<IndoorSignal> knownSignals = new ArrayList<>();
+            for (IndoorSignal testSignal : testSignals) {
+                AccessPointPrior prior = priors.get(testSignal.accessPointId);
+                if (prior != null && prior.locationCount >= MIN_ACCESS_POINT_LOCATIONS) {
+                    knownSignals.add(testSignal);
                 }
             }
-            // square root as the distance...
-            sum = Math.sqrt(sum);
-
-            // only consider the locatinos which all had the processed signals.
-            // This is important as let's say we are in a completely different
-            // room thus not all signals are reachable and we oly reach a single out of 5
-            // signals. Euclidian distance is then very small however the location is wrong!
-            if (usedSpots == testSignals.size()) {
-                // Processed location instance
-                ProcessedLocation p = new ProcessedLocation();
-                // need to set the correct value from the indoor location
-                p.euclidian = sum;
-                p.floor = key.floor;
-                p.building = key.building;
-                p.lat = key.lat;
-                p.lng = key.lng;
-                p.room = key.room;
-                // add the instance to the priority queue, which automatically
-                // sorts them in incrementing euclidian distance order
-                orderedLocations.add(p);
-            }
+            testSignals = knownSignals;
         }
-        // sort the location before returning
-        Collections.sort(orderedLocations, new LocationComparator());
 
-        return  orderedLocations;
+        // Firstly need to sort the test signals (collected signals in the incrementing signal order)
+        Collections.sort(testSignals, new IndoorSignalComparator());
+
+        // Use KNN number of signals if available and if not available, use
+        // every signal which is available
+        if (testSignals.size() >= knnNumber){
+            testSignals = testSignals.subList(0, knnNumber);
+        }
+        return testSignals;
     }
 
     /**
@@ -353,25 +415,6 @@ public class WifiCollector {
         }
     }
 
-    /**
-     * A custom comparator to sort the ProcessedLocations according to their euclidian distance
-     * This is used together with the PriorityQueue to sort the Locations in increasing
-     * euclidian distance.
-     */
-    private static class LocationComparator implements Comparator<ProcessedLocation> {
-        @Override
-        public int compare(ProcessedLocation x, ProcessedLocation y) {
-            // simply need to compare euclidian distances together
-            if (x.euclidian < y.euclidian){
-                return -1;
-            } else if (x.euclidian > y.euclidian){
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    }
-
     /**
      * A custom comparator to sort the IndoorSignal according to their level in dBm
      * This is used together with the Collections.sort() method
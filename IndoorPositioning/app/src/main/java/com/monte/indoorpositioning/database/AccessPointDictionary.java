@@ -0,0 +1,126 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In memory copy of the access points table, which maps the bssid of every router to its integer
+ * id. Signals and statistics only store the id, thus a bssid is looked up here instead of querying
+ * the database for every collected signal. The table is small (one row per router ever seen),
+ * so it is read once and then kept up to date as new routers are inserted.
+ */
+class AccessPointDictionary {
+    static final int UNKNOWN = 0;       // id of routers which are not in the database (SQLite ids start from 1)
+
+    private final String table;         // name of the access points table
+    private final String idColumn;
+    private final String bssidColumn;
+    private final String ssidColumn;
+
+    // Router ids by bssid. Null until the table is read. Guarded by "this".
+    private Map<String, Integer> ids;
+
+    /**
+     * Constructor.
+     * @param table
+     * @param idColumn
+     * @param bssidColumn
+     * @param ssidColumn
+     */
+    AccessPointDictionary(String table, String idColumn, String bssidColumn, String ssidColumn) {
+        this.table = table;
+        this.idColumn = idColumn;
+        this.bssidColumn = bssidColumn;
+        this.ssidColumn = ssidColumn;
+    }
+
+    /**
+     * @param db
+     * @param bssid
+     * @return id of the router or UNKNOWN if it was never stored
+     */
+    synchronized int getId(SQLiteDatabase db, String bssid) {
+        if (bssid == null) {
+            return UNKNOWN;
+        }
+        Integer id = load(db).get(bssid);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * Returns the id of the router, inserting it first if it wasn't stored yet. Should be called
+     * inside the transaction which stores the signals. If that transaction is rolled back then
+     * clear() has to be called as the inserted ids don't exist anymore.
+     * @param db
+     * @param bssid
+     * @param ssid  - name of the router, only stored when the router is new
+     * @return
+     */
+    synchronized int getOrInsertId(SQLiteDatabase db, String bssid, String ssid) {
+        Map<String, Integer> loaded = load(db);
+        Integer id = loaded.get(bssid);
+        if (id == null) {
+            ContentValues values = new ContentValues();
+            values.put(bssidColumn, bssid);
+            values.put(ssidColumn, ssid);
+            id = (int) db.insertOrThrow(table, null, values);
+            loaded.put(bssid, id);
+        }
+        return id;
+    }
+
+    /**
+     * Forgets every cached id, thus the table is read again the next time. Used when the
+     * database file is replaced or a transaction which inserted routers failed.
+     */
+    synchronized void clear() {
+        ids = null;
+    }
+
+    /**
+     * Reads the whole table if it wasn't read yet.
+     * @param db
+     * @return
+     */
+    private Map<String, Integer> load(SQLiteDatabase db) {
+        if (ids == null) {
+            Map<String, Integer> loaded = new HashMap<>();
+            Cursor cursor = db.query(table, new String[]{idColumn, bssidColumn}, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    loaded.put(cursor.getString(1), cursor.getInt(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            ids = loaded;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,37 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+/**
+ * AccessPointPrior holds what is known about a single router over the whole database (building):
+ * in how many locations it was collected and how strong its signal usually is. Positioning uses it
+ * to choose which of the scanned routers to compare. See IndoorDatabaseHelper.getAccessPointPriors().
+ */
+public class AccessPointPrior {
+    public int accessPointId;           // Id of the router in the access points table
+    public long locationCount;          // Number of locations where the router was collected
+    public long sampleCount;            // Number of collected samples in all of the locations
+    public double average;              // Average signal level in dBm over every sample
+    public double variance;             // Variance of the signal level over every sample (dBm^2)
+    public long lastSeen;               // Unix timestamp of the last collected signal, 0 if unknown
+}
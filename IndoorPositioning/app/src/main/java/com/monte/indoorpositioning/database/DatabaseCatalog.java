@@ -0,0 +1,837 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.wifi.ScanResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Catalog of the building shards. Everything is collected into the survey database
+ * (IndoorDatabaseHelper.getInstance()), which holds the whole campus. Positioning only ever needs
+ * the building the user is in, thus the survey is split into one database per building (shard),
+ * which has the same structure and is opened with its own IndoorDatabaseHelper.
+ *
+ * The catalog is a small database of its own which lists the shards and the routers seen in each
+ * of them, so the building can be told from a wifi scan before any shard is opened:
+ *
+ * Shards Database columns:
+ * | SHARD ID | BUILDING | SOURCE VERSION |
+ * |    1     |Fleeming..|   88123456..   |
+ * ...
+ *
+ * ShardRouters Database columns:
+ * | BSSID | REFERENCED SHARD ID |
+ * |ad:ds..|          1          |
+ * ...
+ *
+ * Queries over several databases (splitting the survey, summaries of all buildings) ATTACH them to
+ * the connection of the catalog. Android turns write-ahead logging off on a connection which
+ * attaches databases, thus the catalog itself doesn't use it, while the survey and the shards keep
+ * using it on their own connections.
+ *
+ * Between the splits the catalog follows the changes of the survey: the shards which are in use
+ * (something follows their changes, e.g. positioning) are written again in the background, thus
+ * the survey reaches positioning as it is being collected. Other shards wait for the next split.
+ */
+public class DatabaseCatalog extends SQLiteOpenHelper implements IndoorDatabaseHelper.OnDatabaseChangedListener {
+    // Database Info. Name of the database
+    private static final String DATABASE_NAME = "catalog.db";
+    private static final int DATABASE_VERSION = 1;
+
+    // Table Names
+    private static final String TABLE_SHARDS = "shards";
+    private static final String TABLE_SHARD_ROUTERS = "shardRouters";
+
+    // Shards Table Columns
+    private static final String KEY_SHARD_ID = "id";
+    private static final String KEY_SHARD_BUILDING = "building";
+    private static final String KEY_SHARD_SOURCE_VERSION = "sourceVersion";  // data version of the survey it was written from
+
+    // Shard Routers Table Columns
+    private static final String KEY_ROUTER_BSSID = "bssid";
+    private static final String KEY_ROUTER_SHARD_ID_FK = "shardId";
+
+    // Shards are stored in files named building<shard id>.db
+    private static final String SHARD_NAME_PREFIX = "building";
+    private static final String SHARD_NAME_SUFFIX = ".db";
+
+    // Schema names of the attached databases
+    private static final String SURVEY_SCHEMA = "survey";
+    private static final String SHARD_SCHEMA = "shard";
+
+    // SQLite allows at most 10 attached databases by default
+    private static final int MAX_ATTACHED = 8;
+
+    // Number of the strongest routers of a scan which are used to tell the building
+    private static final int DETECTION_ROUTERS = 10;
+
+    // Tag for printing error Logs
+    private final String TAG = "DatabaseCatalog";
+
+    // Instance of the class (singleton)
+    private static DatabaseCatalog sInstance;
+
+    private final Context context;
+
+    // Only one split runs at a time, away from the UI thread
+    private final ExecutorService splitExecutor = Executors.newSingleThreadExecutor();
+    // Listeners of the split which is queued but not started yet, null if none is queued
+    private List<OnSplitFinishedListener> queuedSplitListeners;
+    // Buildings changed since the queued refresh was queued, null if none is queued. Guarded by splitExecutor
+    private Set<String> queuedRefreshBuildings;
+    // Database everything is collected into, the shards are written from it
+    private final IndoorDatabaseHelper survey;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Listener of splitIntoShardsInBackground(). Called on the main thread after the split.
+     */
+    public interface OnSplitFinishedListener {
+        /**
+         * @param written   - number of shards written or -1 if the split failed
+         */
+        void onSplitFinished(int written);
+    }
+
+    /**
+     * Listener of detectBuildingAsync(), called on the main thread.
+     */
+    public interface OnBuildingDetectedListener {
+        /**
+         * @param building  - null if none of the routers is known or the detection failed
+         * @param shard     - database of the building, null if it has none
+         */
+        void onBuildingDetected(String building, IndoorDatabaseHelper shard);
+    }
+
+    /**
+     * Listener of the reads which are done in the background, called on the main thread.
+     * @param <T>
+     */
+    public interface OnCatalogReadListener<T> {
+        /**
+         * @param result    - null if the read failed
+         */
+        void onCatalogRead(T result);
+    }
+
+    /**
+     * Number of locations and collected samples of a single building.
+     */
+    public static class BuildingSummary {
+        public String building;
+        public long locationCount;
+        public long sampleCount;        // samples are counted in the statistics, thus compacted signals count too
+    }
+
+    /**
+     * Function to get the instance of the catalog.
+     * @param context
+     * @return
+     */
+    public static synchronized DatabaseCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DatabaseCatalog(context.getApplicationContext());
+            // shards in use are refreshed as the survey changes
+            sInstance.survey.addOnDatabaseChangedListener(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor should be private to prevent direct instantiation.
+     * Make a call to the static method "getInstance()" instead.
+     */
+    private DatabaseCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+        survey = IndoorDatabaseHelper.getInstance(context);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // routers of a shard go with it
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        String CREATE_SHARDS_TABLE = "CREATE TABLE " + TABLE_SHARDS +
+                "(" +
+                KEY_SHARD_ID + " INTEGER PRIMARY KEY," +
+                KEY_SHARD_BUILDING + " TEXT NOT NULL UNIQUE," +
+                KEY_SHARD_SOURCE_VERSION + " INTEGER" +
+                ")";
+
+        // The primary key starts with the bssid, thus routers of a scan are looked up through it
+        String CREATE_SHARD_ROUTERS_TABLE = "CREATE TABLE " + TABLE_SHARD_ROUTERS +
+                "(" +
+                KEY_ROUTER_BSSID + " TEXT NOT NULL," +
+                KEY_ROUTER_SHARD_ID_FK + " INTEGER REFERENCES " + TABLE_SHARDS + " ON DELETE CASCADE," +
+                "PRIMARY KEY (" + KEY_ROUTER_BSSID + ", " + KEY_ROUTER_SHARD_ID_FK + ")" +
+                ")";
+
+        db.execSQL(CREATE_SHARDS_TABLE);
+        db.execSQL(CREATE_SHARD_ROUTERS_TABLE);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // only the first version exists so far
+    }
+
+    /**
+     * @return every building which has a shard
+     */
+    public synchronized List<String> getBuildings() {
+        List<String> buildings = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_SHARDS, new String[]{KEY_SHARD_BUILDING},
+                null, null, null, null, KEY_SHARD_BUILDING);
+        try {
+            while (cursor.moveToNext()) {
+                buildings.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return buildings;
+    }
+
+    /**
+     * Returns the database of a single building.
+     * @param building
+     * @return the shard or null if the building has none
+     */
+    public synchronized IndoorDatabaseHelper getShard(String building) {
+        long shardId = getShardId(getReadableDatabase(), building);
+        return shardId == -1 ? null : getShardById(shardId);
+    }
+
+    /**
+     * Tells which building the scan was taken in: the one whose shard has seen the most of the
+     * strongest routers of the scan. Only the primary key of the routers is read.
+     * @param scanResults
+     * @return the building or null if none of the routers is known
+     */
+    public synchronized String detectBuilding(List<ScanResult> scanResults) {
+        List<ScanResult> strongest = new ArrayList<>(scanResults);
+        Collections.sort(strongest, new Comparator<ScanResult>() {
+            @Override
+            public int compare(ScanResult o1, ScanResult o2) {
+                return o2.level - o1.level;
+            }
+        });
+        Set<String> bssids = new LinkedHashSet<>();
+        for (ScanResult result : strongest) {
+            if (result.BSSID != null) {
+                bssids.add(result.BSSID);
+                if (bssids.size() == DETECTION_ROUTERS) {
+                    break;
+                }
+            }
+        }
+        if (bssids.isEmpty()) {
+            return null;
+        }
+
+        // SELECT SHARDS.KEY_SHARD_BUILDING FROM SHARD ROUTERS JOIN SHARDS ... WHERE BSSID IN (...)
+        // GROUP BY SHARD ORDER BY COUNT(*) DESC LIMIT 1
+        StringBuilder query = new StringBuilder(String.format(
+                "SELECT s.%s FROM %s r JOIN %s s ON r.%s = s.%s WHERE r.%s IN (",
+                KEY_SHARD_BUILDING, TABLE_SHARD_ROUTERS, TABLE_SHARDS, KEY_ROUTER_SHARD_ID_FK, KEY_SHARD_ID,
+                KEY_ROUTER_BSSID));
+        for (int i = 0; i < bssids.size(); i++) {
+            query.append(i == 0 ? "?" : ", ?");
+        }
+        query.append(String.format(") GROUP BY r.%s ORDER BY COUNT(*) DESC LIMIT 1", KEY_ROUTER_SHARD_ID_FK));
+
+        String building = null;
+        Cursor cursor = getReadableDatabase().rawQuery(query.toString(), bssids.toArray(new String[bssids.size()]));
+        try {
+            if (cursor.moveToFirst()) {
+                building = cursor.getString(0);
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to detect the building");
+        } finally {
+            cursor.close();
+        }
+        return building;
+    }
+
+    /**
+     * Runs splitIntoShards() in the background, unless a split is queued already, which then
+     * reports to the listener too. A split which is running already may have read the survey
+     * before the latest changes, thus it doesn't count.
+     * @param survey
+     * @return false if a split was queued already
+     */
+    public boolean splitIntoShardsInBackground(IndoorDatabaseHelper survey) {
+        return splitIntoShardsInBackground(survey, null);
+    }
+
+    /**
+     * Same as splitIntoShardsInBackground() but the listener is told when the shards are written.
+     * @param survey
+     * @param listener  - can be null
+     * @return false if a split was queued already
+     */
+    public boolean splitIntoShardsInBackground(final IndoorDatabaseHelper survey, OnSplitFinishedListener listener) {
+        synchronized (splitExecutor) {
+            if (queuedSplitListeners != null) {
+                if (listener != null) {
+                    queuedSplitListeners.add(listener);
+                }
+                return false;
+            }
+            queuedSplitListeners = new ArrayList<>();
+            if (listener != null) {
+                queuedSplitListeners.add(listener);
+            }
+        }
+        splitExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<OnSplitFinishedListener> listeners;
+                synchronized (splitExecutor) {
+                    // from now on a new request queues another split
+                    listeners = queuedSplitListeners;
+                    queuedSplitListeners = null;
+                }
+                int written = -1;
+                try {
+                    written = splitIntoShards(survey);
+                    Log.i(TAG, "Split the survey into " + written + " building shards");
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to split the survey", e);
+                }
+                final int result = written;
+                for (final OnSplitFinishedListener listener : listeners) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSplitFinished(result);
+                        }
+                    });
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Writes the shard of every building of the survey database again, unless it was written from
+     * the same version of the survey already. Shards of buildings which were deleted from the survey
+     * are emptied. Each shard is copied in a single transaction into a new file which then replaces
+     * it (see writeShard()), while the survey stays readable and writable, and is stamped with the
+     * data version of the survey it was copied from.
+     * Must not be called on the UI thread.
+     * @param survey
+     * @return number of shards written
+     */
+    public synchronized int splitIntoShards(IndoorDatabaseHelper survey) {
+        long sourceVersion = survey.getDataVersion();
+        if (sourceVersion == -1) {
+            return 0;
+        }
+        Set<String> buildings = new LinkedHashSet<>(survey.getBuildings());
+        buildings.addAll(getBuildings());
+
+        int written = 0;
+        SQLiteDatabase db = getWritableDatabase();
+        for (String building : buildings) {
+            if (getSourceVersion(db, building) == sourceVersion) {
+                continue;
+            }
+            writeShard(survey, building);
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Follows the changes of the survey. The shards of the changed buildings are written again in
+     * the background if they are in use, see refreshShardsInBackground(). After a reset every
+     * building might have changed, thus the whole survey is split again.
+     * @param change
+     */
+    @Override
+    public void onDatabaseChanged(DatabaseChange change) {
+        if (change.isReset) {
+            splitIntoShardsInBackground(survey);
+            return;
+        }
+        Set<String> buildings = new LinkedHashSet<>();
+        for (DatabaseChange.SignalDelta signal : change.insertedSignals) {
+            buildings.add(signal.location.building);
+        }
+        for (SampledLocation location : change.updatedLocations) {
+            buildings.add(location.building);
+        }
+        for (SampledLocation location : change.deletedLocations) {
+            buildings.add(location.building);
+        }
+        buildings.remove(null);
+        if (!buildings.isEmpty()) {
+            refreshShardsInBackground(buildings);
+        }
+    }
+
+    /**
+     * Writes the shards of the buildings again on the thread of the splits, if something follows
+     * their changes (RadioMapHolder of positioning), which then reloads the shard. Shards nobody
+     * uses, or buildings which have none yet, are left for the next split. Changes which come while
+     * a refresh is queued are added to it, thus a burst of scans writes each shard only once.
+     * @param buildings
+     */
+    private void refreshShardsInBackground(Set<String> buildings) {
+        synchronized (splitExecutor) {
+            if (queuedRefreshBuildings != null) {
+                queuedRefreshBuildings.addAll(buildings);
+                return;
+            }
+            queuedRefreshBuildings = new LinkedHashSet<>(buildings);
+        }
+        splitExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Set<String> refreshed;
+                synchronized (splitExecutor) {
+                    // from now on a change queues another refresh
+                    refreshed = queuedRefreshBuildings;
+                    queuedRefreshBuildings = null;
+                }
+                synchronized (DatabaseCatalog.this) {
+                    SQLiteDatabase db = getWritableDatabase();
+                    long sourceVersion = survey.getDataVersion();
+                    for (String building : refreshed) {
+                        try {
+                            long shardId = getShardId(db, building);
+                            // a split might have written it already
+                            if (shardId == -1 || !getShardById(shardId).hasChangeListeners() ||
+                                    getSourceVersion(db, building) == sourceVersion) {
+                                continue;
+                            }
+                            writeShard(survey, building);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Failed to refresh the shard of " + building, e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as detectBuilding() but the building and its shard are read in the background, on the
+     * thread of the splits. Every read of the catalog holds its lock anyway, thus the detection
+     * would wait for a running split on any other thread too.
+     * @param scanResults   - not modified, but must not be changed until the listener is called
+     * @param listener
+     */
+    public void detectBuildingAsync(final List<ScanResult> scanResults, final OnBuildingDetectedListener listener) {
+        splitExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String building = null;
+                IndoorDatabaseHelper shard = null;
+                try {
+                    building = detectBuilding(scanResults);
+                    shard = building == null ? null : getShard(building);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to detect the building", e);
+                }
+                final String detected = building;
+                final IndoorDatabaseHelper detectedShard = shard;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onBuildingDetected(detected, detectedShard);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Same as getBuildingSummaries() but read in the background, on the thread of the splits.
+     * @param listener
+     */
+    public void getBuildingSummariesAsync(OnCatalogReadListener<List<BuildingSummary>> listener) {
+        readInBackground(new Callable<List<BuildingSummary>>() {
+            @Override
+            public List<BuildingSummary> call() {
+                return getBuildingSummaries();
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as exportShard() but the file is copied in the background, on the thread of the splits,
+     * thus after the split which is queued already.
+     * @param building
+     * @param exportPath
+     * @param listener  - receives false if the building has no shard, null if the copy failed
+     */
+    public void exportShardAsync(final String building, final String exportPath,
+                                 OnCatalogReadListener<Boolean> listener) {
+        readInBackground(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return exportShard(building, exportPath);
+            }
+        }, listener);
+    }
+
+    /**
+     * Runs the read on the thread of the splits and passes its result to the listener on the main thread.
+     * @param read
+     * @param listener
+     * @param <T>
+     */
+    private <T> void readInBackground(final Callable<T> read, final OnCatalogReadListener<T> listener) {
+        splitExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                try {
+                    result = read.call();
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to read the catalog", e);
+                }
+                final T loaded = result;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCatalogRead(loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Makes the file of a building shard, e.g. to pass a single building to another device.
+     * @param building
+     * @param exportPath
+     * @return false if the building has no shard
+     * @throws IOException
+     */
+    public boolean exportShard(String building, String exportPath) throws IOException {
+        IndoorDatabaseHelper shard = getShard(building);
+        return shard != null && shard.exportDatabase(exportPath);
+    }
+
+    /**
+     * Imports the file of a building shard (or any database of the building). The survey stays
+     * the database everything is collected into, thus the file is merged into it first on the
+     * writer thread of the survey and then the shard is written from it again in the background,
+     * with both the old and the imported locations.
+     * @param survey
+     * @param building
+     * @param importPath
+     * @param listener  - receives the number of merged signals or -1 if the import failed, on the main thread
+     */
+    public void importShardAsync(final IndoorDatabaseHelper survey, final String building, String importPath,
+                                 final IndoorDatabaseHelper.OnWriteFinishedListener<Integer> listener) {
+        survey.mergeDatabaseAsync(importPath, null, new IndoorDatabaseHelper.OnWriteFinishedListener<Integer>() {
+            @Override
+            public void onWriteFinished(final Integer merged) {
+                if (merged < 0) {
+                    listener.onWriteFinished(merged);
+                    return;
+                }
+                splitExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int result = merged;
+                        try {
+                            synchronized (DatabaseCatalog.this) {
+                                writeShard(survey, building);
+                            }
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Failed to write the shard of " + building, e);
+                            result = -1;
+                        }
+                        final int imported = result;
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onWriteFinished(imported);
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            public void onWriteFailed(Exception e) {
+                listener.onWriteFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of locations and samples of every building. The shards are attached to
+     * the catalog a few at a time and each group is read with a single UNION ALL query.
+     * @return
+     */
+    public synchronized List<BuildingSummary> getBuildingSummaries() {
+        SQLiteDatabase db = getWritableDatabase();
+        List<Long> shardIds = new ArrayList<>();
+        List<String> buildings = new ArrayList<>();
+        Cursor cursor = db.query(TABLE_SHARDS, new String[]{KEY_SHARD_ID, KEY_SHARD_BUILDING},
+                null, null, null, null, KEY_SHARD_BUILDING);
+        try {
+            while (cursor.moveToNext()) {
+                shardIds.add(cursor.getLong(0));
+                buildings.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<BuildingSummary> summaries = new ArrayList<>();
+        for (int from = 0; from < shardIds.size(); from += MAX_ATTACHED) {
+            int to = Math.min(from + MAX_ATTACHED, shardIds.size());
+            List<String> attached = new ArrayList<>();
+            try {
+                StringBuilder query = new StringBuilder();
+                for (int i = from; i < to; i++) {
+                    String schema = SHARD_SCHEMA + (i - from);
+                    attach(db, getShardById(shardIds.get(i)).getDatabasePath(), schema);
+                    attached.add(schema);
+                    if (i > from) {
+                        query.append(" UNION ALL ");
+                    }
+                    query.append("SELECT ?, * FROM (").append(IndoorDatabaseHelper.getSummaryQuery(schema)).append(')');
+                }
+                cursor = db.rawQuery(query.toString(), buildings.subList(from, to).toArray(new String[to - from]));
+                try {
+                    while (cursor.moveToNext()) {
+                        BuildingSummary summary = new BuildingSummary();
+                        summary.building = cursor.getString(0);
+                        summary.locationCount = cursor.getLong(1);
+                        summary.sampleCount = cursor.getLong(2);
+                        summaries.add(summary);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } catch (Exception e) {
+                Log.d(TAG, "Error while trying to get building summaries");
+            } finally {
+                for (String schema : attached) {
+                    detach(db, schema);
+                }
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Writes the shard of the building from the survey, together with its routers in the catalog.
+     * The building is copied into a new file next to the shard, which then replaces the shard by
+     * renaming it. A transaction over several attached files isn't atomic once one of them uses
+     * write-ahead logging, while the rename is, thus the shard is either the old one or the new one.
+     *
+     * The shard is stamped with the data version read in the same transaction as the copy, thus
+     * the stamp matches exactly what was copied, even if the survey was written meanwhile. The stamp
+     * and the routers are written only after the rename: if the app is stopped in between, the
+     * catalog still has the old version and the next split simply writes the shard again.
+     * @param survey
+     * @param building
+     */
+    private void writeShard(IndoorDatabaseHelper survey, String building) {
+        SQLiteDatabase db = getWritableDatabase();
+        long shardId = getOrInsertShardId(db, building);
+        IndoorDatabaseHelper shard = getShardById(shardId);
+
+        // Opening the survey through its helper creates (or upgrades) it first
+        String surveyPath = survey.getDatabasePath();
+        File shardFile = context.getDatabasePath(SHARD_NAME_PREFIX + shardId + SHARD_NAME_SUFFIX);
+        File newFile = null;
+        boolean isReplaced = false;
+        long sourceVersion;
+        List<String> bssids = new ArrayList<>();
+        try {
+            // in the same directory, a rename can't move the file anywhere else
+            newFile = File.createTempFile(shardFile.getName(), ".tmp", shardFile.getParentFile());
+            shard.createEmpty(newFile);
+
+            attach(db, surveyPath, SURVEY_SCHEMA);
+            try {
+                attach(db, newFile.getPath(), SHARD_SCHEMA);
+                try {
+                    db.beginTransaction();
+                    try {
+                        IndoorDatabaseHelper.copyBuilding(db, SURVEY_SCHEMA, SHARD_SCHEMA, building);
+                        SQLiteStatement selectVersion = db.compileStatement(
+                                IndoorDatabaseHelper.getDataVersionQuery(SURVEY_SCHEMA));
+                        try {
+                            sourceVersion = selectVersion.simpleQueryForLong();
+                        } finally {
+                            selectVersion.close();
+                        }
+
+                        // Routers of the shard, used to tell the building
+                        Cursor cursor = db.rawQuery(IndoorDatabaseHelper.getBssidQuery(SHARD_SCHEMA), null);
+                        try {
+                            while (cursor.moveToNext()) {
+                                bssids.add(cursor.getString(0));
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } finally {
+                    detach(db, SHARD_SCHEMA);
+                }
+            } finally {
+                detach(db, SURVEY_SCHEMA);
+            }
+
+            // Closes the shard's connections, its listeners are told to reload
+            shard.replaceWith(newFile);
+            isReplaced = true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write the shard of " + building, e);
+        } finally {
+            if (newFile != null && !isReplaced) {
+                newFile.delete();
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_SHARD_ROUTERS, KEY_ROUTER_SHARD_ID_FK + " = ?", new String[]{String.valueOf(shardId)});
+            SQLiteStatement insertRouter = db.compileStatement(String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)",
+                    TABLE_SHARD_ROUTERS, KEY_ROUTER_BSSID, KEY_ROUTER_SHARD_ID_FK));
+            try {
+                for (String bssid : bssids) {
+                    insertRouter.bindString(1, bssid);
+                    insertRouter.bindLong(2, shardId);
+                    insertRouter.executeInsert();
+                }
+            } finally {
+                insertRouter.close();
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(KEY_SHARD_SOURCE_VERSION, sourceVersion);
+            db.update(TABLE_SHARDS, values, KEY_SHARD_ID + " = ?", new String[]{String.valueOf(shardId)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param db
+     * @param building
+     * @return id of the shard or -1 if the building has none
+     */
+    private long getShardId(SQLiteDatabase db, String building) {
+        Cursor cursor = db.query(TABLE_SHARDS, new String[]{KEY_SHARD_ID}, KEY_SHARD_BUILDING + " = ?",
+                new String[]{building}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param db
+     * @param building
+     * @return id of the shard, which is added to the catalog if the building had none
+     */
+    private long getOrInsertShardId(SQLiteDatabase db, String building) {
+        long shardId = getShardId(db, building);
+        if (shardId == -1) {
+            ContentValues values = new ContentValues();
+            values.put(KEY_SHARD_BUILDING, building);
+            shardId = db.insertOrThrow(TABLE_SHARDS, null, values);
+        }
+        return shardId;
+    }
+
+    /**
+     * @param db
+     * @param building
+     * @return data version of the survey the shard was written from, -1 if it has none yet
+     */
+    private long getSourceVersion(SQLiteDatabase db, String building) {
+        Cursor cursor = db.query(TABLE_SHARDS, new String[]{KEY_SHARD_SOURCE_VERSION}, KEY_SHARD_BUILDING + " = ?",
+                new String[]{building}, null, null, null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param shardId
+     * @return helper of the shard's database
+     */
+    private IndoorDatabaseHelper getShardById(long shardId) {
+        return IndoorDatabaseHelper.getInstance(context, SHARD_NAME_PREFIX + shardId + SHARD_NAME_SUFFIX);
+    }
+
+    private static void attach(SQLiteDatabase db, String path, String schema) {
+        db.execSQL("ATTACH DATABASE ? AS " + schema, new Object[]{path});
+    }
+
+    private void detach(SQLiteDatabase db, String schema) {
+        try {
+            db.execSQL("DETACH DATABASE " + schema);
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to detach " + schema);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Changes of the radio map made by a single committed transaction, published by IndoorDatabaseHelper
+ * to its OnDatabaseChangedListeners. Subscribers (e.g. the radio map held in memory) can update
+ * only the affected locations instead of reloading everything.
+ *
+ * Signals which were added are passed one by one. Deletes are passed per location, every signal
+ * and statistics of a deleted location is gone with it. Locations whose room was changed are
+ * passed as updated. Changes which are too large to be passed this way (import, merge, delete of
+ * everything) only set isReset, subscribers then have to reload.
+ */
+public class DatabaseChange {
+    /**
+     * A single signal which was added to a location.
+     */
+    public static class SignalDelta {
+        public final long locationId;           // Id of the location in the database
+        public final IndoorLocation location;
+        public final int accessPointId;         // Id of the router (AccessPointDictionary.UNKNOWN without a bssid)
+        public final String bssid;
+        public final double level;              // RSSI signal level in dBm
+
+        public SignalDelta(long locationId, IndoorLocation location, int accessPointId, String bssid, double level) {
+            this.locationId = locationId;
+            this.location = location;
+            this.accessPointId = accessPointId;
+            this.bssid = bssid;
+            this.level = level;
+        }
+    }
+
+    public final long dataVersion;                      // IndoorDatabaseHelper.getDataVersion() after the change
+    public final List<SignalDelta> insertedSignals;     // Added signals
+    public final List<SampledLocation> updatedLocations;  // Locations with a new room (sampleCount is not filled in)
+    public final List<SampledLocation> deletedLocations;  // Deleted locations (sampleCount is not filled in)
+    public final boolean isReset;                       // Everything might have changed
+
+    /**
+     * Constructor, use the static functions instead.
+     * @param dataVersion
+     * @param insertedSignals
+     * @param updatedLocations
+     * @param deletedLocations
+     * @param isReset
+     */
+    private DatabaseChange(long dataVersion, List<SignalDelta> insertedSignals, List<SampledLocation> updatedLocations,
+                           List<SampledLocation> deletedLocations, boolean isReset) {
+        this.dataVersion = dataVersion;
+        this.insertedSignals = Collections.unmodifiableList(insertedSignals);
+        this.updatedLocations = Collections.unmodifiableList(updatedLocations);
+        this.deletedLocations = Collections.unmodifiableList(deletedLocations);
+        this.isReset = isReset;
+    }
+
+    static DatabaseChange inserted(long dataVersion, List<SignalDelta> insertedSignals) {
+        return new DatabaseChange(dataVersion, insertedSignals, Collections.<SampledLocation>emptyList(),
+                Collections.<SampledLocation>emptyList(), false);
+    }
+
+    static DatabaseChange updated(long dataVersion, List<SampledLocation> updatedLocations) {
+        return new DatabaseChange(dataVersion, Collections.<SignalDelta>emptyList(), updatedLocations,
+                Collections.<SampledLocation>emptyList(), false);
+    }
+
+    static DatabaseChange deleted(long dataVersion, List<SampledLocation> deletedLocations) {
+        return new DatabaseChange(dataVersion, Collections.<SignalDelta>emptyList(),
+                Collections.<SampledLocation>emptyList(), deletedLocations, false);
+    }
+
+    static DatabaseChange reset(long dataVersion) {
+        return new DatabaseChange(dataVersion, Collections.<SignalDelta>emptyList(),
+                Collections.<SampledLocation>emptyList(), Collections.<SampledLocation>emptyList(), true);
+    }
+}
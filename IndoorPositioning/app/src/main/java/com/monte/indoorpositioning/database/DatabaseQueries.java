@@ -0,0 +1,602 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Asynchronous queries of the IndoorDatabaseHelper. Every query runs on a background thread and
+ * its result is passed to the listener on the main thread, thus the UI never waits for the database.
+ *
+ * Identical queries which are still running are not started again, the new request simply joins
+ * the running one and receives the same result (e.g. pressing the "DB" button twice). Every request
+ * can be cancelled, once all of the requests of a query are cancelled the query itself is stopped.
+ * An Activity should create its own instance and call cancelAll() in onPause().
+ */
+public class DatabaseQueries {
+    private static final String TAG = "DatabaseQueries";
+
+    // Reads don't block each other thanks to write-ahead logging, thus a couple of them can run at once
+    private static final ExecutorService queryExecutor = Executors.newFixedThreadPool(2);
+
+    private final IndoorDatabaseHelper databaseHelper;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Queries which are still running by their key. Guarded by "this".
+    private final Map<String, Query<?>> runningQueries = new HashMap<>();
+
+    // Number of rows passed to the main thread at once by the streaming queries
+    private static final int STREAM_BATCH_ROWS = 20;
+
+    /**
+     * Listener of a query, called on the main thread. Not called if the request was cancelled.
+     * @param <T> result of the query
+     */
+    public interface OnQueryFinishedListener<T> {
+        void onQueryFinished(T result);
+
+        /**
+         * Called instead of onQueryFinished() when the query threw.
+         * @param e
+         */
+        void onQueryFailed(Exception e);
+    }
+
+    /**
+     * Listener of a streaming query, called on the main thread with every batch of rows as soon
+     * as it is read. Not called any more once the request was cancelled.
+     * @param <T> a single row
+     */
+    public interface OnRowsLoadedListener<T> {
+        void onRowsLoaded(List<T> rows);
+    }
+
+    /**
+     * The part of a query which is run on the background thread.
+     * @param <T>
+     */
+    private interface QueryFunction<T> {
+        T run(CancellationSignal cancellationSignal) throws Exception;
+    }
+
+    /**
+     * A single request of a query. Several requests can share the same running query.
+     * @param <T>
+     */
+    public class Request<T> {
+        private final Query<T> query;
+        private final OnQueryFinishedListener<T> listener;
+        private volatile boolean isCancelled = false;
+
+        private Request(Query<T> query, OnQueryFinishedListener<T> listener) {
+            this.query = query;
+            this.listener = listener;
+        }
+
+        /**
+         * The listener won't be called. If no other request is waiting for the query, it is stopped.
+         */
+        public void cancel() {
+            synchronized (DatabaseQueries.this) {
+                if (isCancelled) {
+                    return;
+                }
+                isCancelled = true;
+                query.requests.remove(this);
+                if (query.requests.isEmpty()) {
+                    query.cancel();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+
+        /**
+         * Waits for the result. Must not be called on the main thread.
+         * @return
+         * @throws InterruptedException
+         * @throws ExecutionException   - also if the query was cancelled
+         */
+        public T get() throws InterruptedException, ExecutionException {
+            try {
+                return query.task.get();
+            } catch (CancellationException e) {
+                throw new ExecutionException(e);
+            }
+        }
+    }
+
+    /**
+     * A query running on the background thread and the requests waiting for it.
+     * @param <T>
+     */
+    private class Query<T> {
+        final String key;
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final List<Request<T>> requests = new ArrayList<>();    // Guarded by DatabaseQueries.this
+        final FutureTask<T> task;
+        final RowStream<?> stream;                              // rows of a streaming query, otherwise null
+
+        Query(String key, final QueryFunction<T> function, RowStream<?> stream) {
+            this.key = key;
+            this.stream = stream;
+            task = new FutureTask<T>(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return function.run(cancellationSignal);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    finish();
+                }
+            };
+        }
+
+        /**
+         * Stops the query, the database stops reading as soon as possible. Called with the lock held.
+         */
+        void cancel() {
+            if (runningQueries.get(key) == this) {
+                runningQueries.remove(key);
+            }
+            cancellationSignal.cancel();
+            task.cancel(false);
+        }
+
+        /**
+         * Called on the background thread when the query finished, failed or was cancelled.
+         */
+        private void finish() {
+            final List<Request<T>> waiting;
+            synchronized (DatabaseQueries.this) {
+                if (runningQueries.get(key) == this) {
+                    runningQueries.remove(key);
+                }
+                waiting = new ArrayList<>(requests);
+            }
+            if (task.isCancelled()) {
+                return;
+            }
+            final T result;
+            try {
+                result = task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(TAG, "Query " + key + " failed", e);
+                // the exception of the query rather than the wrapper of the future
+                final Exception failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Request<T> request : waiting) {
+                            if (!request.isCancelled()) {
+                                request.listener.onQueryFailed(failure);
+                            }
+                        }
+                    }
+                });
+                return;
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Request<T> request : waiting) {
+                        // the request might have been cancelled in the meantime
+                        if (!request.isCancelled()) {
+                            request.listener.onQueryFinished(result);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Rows of a streaming query. Every batch is passed to all of the requests of the query, and a
+     * request which joins the running query first receives the rows streamed before it at once.
+     * The rows are kept until the query finishes, the caller keeps them anyway (e.g. as markers).
+     * @param <R> a single row
+     */
+    private class RowStream<R> {
+        // Guarded by DatabaseQueries.this
+        private final List<R> streamed = new ArrayList<>();
+        private final Map<Request<?>, OnRowsLoadedListener<R>> listeners = new HashMap<>();
+
+        /**
+         * Adds the request to the stream, called with the lock held.
+         * @param request
+         * @param rowsListener
+         */
+        void join(final Request<?> request, final OnRowsLoadedListener<R> rowsListener) {
+            listeners.put(request, rowsListener);
+            if (streamed.isEmpty()) {
+                return;
+            }
+            // the batches are posted in order, thus the replay comes before the next batch
+            final List<R> replay = new ArrayList<>(streamed);
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!request.isCancelled()) {
+                        rowsListener.onRowsLoaded(replay);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Passes a batch of rows to the main thread, called on the background thread.
+         * @param rows
+         */
+        void post(final List<R> rows) {
+            if (rows.isEmpty()) {
+                return;
+            }
+            final Map<Request<?>, OnRowsLoadedListener<R>> receivers;
+            synchronized (DatabaseQueries.this) {
+                // a request which joins after this gets the rows from the replay instead
+                streamed.addAll(rows);
+                receivers = new HashMap<>(listeners);
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Map.Entry<Request<?>, OnRowsLoadedListener<R>> receiver : receivers.entrySet()) {
+                        // the request might have been cancelled in the meantime
+                        if (!receiver.getKey().isCancelled()) {
+                            receiver.getValue().onRowsLoaded(rows);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param databaseHelper
+     */
+    public DatabaseQueries(IndoorDatabaseHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+    }
+
+    /**
+     * Starts the query or joins the identical one which is already running.
+     * @param key       - identifies the query together with its arguments
+     * @param function
+     * @param listener
+     * @param <T>
+     * @return
+     */
+    private <T> Request<T> submit(String key, QueryFunction<T> function, OnQueryFinishedListener<T> listener) {
+        return submit(key, function, null, listener);
+    }
+
+    /**
+     * Same as submit() but the query streams its rows too.
+     * @param key
+     * @param function
+     * @param stream        - stream of the function, used only if the query is not running yet
+     * @param listener
+     * @param <T>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized <T> Request<T> submit(String key, QueryFunction<T> function, RowStream<?> stream,
+                                               OnQueryFinishedListener<T> listener) {
+        Query<T> query = (Query<T>) runningQueries.get(key);
+        boolean isNew = query == null;
+        if (isNew) {
+            query = new Query<>(key, function, stream);
+            runningQueries.put(key, query);
+        }
+        Request<T> request = new Request<>(query, listener);
+        query.requests.add(request);
+        if (isNew) {
+            queryExecutor.execute(query.task);
+        }
+        return request;
+    }
+
+    /**
+     * Cancels every request made through this instance, e.g. when the Activity is paused.
+     */
+    public void cancelAll() {
+        List<Request<?>> requests = new ArrayList<>();
+        synchronized (this) {
+            for (Query<?> query : runningQueries.values()) {
+                requests.addAll(query.requests);
+            }
+        }
+        for (Request<?> request : requests) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getProcessedSignals().
+     * @param listener
+     * @return
+     */
+    public Request<Map<IndoorLocation, List<ProcessedSignal>>> getProcessedSignals(
+            OnQueryFinishedListener<Map<IndoorLocation, List<ProcessedSignal>>> listener) {
+        return submit("processedSignals", new QueryFunction<Map<IndoorLocation, List<ProcessedSignal>>>() {
+            @Override
+            public Map<IndoorLocation, List<ProcessedSignal>> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getProcessedSignals(cancellationSignal);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getProcessedSignals(floor).
+     * @param floor
+     * @param listener
+     * @return
+     */
+    public Request<Map<IndoorLocation, List<ProcessedSignal>>> getProcessedSignals(final long floor,
+            OnQueryFinishedListener<Map<IndoorLocation, List<ProcessedSignal>>> listener) {
+        return submit("processedSignals/" + floor, new QueryFunction<Map<IndoorLocation, List<ProcessedSignal>>>() {
+            @Override
+            public Map<IndoorLocation, List<ProcessedSignal>> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getProcessedSignals(floor, cancellationSignal);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getProcessedFromAllSignals().
+     * @param listener
+     * @return
+     */
+    public Request<Map<IndoorLocation, List<ProcessedSignal>>> getProcessedFromAllSignals(
+            OnQueryFinishedListener<Map<IndoorLocation, List<ProcessedSignal>>> listener) {
+        return submit("processedFromAllSignals", new QueryFunction<Map<IndoorLocation, List<ProcessedSignal>>>() {
+            @Override
+            public Map<IndoorLocation, List<ProcessedSignal>> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getProcessedFromAllSignals(cancellationSignal);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getAllSignals().
+     * @param listener
+     * @return
+     */
+    public Request<List<IndoorSignal>> getAllSignals(OnQueryFinishedListener<List<IndoorSignal>> listener) {
+        return submit("allSignals", new QueryFunction<List<IndoorSignal>>() {
+            @Override
+            public List<IndoorSignal> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getAllSignals(cancellationSignal);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getDataVersion().
+     * @param listener
+     * @return
+     */
+    public Request<Long> getDataVersion(OnQueryFinishedListener<Long> listener) {
+        return submit("dataVersion", new QueryFunction<Long>() {
+            @Override
+            public Long run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getDataVersion();
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getSignalSummary().
+     * @param location
+     * @param listener
+     * @return
+     */
+    public Request<List<SignalSummary>> getSignalSummary(final IndoorLocation location,
+                                                         OnQueryFinishedListener<List<SignalSummary>> listener) {
+        return submit("signalSummary/" + location.lat + "/" + location.lng + "/" + location.floor,
+                new QueryFunction<List<SignalSummary>>() {
+            @Override
+            public List<SignalSummary> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getSignalSummary(location, cancellationSignal);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getLocationsInBox().
+     * @param floor
+     * @param lat1
+     * @param lng1
+     * @param lat2
+     * @param lng2
+     * @param listener
+     * @return
+     */
+    public Request<List<SampledLocation>> getLocationsInBox(final long floor, final double lat1, final double lng1,
+                                                            final double lat2, final double lng2,
+                                                            OnQueryFinishedListener<List<SampledLocation>> listener) {
+        return submit("locationsInBox/" + floor + "/" + lat1 + "/" + lng1 + "/" + lat2 + "/" + lng2,
+                new QueryFunction<List<SampledLocation>>() {
+            @Override
+            public List<SampledLocation> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getLocationsInBox(floor, lat1, lng1, lat2, lng2, cancellationSignal);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getLocationsWithin().
+     * @param floor
+     * @param lat
+     * @param lng
+     * @param radius    - in metres
+     * @param listener
+     * @return
+     */
+    public Request<List<SampledLocation>> getLocationsWithin(final long floor, final double lat, final double lng,
+                                                             final double radius,
+                                                             OnQueryFinishedListener<List<SampledLocation>> listener) {
+        return submit("locationsWithin/" + floor + "/" + lat + "/" + lng + "/" + radius,
+                new QueryFunction<List<SampledLocation>>() {
+            @Override
+            public List<SampledLocation> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getLocationsWithin(floor, lat, lng, radius, cancellationSignal);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getAccessPointPriors().
+     * @param listener
+     * @return
+     */
+    public Request<Map<Integer, AccessPointPrior>> getAccessPointPriors(
+            OnQueryFinishedListener<Map<Integer, AccessPointPrior>> listener) {
+        return submit("accessPointPriors", new QueryFunction<Map<Integer, AccessPointPrior>>() {
+            @Override
+            public Map<Integer, AccessPointPrior> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getAccessPointPriors();
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.getBuildings().
+     * @param listener
+     * @return
+     */
+    public Request<List<String>> getBuildings(OnQueryFinishedListener<List<String>> listener) {
+        return submit("buildings", new QueryFunction<List<String>>() {
+            @Override
+            public List<String> run(CancellationSignal cancellationSignal) {
+                return databaseHelper.getBuildings();
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.exportRadioMapSnapshot(). Like any other request it is cancelled by
+     * cancelAll(), an export which already started is finished anyway but isn't reported.
+     * @param exportPath
+     * @param listener  - receives false if the radio map kept changing, onQueryFailed() if the file
+     *                  couldn't be written
+     * @return
+     */
+    public Request<Boolean> exportRadioMapSnapshot(final String exportPath, OnQueryFinishedListener<Boolean> listener) {
+        return submit("export/" + exportPath, new QueryFunction<Boolean>() {
+            @Override
+            public Boolean run(CancellationSignal cancellationSignal) throws IOException {
+                return databaseHelper.exportRadioMapSnapshot(exportPath);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.exportRadioMapArchive() and exportRadioMapSnapshot() above.
+     * @param exportPath
+     * @param listener
+     * @return
+     */
+    public Request<Boolean> exportRadioMapArchive(final String exportPath, OnQueryFinishedListener<Boolean> listener) {
+        return submit("export/" + exportPath, new QueryFunction<Boolean>() {
+            @Override
+            public Boolean run(CancellationSignal cancellationSignal) throws IOException {
+                return databaseHelper.exportRadioMapArchive(exportPath);
+            }
+        }, listener);
+    }
+
+    /**
+     * See IndoorDatabaseHelper.exportDatabase() and exportRadioMapSnapshot() above.
+     * @param exportPath
+     * @param listener
+     * @return
+     */
+    public Request<Boolean> exportDatabase(final String exportPath, OnQueryFinishedListener<Boolean> listener) {
+        return submit("export/" + exportPath, new QueryFunction<Boolean>() {
+            @Override
+            public Boolean run(CancellationSignal cancellationSignal) throws IOException {
+                return databaseHelper.exportDatabase(exportPath);
+            }
+        }, listener);
+    }
+
+    /**
+     * Streams the locations of the floor, see IndoorDatabaseHelper.forEachLocation(). Rows are
+     * passed to the rowsListener in small batches while the cursor is still being read, e.g. to
+     * put the markers on the map straight away. A request which joins a running query of the same
+     * floor first receives the rows streamed before it, then the rest of the batches.
+     * @param floor
+     * @param rowsListener
+     * @param listener      - receives the total number of locations after the last batch
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Request<Integer> getLocations(final long floor, OnRowsLoadedListener<SampledLocation> rowsListener,
+                                                      OnQueryFinishedListener<Integer> listener) {
+        // only used if no query of the floor is running
+        final RowStream<SampledLocation> stream = new RowStream<>();
+        Request<Integer> request = submit("locations/" + floor, new QueryFunction<Integer>() {
+            @Override
+            public Integer run(final CancellationSignal cancellationSignal) {
+                final List<SampledLocation> batch = new ArrayList<>(STREAM_BATCH_ROWS);
+                final int[] total = new int[1];
+                databaseHelper.forEachLocation(floor, new IndoorDatabaseHelper.LocationVisitor() {
+                    @Override
+                    public void onLocation(SampledLocation location) {
+                        batch.add(location);
+                        total[0]++;
+                        if (batch.size() == STREAM_BATCH_ROWS) {
+                            stream.post(new ArrayList<>(batch));
+                            batch.clear();
+                        }
+                    }
+                }, cancellationSignal);
+                stream.post(batch);
+                return total[0];
+            }
+        }, stream, listener);
+        // the stream of the running query, which might be an earlier one
+        ((RowStream<SampledLocation>) request.query.stream).join(request, rowsListener);
+        return request;
+    }
+}
@@ -0,0 +1,158 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+/**
+ * GridCell splits the map into cells of CELL_SIZE degrees, about 11 metres north to south. A cell
+ * is a single number made of its row (latitude) and column (longitude), thus the cells of one row
+ * are a range of numbers and a box on the map is a few ranges, one per row. The database keeps the
+ * cell of every location in an indexed column, see IndoorDatabaseHelper.getLocationsInBox().
+ *
+ * Also has the planar approximations of distances used within a building, where the curvature
+ * of the earth doesn't matter.
+ */
+public final class GridCell {
+    public static final double CELL_SIZE = 0.0001;              // size of a cell in degrees
+    private static final int COLUMN_BITS = 22;                  // 360 / CELL_SIZE columns fit into 22 bits
+    private static final double METERS_PER_DEGREE = 111320;     // length of a degree of latitude in metres
+
+    private GridCell() {
+    }
+
+    /**
+     * @param lat
+     * @return row of the cells at the latitude
+     */
+    public static long row(double lat) {
+        // shifted so it's never negative, thus the cast rounds down the same way as in SQL
+        return (long) ((lat + 90) / CELL_SIZE);
+    }
+
+    /**
+     * @param lng
+     * @return column of the cells at the longitude
+     */
+    public static long column(double lng) {
+        return (long) ((lng + 180) / CELL_SIZE);
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return number of the cell
+     */
+    public static long of(long row, long column) {
+        return (row << COLUMN_BITS) | column;
+    }
+
+    /**
+     * @param lat
+     * @param lng
+     * @return number of the cell the point is in
+     */
+    public static long of(double lat, double lng) {
+        return of(row(lat), column(lng));
+    }
+
+    /**
+     * @param cell
+     * @return row of the cell
+     */
+    public static long rowOf(long cell) {
+        return cell >> COLUMN_BITS;
+    }
+
+    /**
+     * @param cell
+     * @return column of the cell
+     */
+    public static long columnOf(long cell) {
+        return cell & ((1L << COLUMN_BITS) - 1);
+    }
+
+    /**
+     * The same as of(lat, lng) in SQL, computed exactly the same way.
+     * @param lat   - expression of the latitude
+     * @param lng   - expression of the longitude
+     * @return
+     */
+    static String sqlOf(String lat, String lng) {
+        return String.format("((CAST((%1$s + 90) / %3$s AS INTEGER) << %5$d) | CAST((%2$s + 180) / %4$s AS INTEGER))",
+                lat, lng, String.valueOf(CELL_SIZE), String.valueOf(CELL_SIZE), COLUMN_BITS);
+    }
+
+    /**
+     * @param meters
+     * @return degrees of latitude which are the given distance long
+     */
+    public static double latitudeDegrees(double meters) {
+        return meters / METERS_PER_DEGREE;
+    }
+
+    /**
+     * @param meters
+     * @param lat   - latitude where the distance is measured, degrees of longitude shrink towards the poles
+     * @return degrees of longitude which are the given distance long
+     */
+    public static double longitudeDegrees(double meters, double lat) {
+        return meters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+    }
+
+    /**
+     * @param lat
+     * @param originLat
+     * @return metres the latitude is north of the origin (negative if south)
+     */
+    public static double northOf(double lat, double originLat) {
+        return (lat - originLat) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * @param lng
+     * @param originLng
+     * @param originLat - latitude the metres are measured at. Points a kilometre north or south of
+     *                  it get another couple of decimetres of error per kilometre east
+     * @return metres the longitude is east of the origin (negative if west)
+     */
+    public static double eastOf(double lng, double originLng, double originLat) {
+        return (lng - originLng) * METERS_PER_DEGREE * Math.cos(Math.toRadians(originLat));
+    }
+
+    /**
+     * Distance between two points of a building in metres. The earth is treated as flat around
+     * them and every degree of latitude as METERS_PER_DEGREE long, while on the ellipsoid it is
+     * from 110574 m at the equator to 111694 m at the poles. In Edinburgh that is off by about
+     * 2 decimetres per kilometre, well below the accuracy of wifi positioning, but the distances
+     * shouldn't be used beyond the size of a campus.
+     * @param lat1
+     * @param lng1
+     * @param lat2
+     * @param lng2
+     * @return
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double north = (lat2 - lat1) * METERS_PER_DEGREE;
+        double east = (lng2 - lng1) * METERS_PER_DEGREE * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        return Math.sqrt(north * north + east * east);
+    }
+}
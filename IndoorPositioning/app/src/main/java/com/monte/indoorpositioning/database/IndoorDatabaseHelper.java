@@ -26,7 +26,14 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.wifi.ScanResult;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
 import java.io.File;
@@ -35,7 +42,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by monte on 23/03/2017.
@@ -51,28 +67,74 @@ import java.util.List;
  * ...
  *
  * IndoorSignals Database columns:
- * | SIGNAL ID | REFERENCED LOCATION ID | TIMESTAMP | BSSID | SSID | LEVEL |
- * |     1     |           23           | 1491131077|ad:ds..|cent..| -64   |
+ * | SIGNAL ID | REFERENCED LOCATION ID | TIMESTAMP | REFERENCED ACCESS POINT ID | LEVEL |
+ * |     1     |           23           | 1491131077|              7             | -64   |
  * ...
  *
  * IndoorSignal is always referencing an Indoor Location database to see where it belongs to in
  * REFERENCED LOCATION ID column.
+ *
+ * Since version 2 a location is unique by its (LATITUDE, LONGITUDE, FLOOR), the REFERENCED LOCATION ID
+ * column is indexed and deleting a location deletes all of its signals (ON DELETE CASCADE).
+ *
+ * IndoorSignalStatistics Database columns (since version 3, one row per location and router):
+ * | REFERENCED LOCATION ID | REFERENCED ACCESS POINT ID | COUNT | SUM | SUM OF SQUARES | MIN | MAX | MEDIAN | HISTOGRAM |
+ * |           23           |              7             |  30   |-1920|     122880     | -68 | -61 |  -64   |  (blob)   |
+ * ...
+ *
+ * The statistics are updated in the same transaction in which signals are added, thus positioning
+ * only needs to read them instead of processing every collected signal.
+ *
+ * AccessPoints Database columns (since version 5, one row per router):
+ * | ACCESS POINT ID | BSSID | SSID |
+ * |        7        |ad:ds..|cent..|
+ * ...
+ *
+ * Until version 5 every signal and statistics row repeated the BSSID and SSID strings, now they only
+ * reference the router by its integer id, which is also what positioning compares signals by.
+ *
+ * AccessPointStatistics Database columns (since version 6, one row per router):
+ * | REFERENCED ACCESS POINT ID | LOCATION COUNT | SAMPLE COUNT |  SUM  | SUM OF SQUARES | LAST SEEN |
+ * |              7             |       41       |     1230     |-78720 |    5046000     | 1491131077|
+ * ...
+ *
+ * It sums up the statistics of the router over every location. Triggers on the statistics and
+ * signals tables keep it up to date, whichever way they are written (scans, merges, deletes, the
+ * cascades of deleted locations), thus the totals of every router are read with one small query.
+ *
+ * The database uses write-ahead logging. Writes from the UI should use the *Async functions, which
+ * run one after another on a single writer thread, while reads on other threads keep going.
+ *
+ * Since version 7 every location also has the GRID CELL its coordinates are in (see GridCell), set
+ * by triggers. The floor index covers (FLOOR, GRID CELL), thus the locations within a box or a radius
+ * are looked up through the index, see getLocationsInBox() and getLocationsWithin().
+ *
+ * Since version 8 a single row DataVersion table holds the VERSION of the data, which triggers on the
+ * locations, signals and statistics tables increment with every change, see getDataVersion().
+ *
+ * Besides the survey database returned by getInstance(), which everything is collected into, every
+ * building can have its own database (shard) of the same structure, see DatabaseCatalog.
  */
-public class IndoorDatabaseHelper extends SQLiteOpenHelper {
+public class IndoorDatabaseHelper extends SQLiteOpenHelper implements RadioMapSource {
     // Database Info. Name of the database
 //    private static final String DATABASE_NAME = "FleemingJenkins.db";
-    private static String DATABASE_NAME = "testing4.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final String DATABASE_NAME = "testing4.db";
+    private static final int DATABASE_VERSION = 8;
 
     // Table Names
     private static final String TABLE_INDOOR_SIGNALS = "indoorSignals";
     private static final String TABLE_INDOOR_LOCATIONS = "indoorLocations";
+    private static final String TABLE_SIGNAL_STATISTICS = "indoorSignalStatistics";
+    private static final String TABLE_ACCESS_POINTS = "accessPoints";
+    private static final String TABLE_ACCESS_POINT_STATISTICS = "accessPointStatistics";
+    private static final String TABLE_DATA_VERSION = "dataVersion";
 
     // Signals Table Columns
     private static final String KEY_SIGNAL_ID = "id";
     private static final String KEY_SIGNAL_LOCATION_ID_FK = "locationId";
     private static final String KEY_TIMESTAMP = "timestamp";
-    private static final String KEY_BSSID = "bssid";
+    private static final String KEY_SIGNAL_ACCESS_POINT_ID_FK = "accessPointId";
+    private static final String KEY_BSSID = "bssid";        // signals had bssid and ssid columns until version 5
     private static final String KEY_SSID = "ssid";
     private static final String KEY_LEVEL = "level";
 
@@ -83,12 +145,171 @@ public class IndoorDatabaseHelper extends SQLiteOpenHelper {
     private static final String KEY_BUILDING = "building";
     private static final String KEY_LAT = "lat";
     private static final String KEY_LNG = "lng";
+    private static final String KEY_CELL = "cell";          // grid cell of the location since version 7, see GridCell
+
+    // Access Points Table Columns
+    private static final String KEY_ACCESS_POINT_ID = "id";
+    private static final String KEY_AP_BSSID = "bssid";
+    private static final String KEY_AP_SSID = "ssid";
+
+    // Signal Statistics Table Columns (one row per location and router)
+    private static final String KEY_STATS_LOCATION_ID_FK = "locationId";
+    private static final String KEY_STATS_ACCESS_POINT_ID_FK = "accessPointId";
+    private static final String KEY_STATS_BSSID = "bssid";  // statistics had bssid and ssid columns until version 5
+    private static final String KEY_STATS_SSID = "ssid";
+    private static final String KEY_STATS_COUNT = "sampleCount";
+    private static final String KEY_STATS_SUM = "levelSum";
+    private static final String KEY_STATS_SUM_SQUARES = "levelSumSquares";
+    private static final String KEY_STATS_MIN = "minLevel";
+    private static final String KEY_STATS_MAX = "maxLevel";
+    private static final String KEY_STATS_MEDIAN = "medianLevel";
+    private static final String KEY_STATS_HISTOGRAM = "levelHistogram";
+
+    // Access Point Statistics Table Columns (one row per router)
+    private static final String KEY_AP_STATS_ACCESS_POINT_ID_FK = "accessPointId";
+    private static final String KEY_AP_STATS_LOCATION_COUNT = "locationCount";
+    private static final String KEY_AP_STATS_SAMPLE_COUNT = "sampleCount";
+    private static final String KEY_AP_STATS_SUM = "levelSum";
+    private static final String KEY_AP_STATS_SUM_SQUARES = "levelSumSquares";
+    private static final String KEY_AP_STATS_LAST_SEEN = "lastSeen";
+
+    // Data Version Table Columns
+    private static final String KEY_DATA_VERSION = "version";
+
+    // Index Names
+    private static final String INDEX_SIGNALS_LOCATION = "indoorSignalsLocationIndex";
+    private static final String INDEX_LOCATIONS_FLOOR = "indoorLocationsFloorIndex";
+
+    // Trigger Names
+    private static final String TRIGGER_STATISTICS_INSERT = "accessPointStatisticsInsert";
+    private static final String TRIGGER_STATISTICS_UPDATE = "accessPointStatisticsUpdate";
+    private static final String TRIGGER_STATISTICS_DELETE = "accessPointStatisticsDelete";
+    private static final String TRIGGER_SIGNALS_INSERT = "accessPointLastSeen";
+    private static final String TRIGGER_LOCATIONS_CELL_INSERT = "indoorLocationsCellInsert";
+    private static final String TRIGGER_LOCATIONS_CELL_UPDATE = "indoorLocationsCellUpdate";
+    private static final String TRIGGER_DATA_VERSION_PREFIX = "dataVersion";    // + table + operation
+
+    // Boxes over more grid rows are looked up as a single range of cells
+    private static final int MAX_BOX_ROWS = 64;
+
+    // Precompiled insert used when storing a whole wifi scan at once
+    private static final String INSERT_SIGNAL_STATEMENT = String.format(
+            "INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)",
+            TABLE_INDOOR_SIGNALS, KEY_SIGNAL_LOCATION_ID_FK, KEY_TIMESTAMP, KEY_SIGNAL_ACCESS_POINT_ID_FK, KEY_LEVEL);
+
+    // Precompiled lookup of the location id by its unique key
+    private static final String SELECT_LOCATION_ID_STATEMENT = String.format(
+            "SELECT %s FROM %s WHERE %s = ? AND %s = ? AND %s = ?",
+            KEY_LOCATION_ID, TABLE_INDOOR_LOCATIONS, KEY_LAT, KEY_LNG, KEY_FLOOR);
+
+    // Precompiled insert of a location which is skipped if the location already exists
+    private static final String INSERT_OR_IGNORE_LOCATION_STATEMENT = String.format(
+            "INSERT OR IGNORE INTO %s (%s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?)",
+            TABLE_INDOOR_LOCATIONS, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG);
+
+    // Precompiled statements used to keep the signal statistics up to date
+    private static final String INSERT_STATISTICS_STATEMENT = String.format(
+            "INSERT INTO %s (%s, %s, %s, %s, %s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+            TABLE_SIGNAL_STATISTICS, KEY_STATS_LOCATION_ID_FK, KEY_STATS_ACCESS_POINT_ID_FK, KEY_STATS_COUNT,
+            KEY_STATS_SUM, KEY_STATS_SUM_SQUARES, KEY_STATS_MIN, KEY_STATS_MAX, KEY_STATS_MEDIAN, KEY_STATS_HISTOGRAM);
+    private static final String UPDATE_STATISTICS_STATEMENT = String.format(
+            "UPDATE %s SET %s = ?, %s = ?, %s = ?, %s = ?, %s = ?, %s = ?, %s = ? WHERE %s = ? AND %s = ?",
+            TABLE_SIGNAL_STATISTICS, KEY_STATS_COUNT, KEY_STATS_SUM, KEY_STATS_SUM_SQUARES,
+            KEY_STATS_MIN, KEY_STATS_MAX, KEY_STATS_MEDIAN, KEY_STATS_HISTOGRAM,
+            KEY_STATS_LOCATION_ID_FK, KEY_STATS_ACCESS_POINT_ID_FK);
+
+    // Compaction looks up the last signal of the next batch of old signals, then deletes the batch.
+    // Signal ids may be reused afterwards, the data version doesn't depend on them (see getDataVersion())
+    private static final String SELECT_COMPACTION_BATCH_END_STATEMENT = String.format(
+            "SELECT IFNULL(MAX(%1$s), -1) FROM (SELECT %1$s FROM %2$s WHERE %1$s > ? AND %3$s < ? " +
+                    "ORDER BY %1$s LIMIT ?)",
+            KEY_SIGNAL_ID, TABLE_INDOOR_SIGNALS, KEY_TIMESTAMP);
+    private static final String DELETE_COMPACTION_BATCH_STATEMENT = String.format(
+            "DELETE FROM %1$s WHERE %2$s > ? AND %2$s <= ? AND %3$s < ?",
+            TABLE_INDOOR_SIGNALS, KEY_SIGNAL_ID, KEY_TIMESTAMP);
+
+    // Number of raw signals deleted in a single transaction by the compaction
+    private static final int COMPACTION_BATCH_SIZE = 500;
+    // Number of free pages given back to the file system in a single step of the incremental vacuum
+    private static final int VACUUM_BATCH_PAGES = 256;
+    // Times the radio map is read again by an export when it was changed while being read
+    private static final int MAX_EXPORT_ATTEMPTS = 3;
+
+    // Number of locations whose signals and statistics are merged in a single transaction when importing
+    private static final int MERGE_BATCH_LOCATIONS = 20;
+
+    // Older SQLite versions don't allow more arguments in a single statement
+    private static final int MAX_STATEMENT_ARGUMENTS = 999;
 
     // Tag for printing error Logs
     private final String TAG = "Database";
 
     // Instance of the class (singleton)
     private static IndoorDatabaseHelper sInstance;
+    // Instances of the building shards by their database name, see DatabaseCatalog
+    private static final Map<String, IndoorDatabaseHelper> sShardInstances = new HashMap<>();
+
+    // Only one compaction runs at a time
+    private final AtomicBoolean isCompacting = new AtomicBoolean(false);
+
+    // Every asynchronous write goes through this single thread, thus writes are done one after
+    // another in the order they were submitted and never block the UI thread. Thanks to write-ahead
+    // logging reads on other threads don't wait for them.
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    // Results of the asynchronous writes are delivered here
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Router ids by bssid, read from the access points table once
+    private final AccessPointDictionary accessPoints = new AccessPointDictionary(
+            TABLE_ACCESS_POINTS, KEY_ACCESS_POINT_ID, KEY_AP_BSSID, KEY_AP_SSID);
+
+    // Subscribers of the changes, called on the thread which did the write
+    private final List<OnDatabaseChangedListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Visitor which is called for every signal when streaming through the database.
+     */
+    public interface SignalVisitor {
+        void onSignal(long locationId, IndoorLocation location, int accessPointId, String bssid, String ssid,
+                      double level, long timestamp);
+    }
+
+    /**
+     * Visitor which is called for every location when streaming through the locations of a floor.
+     */
+    public interface LocationVisitor {
+        void onLocation(SampledLocation location);
+    }
+
+    /**
+     * Listener of the asynchronous writes. Called on the main thread after the write was committed,
+     * or after it failed and was rolled back.
+     * @param <T> result of the write, the same as the synchronous function returns
+     */
+    public interface OnWriteFinishedListener<T> {
+        void onWriteFinished(T result);
+
+        /**
+         * @param e - what the write threw, it's logged already
+         */
+        void onWriteFailed(Exception e);
+    }
+
+    /**
+     * Listener of the changes of the radio map. Called right after the transaction which made the
+     * change was committed, on the thread which did the write (usually the writer thread), thus it
+     * must only hand the change over to its own thread and return.
+     */
+    public interface OnDatabaseChangedListener {
+        void onDatabaseChanged(DatabaseChange change);
+    }
+
+    /**
+     * Progress of mergeDatabase().
+     */
+    public interface OnMergeProgressListener {
+        void onMergeProgress(int mergedLocations, int totalLocations);
+    }
 
     /**
      * Function to get the instance of the database.
@@ -100,17 +321,32 @@ public class IndoorDatabaseHelper extends SQLiteOpenHelper {
         // don't accidentally leak an Activity's context.
         // See this article for more information: http://bit.ly/6LRzfx
         if (sInstance == null) {
-            sInstance = new IndoorDatabaseHelper(context.getApplicationContext());
+            sInstance = new IndoorDatabaseHelper(context.getApplicationContext(), DATABASE_NAME);
         }
         return sInstance;
     }
 
+    /**
+     * Function to get the instance of a building shard, use DatabaseCatalog.getShard() instead.
+     * @param context
+     * @param databaseName  - file name of the shard
+     * @return
+     */
+    static synchronized IndoorDatabaseHelper getInstance(Context context, String databaseName) {
+        IndoorDatabaseHelper instance = sShardInstances.get(databaseName);
+        if (instance == null) {
+            instance = new IndoorDatabaseHelper(context.getApplicationContext(), databaseName);
+            sShardInstances.put(databaseName, instance);
+        }
+        return instance;
+    }
+
     /**
      * Constructor should be private to prevent direct instantiation.
      * Make a call to the static method "getInstance()" instead.
      */
-    private IndoorDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private IndoorDatabaseHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
     }
 
     // Called when the database connection is being configured.
@@ -119,6 +355,8 @@ public class IndoorDatabaseHelper extends SQLiteOpenHelper {
     public void onConfigure(SQLiteDatabase db) {
         super.onConfigure(db);
         db.setForeignKeyConstraintsEnabled(true);
+        // Readers see the last committed data and don't wait for the writer thread to finish
+        db.enableWriteAheadLogging();
     }
 
     // Called when the database is created for the FIRST time.
@@ -128,13 +366,21 @@ public class IndoorDatabaseHelper extends SQLiteOpenHelper {
         String CREATE_SIGNALS_TABLE = "CREATE TABLE " + TABLE_INDOOR_SIGNALS +
                 "(" +
                 KEY_SIGNAL_ID + " INTEGER PRIMARY KEY," +                                           // Define a primary key
-                KEY_SIGNAL_LOCATION_ID_FK + " INTEGER REFERENCES " + TABLE_INDOOR_LOCATIONS + "," + // Define a foreign key
+                KEY_SIGNAL_LOCATION_ID_FK + " INTEGER REFERENCES " + TABLE_INDOOR_LOCATIONS +       // Define a foreign key
+                " ON DELETE CASCADE," +                                                             // signals go with their location
                 KEY_TIMESTAMP + " INTEGER," +                                                       // ...
-                KEY_BSSID + " TEXT," +
-                KEY_SSID + " TEXT," +
+                KEY_SIGNAL_ACCESS_POINT_ID_FK + " INTEGER REFERENCES " + TABLE_ACCESS_POINTS + "," +  // router of the signal
                 KEY_LEVEL + " REAL" +
                 ")";
 
+        // Every router is stored only once, signals and statistics reference it by id
+        String CREATE_ACCESS_POINTS_TABLE = "CREATE TABLE " + TABLE_ACCESS_POINTS +
+                "(" +
+                KEY_ACCESS_POINT_ID + " INTEGER PRIMARY KEY," +
+                KEY_AP_BSSID + " TEXT NOT NULL UNIQUE," +
+                KEY_AP_SSID + " TEXT" +
+                ")";
+
         String CREATE_LOCATIONS_TABLE = "CREATE TABLE " + TABLE_INDOOR_LOCATIONS +
                 "(" +
                 KEY_LOCATION_ID + " INTEGER PRIMARY KEY," + // Define a primary key
@@ -142,248 +388,2588 @@ public class IndoorDatabaseHelper extends SQLiteOpenHelper {
                 KEY_ROOM + " TEXT," +                       // ...
                 KEY_BUILDING + " TEXT," +
                 KEY_LAT + " REAL," +
-                KEY_LNG + " REAL" +
+                KEY_LNG + " REAL," +
+                KEY_CELL + " INTEGER," +                    // set by a trigger, see createLocationCellTriggers()
+                "UNIQUE (" + KEY_LAT + ", " + KEY_LNG + ", " + KEY_FLOOR + ")" + // one row per marker
+                ")";
+
+        // Signals are always looked up (and deleted) through their location
+        String CREATE_SIGNALS_LOCATION_INDEX = "CREATE INDEX " + INDEX_SIGNALS_LOCATION + " ON " +
+                TABLE_INDOOR_SIGNALS + "(" + KEY_SIGNAL_LOCATION_ID_FK + ")";
+
+        // Statistics of every router in every location, kept up to date whenever signals are added
+        String CREATE_SIGNAL_STATISTICS_TABLE = "CREATE TABLE " + TABLE_SIGNAL_STATISTICS +
+                "(" +
+                KEY_STATS_LOCATION_ID_FK + " INTEGER REFERENCES " + TABLE_INDOOR_LOCATIONS +
+                " ON DELETE CASCADE," +
+                KEY_STATS_ACCESS_POINT_ID_FK + " INTEGER REFERENCES " + TABLE_ACCESS_POINTS + "," +
+                KEY_STATS_COUNT + " INTEGER," +
+                KEY_STATS_SUM + " REAL," +
+                KEY_STATS_SUM_SQUARES + " REAL," +
+                KEY_STATS_MIN + " REAL," +
+                KEY_STATS_MAX + " REAL," +
+                KEY_STATS_MEDIAN + " REAL," +
+                KEY_STATS_HISTOGRAM + " BLOB," +
+                "PRIMARY KEY (" + KEY_STATS_LOCATION_ID_FK + ", " + KEY_STATS_ACCESS_POINT_ID_FK + ")" +
                 ")";
-        
+
+        // Radio map is loaded one floor at a time, parts of a floor are looked up by their grid cells
+        String CREATE_LOCATIONS_FLOOR_INDEX = "CREATE INDEX " + INDEX_LOCATIONS_FLOOR + " ON " +
+                TABLE_INDOOR_LOCATIONS + "(" + KEY_FLOOR + ", " + KEY_CELL + ")";
+
         db.execSQL(CREATE_LOCATIONS_TABLE);                 // Perform SQL query
+        db.execSQL(CREATE_ACCESS_POINTS_TABLE);
         db.execSQL(CREATE_SIGNALS_TABLE);
+        db.execSQL(CREATE_SIGNALS_LOCATION_INDEX);
+        db.execSQL(CREATE_SIGNAL_STATISTICS_TABLE);
+        db.execSQL(CREATE_LOCATIONS_FLOOR_INDEX);
+        createAccessPointStatistics(db);
+        createLocationCellTriggers(db);
+        createDataVersion(db, 1);
+    }
+
+    /**
+     * Creates the data version table with its single row and the triggers which increment the
+     * version whenever a location, signal or statistics row is inserted, updated or deleted, in the
+     * same transaction as the change. Thus the version only ever goes up, whichever way the tables
+     * are written, see getDataVersion().
+     * @param db
+     * @param version   - initial version
+     */
+    private static void createDataVersion(SQLiteDatabase db, long version) {
+        db.execSQL("CREATE TABLE " + TABLE_DATA_VERSION + "(" + KEY_DATA_VERSION + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + TABLE_DATA_VERSION + " (" + KEY_DATA_VERSION + ") VALUES (" + version + ")");
+
+        String increment = String.format("UPDATE %1$s SET %2$s = %2$s + 1;", TABLE_DATA_VERSION, KEY_DATA_VERSION);
+        for (String table : new String[]{TABLE_INDOOR_LOCATIONS, TABLE_INDOOR_SIGNALS, TABLE_SIGNAL_STATISTICS}) {
+            for (String operation : new String[]{"INSERT", "UPDATE", "DELETE"}) {
+                db.execSQL("CREATE TRIGGER " + TRIGGER_DATA_VERSION_PREFIX + table + operation +
+                        " AFTER " + operation + " ON " + table + " BEGIN " + increment + " END");
+            }
+        }
+    }
+
+    /**
+     * Creates the triggers which set the grid cell of a location whenever it is inserted or moved.
+     * Thus every way of writing locations (markers, merges, imports, shards) keeps the cell right
+     * without knowing about it.
+     * @param db
+     */
+    private static void createLocationCellTriggers(SQLiteDatabase db) {
+        String setCell = String.format("UPDATE %s SET %s = %s WHERE %s = NEW.%s;",
+                TABLE_INDOOR_LOCATIONS, KEY_CELL, GridCell.sqlOf("NEW." + KEY_LAT, "NEW." + KEY_LNG),
+                KEY_LOCATION_ID, KEY_LOCATION_ID);
+        db.execSQL("CREATE TRIGGER " + TRIGGER_LOCATIONS_CELL_INSERT + " AFTER INSERT ON " +
+                TABLE_INDOOR_LOCATIONS + " BEGIN " + setCell + " END");
+        db.execSQL("CREATE TRIGGER " + TRIGGER_LOCATIONS_CELL_UPDATE + " AFTER UPDATE OF " + KEY_LAT + ", " +
+                KEY_LNG + " ON " + TABLE_INDOOR_LOCATIONS + " BEGIN " + setCell + " END");
+    }
+
+    /**
+     * Creates the access point statistics table and the triggers which keep it up to date.
+     * A row of the router is created by whichever of its rows is inserted first. Updates of the
+     * statistics only add the difference, thus every trigger only does lookups by the primary key.
+     * @param db
+     */
+    private static void createAccessPointStatistics(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ACCESS_POINT_STATISTICS + "(" +
+                KEY_AP_STATS_ACCESS_POINT_ID_FK + " INTEGER PRIMARY KEY REFERENCES " + TABLE_ACCESS_POINTS +
+                " ON DELETE CASCADE," +                                     // goes with its router
+                KEY_AP_STATS_LOCATION_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                KEY_AP_STATS_SAMPLE_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                KEY_AP_STATS_SUM + " REAL NOT NULL DEFAULT 0," +
+                KEY_AP_STATS_SUM_SQUARES + " REAL NOT NULL DEFAULT 0," +
+                KEY_AP_STATS_LAST_SEEN + " INTEGER)");
+
+        // A new location of the router
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATISTICS_INSERT + " AFTER INSERT ON " + TABLE_SIGNAL_STATISTICS +
+                " BEGIN " + insertAccessPointStatistics("NEW." + KEY_STATS_ACCESS_POINT_ID_FK) +
+                addAccessPointStatistics("+", "NEW") + " END");
+        // New samples in a known location: the old values are taken away and the new ones added
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATISTICS_UPDATE + " AFTER UPDATE ON " + TABLE_SIGNAL_STATISTICS +
+                " BEGIN " + addAccessPointStatistics("-", "OLD") + addAccessPointStatistics("+", "NEW") + " END");
+        // A deleted location (also by the cascade of the locations table)
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATISTICS_DELETE + " AFTER DELETE ON " + TABLE_SIGNAL_STATISTICS +
+                " BEGIN " + addAccessPointStatistics("-", "OLD") + " END");
+        // Signals only move the last seen time, statistics of the scan are merged separately
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SIGNALS_INSERT + " AFTER INSERT ON " + TABLE_INDOOR_SIGNALS +
+                " WHEN NEW." + KEY_SIGNAL_ACCESS_POINT_ID_FK + " IS NOT NULL" +
+                " BEGIN " + insertAccessPointStatistics("NEW." + KEY_SIGNAL_ACCESS_POINT_ID_FK) +
+                String.format("UPDATE %1$s SET %2$s = MAX(IFNULL(%2$s, 0), NEW.%3$s) WHERE %4$s = NEW.%5$s;",
+                        TABLE_ACCESS_POINT_STATISTICS, KEY_AP_STATS_LAST_SEEN, KEY_TIMESTAMP,
+                        KEY_AP_STATS_ACCESS_POINT_ID_FK, KEY_SIGNAL_ACCESS_POINT_ID_FK) + " END");
+    }
+
+    /**
+     * @param accessPointId - expression of the router id
+     * @return statement of a trigger which creates the row of the router if it has none yet
+     */
+    private static String insertAccessPointStatistics(String accessPointId) {
+        return String.format("INSERT OR IGNORE INTO %s (%s) VALUES (%s); ",
+                TABLE_ACCESS_POINT_STATISTICS, KEY_AP_STATS_ACCESS_POINT_ID_FK, accessPointId);
+    }
+
+    /**
+     * @param operator  - "+" adds the statistics row to the totals of its router, "-" takes it away
+     * @param row       - "NEW" or "OLD" row of the statistics table
+     * @return statement of a trigger on the statistics table
+     */
+    private static String addAccessPointStatistics(String operator, String row) {
+        return String.format("UPDATE %1$s SET %2$s = %2$s %11$s 1, %3$s = %3$s %11$s %12$s.%4$s, " +
+                        "%5$s = %5$s %11$s %12$s.%6$s, %7$s = %7$s %11$s %12$s.%8$s WHERE %9$s = %12$s.%10$s; ",
+                TABLE_ACCESS_POINT_STATISTICS, KEY_AP_STATS_LOCATION_COUNT, KEY_AP_STATS_SAMPLE_COUNT, KEY_STATS_COUNT,
+                KEY_AP_STATS_SUM, KEY_STATS_SUM, KEY_AP_STATS_SUM_SQUARES, KEY_STATS_SUM_SQUARES,
+                KEY_AP_STATS_ACCESS_POINT_ID_FK, KEY_STATS_ACCESS_POINT_ID_FK, operator, row);
     }
 
     // Called when the database needs to be upgraded.
     // This method will only be called if a database already exists on disk with the same DATABASE_NAME,
     // but the DATABASE_VERSION is different than the version of the database that exists on disk.
+    // Every step migrates the data from one version to the next one, thus nothing collected is lost.
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion != newVersion) {
-            // Simplest implementation is to drop all old tables and recreate them
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_INDOOR_LOCATIONS);
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_INDOOR_LOCATIONS);
-            onCreate(db);
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            upgradeToVersion3(db);
+        }
+        if (oldVersion < 4) {
+            upgradeToVersion4(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+        }
+        if (oldVersion < 8) {
+            upgradeToVersion8(db);
+        }
+    }
+
+    /**
+     * Version 2 adds a UNIQUE key on (lat, lng, floor), an index on the signals foreign key and
+     * makes the signals be deleted together with their location. SQLite can't add constraints to
+     * existing tables, thus the old tables are renamed, data is copied into the new ones and
+     * then the old tables are dropped. Locations which were stored twice are merged into one.
+     * Version 1 didn't delete the signals of a deleted location, such signals (and those stored
+     * without a location) have no position and can't be part of the radio map, thus they are not
+     * copied. Their number is logged, every other signal is copied.
+     * onUpgrade already runs inside a transaction so a failure leaves version 1 untouched.
+     * @param db
+     */
+    private void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_INDOOR_SIGNALS + " RENAME TO " + TABLE_INDOOR_SIGNALS + "_v1");
+        db.execSQL("ALTER TABLE " + TABLE_INDOOR_LOCATIONS + " RENAME TO " + TABLE_INDOOR_LOCATIONS + "_v1");
+
+        db.execSQL("CREATE TABLE " + TABLE_INDOOR_LOCATIONS + "(" +
+                KEY_LOCATION_ID + " INTEGER PRIMARY KEY," +
+                KEY_FLOOR + " INTEGER," +
+                KEY_ROOM + " TEXT," +
+                KEY_BUILDING + " TEXT," +
+                KEY_LAT + " REAL," +
+                KEY_LNG + " REAL," +
+                "UNIQUE (" + KEY_LAT + ", " + KEY_LNG + ", " + KEY_FLOOR + "))");
+        db.execSQL("CREATE TABLE " + TABLE_INDOOR_SIGNALS + "(" +
+                KEY_SIGNAL_ID + " INTEGER PRIMARY KEY," +
+                KEY_SIGNAL_LOCATION_ID_FK + " INTEGER REFERENCES " + TABLE_INDOOR_LOCATIONS + " ON DELETE CASCADE," +
+                KEY_TIMESTAMP + " INTEGER," +
+                KEY_BSSID + " TEXT," +
+                KEY_SSID + " TEXT," +
+                KEY_LEVEL + " REAL)");
+        db.execSQL("CREATE INDEX " + INDEX_SIGNALS_LOCATION + " ON " +
+                TABLE_INDOOR_SIGNALS + "(" + KEY_SIGNAL_LOCATION_ID_FK + ")");
+
+        // Keep the first stored row of every (lat, lng, floor) location
+        db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s, %6$s, %7$s) " +
+                        "SELECT MIN(%2$s), %3$s, %4$s, %5$s, %6$s, %7$s FROM %1$s_v1 GROUP BY %6$s, %7$s, %3$s",
+                TABLE_INDOOR_LOCATIONS, KEY_LOCATION_ID, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG));
+
+        // Signals whose location is NULL or doesn't exist anymore are the only ones left out below
+        SQLiteStatement countOrphans = db.compileStatement(String.format(
+                "SELECT COUNT(*) FROM %1$s_v1 s LEFT JOIN %2$s_v1 old ON old.%3$s = s.%4$s WHERE old.%3$s IS NULL",
+                TABLE_INDOOR_SIGNALS, TABLE_INDOOR_LOCATIONS, KEY_LOCATION_ID, KEY_SIGNAL_LOCATION_ID_FK));
+        try {
+            long orphans = countOrphans.simpleQueryForLong();
+            if (orphans > 0) {
+                Log.d(TAG, "Upgrade to version 2 drops " + orphans + " signals without a location");
+            }
+        } finally {
+            countOrphans.close();
+        }
+
+        // Copy the signals, pointing them to the location which was kept above. Every old location
+        // has exactly one new one with the same (lat, lng, floor), thus no other signal is lost
+        db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s, %6$s, %7$s) " +
+                        "SELECT s.%2$s, l.%8$s, s.%4$s, s.%5$s, s.%6$s, s.%7$s FROM %1$s_v1 s " +
+                        "JOIN %9$s_v1 old ON old.%8$s = s.%3$s " +
+                        "JOIN %9$s l ON l.%10$s = old.%10$s AND l.%11$s = old.%11$s AND l.%12$s = old.%12$s",
+                TABLE_INDOOR_SIGNALS, KEY_SIGNAL_ID, KEY_SIGNAL_LOCATION_ID_FK, KEY_TIMESTAMP, KEY_BSSID,
+                KEY_SSID, KEY_LEVEL, KEY_LOCATION_ID, TABLE_INDOOR_LOCATIONS, KEY_LAT, KEY_LNG, KEY_FLOOR));
+
+        // Order is important, the signals hold the reference to the locations
+        db.execSQL("DROP TABLE " + TABLE_INDOOR_SIGNALS + "_v1");
+        db.execSQL("DROP TABLE " + TABLE_INDOOR_LOCATIONS + "_v1");
+    }
+
+    /**
+     * Version 3 adds the signal statistics table, which is filled from the already collected signals.
+     * @param db
+     */
+    private void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SIGNAL_STATISTICS + "(" +
+                KEY_STATS_LOCATION_ID_FK + " INTEGER REFERENCES " + TABLE_INDOOR_LOCATIONS + " ON DELETE CASCADE," +
+                KEY_STATS_BSSID + " TEXT," +
+                KEY_STATS_SSID + " TEXT," +
+                KEY_STATS_COUNT + " INTEGER," +
+                KEY_STATS_SUM + " REAL," +
+                KEY_STATS_SUM_SQUARES + " REAL," +
+                KEY_STATS_MIN + " REAL," +
+                KEY_STATS_MAX + " REAL," +
+                KEY_STATS_MEDIAN + " REAL," +
+                KEY_STATS_HISTOGRAM + " BLOB," +
+                "PRIMARY KEY (" + KEY_STATS_LOCATION_ID_FK + ", " + KEY_STATS_BSSID + "))");
+        fillSignalStatisticsVersion3(db);
+    }
+
+    /**
+     * Version 4 adds an index on the floor of the locations as the radio map is loaded per floor.
+     * @param db
+     */
+    private void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_LOCATIONS_FLOOR + " ON " +
+                TABLE_INDOOR_LOCATIONS + "(" + KEY_FLOOR + ")");
+    }
+
+    /**
+     * Version 5 moves the bssid and ssid strings of the signals and statistics into the access
+     * points table and only references them by id. Both tables are recreated the same way as
+     * in upgradeToVersion2(). Signals without a bssid keep a NULL router id.
+     * @param db
+     */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ACCESS_POINTS + "(" +
+                KEY_ACCESS_POINT_ID + " INTEGER PRIMARY KEY," +
+                KEY_AP_BSSID + " TEXT NOT NULL UNIQUE," +
+                KEY_AP_SSID + " TEXT)");
+
+        // Every router ever seen, either in the signals or in the statistics
+        db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s) SELECT %4$s, MAX(%5$s) FROM " +
+                        "(SELECT %4$s, %5$s FROM %6$s UNION ALL SELECT %7$s, %8$s FROM %9$s) " +
+                        "WHERE %4$s IS NOT NULL GROUP BY %4$s",
+                TABLE_ACCESS_POINTS, KEY_AP_BSSID, KEY_AP_SSID, KEY_BSSID, KEY_SSID, TABLE_INDOOR_SIGNALS,
+                KEY_STATS_BSSID, KEY_STATS_SSID, TABLE_SIGNAL_STATISTICS));
+
+        db.execSQL("ALTER TABLE " + TABLE_INDOOR_SIGNALS + " RENAME TO " + TABLE_INDOOR_SIGNALS + "_v4");
+        db.execSQL("ALTER TABLE " + TABLE_SIGNAL_STATISTICS + " RENAME TO " + TABLE_SIGNAL_STATISTICS + "_v4");
+        // The index moved with the renamed table, but its name is needed for the new one
+        db.execSQL("DROP INDEX " + INDEX_SIGNALS_LOCATION);
+
+        db.execSQL("CREATE TABLE " + TABLE_INDOOR_SIGNALS + "(" +
+                KEY_SIGNAL_ID + " INTEGER PRIMARY KEY," +
+                KEY_SIGNAL_LOCATION_ID_FK + " INTEGER REFERENCES " + TABLE_INDOOR_LOCATIONS + " ON DELETE CASCADE," +
+                KEY_TIMESTAMP + " INTEGER," +
+                KEY_SIGNAL_ACCESS_POINT_ID_FK + " INTEGER REFERENCES " + TABLE_ACCESS_POINTS + "," +
+                KEY_LEVEL + " REAL)");
+        db.execSQL("CREATE INDEX " + INDEX_SIGNALS_LOCATION + " ON " +
+                TABLE_INDOOR_SIGNALS + "(" + KEY_SIGNAL_LOCATION_ID_FK + ")");
+        db.execSQL("CREATE TABLE " + TABLE_SIGNAL_STATISTICS + "(" +
+                KEY_STATS_LOCATION_ID_FK + " INTEGER REFERENCES " + TABLE_INDOOR_LOCATIONS + " ON DELETE CASCADE," +
+                KEY_STATS_ACCESS_POINT_ID_FK + " INTEGER REFERENCES " + TABLE_ACCESS_POINTS + "," +
+                KEY_STATS_COUNT + " INTEGER," +
+                KEY_STATS_SUM + " REAL," +
+                KEY_STATS_SUM_SQUARES + " REAL," +
+                KEY_STATS_MIN + " REAL," +
+                KEY_STATS_MAX + " REAL," +
+                KEY_STATS_MEDIAN + " REAL," +
+                KEY_STATS_HISTOGRAM + " BLOB," +
+                "PRIMARY KEY (" + KEY_STATS_LOCATION_ID_FK + ", " + KEY_STATS_ACCESS_POINT_ID_FK + "))");
+
+        // Copy the signals, replacing the bssid with the id of the router
+        db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s, %6$s) " +
+                        "SELECT s.%2$s, s.%3$s, s.%4$s, a.%7$s, s.%6$s FROM %1$s_v4 s " +
+                        "LEFT JOIN %8$s a ON a.%9$s = s.%10$s",
+                TABLE_INDOOR_SIGNALS, KEY_SIGNAL_ID, KEY_SIGNAL_LOCATION_ID_FK, KEY_TIMESTAMP,
+                KEY_SIGNAL_ACCESS_POINT_ID_FK, KEY_LEVEL, KEY_ACCESS_POINT_ID, TABLE_ACCESS_POINTS,
+                KEY_AP_BSSID, KEY_BSSID));
+
+        // Same for the statistics
+        db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s, %6$s, %7$s, %8$s, %9$s, %10$s) " +
+                        "SELECT s.%2$s, a.%11$s, s.%4$s, s.%5$s, s.%6$s, s.%7$s, s.%8$s, s.%9$s, s.%10$s FROM %1$s_v4 s " +
+                        "JOIN %12$s a ON a.%13$s = s.%14$s",
+                TABLE_SIGNAL_STATISTICS, KEY_STATS_LOCATION_ID_FK, KEY_STATS_ACCESS_POINT_ID_FK, KEY_STATS_COUNT,
+                KEY_STATS_SUM, KEY_STATS_SUM_SQUARES, KEY_STATS_MIN, KEY_STATS_MAX, KEY_STATS_MEDIAN,
+                KEY_STATS_HISTOGRAM, KEY_ACCESS_POINT_ID, TABLE_ACCESS_POINTS, KEY_AP_BSSID, KEY_STATS_BSSID));
+
+        db.execSQL("DROP TABLE " + TABLE_INDOOR_SIGNALS + "_v4");
+        db.execSQL("DROP TABLE " + TABLE_SIGNAL_STATISTICS + "_v4");
+    }
+
+    /**
+     * Version 6 adds the access point statistics table and its triggers. The table is filled from
+     * the statistics and signals which are already stored, grouping each of them only once.
+     * @param db
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        createAccessPointStatistics(db);
+        db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s, %6$s, %7$s) " +
+                        "SELECT a.%8$s, IFNULL(st.locations, 0), IFNULL(st.samples, 0), IFNULL(st.total, 0), " +
+                        "IFNULL(st.squares, 0), sg.seen FROM %9$s a " +
+                        "LEFT JOIN (SELECT %10$s ap, COUNT(*) locations, SUM(%11$s) samples, TOTAL(%12$s) total, " +
+                        "TOTAL(%13$s) squares FROM %14$s GROUP BY %10$s) st ON st.ap = a.%8$s " +
+                        "LEFT JOIN (SELECT %15$s ap, MAX(%16$s) seen FROM %17$s WHERE %15$s IS NOT NULL " +
+                        "GROUP BY %15$s) sg ON sg.ap = a.%8$s",
+                TABLE_ACCESS_POINT_STATISTICS, KEY_AP_STATS_ACCESS_POINT_ID_FK, KEY_AP_STATS_LOCATION_COUNT,
+                KEY_AP_STATS_SAMPLE_COUNT, KEY_AP_STATS_SUM, KEY_AP_STATS_SUM_SQUARES, KEY_AP_STATS_LAST_SEEN,
+                KEY_ACCESS_POINT_ID, TABLE_ACCESS_POINTS, KEY_STATS_ACCESS_POINT_ID_FK, KEY_STATS_COUNT,
+                KEY_STATS_SUM, KEY_STATS_SUM_SQUARES, TABLE_SIGNAL_STATISTICS, KEY_SIGNAL_ACCESS_POINT_ID_FK,
+                KEY_TIMESTAMP, TABLE_INDOOR_SIGNALS));
+    }
+
+    /**
+     * Version 7 adds the grid cell of every location and puts it into the floor index after the
+     * floor, thus a part of a floor is found by a few index ranges, see getLocationsInBox().
+     * @param db
+     */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_INDOOR_LOCATIONS + " ADD COLUMN " + KEY_CELL + " INTEGER");
+        db.execSQL("UPDATE " + TABLE_INDOOR_LOCATIONS + " SET " + KEY_CELL + " = " +
+                GridCell.sqlOf(KEY_LAT, KEY_LNG));
+        db.execSQL("DROP INDEX " + INDEX_LOCATIONS_FLOOR);
+        db.execSQL("CREATE INDEX " + INDEX_LOCATIONS_FLOOR + " ON " +
+                TABLE_INDOOR_LOCATIONS + "(" + KEY_FLOOR + ", " + KEY_CELL + ")");
+        createLocationCellTriggers(db);
+    }
+
+    /**
+     * Version 8 replaces the data version computed from the largest signal id, which repeated
+     * itself once the newest signals were deleted and ignored changed rooms, by a counter which
+     * is kept up to date by triggers. Snapshots and shards of the old version are simply
+     * compiled again, as the counter never matches the old numbers.
+     * @param db
+     */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        createDataVersion(db, 1);
+    }
+
+    /**
+     * Fills the version 3 statistics table (still keyed by bssid) from the raw signals. Signals are
+     * grouped by their location, bssid and level in SQL, thus only one group of rows is kept in
+     * memory at a time. Uses its own insert as the current one matches the latest version.
+     * @param db
+     */
+    private void fillSignalStatisticsVersion3(SQLiteDatabase db) {
+        String insertStatisticsVersion3 = String.format(
+                "INSERT INTO %s (%s, %s, %s, %s, %s, %s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                TABLE_SIGNAL_STATISTICS, KEY_STATS_LOCATION_ID_FK, KEY_STATS_BSSID, KEY_STATS_SSID, KEY_STATS_COUNT,
+                KEY_STATS_SUM, KEY_STATS_SUM_SQUARES, KEY_STATS_MIN, KEY_STATS_MAX, KEY_STATS_MEDIAN, KEY_STATS_HISTOGRAM);
+
+        String groupedSignalsQuery = String.format(
+                "SELECT %1$s, %2$s, MAX(%3$s), ROUND(%4$s), COUNT(*), TOTAL(%4$s), TOTAL(%4$s * %4$s), MIN(%4$s), MAX(%4$s) " +
+                        "FROM %5$s WHERE %1$s IS NOT NULL AND %2$s IS NOT NULL " +
+                        "GROUP BY %1$s, %2$s, ROUND(%4$s) ORDER BY %1$s, %2$s",
+                KEY_SIGNAL_LOCATION_ID_FK, KEY_BSSID, KEY_SSID, KEY_LEVEL, TABLE_INDOOR_SIGNALS);
+
+        SQLiteStatement insertStatistics = db.compileStatement(insertStatisticsVersion3);
+        Cursor cursor = db.rawQuery(groupedSignalsQuery, null);
+        try {
+            long locationId = -1;
+            String bssid = null;
+            String ssid = null;
+            SignalStatistics statistics = null;
+            while (cursor.moveToNext()) {
+                long rowLocationId = cursor.getLong(0);
+                String rowBssid = cursor.getString(1);
+                // a new location and bssid pair starts, thus store the previous one
+                if (statistics == null || rowLocationId != locationId || !rowBssid.equals(bssid)) {
+                    if (statistics != null) {
+                        insertStatisticsVersion3(insertStatistics, locationId, bssid, ssid, statistics);
+                    }
+                    locationId = rowLocationId;
+                    bssid = rowBssid;
+                    ssid = cursor.getString(2);
+                    statistics = new SignalStatistics();
+                }
+                // every row holds all of the samples with the same level
+                SignalStatistics group = new SignalStatistics();
+                group.count = cursor.getLong(4);
+                group.sum = cursor.getDouble(5);
+                group.sumSquares = cursor.getDouble(6);
+                group.min = cursor.getDouble(7);
+                group.max = cursor.getDouble(8);
+                group.addLevelCount(cursor.getInt(3), (int) group.count);
+                statistics.merge(group);
+            }
+            if (statistics != null) {
+                insertStatisticsVersion3(insertStatistics, locationId, bssid, ssid, statistics);
+            }
+        } finally {
+            cursor.close();
+            insertStatistics.close();
         }
     }
 
+    /**
+     * Binds and executes the insert of a version 3 statistics row.
+     * @param insertStatistics
+     * @param locationId
+     * @param bssid
+     * @param ssid
+     * @param statistics
+     */
+    private static void insertStatisticsVersion3(SQLiteStatement insertStatistics, long locationId, String bssid,
+                                                 String ssid, SignalStatistics statistics) {
+        insertStatistics.clearBindings();
+        insertStatistics.bindLong(1, locationId);
+        insertStatistics.bindString(2, bssid);
+        bindStringOrNull(insertStatistics, 3, ssid);
+        insertStatistics.bindLong(4, statistics.count);
+        insertStatistics.bindDouble(5, statistics.sum);
+        insertStatistics.bindDouble(6, statistics.sumSquares);
+        insertStatistics.bindDouble(7, statistics.min);
+        insertStatistics.bindDouble(8, statistics.max);
+        insertStatistics.bindDouble(9, statistics.getMedian());
+        insertStatistics.bindBlob(10, statistics.getHistogramBlob());
+        insertStatistics.executeInsert();
+    }
+
     /**
      * Function to add a signal to databse.
      * @param signal
+     * @throws RuntimeException if the signal could not be stored, nothing is written then
      */
     public void addSignal(IndoorSignal signal){
         // Create and/or open the database for writing
         SQLiteDatabase db = getWritableDatabase();
+        // Signals to publish once the transaction is committed
+        List<DatabaseChange.SignalDelta> inserted = null;
         // It's a good idea to wrap our insert in a transaction. This helps with performance and ensures
         // consistency of the database.
         db.beginTransaction();
         try {
             // Get the ID of the location from the indoor location table
             long locationId = addOrUpdateLocation(signal.location);
+            if (locationId == -1) {
+                throw new IllegalStateException("Could not resolve location id");
+            }
 
             // Put all values from the object into the database structure
             ContentValues values = new ContentValues();
             values.put(KEY_SIGNAL_LOCATION_ID_FK, locationId);
             values.put(KEY_TIMESTAMP, signal.timestamp);
-            values.put(KEY_BSSID, signal.bssid);
-            values.put(KEY_SSID, signal.ssid);
             values.put(KEY_LEVEL, signal.level);
+            int accessPointId = AccessPointDictionary.UNKNOWN;
+            if (signal.bssid != null) {
+                // the router is referenced by its id, which is created when the router is new
+                accessPointId = accessPoints.getOrInsertId(db, signal.bssid, signal.ssid);
+                values.put(KEY_SIGNAL_ACCESS_POINT_ID_FK, accessPointId);
+            }
 
             // Notice how we haven't specified the primary key. SQLite auto increments the primary key column.
             db.insertOrThrow(TABLE_INDOOR_SIGNALS, null, values);
+
+            // Update the statistics of the router in the location within the same transaction
+            if (accessPointId != AccessPointDictionary.UNKNOWN) {
+                Map<Integer, SignalStatistics> added = new HashMap<>();
+                SignalStatistics statistics = new SignalStatistics();
+                statistics.add(signal.level);
+                added.put(accessPointId, statistics);
+                mergeStatistics(db, locationId, added);
+            }
             db.setTransactionSuccessful();
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (!changeListeners.isEmpty()) {
+                inserted = new ArrayList<>();
+                inserted.add(new DatabaseChange.SignalDelta(locationId, signal.location, accessPointId,
+                        signal.bssid, signal.level));
+            }
+        } catch (RuntimeException e) {
             Log.d(TAG, "Error while trying to add signal to database");
+            // routers inserted by the failed transaction don't exist anymore
+            accessPoints.clear();
+            // the caller (or the listener of addSignalAsync) has to know that nothing was stored
+            throw e;
         } finally {
             db.endTransaction();
         }
+        if (inserted != null) {
+            publishChange(DatabaseChange.inserted(getDataVersion(), inserted));
+        }
     }
 
     /**
-     * Function add a location to a database if doesn't exist and return the id only if the
-     * location already exists on a database.
-     * Since SQLite doesn't support "upsert" we need to fall back on an attempt to UPDATE (in case the
-     * user already exists) optionally followed by an INSERT (in case the user does not already exist).
-     * Unfortunately, there is a bug with the insertOnConflict method
-     * (https://code.google.com/p/android/issues/detail?id=13045) so we need to fall back to the more
-     * verbose option of querying for the user's primary key if we did an update.
-     * @param location
-     * @return
+     * Function to add a whole wifi scan to the database at once. The location id is resolved only
+     * once and every signal is inserted with the same precompiled statement inside a single
+     * transaction, which is much cheaper than calling addSignal for each of the ScanResults.
+     * @param location      - location where the scan was taken
+     * @param scanResults   - signals collected by the wifi scan
+     * @param timestamp     - unix timestamp of the scan
+     * @return number of signal rows written to the database
+     * @throws RuntimeException if the scan could not be stored, nothing is written then
      */
-    public long addOrUpdateLocation(IndoorLocation location){
-        // The database connection is cached so it's not expensive to call getWriteableDatabase() multiple times.
+    public int addScan(IndoorLocation location, List<ScanResult> scanResults, long timestamp){
+        // Create and/or open the database for writing
         SQLiteDatabase db = getWritableDatabase();
-        long userId = -1;
+        int rows = 0;
+        // Signals to publish once the transaction is committed, only collected if someone listens
+        List<DatabaseChange.SignalDelta> inserted = changeListeners.isEmpty() ? null :
+                new ArrayList<DatabaseChange.SignalDelta>(scanResults.size());
 
-        // It's a good idea to wrap our insert in a transaction. This helps with performance and ensures
-        // consistency of the database.
         db.beginTransaction();
+        SQLiteStatement insertSignal = db.compileStatement(INSERT_SIGNAL_STATEMENT);
         try {
-            // Put the location values into database structure
-            ContentValues values = new ContentValues();
-            values.put(KEY_FLOOR, location.floor);
-            values.put(KEY_ROOM, location.room);
-            values.put(KEY_BUILDING, location.building);
-            values.put(KEY_LAT, location.lat);
-            values.put(KEY_LNG, location.lng);
-
-            // First try to update the user in case the user already exists in the database
-            int rows = db.update(TABLE_INDOOR_LOCATIONS, values, KEY_LAT + "= ? AND " + KEY_LNG + "= ? AND " + KEY_FLOOR + "= ?",
-                    new String[]{String.valueOf(location.lat), String.valueOf(location.lng), String.valueOf(location.floor)});
-
-            // Check if update succeeded
-            if (rows == 1) {
-                // Get the primary key of the location we just updated
-                String locationsSelectQuery = String.format("SELECT %s FROM %s WHERE %s = ? AND %s = ? AND %s = ?",
-                        KEY_LOCATION_ID, TABLE_INDOOR_LOCATIONS, KEY_LAT, KEY_LNG, KEY_FLOOR);
-                Cursor cursor = db.rawQuery(locationsSelectQuery,
-                        new String[]{String.valueOf(location.lat), String.valueOf(location.lng), String.valueOf(location.floor)});
-                try {
-                    // A cursor allows to go through all of the selected data from the query
-                    if (cursor.moveToFirst()) {
-                        userId = cursor.getInt(0);
-                        db.setTransactionSuccessful();
-                    }
-                } finally {
-                    // Need to close the cursor when done
-                    if (cursor != null && !cursor.isClosed()) {
-                        cursor.close();
+            // Get the ID of the location only once for the whole scan
+            long locationId = addOrUpdateLocation(location);
+            if (locationId == -1) {
+                throw new IllegalStateException("Could not resolve location id");
+            }
+
+            // Statistics of the signals in this scan by router id, merged into the stored ones at the end
+            Map<Integer, SignalStatistics> added = new HashMap<>();
+
+            // Bind the values of every signal to the same statement and execute it
+            for (ScanResult result : scanResults) {
+                insertSignal.clearBindings();
+                insertSignal.bindLong(1, locationId);
+                insertSignal.bindLong(2, timestamp);
+                insertSignal.bindDouble(4, result.level);
+                if (result.BSSID == null) {
+                    insertSignal.bindNull(3);
+                    insertSignal.executeInsert();
+                    rows++;
+                    if (inserted != null) {
+                        inserted.add(new DatabaseChange.SignalDelta(locationId, location,
+                                AccessPointDictionary.UNKNOWN, null, result.level));
                     }
+                    continue;
                 }
-            } else {
-                // location with this these parameters did not already exist, so insert new user
-                userId = db.insertOrThrow(TABLE_INDOOR_LOCATIONS, null, values);
-                db.setTransactionSuccessful();
+                // the router is referenced by its id, which is created when the router is new
+                int accessPointId = accessPoints.getOrInsertId(db, result.BSSID, result.SSID);
+                insertSignal.bindLong(3, accessPointId);
+                insertSignal.executeInsert();
+                rows++;
+                if (inserted != null) {
+                    inserted.add(new DatabaseChange.SignalDelta(locationId, location,
+                            accessPointId, result.BSSID, result.level));
+                }
+
+                SignalStatistics statistics = added.get(accessPointId);
+                if (statistics == null) {
+                    statistics = new SignalStatistics();
+                    added.put(accessPointId, statistics);
+                }
+                statistics.add(result.level);
             }
-        } catch (Exception e) {
-            Log.d(TAG, "Error while trying to add or update user");
+            // Update the statistics of the routers in the location within the same transaction
+            mergeStatistics(db, locationId, added);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Error while trying to add scan to database");
+            // the transaction is rolled back, thus nothing was written and the routers inserted by it
+            // don't exist anymore
+            accessPoints.clear();
+            // the caller (or the listener of addScanAsync) has to know that the scan was lost
+            throw e;
         } finally {
+            insertSignal.close();
             db.endTransaction();
         }
-        return userId;
+        if (rows > 0 && inserted != null) {
+            publishChange(DatabaseChange.inserted(getDataVersion(), inserted));
+        }
+        return rows;
     }
 
     /**
-     * Function for getting all of the signals in the database at once. This is being used to query
-     * the database for the signals.
-     * @return
+     * Subscribes the listener to every change of the radio map, see DatabaseChange.
+     * @param listener
      */
-    public List<IndoorSignal> getAllSignals() {
-        List<IndoorSignal> signals = new ArrayList<>();
-
-        // SELECT * FROM SIGNALS
-        // LEFT OUTER JOIN LOCATIONS
-        // ON SIGNALS.KEY_SIGNAL_LOCATION_ID_FK = LOCATIONS.KEY_LOCATION_ID
-        String SIGNALS_SELECT_QUERY =
-                String.format("SELECT * FROM %s LEFT OUTER JOIN %s ON %s.%s = %s.%s",
-                        TABLE_INDOOR_SIGNALS,
-                        TABLE_INDOOR_LOCATIONS,
-                        TABLE_INDOOR_SIGNALS, KEY_SIGNAL_LOCATION_ID_FK,
-                        TABLE_INDOOR_LOCATIONS, KEY_LOCATION_ID);
-
-        // "getReadableDatabase()" and "getWriteableDatabase()" return the same object (except under low
-        // disk space scenarios)
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery(SIGNALS_SELECT_QUERY, null);
-        try {
-            if (cursor.moveToFirst()) {
-                do {
-                    // Create IndoorLocation and IndoorSignal instances from the saved information in the database
-                    IndoorLocation newLocation = new IndoorLocation();
-                    newLocation.floor = cursor.getLong(cursor.getColumnIndex(KEY_FLOOR));
-                    newLocation.room = cursor.getString(cursor.getColumnIndex(KEY_ROOM));
-                    newLocation.building = cursor.getString(cursor.getColumnIndex(KEY_BUILDING));
-                    newLocation.lat = cursor.getDouble(cursor.getColumnIndex(KEY_LAT));
-                    newLocation.lng = cursor.getDouble(cursor.getColumnIndex(KEY_LNG));
-
-                    IndoorSignal newSignal = new IndoorSignal();
-                    newSignal.timestamp = cursor.getLong(cursor.getColumnIndex(KEY_TIMESTAMP));
-                    newSignal.bssid = cursor.getString(cursor.getColumnIndex(KEY_BSSID));
-                    newSignal.ssid = cursor.getString(cursor.getColumnIndex(KEY_SSID));
-                    newSignal.level = cursor.getLong(cursor.getColumnIndex(KEY_LEVEL));
-                    newSignal.location = newLocation;
-
-                    // Add that to the returnable list
-                    signals.add(newSignal);
-                } while(cursor.moveToNext());
-            }
-        } catch (Exception e) {
-            Log.d(TAG, "Error while trying to get posts from database");
-        } finally {
-            if (cursor != null && !cursor.isClosed()) {
-                cursor.close();
-            }
-        }
-        return signals;
+    public void addOnDatabaseChangedListener(OnDatabaseChangedListener listener) {
+        changeListeners.add(listener);
     }
 
     /**
-     * Sometimes the room is entered incorrectly thus we can update that
-     * @param location
-     * @return
+     * @param listener  - listener which was added with addOnDatabaseChangedListener()
      */
-    public int updateLocationRoom(IndoorLocation location) {
-        SQLiteDatabase db = this.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(KEY_ROOM, location.room);
-
-        // Updating profile picture url for user with that userName
-        return db.update(TABLE_INDOOR_LOCATIONS, values, KEY_LAT + "= ? AND " + KEY_LNG + "= ? AND " + KEY_FLOOR + "= ?",
-                new String[]{String.valueOf(location.lat), String.valueOf(location.lng), String.valueOf(location.floor)});
+    public void removeOnDatabaseChangedListener(OnDatabaseChangedListener listener) {
+        changeListeners.remove(listener);
     }
 
-
     /**
-     * Delete all locations and signals in the database. Be careful because
-     * you won't be able to access ay of the deleted data anymore unless you backed up it
-     *
+     * Passes the change to every listener. Must be called only after the transaction is committed,
+     * so the listeners can already read the changed rows.
+     * @param change
      */
-    public void deleteAllLocationsAndSignals() {
-        SQLiteDatabase db = getWritableDatabase();
-        db.beginTransaction();
-        try {
-            // Order of deletions is important when foreign key relationships exist.
-            // Firstly siganls have to be delete, which hold the reference to the locations
-            db.delete(TABLE_INDOOR_SIGNALS, null, null);
-            db.delete(TABLE_INDOOR_LOCATIONS, null, null);
-            db.setTransactionSuccessful();
-        } catch (Exception e) {
-            Log.d(TAG, "Error while trying to delete all signals and location");
-        } finally {
-            db.endTransaction();
+    private void publishChange(DatabaseChange change) {
+        for (OnDatabaseChangedListener listener : changeListeners) {
+            try {
+                listener.onDatabaseChanged(change);
+            } catch (RuntimeException e) {
+                // a broken subscriber must not fail the write, which is committed already
+                Log.e(TAG, "Database change listener failed", e);
+            }
         }
     }
 
     /**
-     * Used to get the database path. This is used when importing and exporting it.
-     * @return
+     * Publishes that everything might have changed, e.g. after an import.
      */
-    public String getDatabasePath (){
-        SQLiteDatabase db = getWritableDatabase();
-        return db.getPath();
+    private void publishReset() {
+        if (!changeListeners.isEmpty()) {
+            publishChange(DatabaseChange.reset(getDataVersion()));
+        }
     }
 
     /**
-     * Used to import the database from the phone. You have to ensure that importPath
+     * Runs the write on the writer thread and then passes its result to the listener on the main thread.
+     * If the write throws, the exception is logged and passed to the listener instead, and the
+     * future fails with it too.
+     * @param write
+     * @param listener  - can be null if the result is not needed
+     * @param <T>
+     * @return future of the result, e.g. to wait for the write in a background thread
+     */
+    private <T> Future<T> submitWrite(final Callable<T> write, final OnWriteFinishedListener<T> listener) {
+        return writeExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final T result;
+                try {
+                    result = write.call();
+                } catch (final Exception e) {
+                    Log.e(TAG, "Error while trying to write to database", e);
+                    if (listener != null) {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onWriteFailed(e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+                if (listener != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onWriteFinished(result);
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Same as addSignal() but done on the writer thread.
+     * @param signal
+     * @param listener
+     * @return
+     */
+    public Future<Void> addSignalAsync(final IndoorSignal signal, OnWriteFinishedListener<Void> listener) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                addSignal(signal);
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as addScan() but done on the writer thread, thus collecting signals doesn't block the UI.
+     * @param location
+     * @param scanResults
+     * @param timestamp
+     * @param listener  - receives the number of stored signals
+     * @return
+     */
+    public Future<Integer> addScanAsync(final IndoorLocation location, List<ScanResult> scanResults,
+                                        final long timestamp, OnWriteFinishedListener<Integer> listener) {
+        // the list might be reused by the caller before the write starts
+        final List<ScanResult> results = new ArrayList<>(scanResults);
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return addScan(location, results, timestamp);
+            }
+        }, listener);
+    }
+
+    /**
+     * Merges statistics of newly added signals into the stored statistics of the location.
+     * Stored rows of the location are read with one indexed query, then every router is either
+     * updated or inserted with precompiled statements. Has to be called inside a transaction.
+     * @param db
+     * @param locationId
+     * @param added     - statistics of the new signals by router id
+     */
+    private void mergeStatistics(SQLiteDatabase db, long locationId, Map<Integer, SignalStatistics> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        // Read the statistics already stored for the location
+        Map<Integer, SignalStatistics> stored = new HashMap<>();
+        Cursor cursor = db.query(TABLE_SIGNAL_STATISTICS,
+                new String[]{KEY_STATS_ACCESS_POINT_ID_FK, KEY_STATS_COUNT, KEY_STATS_SUM, KEY_STATS_SUM_SQUARES,
+                        KEY_STATS_MIN, KEY_STATS_MAX, KEY_STATS_HISTOGRAM},
+                KEY_STATS_LOCATION_ID_FK + "= ?", new String[]{String.valueOf(locationId)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                SignalStatistics statistics = new SignalStatistics();
+                statistics.count = cursor.getLong(1);
+                statistics.sum = cursor.getDouble(2);
+                statistics.sumSquares = cursor.getDouble(3);
+                statistics.min = cursor.getDouble(4);
+                statistics.max = cursor.getDouble(5);
+                statistics.setHistogramBlob(cursor.getBlob(6));
+                stored.put(cursor.getInt(0), statistics);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        SQLiteStatement insertStatistics = db.compileStatement(INSERT_STATISTICS_STATEMENT);
+        SQLiteStatement updateStatistics = db.compileStatement(UPDATE_STATISTICS_STATEMENT);
+        try {
+            for (Map.Entry<Integer, SignalStatistics> entry : added.entrySet()) {
+                int accessPointId = entry.getKey();
+                SignalStatistics statistics = stored.get(accessPointId);
+                if (statistics == null) {
+                    insertStatistics(insertStatistics, locationId, accessPointId, entry.getValue());
+                } else {
+                    statistics.merge(entry.getValue());
+                    updateStatistics.clearBindings();
+                    updateStatistics.bindLong(1, statistics.count);
+                    updateStatistics.bindDouble(2, statistics.sum);
+                    updateStatistics.bindDouble(3, statistics.sumSquares);
+                    updateStatistics.bindDouble(4, statistics.min);
+                    updateStatistics.bindDouble(5, statistics.max);
+                    updateStatistics.bindDouble(6, statistics.getMedian());
+                    updateStatistics.bindBlob(7, statistics.getHistogramBlob());
+                    updateStatistics.bindLong(8, locationId);
+                    updateStatistics.bindLong(9, accessPointId);
+                    updateStatistics.executeUpdateDelete();
+                }
+            }
+        } finally {
+            insertStatistics.close();
+            updateStatistics.close();
+        }
+    }
+
+    /**
+     * Binds and executes the insert statement of a new statistics row.
+     * @param insertStatistics
+     * @param locationId
+     * @param accessPointId
+     * @param statistics
+     */
+    private static void insertStatistics(SQLiteStatement insertStatistics, long locationId, int accessPointId,
+                                         SignalStatistics statistics) {
+        insertStatistics.clearBindings();
+        insertStatistics.bindLong(1, locationId);
+        insertStatistics.bindLong(2, accessPointId);
+        insertStatistics.bindLong(3, statistics.count);
+        insertStatistics.bindDouble(4, statistics.sum);
+        insertStatistics.bindDouble(5, statistics.sumSquares);
+        insertStatistics.bindDouble(6, statistics.min);
+        insertStatistics.bindDouble(7, statistics.max);
+        insertStatistics.bindDouble(8, statistics.getMedian());
+        insertStatistics.bindBlob(9, statistics.getHistogramBlob());
+        insertStatistics.executeInsert();
+    }
+
+    /**
+     * SQLiteStatement does not accept null strings, thus bind null explicitly when needed.
+     * @param statement
+     * @param index
+     * @param value
+     */
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value){
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Function add a location to a database if doesn't exist and return the id of the location.
+     * Since (lat, lng, floor) is a UNIQUE key, the location is found with a single indexed lookup.
+     * If it exists its room and building are updated by the primary key, otherwise it is inserted.
+     * A real "INSERT ... ON CONFLICT DO UPDATE" upsert is only available from SQLite 3.24
+     * (Android 11), thus it can't be used with the min SDK of the app.
+     * @param location
+     * @return id of the location or -1 if it failed
+     */
+    public long addOrUpdateLocation(IndoorLocation location){
+        // The database connection is cached so it's not expensive to call getWriteableDatabase() multiple times.
+        SQLiteDatabase db = getWritableDatabase();
+        long locationId = -1;
+
+        // It's a good idea to wrap our insert in a transaction. This helps with performance and ensures
+        // consistency of the database.
+        db.beginTransaction();
+        SQLiteStatement selectLocation = db.compileStatement(SELECT_LOCATION_ID_STATEMENT);
+        try {
+            // Look the location up by the unique key
+            selectLocation.bindDouble(1, location.lat);
+            selectLocation.bindDouble(2, location.lng);
+            selectLocation.bindLong(3, location.floor);
+            try {
+                locationId = selectLocation.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                // no such location yet
+                locationId = -1;
+            }
+
+            // Put the location values into database structure
+            ContentValues values = new ContentValues();
+            values.put(KEY_ROOM, location.room);
+            values.put(KEY_BUILDING, location.building);
+
+            if (locationId != -1) {
+                // location already exists, only the room and building might have changed
+                db.update(TABLE_INDOOR_LOCATIONS, values, KEY_LOCATION_ID + "= ?",
+                        new String[]{String.valueOf(locationId)});
+            } else {
+                // location with these parameters did not already exist, so insert a new one
+                values.put(KEY_FLOOR, location.floor);
+                values.put(KEY_LAT, location.lat);
+                values.put(KEY_LNG, location.lng);
+                locationId = db.insertOrThrow(TABLE_INDOOR_LOCATIONS, null, values);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to add or update location");
+            locationId = -1;
+        } finally {
+            selectLocation.close();
+            db.endTransaction();
+        }
+        return locationId;
+    }
+
+    /**
+     * Function for getting all of the signals in the database at once. This is being used to query
+     * the database for the signals. Signals of the same location share the same IndoorLocation instance.
+     * For large databases prefer forEachSignal(), which doesn't keep all of the signals in memory.
+     * @return
+     */
+    public List<IndoorSignal> getAllSignals() {
+        return getAllSignals(null);
+    }
+
+    /**
+     * Same as getAllSignals() but the query can be cancelled, see forEachSignal().
+     * @param cancellationSignal
+     * @return
+     */
+    public List<IndoorSignal> getAllSignals(CancellationSignal cancellationSignal) {
+        final List<IndoorSignal> signals = new ArrayList<>();
+        forEachSignal(new SignalVisitor() {
+            @Override
+            public void onSignal(long locationId, IndoorLocation location, int accessPointId, String bssid,
+                                 String ssid, double level, long timestamp) {
+                // Add that to the returnable list
+                IndoorSignal signal = new IndoorSignal(location, bssid, ssid, level, timestamp);
+                signal.accessPointId = accessPointId;
+                signals.add(signal);
+            }
+        }, cancellationSignal);
+        return signals;
+    }
+
+    /**
+     * Streams every signal in the database through the visitor without building a list of them.
+     * Column indexes are looked up once before reading the rows and only one IndoorLocation
+     * instance is created for every location id, thus memory stays the same no matter how
+     * many signals are stored.
+     * @param visitor
+     */
+    public void forEachSignal(SignalVisitor visitor) {
+        forEachSignal(visitor, null);
+    }
+
+    /**
+     * Same as forEachSignal(visitor) but the query can be cancelled from another thread, in which
+     * case OperationCanceledException is thrown.
+     * @param visitor
+     * @param cancellationSignal    - can be null
+     */
+    public void forEachSignal(SignalVisitor visitor, CancellationSignal cancellationSignal) {
+        // SELECT SIGNALS.*, ACCESS POINTS.*, LOCATIONS.* FROM SIGNALS
+        // JOIN LOCATIONS ON SIGNALS.KEY_SIGNAL_LOCATION_ID_FK = LOCATIONS.KEY_LOCATION_ID
+        // LEFT JOIN ACCESS POINTS ON SIGNALS.KEY_SIGNAL_ACCESS_POINT_ID_FK = ACCESS POINTS.KEY_ACCESS_POINT_ID
+        String SIGNALS_SELECT_QUERY = String.format(
+                "SELECT s.%s, s.%s, s.%s, a.%s, a.%s, s.%s, l.%s, l.%s, l.%s, l.%s, l.%s FROM %s s " +
+                        "JOIN %s l ON s.%s = l.%s LEFT JOIN %s a ON s.%s = a.%s",
+                KEY_SIGNAL_LOCATION_ID_FK, KEY_TIMESTAMP, KEY_SIGNAL_ACCESS_POINT_ID_FK, KEY_AP_BSSID, KEY_AP_SSID,
+                KEY_LEVEL, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG,
+                TABLE_INDOOR_SIGNALS, TABLE_INDOOR_LOCATIONS, KEY_SIGNAL_LOCATION_ID_FK, KEY_LOCATION_ID,
+                TABLE_ACCESS_POINTS, KEY_SIGNAL_ACCESS_POINT_ID_FK, KEY_ACCESS_POINT_ID);
+
+        // "getReadableDatabase()" and "getWriteableDatabase()" return the same object (except under low
+        // disk space scenarios)
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(SIGNALS_SELECT_QUERY, null, cancellationSignal);
+        try {
+            // Column indexes are the same for every row, thus find them only once
+            int locationIdIndex = cursor.getColumnIndexOrThrow(KEY_SIGNAL_LOCATION_ID_FK);
+            int timestampIndex = cursor.getColumnIndexOrThrow(KEY_TIMESTAMP);
+            int accessPointIdIndex = cursor.getColumnIndexOrThrow(KEY_SIGNAL_ACCESS_POINT_ID_FK);
+            int bssidIndex = cursor.getColumnIndexOrThrow(KEY_AP_BSSID);
+            int ssidIndex = cursor.getColumnIndexOrThrow(KEY_AP_SSID);
+            int levelIndex = cursor.getColumnIndexOrThrow(KEY_LEVEL);
+            int floorIndex = cursor.getColumnIndexOrThrow(KEY_FLOOR);
+            int roomIndex = cursor.getColumnIndexOrThrow(KEY_ROOM);
+            int buildingIndex = cursor.getColumnIndexOrThrow(KEY_BUILDING);
+            int latIndex = cursor.getColumnIndexOrThrow(KEY_LAT);
+            int lngIndex = cursor.getColumnIndexOrThrow(KEY_LNG);
+
+            // Locations are created only once per location id and then reused
+            Map<Long, IndoorLocation> locationsById = new HashMap<>();
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(locationIdIndex);
+                IndoorLocation location = locationsById.get(locationId);
+                if (location == null) {
+                    location = new IndoorLocation(cursor.getLong(floorIndex), cursor.getString(roomIndex),
+                            cursor.getString(buildingIndex), cursor.getDouble(latIndex), cursor.getDouble(lngIndex));
+                    locationsById.put(locationId, location);
+                }
+                // signals without a router have a NULL id, which is read as AccessPointDictionary.UNKNOWN
+                visitor.onSignal(locationId, location, cursor.getInt(accessPointIdIndex),
+                        cursor.getString(bssidIndex), cursor.getString(ssidIndex),
+                        cursor.getDouble(levelIndex), cursor.getLong(timestampIndex));
+            }
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to get signals from database");
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Streams the locations of a single floor together with the number of samples collected in
+     * each of them. Only the locations table is read through its floor index, the counts come from
+     * the statistics primary key, thus no signal is read no matter how many were collected.
+     * The query can be cancelled from another thread, in which case OperationCanceledException is thrown.
+     * @param floor
+     * @param visitor
+     * @param cancellationSignal    - can be null
+     */
+    public void forEachLocation(long floor, LocationVisitor visitor, CancellationSignal cancellationSignal) {
+        queryLocations("l." + KEY_FLOOR + " = ?", new String[]{String.valueOf(floor)}, visitor, cancellationSignal);
+    }
+
+    /**
+     * Returns the locations on the floor inside the box given by two of its opposite corners (in
+     * any order), together with the number of samples collected in each of them. Only the grid
+     * cells the box overlaps are read from the floor index, see boxWhereClause(), thus the time
+     * depends on the size of the box and not on the size of the floor.
+     * @param floor
+     * @param lat1
+     * @param lng1
+     * @param lat2
+     * @param lng2
+     * @param cancellationSignal    - can be null, OperationCanceledException is thrown when cancelled
+     * @return
+     */
+    public List<SampledLocation> getLocationsInBox(long floor, double lat1, double lng1, double lat2, double lng2,
+                                                   CancellationSignal cancellationSignal) {
+        final List<SampledLocation> locations = new ArrayList<>();
+        List<String> whereArgs = new ArrayList<>();
+        String whereClause = boxWhereClause("l.", floor, lat1, lng1, lat2, lng2, whereArgs);
+        queryLocations(whereClause, whereArgs.toArray(new String[whereArgs.size()]), new LocationVisitor() {
+            @Override
+            public void onLocation(SampledLocation location) {
+                locations.add(location);
+            }
+        }, cancellationSignal);
+        return locations;
+    }
+
+    /**
+     * Returns the locations on the floor at most radius metres away from the given point. The box
+     * around the circle is looked up with getLocationsInBox() and its corners are then left out.
+     * @param floor
+     * @param lat
+     * @param lng
+     * @param radius                - in metres
+     * @param cancellationSignal    - can be null, OperationCanceledException is thrown when cancelled
+     * @return
+     */
+    public List<SampledLocation> getLocationsWithin(long floor, double lat, double lng, double radius,
+                                                    CancellationSignal cancellationSignal) {
+        double latDelta = GridCell.latitudeDegrees(radius);
+        double lngDelta = GridCell.longitudeDegrees(radius, lat);
+        List<SampledLocation> locations = getLocationsInBox(floor, lat - latDelta, lng - lngDelta,
+                lat + latDelta, lng + lngDelta, cancellationSignal);
+
+        List<SampledLocation> within = new ArrayList<>();
+        for (SampledLocation location : locations) {
+            if (GridCell.distance(lat, lng, location.lat, location.lng) <= radius) {
+                within.add(location);
+            }
+        }
+        return within;
+    }
+
+    /**
+     * Builds the where clause of the locations on the floor inside a box. The cells of one grid row
+     * are a single range of numbers, thus every row the box overlaps is one range of the (floor, cell)
+     * index. Very tall boxes are looked up as one range from the first to the last cell instead, so
+     * the statement stays small. Either way the exact coordinates are compared afterwards.
+     * @param alias     - prefix of the columns, such as "l." or ""
+     * @param floor
+     * @param lat1
+     * @param lng1
+     * @param lat2
+     * @param lng2
+     * @param whereArgs - the arguments of the clause are added to it
+     * @return
+     */
+    private static String boxWhereClause(String alias, long floor, double lat1, double lng1, double lat2, double lng2,
+                                         List<String> whereArgs) {
+        double minLat = Math.min(lat1, lat2);
+        double maxLat = Math.max(lat1, lat2);
+        double minLng = Math.min(lng1, lng2);
+        double maxLng = Math.max(lng1, lng2);
+        long firstRow = GridCell.row(minLat);
+        long lastRow = GridCell.row(maxLat);
+        long firstColumn = GridCell.column(minLng);
+        long lastColumn = GridCell.column(maxLng);
+
+        StringBuilder whereClause = new StringBuilder(alias + KEY_FLOOR + " = ? AND (");
+        whereArgs.add(String.valueOf(floor));
+        if (lastRow - firstRow < MAX_BOX_ROWS) {
+            for (long row = firstRow; row <= lastRow; row++) {
+                whereClause.append(row == firstRow ? "" : " OR ").append(alias).append(KEY_CELL).append(" BETWEEN ? AND ?");
+                whereArgs.add(String.valueOf(GridCell.of(row, firstColumn)));
+                whereArgs.add(String.valueOf(GridCell.of(row, lastColumn)));
+            }
+        } else {
+            whereClause.append(alias).append(KEY_CELL).append(" BETWEEN ? AND ?");
+            whereArgs.add(String.valueOf(GridCell.of(firstRow, firstColumn)));
+            whereArgs.add(String.valueOf(GridCell.of(lastRow, lastColumn)));
+        }
+        whereClause.append(") AND ").append(alias).append(KEY_LAT).append(" BETWEEN ? AND ? AND ")
+                .append(alias).append(KEY_LNG).append(" BETWEEN ? AND ?");
+        whereArgs.add(String.valueOf(minLat));
+        whereArgs.add(String.valueOf(maxLat));
+        whereArgs.add(String.valueOf(minLng));
+        whereArgs.add(String.valueOf(maxLng));
+        return whereClause.toString();
+    }
+
+    /**
+     * Streams the locations matching the where clause (columns of the locations table prefixed with
+     * "l.") together with the number of samples collected in each of them.
+     * @param whereClause
+     * @param whereArgs
+     * @param visitor
+     * @param cancellationSignal    - can be null
+     */
+    private void queryLocations(String whereClause, String[] whereArgs, LocationVisitor visitor,
+                                CancellationSignal cancellationSignal) {
+        // SELECT LOCATIONS.*, (SELECT SUM(STATISTICS.KEY_STATS_COUNT) FROM STATISTICS
+        // WHERE STATISTICS.KEY_STATS_LOCATION_ID_FK = LOCATIONS.KEY_LOCATION_ID) FROM LOCATIONS WHERE ...
+        String LOCATIONS_SELECT_QUERY = String.format(
+                "SELECT l.%s, l.%s, l.%s, l.%s, l.%s, l.%s, " +
+                        "(SELECT IFNULL(SUM(s.%s), 0) FROM %s s WHERE s.%s = l.%s) FROM %s l WHERE %s",
+                KEY_LOCATION_ID, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG,
+                KEY_STATS_COUNT, TABLE_SIGNAL_STATISTICS, KEY_STATS_LOCATION_ID_FK, KEY_LOCATION_ID,
+                TABLE_INDOOR_LOCATIONS, whereClause);
+
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(LOCATIONS_SELECT_QUERY, whereArgs, cancellationSignal);
+        try {
+            while (cursor.moveToNext()) {
+                visitor.onLocation(new SampledLocation(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getDouble(4), cursor.getDouble(5), cursor.getLong(6)));
+            }
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to get locations from database");
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the count, average, min and max signal level of every router in a single location,
+     * strongest average first. The statistics table already holds them aggregated by location and
+     * router, thus this is one lookup through the unique key of the location and the primary key
+     * of the statistics. It takes the same time no matter how much else is stored in the database,
+     * and it also counts the samples whose raw signals were already compacted.
+     * @param location
+     * @param cancellationSignal    - can be null, OperationCanceledException is thrown when cancelled
+     * @return summary of every router, empty if the location is not stored
+     */
+    public List<SignalSummary> getSignalSummary(IndoorLocation location, CancellationSignal cancellationSignal) {
+        // SELECT ACCESS POINTS.*, STATISTICS.* FROM LOCATIONS
+        // JOIN STATISTICS ON STATISTICS.KEY_STATS_LOCATION_ID_FK = LOCATIONS.KEY_LOCATION_ID
+        // JOIN ACCESS POINTS ON STATISTICS.KEY_STATS_ACCESS_POINT_ID_FK = ACCESS POINTS.KEY_ACCESS_POINT_ID
+        // WHERE LOCATIONS.KEY_LAT = ? AND LOCATIONS.KEY_LNG = ? AND LOCATIONS.KEY_FLOOR = ?
+        String SUMMARY_SELECT_QUERY = String.format(
+                "SELECT a.%s, a.%s, a.%s, s.%s, s.%s / s.%s AS average, s.%s, s.%s FROM %s l " +
+                        "JOIN %s s ON s.%s = l.%s JOIN %s a ON s.%s = a.%s " +
+                        "WHERE l.%s = ? AND l.%s = ? AND l.%s = ? AND s.%s > 0 ORDER BY average DESC",
+                KEY_ACCESS_POINT_ID, KEY_AP_BSSID, KEY_AP_SSID, KEY_STATS_COUNT, KEY_STATS_SUM, KEY_STATS_COUNT,
+                KEY_STATS_MIN, KEY_STATS_MAX, TABLE_INDOOR_LOCATIONS,
+                TABLE_SIGNAL_STATISTICS, KEY_STATS_LOCATION_ID_FK, KEY_LOCATION_ID,
+                TABLE_ACCESS_POINTS, KEY_STATS_ACCESS_POINT_ID_FK, KEY_ACCESS_POINT_ID,
+                KEY_LAT, KEY_LNG, KEY_FLOOR, KEY_STATS_COUNT);
+
+        List<SignalSummary> summaries = new ArrayList<>();
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(SUMMARY_SELECT_QUERY, new String[]{String.valueOf(location.lat),
+                String.valueOf(location.lng), String.valueOf(location.floor)}, cancellationSignal);
+        try {
+            while (cursor.moveToNext()) {
+                SignalSummary summary = new SignalSummary();
+                summary.accessPointId = cursor.getInt(0);
+                summary.bssid = cursor.getString(1);
+                summary.ssid = cursor.getString(2);
+                summary.count = cursor.getLong(3);
+                summary.average = cursor.getDouble(4);
+                summary.min = cursor.getDouble(5);
+                summary.max = cursor.getDouble(6);
+                summaries.add(summary);
+            }
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to get signal summary from database");
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Folds every raw signal in the database into processed signals (averages and medians) of every
+     * location. Signals are streamed through a RadioMapBuilder, thus memory depends on the number of
+     * locations and routers only and not on the number of collected signals. Normally
+     * getProcessedSignals() is cheaper, this reads the raw signals and is mostly useful to check
+     * the statistics table against them.
+     * @return
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedFromAllSignals() {
+        return getProcessedFromAllSignals(null);
+    }
+
+    /**
+     * Same as getProcessedFromAllSignals() but the query can be cancelled, see forEachSignal().
+     * @param cancellationSignal
+     * @return
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedFromAllSignals(CancellationSignal cancellationSignal) {
+        RadioMapBuilder builder = new RadioMapBuilder();
+        forEachSignal(builder, cancellationSignal);
+        return builder.build();
+    }
+
+    /**
+     * Function for getting the already processed signals of every location. Unlike getAllSignals
+     * this only reads the statistics table, which has a single row per location and router, thus
+     * the cost doesn't grow with the number of scans taken in every location.
+     * The returned map has the same structure as the one returned by WifiCollector.getProcessed().
+     * @return
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedSignals() {
+        return getProcessedSignals(null);
+    }
+
+    /**
+     * Same as getProcessedSignals() but the query can be cancelled from another thread, in which
+     * case OperationCanceledException is thrown.
+     * @param cancellationSignal    - can be null
+     * @return
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedSignals(CancellationSignal cancellationSignal) {
+        return queryProcessedSignals(null, null, cancellationSignal);
+    }
+
+    /**
+     * Same as getProcessedSignals() but only for the locations of a single floor, which are found
+     * through the index on the floor column.
+     * @param floor
+     * @return
+     */
+    @Override
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedSignals(long floor) {
+        return getProcessedSignals(floor, null);
+    }
+
+    /**
+     * Same as getProcessedSignals(floor) but the query can be cancelled.
+     * @param floor
+     * @param cancellationSignal    - can be null
+     * @return
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedSignals(long floor, CancellationSignal cancellationSignal) {
+        return queryProcessedSignals("l." + KEY_FLOOR + " = ?", new String[]{String.valueOf(floor)}, cancellationSignal);
+    }
+
+    /**
+     * Same as getProcessedSignals() but only for the locations with the given ids, which are found
+     * through the primary key. Used to re-read the locations of a DatabaseChange, thus the time
+     * depends only on the size of the change. Locations without any statistics are not returned.
+     * @param locationIds
+     * @param cancellationSignal    - can be null
+     * @return
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedSignals(Collection<Long> locationIds,
+                                                                       CancellationSignal cancellationSignal) {
+        Map<IndoorLocation, List<ProcessedSignal>> processedMap = new HashMap<>();
+        List<Long> ids = new ArrayList<>(locationIds);
+        // a statement can't have more than 999 arguments
+        for (int from = 0; from < ids.size(); from += MAX_STATEMENT_ARGUMENTS) {
+            int to = Math.min(from + MAX_STATEMENT_ARGUMENTS, ids.size());
+            StringBuilder where = new StringBuilder("l.").append(KEY_LOCATION_ID).append(" IN (");
+            String[] whereArgs = new String[to - from];
+            for (int i = from; i < to; i++) {
+                where.append(i == from ? "?" : ", ?");
+                whereArgs[i - from] = String.valueOf(ids.get(i));
+            }
+            where.append(')');
+            processedMap.putAll(queryProcessedSignals(where.toString(), whereArgs, cancellationSignal));
+        }
+        return processedMap;
+    }
+
+    /**
+     * Reads the statistics table joined with the locations and creates the processed signals.
+     * @param where     - optional condition on the joined tables (l - locations, s - statistics)
+     * @param whereArgs - arguments of the condition
+     * @param cancellationSignal - can be null
+     * @return
+     */
+    private Map<IndoorLocation, List<ProcessedSignal>> queryProcessedSignals(String where, String[] whereArgs,
+                                                                            CancellationSignal cancellationSignal) {
+        Map<IndoorLocation, List<ProcessedSignal>> processedMap = new HashMap<>();
+
+        // SELECT LOCATIONS.*, STATISTICS.*, ACCESS POINTS.* FROM STATISTICS
+        // JOIN LOCATIONS ON STATISTICS.KEY_STATS_LOCATION_ID_FK = LOCATIONS.KEY_LOCATION_ID
+        // JOIN ACCESS POINTS ON STATISTICS.KEY_STATS_ACCESS_POINT_ID_FK = ACCESS POINTS.KEY_ACCESS_POINT_ID
+        String STATISTICS_SELECT_QUERY = String.format(
+                "SELECT l.%s, l.%s, l.%s, l.%s, l.%s, l.%s, s.%s, a.%s, a.%s, s.%s, s.%s, s.%s FROM %s s " +
+                        "JOIN %s l ON s.%s = l.%s JOIN %s a ON s.%s = a.%s",
+                KEY_LOCATION_ID, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG,
+                KEY_STATS_ACCESS_POINT_ID_FK, KEY_AP_BSSID, KEY_AP_SSID, KEY_STATS_COUNT, KEY_STATS_SUM, KEY_STATS_MEDIAN,
+                TABLE_SIGNAL_STATISTICS, TABLE_INDOOR_LOCATIONS, KEY_STATS_LOCATION_ID_FK, KEY_LOCATION_ID,
+                TABLE_ACCESS_POINTS, KEY_STATS_ACCESS_POINT_ID_FK, KEY_ACCESS_POINT_ID);
+        if (where != null) {
+            STATISTICS_SELECT_QUERY += " WHERE " + where;
+        }
+
+        // Every location is created only once and then shared by all of its signals
+        Map<Long, List<ProcessedSignal>> signalsById = new HashMap<>();
+        Map<Long, IndoorLocation> locationsById = new HashMap<>();
+
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(STATISTICS_SELECT_QUERY, whereArgs, cancellationSignal);
+        try {
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(0);
+                IndoorLocation location = locationsById.get(locationId);
+                List<ProcessedSignal> signals = signalsById.get(locationId);
+                if (location == null) {
+                    location = new IndoorLocation(cursor.getLong(1), cursor.getString(2),
+                            cursor.getString(3), cursor.getDouble(4), cursor.getDouble(5));
+                    signals = new ArrayList<>();
+                    locationsById.put(locationId, location);
+                    signalsById.put(locationId, signals);
+                    processedMap.put(location, signals);
+                }
+
+                ProcessedSignal processedSignal = new ProcessedSignal();
+                processedSignal.location = location;
+                processedSignal.accessPointId = cursor.getInt(6);
+                processedSignal.bssid = cursor.getString(7);
+                processedSignal.ssid = cursor.getString(8);
+                processedSignal.average = cursor.getDouble(10) / cursor.getLong(9);
+                processedSignal.median = cursor.getDouble(11);
+                signals.add(processedSignal);
+            }
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to get signal statistics from database");
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+        return processedMap;
+    }
+
+    /**
+     * Returns the totals of every router which was collected in at least one location. The access
+     * point statistics table is kept up to date by triggers, thus this reads one small row per
+     * router no matter how many signals were collected.
+     * @return priors by router id
+     */
+    public Map<Integer, AccessPointPrior> getAccessPointPriors() {
+        Map<Integer, AccessPointPrior> priors = new HashMap<>();
+        queryAccessPointPriors(null, null, priors);
+        return priors;
+    }
+
+    /**
+     * Same as getAccessPointPriors() but only for the routers with the given ids, which are found
+     * through the primary key. Used to update the priors after a DatabaseChange, thus the time
+     * depends only on the number of routers in the change. Routers without any samples are not returned.
+     * @param accessPointIds
+     * @return priors by router id
+     */
+    public Map<Integer, AccessPointPrior> getAccessPointPriors(Collection<Integer> accessPointIds) {
+        Map<Integer, AccessPointPrior> priors = new HashMap<>();
+        List<Integer> ids = new ArrayList<>(accessPointIds);
+        // a statement can't have more than 999 arguments
+        for (int from = 0; from < ids.size(); from += MAX_STATEMENT_ARGUMENTS) {
+            int to = Math.min(from + MAX_STATEMENT_ARGUMENTS, ids.size());
+            StringBuilder where = new StringBuilder(KEY_AP_STATS_ACCESS_POINT_ID_FK).append(" IN (");
+            String[] whereArgs = new String[to - from];
+            for (int i = from; i < to; i++) {
+                where.append(i == from ? "?" : ", ?");
+                whereArgs[i - from] = String.valueOf(ids.get(i));
+            }
+            where.append(')');
+            queryAccessPointPriors(where.toString(), whereArgs, priors);
+        }
+        return priors;
+    }
+
+    /**
+     * Reads the access point statistics table into priors.
+     * @param where     - optional condition on the table
+     * @param whereArgs - arguments of the condition
+     * @param priors    - the priors are put here by router id
+     */
+    private void queryAccessPointPriors(String where, String[] whereArgs, Map<Integer, AccessPointPrior> priors) {
+        SQLiteDatabase db = getReadableDatabase();
+        String selection = KEY_AP_STATS_SAMPLE_COUNT + " > 0";
+        if (where != null) {
+            selection += " AND " + where;
+        }
+        Cursor cursor = db.query(TABLE_ACCESS_POINT_STATISTICS, new String[]{KEY_AP_STATS_ACCESS_POINT_ID_FK,
+                        KEY_AP_STATS_LOCATION_COUNT, KEY_AP_STATS_SAMPLE_COUNT, KEY_AP_STATS_SUM,
+                        KEY_AP_STATS_SUM_SQUARES, KEY_AP_STATS_LAST_SEEN},
+                selection, whereArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                AccessPointPrior prior = new AccessPointPrior();
+                prior.accessPointId = cursor.getInt(0);
+                prior.locationCount = cursor.getLong(1);
+                prior.sampleCount = cursor.getLong(2);
+                prior.average = cursor.getDouble(3) / prior.sampleCount;
+                // E[x^2] - E[x]^2, rounding can make it slightly negative
+                prior.variance = Math.max(0, cursor.getDouble(4) / prior.sampleCount - prior.average * prior.average);
+                prior.lastSeen = cursor.isNull(5) ? 0 : cursor.getLong(5);
+                priors.put(prior.accessPointId, prior);
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to get access point priors from database");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the id of the router, which signals are compared by when positioning. Looked up in
+     * memory, the access points table is only read the first time.
+     * @param bssid
+     * @return id of the router or 0 if it was never collected
+     */
+    public int getAccessPointId(String bssid) {
+        return accessPoints.getId(getReadableDatabase(), bssid);
+    }
+
+    /**
+     * Returns a number which grows whenever the radio map changes: every inserted, updated or
+     * deleted location, signal or statistics row increments it (see createDataVersion()), also
+     * room changes and merges, and it is never decremented, thus a version is never repeated.
+     * Used to tell if a RadioMapSnapshot or a shard is out of date.
+     * @return
+     */
+    public long getDataVersion() {
+        String DATA_VERSION_QUERY = "SELECT " + KEY_DATA_VERSION + " FROM " + TABLE_DATA_VERSION;
+
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(DATA_VERSION_QUERY, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to get data version from database");
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compiles the processed signals of every location into a RadioMapSnapshot file, which the
+     * positioning can map into memory instead of querying the database.
+     * @param exportPath
+     * @return true if the snapshot was written
+     * @throws IOException
+     */
+    public boolean exportRadioMapSnapshot(String exportPath) throws IOException {
+        // Read without a transaction, which on Android would always take the write lock and stop the
+        // collection meanwhile. The version only grows, thus if it's the same after the signals were
+        // read nothing was changed in between and the version matches the signals
+        for (int attempt = 0; attempt < MAX_EXPORT_ATTEMPTS; attempt++) {
+            long dataVersion = getDataVersion();
+            if (dataVersion == -1) {
+                return false;
+            }
+            Map<IndoorLocation, List<ProcessedSignal>> processedMap = getProcessedSignals();
+            if (getDataVersion() == dataVersion) {
+                RadioMapSnapshot.write(processedMap, dataVersion, new File(exportPath));
+                return true;
+            }
+        }
+        Log.d(TAG, "The radio map kept changing, the snapshot wasn't compiled");
+        return false;
+    }
+
+    /**
+     * Writes the whole radio map, including the raw signals, into a RadioMapArchive file. It is a
+     * lot smaller than the copy of the database made by exportDatabase(), thus better suited for
+     * passing the collected data between devices. mergeDatabase() accepts it the same as a database.
+     * Everything is streamed through cursors, so memory doesn't depend on the number of signals.
+     * @param exportPath
+     * @return true if the archive was written
+     * @throws IOException
+     */
+    public boolean exportRadioMapArchive(String exportPath) throws IOException {
+        File file = new File(exportPath).getAbsoluteFile();
+        // Every export gets its own temporary file next to the destination, thus two exports never
+        // write into the same one
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+
+        // Read without a transaction, which would take the write lock for as long as the whole archive
+        // is compressed and written. If the version is the same once everything was read, nothing was
+        // changed in between, thus the signals match the statistics. Otherwise it's read again
+        for (int attempt = 0; attempt < MAX_EXPORT_ATTEMPTS; attempt++) {
+            long dataVersion = getDataVersion();
+            boolean written = false;
+            try {
+                writeRadioMapArchive(tmpFile, dataVersion);
+                written = getDataVersion() == dataVersion;
+            } finally {
+                if (!written) {
+                    tmpFile.delete();
+                }
+            }
+            if (written) {
+                // Replace the old file only once the new one is complete
+                if (!tmpFile.renameTo(file)) {
+                    tmpFile.delete();
+                    throw new IOException("Could not write " + file.getAbsolutePath());
+                }
+                return true;
+            }
+        }
+        Log.d(TAG, "The radio map kept changing, the archive wasn't written");
+        return false;
+    }
+
+    /**
+     * Streams the whole radio map into the archive file, see exportRadioMapArchive().
+     * @param tmpFile
+     * @param dataVersion   - written into the header
+     * @throws IOException
+     */
+    private void writeRadioMapArchive(File tmpFile, long dataVersion) throws IOException {
+        // With write-ahead logging the reads don't wait for the writes, nor the other way around
+        SQLiteDatabase db = getReadableDatabase();
+        RadioMapArchive.Writer writer = null;
+        Cursor cursor = null;
+        try {
+            writer = new RadioMapArchive.Writer(new FileOutputStream(tmpFile), dataVersion);
+            // Locations, rows reference them by their position in the file
+            Map<Long, Integer> locationIndexes = new HashMap<>();
+            List<IndoorLocation> locations = new ArrayList<>();
+            cursor = db.query(TABLE_INDOOR_LOCATIONS,
+                    new String[]{KEY_LOCATION_ID, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG},
+                    null, null, null, null, KEY_LOCATION_ID);
+            while (cursor.moveToNext()) {
+                locationIndexes.put(cursor.getLong(0), locations.size());
+                locations.add(new IndoorLocation(cursor.getLong(1), cursor.getString(2), cursor.getString(3),
+                        cursor.getDouble(4), cursor.getDouble(5)));
+            }
+            cursor.close();
+            writer.writeLocations(locations);
+
+            // Routers, the same way
+            Map<Integer, Integer> accessPointIndexes = new HashMap<>();
+            List<Integer> accessPointIds = new ArrayList<>();
+            List<String> bssids = new ArrayList<>();
+            List<String> ssids = new ArrayList<>();
+            cursor = db.query(TABLE_ACCESS_POINTS, new String[]{KEY_ACCESS_POINT_ID, KEY_AP_BSSID, KEY_AP_SSID},
+                    null, null, null, null, KEY_ACCESS_POINT_ID);
+            while (cursor.moveToNext()) {
+                accessPointIndexes.put(cursor.getInt(0), accessPointIds.size());
+                accessPointIds.add(cursor.getInt(0));
+                bssids.add(cursor.getString(1));
+                ssids.add(cursor.getString(2));
+            }
+            cursor.close();
+            writer.writeAccessPoints(accessPointIds, bssids, ssids);
+
+            // Statistics in the order of their primary key, thus no sorting is needed
+            cursor = db.query(TABLE_SIGNAL_STATISTICS,
+                    new String[]{KEY_STATS_LOCATION_ID_FK, KEY_STATS_ACCESS_POINT_ID_FK, KEY_STATS_HISTOGRAM},
+                    null, null, null, null, KEY_STATS_LOCATION_ID_FK + ", " + KEY_STATS_ACCESS_POINT_ID_FK);
+            while (cursor.moveToNext()) {
+                Integer location = locationIndexes.get(cursor.getLong(0));
+                Integer accessPoint = accessPointIndexes.get(cursor.getInt(1));
+                if (location == null || accessPoint == null) {
+                    continue;
+                }
+                SignalStatistics statistics = new SignalStatistics();
+                statistics.setHistogramBlob(cursor.getBlob(2));
+                writer.addStatistics(location, accessPoint, statistics);
+            }
+            cursor.close();
+
+            // Signals in the order of the location index, which keeps them in the order they were added
+            cursor = db.query(TABLE_INDOOR_SIGNALS,
+                    new String[]{KEY_SIGNAL_LOCATION_ID_FK, KEY_SIGNAL_ACCESS_POINT_ID_FK, KEY_TIMESTAMP, KEY_LEVEL},
+                    null, null, null, null, KEY_SIGNAL_LOCATION_ID_FK + ", " + KEY_SIGNAL_ID);
+            while (cursor.moveToNext()) {
+                Integer location = locationIndexes.get(cursor.getLong(0));
+                if (location == null) {
+                    continue;
+                }
+                Integer accessPoint = cursor.isNull(1) ? null : accessPointIndexes.get(cursor.getInt(1));
+                writer.addSignal(location, accessPoint == null ? -1 : accessPoint, cursor.getLong(2), cursor.getDouble(3));
+            }
+        } finally {
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Same as updateLocationRoom() but done on the writer thread.
+     * @param location
+     * @param listener  - receives the number of updated locations
+     * @return
+     */
+    public Future<Integer> updateLocationRoomAsync(final IndoorLocation location,
+                                                   OnWriteFinishedListener<Integer> listener) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return updateLocationRoom(location);
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as deleteAllLocationsAndSignals() but done on the writer thread.
+     * @param listener
+     * @return
+     */
+    public Future<Void> deleteAllLocationsAndSignalsAsync(OnWriteFinishedListener<Void> listener) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                deleteAllLocationsAndSignals();
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as deleteSingleLocation() but done on the writer thread.
+     * @param location
+     * @param listener  - receives the number of deleted locations
+     * @return
+     */
+    public Future<Integer> deleteSingleLocationAsync(final IndoorLocation location,
+                                                     OnWriteFinishedListener<Integer> listener) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return deleteSingleLocation(location);
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as deleteLocationsOnFloor() but done on the writer thread.
+     * @param floor
+     * @param listener  - receives the number of deleted locations
+     * @return
+     */
+    public Future<Integer> deleteLocationsOnFloorAsync(final long floor, OnWriteFinishedListener<Integer> listener) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return deleteLocationsOnFloor(floor);
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as deleteLocationsInBuilding() but done on the writer thread.
+     * @param building
+     * @param listener  - receives the number of deleted locations
+     * @return
+     */
+    public Future<Integer> deleteLocationsInBuildingAsync(final String building, OnWriteFinishedListener<Integer> listener) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return deleteLocationsInBuilding(building);
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as deleteLocationsInBox() but done on the writer thread.
+     * @param floor
+     * @param lat1
+     * @param lng1
+     * @param lat2
+     * @param lng2
+     * @param listener  - receives the number of deleted locations
+     * @return
+     */
+    public Future<Integer> deleteLocationsInBoxAsync(final long floor, final double lat1, final double lng1,
+                                                     final double lat2, final double lng2,
+                                                     OnWriteFinishedListener<Integer> listener) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return deleteLocationsInBox(floor, lat1, lng1, lat2, lng2);
+            }
+        }, listener);
+    }
+
+    /**
+     * Same as deleteLocations() but done on the writer thread.
+     * @param locationIds
+     * @param listener  - receives the number of deleted locations
+     * @return
+     */
+    public Future<Integer> deleteLocationsAsync(List<Long> locationIds, OnWriteFinishedListener<Integer> listener) {
+        // copied, the caller might change the list before the write runs
+        final List<Long> ids = new ArrayList<>(locationIds);
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return deleteLocations(ids);
+            }
+        }, listener);
+    }
+
+    /**
+     * Sometimes the room is entered incorrectly thus we can update that
+     * @param location
+     * @return
+     */
+    public int updateLocationRoom(IndoorLocation location) {
+        SQLiteDatabase db = this.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_ROOM, location.room);
+
+        String whereClause = KEY_LAT + "= ? AND " + KEY_LNG + "= ? AND " + KEY_FLOOR + "= ?";
+        String[] whereArgs = new String[]{String.valueOf(location.lat), String.valueOf(location.lng),
+                String.valueOf(location.floor)};
+        // The location is read first in the same transaction, so the change can be published
+        List<SampledLocation> updated = null;
+        int rows = 0;
+        db.beginTransaction();
+        try {
+            if (!changeListeners.isEmpty()) {
+                updated = selectLocations(db, whereClause, whereArgs);
+                for (SampledLocation updatedLocation : updated) {
+                    updatedLocation.room = location.room;
+                }
+            }
+            // Updating the room of the location with these coordinates
+            rows = db.update(TABLE_INDOOR_LOCATIONS, values, whereClause, whereArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rows > 0 && updated != null) {
+            publishChange(DatabaseChange.updated(getDataVersion(), updated));
+        }
+        return rows;
+    }
+
+    /**
+     * Reads the locations matching the where clause, used to publish them before they are changed.
+     * Has to be called inside the transaction which changes them.
+     * @param db
+     * @param whereClause
+     * @param whereArgs
+     * @return the locations, sampleCount is always 0
+     */
+    private List<SampledLocation> selectLocations(SQLiteDatabase db, String whereClause, String[] whereArgs) {
+        List<SampledLocation> locations = new ArrayList<>();
+        Cursor cursor = db.query(TABLE_INDOOR_LOCATIONS,
+                new String[]{KEY_LOCATION_ID, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG},
+                whereClause, whereArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locations.add(new SampledLocation(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getDouble(4), cursor.getDouble(5), 0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locations;
+    }
+
+
+    /**
+     * Deletes every location on the floor. Signals and statistics of the locations are deleted by
+     * the cascading foreign keys, all in a single statement and transaction.
+     * @param floor
+     * @return number of deleted locations
+     */
+    public int deleteLocationsOnFloor(long floor) {
+        return deleteLocationsWhere(KEY_FLOOR + " = ?", new String[]{String.valueOf(floor)});
+    }
+
+    /**
+     * Deletes every location of the building, see deleteLocationsOnFloor().
+     * @param building  - null deletes the locations which have no building
+     * @return number of deleted locations
+     */
+    public int deleteLocationsInBuilding(String building) {
+        if (building == null) {
+            return deleteLocationsWhere(KEY_BUILDING + " IS NULL", null);
+        }
+        return deleteLocationsWhere(KEY_BUILDING + " = ?", new String[]{building});
+    }
+
+    /**
+     * Deletes every location on the floor inside the box given by two of its opposite corners
+     * (in any order), see deleteLocationsOnFloor(). The floor is needed because the floors of
+     * a building have the same coordinates.
+     * @param floor
+     * @param lat1
+     * @param lng1
+     * @param lat2
+     * @param lng2
+     * @return number of deleted locations
+     */
+    public int deleteLocationsInBox(long floor, double lat1, double lng1, double lat2, double lng2) {
+        List<String> whereArgs = new ArrayList<>();
+        String whereClause = boxWhereClause("", floor, lat1, lng1, lat2, lng2, whereArgs);
+        return deleteLocationsWhere(whereClause, whereArgs.toArray(new String[whereArgs.size()]));
+    }
+
+    /**
+     * Deletes the locations with the given ids, see deleteLocationsOnFloor(). Long lists are
+     * deleted in several statements, as a statement can't have more than 999 arguments, but
+     * still in a single transaction.
+     * @param locationIds
+     * @return number of deleted locations
+     */
+    public int deleteLocations(List<Long> locationIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        int deleted = 0;
+        // Deleted locations to publish once the transaction is committed
+        List<SampledLocation> deletedLocations = changeListeners.isEmpty() ? null : new ArrayList<SampledLocation>();
+        db.beginTransaction();
+        try {
+            for (int from = 0; from < locationIds.size(); from += MAX_STATEMENT_ARGUMENTS) {
+                int to = Math.min(from + MAX_STATEMENT_ARGUMENTS, locationIds.size());
+                StringBuilder where = new StringBuilder(KEY_LOCATION_ID).append(" IN (");
+                String[] whereArgs = new String[to - from];
+                for (int i = from; i < to; i++) {
+                    where.append(i == from ? "?" : ", ?");
+                    whereArgs[i - from] = String.valueOf(locationIds.get(i));
+                }
+                where.append(')');
+                if (deletedLocations != null) {
+                    deletedLocations.addAll(selectLocations(db, where.toString(), whereArgs));
+                }
+                deleted += db.delete(TABLE_INDOOR_LOCATIONS, where.toString(), whereArgs);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to delete locations");
+            deleted = 0;
+        } finally {
+            db.endTransaction();
+        }
+        if (deleted > 0 && deletedLocations != null) {
+            publishChange(DatabaseChange.deleted(getDataVersion(), deletedLocations));
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes the locations matching the where clause in a single transaction.
+     * @param whereClause
+     * @param whereArgs
+     * @return number of deleted locations, 0 if the delete failed
+     */
+    private int deleteLocationsWhere(String whereClause, String[] whereArgs) {
+        SQLiteDatabase db = getWritableDatabase();
+        int deleted = 0;
+        // Deleted locations to publish once the transaction is committed
+        List<SampledLocation> deletedLocations = null;
+        db.beginTransaction();
+        try {
+            if (!changeListeners.isEmpty()) {
+                deletedLocations = selectLocations(db, whereClause, whereArgs);
+            }
+            deleted = db.delete(TABLE_INDOOR_LOCATIONS, whereClause, whereArgs);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to delete locations");
+            deleted = 0;
+        } finally {
+            db.endTransaction();
+        }
+        if (deleted > 0 && deletedLocations != null) {
+            publishChange(DatabaseChange.deleted(getDataVersion(), deletedLocations));
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete all locations and signals in the database. Be careful because
+     * you won't be able to access ay of the deleted data anymore unless you backed up it
+     *
+     */
+    public void deleteAllLocationsAndSignals() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // Order of deletions is important when foreign key relationships exist.
+            // Firstly siganls have to be delete, which hold the reference to the locations
+            db.delete(TABLE_INDOOR_SIGNALS, null, null);
+            db.delete(TABLE_SIGNAL_STATISTICS, null, null);
+            db.delete(TABLE_INDOOR_LOCATIONS, null, null);
+            db.delete(TABLE_ACCESS_POINTS, null, null);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to delete all signals and location");
+        } finally {
+            db.endTransaction();
+            accessPoints.clear();
+        }
+        publishReset();
+    }
+
+    /**
+     * Runs compactSignals() on the writer thread, unless a compaction is already running or queued.
+     * @param maxAge    - raw signals older than this (in seconds) are deleted
+     * @return true if the compaction was started
+     */
+    public boolean compactSignalsInBackground(long maxAge) {
+        return compactSignalsInBackground(maxAge, null);
+    }
+
+    /**
+     * Same as compactSignalsInBackground() but the listener is told once the compaction is finished,
+     * e.g. to read the whole database only after it. If a compaction is already running or queued,
+     * the listener is told after that one, with 0 deleted signals.
+     * @param maxAge    - raw signals older than this (in seconds) are deleted
+     * @param listener  - receives the number of deleted signals, can be null
+     * @return true if the compaction was started
+     */
+    public boolean compactSignalsInBackground(final long maxAge, OnWriteFinishedListener<Integer> listener) {
+        if (!isCompacting.compareAndSet(false, true)) {
+            if (listener != null) {
+                // the writer thread runs the writes in order, thus this one comes after the compaction
+                submitWrite(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return 0;
+                    }
+                }, listener);
+            }
+            return false;
+        }
+        submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    int deleted = compactSignals(maxAge);
+                    Log.i(TAG, "Compaction deleted " + deleted + " raw signals");
+                    return deleted;
+                } finally {
+                    isCompacting.set(false);
+                }
+            }
+        }, listener);
+        return true;
+    }
+
+    /**
+     * Deletes raw signals older than maxAge and gives the freed space back to the file system.
+     * Every signal was already folded into the signal statistics when it was added, thus the raw
+     * rows are not needed for positioning: the statistics (counts, sums, min, max and the 1 dBm
+     * histogram the median comes from) stay exactly the same, so positioning results after the
+     * compaction are the same as before it (zero tolerance). Only getAllSignals() and
+     * getProcessedFromAllSignals() see fewer signals.
+     *
+     * Signals are deleted in batches of COMPACTION_BATCH_SIZE rows, each in its own transaction, thus
+     * the database isn't locked for long and signals can be collected meanwhile. If the compaction
+     * is interrupted, every finished batch stays deleted and the next run simply continues with the
+     * remaining old signals. Must not be called on the UI thread.
+     * @param maxAge    - raw signals older than this (in seconds) are deleted
+     * @return number of deleted signals
+     */
+    public int compactSignals(long maxAge) {
+        // timestamps of the signals are unix time in seconds
+        long olderThan = System.currentTimeMillis() / 1000 - maxAge;
+        int deleted = 0;
+
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement selectBatchEnd = db.compileStatement(SELECT_COMPACTION_BATCH_END_STATEMENT);
+        SQLiteStatement deleteBatch = db.compileStatement(DELETE_COMPACTION_BATCH_STATEMENT);
+        try {
+            long lastId = 0;    // signals are walked through in the order of their ids
+            while (true) {
+                db.beginTransaction();
+                try {
+                    selectBatchEnd.bindLong(1, lastId);
+                    selectBatchEnd.bindLong(2, olderThan);
+                    selectBatchEnd.bindLong(3, COMPACTION_BATCH_SIZE);
+                    long batchEnd = selectBatchEnd.simpleQueryForLong();
+                    if (batchEnd == -1) {
+                        // no more old signals
+                        db.setTransactionSuccessful();
+                        break;
+                    }
+                    deleteBatch.bindLong(1, lastId);
+                    deleteBatch.bindLong(2, batchEnd);
+                    deleteBatch.bindLong(3, olderThan);
+                    deleted += deleteBatch.executeUpdateDelete();
+                    lastId = batchEnd;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (deleted > 0) {
+                vacuumFreePages(db);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.d(TAG, "Error while trying to compact signals");
+        } finally {
+            selectBatchEnd.close();
+            deleteBatch.close();
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the pages freed by deleting signals to the file system. The database has to be in
+     * incremental auto vacuum mode for that, which needs a full VACUUM once to be turned on. After
+     * that only the free pages are removed, VACUUM_BATCH_PAGES at a time, each step a short write of
+     * its own, thus other connections (e.g. the catalog attaching the survey) get the lock in between.
+     * The full VACUUM rewrites the whole file and blocks every other write until it's finished, thus
+     * nothing else should read the whole database meanwhile, see compactSignalsInBackground(maxAge, listener).
+     * @param db
+     */
+    private void vacuumFreePages(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA auto_vacuum", null);
+        int autoVacuum;
+        try {
+            autoVacuum = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+
+        if (autoVacuum != 2) {
+            // 2 is INCREMENTAL. Changing the mode only takes effect after a full VACUUM
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        } else {
+            long freePages = getFreePageCount(db);
+            while (freePages > 0) {
+                // The pragma frees pages while it is being stepped through, thus read it to the end
+                cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_BATCH_PAGES + ")", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        // nothing to read
+                    }
+                } finally {
+                    cursor.close();
+                }
+                long remaining = getFreePageCount(db);
+                if (remaining >= freePages) {
+                    // nothing was freed, don't keep trying
+                    break;
+                }
+                freePages = remaining;
+            }
+        }
+    }
+
+    /**
+     * @param db
+     * @return number of unused pages of the database file
+     */
+    private long getFreePageCount(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA freelist_count", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Used to get the database path. This is used when importing and exporting it.
+     * @return
+     */
+    public String getDatabasePath (){
+        SQLiteDatabase db = getWritableDatabase();
+        return db.getPath();
+    }
+
+    /**
+     * @return every building which has at least one location, locations without a building are left out
+     */
+    public List<String> getBuildings() {
+        List<String> buildings = new ArrayList<>();
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.query(true, TABLE_INDOOR_LOCATIONS, new String[]{KEY_BUILDING},
+                KEY_BUILDING + " IS NOT NULL", null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                buildings.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "Error while trying to get buildings from database");
+        } finally {
+            cursor.close();
+        }
+        return buildings;
+    }
+
+    /**
+     * Replaces everything in one attached database with the locations of a single building from
+     * another attached database, together with their signals, statistics and routers. Ids are kept
+     * as they are, thus the copy can be done with a few INSERT ... SELECT statements without reading
+     * anything into memory. Used by DatabaseCatalog to write the building shards, has to be called
+     * inside a transaction of the connection both databases are attached to.
+     * @param db
+     * @param from      - schema name of the source database
+     * @param to        - schema name of the target database, its tables have to exist already
+     * @param building
+     */
+    static void copyBuilding(SQLiteDatabase db, String from, String to, String building) {
+        String locationColumns = KEY_LOCATION_ID + ", " + KEY_FLOOR + ", " + KEY_ROOM + ", " + KEY_BUILDING + ", " +
+                KEY_LAT + ", " + KEY_LNG;
+        String signalColumns = KEY_SIGNAL_ID + ", " + KEY_SIGNAL_LOCATION_ID_FK + ", " + KEY_TIMESTAMP + ", " +
+                KEY_SIGNAL_ACCESS_POINT_ID_FK + ", " + KEY_LEVEL;
+        String statisticsColumns = KEY_STATS_LOCATION_ID_FK + ", " + KEY_STATS_ACCESS_POINT_ID_FK + ", " +
+                KEY_STATS_COUNT + ", " + KEY_STATS_SUM + ", " + KEY_STATS_SUM_SQUARES + ", " + KEY_STATS_MIN + ", " +
+                KEY_STATS_MAX + ", " + KEY_STATS_MEDIAN + ", " + KEY_STATS_HISTOGRAM;
+        String accessPointColumns = KEY_ACCESS_POINT_ID + ", " + KEY_AP_BSSID + ", " + KEY_AP_SSID;
+
+        // Children first, in case foreign keys are enforced on the connection
+        db.execSQL("DELETE FROM " + to + "." + TABLE_INDOOR_SIGNALS);
+        db.execSQL("DELETE FROM " + to + "." + TABLE_SIGNAL_STATISTICS);
+        db.execSQL("DELETE FROM " + to + "." + TABLE_INDOOR_LOCATIONS);
+        db.execSQL("DELETE FROM " + to + "." + TABLE_ACCESS_POINTS);
+
+        // Routers first as well, only the ones seen in the building
+        db.execSQL(String.format("INSERT INTO %2$s.%3$s (%4$s) SELECT %4$s FROM %1$s.%3$s WHERE %5$s IN " +
+                        "(SELECT s.%6$s FROM %1$s.%7$s s JOIN %1$s.%8$s l ON s.%9$s = l.%10$s WHERE l.%11$s = ?)",
+                from, to, TABLE_ACCESS_POINTS, accessPointColumns, KEY_ACCESS_POINT_ID,
+                KEY_STATS_ACCESS_POINT_ID_FK, TABLE_SIGNAL_STATISTICS, TABLE_INDOOR_LOCATIONS,
+                KEY_STATS_LOCATION_ID_FK, KEY_LOCATION_ID, KEY_BUILDING), new Object[]{building});
+        // The building's locations through the unique key, their rows through the location indexes
+        db.execSQL(String.format("INSERT INTO %2$s.%3$s (%4$s) SELECT %4$s FROM %1$s.%3$s WHERE %5$s = ?",
+                from, to, TABLE_INDOOR_LOCATIONS, locationColumns, KEY_BUILDING), new Object[]{building});
+        db.execSQL(String.format("INSERT INTO %2$s.%3$s (%4$s) SELECT %4$s FROM %1$s.%3$s WHERE %5$s IN " +
+                        "(SELECT %6$s FROM %2$s.%7$s)",
+                from, to, TABLE_SIGNAL_STATISTICS, statisticsColumns, KEY_STATS_LOCATION_ID_FK,
+                KEY_LOCATION_ID, TABLE_INDOOR_LOCATIONS));
+        db.execSQL(String.format("INSERT INTO %2$s.%3$s (%4$s) SELECT %4$s FROM %1$s.%3$s WHERE %5$s IN " +
+                        "(SELECT %6$s FROM %2$s.%7$s)",
+                from, to, TABLE_INDOOR_SIGNALS, signalColumns, KEY_SIGNAL_LOCATION_ID_FK,
+                KEY_LOCATION_ID, TABLE_INDOOR_LOCATIONS));
+    }
+
+    /**
+     * Query of the number of locations and collected samples in an attached database, one row.
+     * @param schema    - schema name of the database
+     * @return
+     */
+    static String getSummaryQuery(String schema) {
+        return String.format("SELECT (SELECT COUNT(*) FROM %1$s.%2$s), (SELECT IFNULL(SUM(%3$s), 0) FROM %1$s.%4$s)",
+                schema, TABLE_INDOOR_LOCATIONS, KEY_STATS_COUNT, TABLE_SIGNAL_STATISTICS);
+    }
+
+    /**
+     * Query of the data version (see getDataVersion()) of an attached database, one value.
+     * @param schema    - schema name of the database
+     * @return
+     */
+    static String getDataVersionQuery(String schema) {
+        return String.format("SELECT %s FROM %s.%s", KEY_DATA_VERSION, schema, TABLE_DATA_VERSION);
+    }
+
+    /**
+     * Query of the bssid of every router in an attached database.
+     * @param schema    - schema name of the database
+     * @return
+     */
+    static String getBssidQuery(String schema) {
+        return String.format("SELECT %s FROM %s.%s", KEY_AP_BSSID, schema, TABLE_ACCESS_POINTS);
+    }
+
+    /**
+     * Creates an empty database with the tables of this version in a file of its own, e.g. for
+     * DatabaseCatalog to write a shard into before it replaces this database, see replaceWith().
+     * @param file
+     */
+    void createEmpty(File file) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.beginTransaction();
+            try {
+                onCreate(db);
+                db.setVersion(DATABASE_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Replaces the database with a file which was written through another connection (see
+     * createEmpty()), by renaming it. Thus readers either see the old database or the new one, never
+     * a partly written one. The file has to be in the same directory as the database.
+     * Forgets the cached router ids and tells the listeners to reload.
+     * @param file
+     * @throws IOException if the file couldn't be renamed
+     */
+    void replaceWith(File file) throws IOException {
+        // The path has to be read before closing, getDatabasePath() opens the database
+        File oldDb = new File(getDatabasePath());
+        // The new file starts with its own version, which must still be newer than this one
+        long oldVersion = getDataVersion();
+        close();
+        // routers of the new database have different ids
+        accessPoints.clear();
+        // The write-ahead log of the old database must not be applied to the new one
+        new File(oldDb.getPath() + "-wal").delete();
+        new File(oldDb.getPath() + "-shm").delete();
+        if (!file.renameTo(oldDb)) {
+            throw new IOException("Could not rename " + file + " to " + oldDb);
+        }
+        getWritableDatabase().execSQL(String.format("UPDATE %1$s SET %2$s = MAX(%2$s, ?) + 1",
+                TABLE_DATA_VERSION, KEY_DATA_VERSION), new Object[]{oldVersion});
+        publishReset();
+    }
+
+    /**
+     * @return true if anything follows the changes of the database, see addOnDatabaseChangedListener()
+     */
+    boolean hasChangeListeners() {
+        return !changeListeners.isEmpty();
+    }
+
+    /**
+     * Used to import the database from the phone. You have to ensure that importPath
      * holds the path to the existing database otherwise exception will be called.
      * @param importPath
      * @return
      * @throws IOException
      */
     public boolean importDatabase(String importPath) throws IOException {
+        // The path has to be read before closing, getDatabasePath() opens the database
+        File oldDb = new File(getDatabasePath());
+        // The imported database has its own version, which must still be newer than this one
+        long oldVersion = getDataVersion();
         // Close the SQLiteOpenHelper so it will commit the created empty
         // database to internal storage.
         close();
+        // routers of the imported database have different ids
+        accessPoints.clear();
         File newDb = new File(importPath);
-        File oldDb = new File(getDatabasePath());
         if (newDb.exists()) {
+            // The write-ahead log of the old database must not be applied to the imported one
+            new File(oldDb.getPath() + "-wal").delete();
+            new File(oldDb.getPath() + "-shm").delete();
             FileUtils.copyFile(new FileInputStream(newDb), new FileOutputStream(oldDb));
             // Access the copied database so SQLiteHelper will cache it and mark
-            // it as created.
+            // it as created. Any snapshot or shard of the old database must not match the new one
+            getWritableDatabase().execSQL(String.format("UPDATE %1$s SET %2$s = MAX(%2$s, ?) + 1",
+                    TABLE_DATA_VERSION, KEY_DATA_VERSION), new Object[]{oldVersion});
             getWritableDatabase().close();
-            DATABASE_NAME = newDb.getName();
+            publishReset();
             return true;
         }
         return false;
     }
 
+    /**
+     * Merges an exported database (e.g. from another phone) into this one instead of replacing it,
+     * thus nothing collected on this device is lost. The file can be of any older version, it is
+     * copied next to the database and upgraded first.
+     *
+     * Routers are matched by bssid and locations by (lat, lng, floor), existing locations keep
+     * their room and building. Then the signals and statistics of MERGE_BATCH_LOCATIONS locations
+     * at a time are copied in a single transaction: signals row by row through a precompiled insert
+     * while streaming them with a cursor, statistics by merging them into the stored ones. Thus
+     * memory doesn't depend on the number of signals and every location is either merged completely
+     * or not at all. Merging the same file twice counts its signals twice.
+     *
+     * Files ending with RadioMapArchive.FILE_EXTENSION are read as archives made by exportRadioMapArchive().
+     *
+     * Must not be called on the UI thread, see mergeDatabaseAsync().
+     * @param importPath    - path of the database to merge
+     * @param listener      - receives the progress, can be null
+     * @return number of merged signals
+     * @throws IOException if the file can't be read or is not a database of this app
+     */
+    public int mergeDatabase(String importPath, OnMergeProgressListener listener) throws IOException {
+        File importFile = new File(importPath);
+        if (!importFile.exists()) {
+            throw new IOException("File " + importPath + " doesn't exist");
+        }
+
+        // Work on a copy, so the upgrade doesn't change the file which is being imported
+        File workFile = File.createTempFile("merge", ".db", new File(getDatabasePath()).getParentFile());
+        boolean isArchive = importPath.endsWith(RadioMapArchive.FILE_EXTENSION);
+        if (!isArchive) {
+            FileUtils.copyFile(new FileInputStream(importFile), new FileOutputStream(workFile));
+        }
+        SQLiteDatabase importDb = null;
+        boolean isMerging = false;
+        try {
+            importDb = SQLiteDatabase.openDatabase(workFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+            if (isArchive) {
+                // an archive is streamed into an empty database of the current version first
+                readRadioMapArchive(importDb, importFile);
+            }
+            int importVersion = importDb.getVersion();
+            if (importVersion < 1 || importVersion > DATABASE_VERSION) {
+                throw new IOException("Unsupported database version " + importVersion);
+            }
+            if (importVersion < DATABASE_VERSION) {
+                importDb.beginTransaction();
+                try {
+                    onUpgrade(importDb, importVersion, DATABASE_VERSION);
+                    importDb.setVersion(DATABASE_VERSION);
+                    importDb.setTransactionSuccessful();
+                } finally {
+                    importDb.endTransaction();
+                }
+            }
+            isMerging = true;
+            return mergeDatabase(importDb, listener);
+        } catch (RuntimeException e) {
+            // SQLite errors of the imported file, e.g. it's not a database at all
+            throw new IOException("Could not merge " + importPath, e);
+        } finally {
+            if (importDb != null) {
+                importDb.close();
+            }
+            workFile.delete();
+            new File(workFile.getPath() + "-journal").delete();
+            if (isMerging) {
+                // every batch is committed separately, thus even a failed merge might have changed something
+                publishReset();
+            }
+        }
+    }
+
+    /**
+     * Fills an empty database with the content of a RadioMapArchive, in a single transaction.
+     * Locations and routers get their index in the archive plus one as their id.
+     * @param importDb
+     * @param archive
+     * @throws IOException if the archive is not valid
+     */
+    private void readRadioMapArchive(final SQLiteDatabase importDb, File archive) throws IOException {
+        importDb.beginTransaction();
+        try {
+            onCreate(importDb);
+            importDb.setVersion(DATABASE_VERSION);
+            final SQLiteStatement insertLocation = importDb.compileStatement(String.format(
+                    "INSERT INTO %s (%s, %s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?, ?)",
+                    TABLE_INDOOR_LOCATIONS, KEY_LOCATION_ID, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG));
+            final SQLiteStatement insertAccessPoint = importDb.compileStatement(String.format(
+                    "INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)",
+                    TABLE_ACCESS_POINTS, KEY_ACCESS_POINT_ID, KEY_AP_BSSID, KEY_AP_SSID));
+            final SQLiteStatement insertStatistics = importDb.compileStatement(INSERT_STATISTICS_STATEMENT);
+            final SQLiteStatement insertSignal = importDb.compileStatement(INSERT_SIGNAL_STATEMENT);
+            try {
+                RadioMapArchive.read(archive, new RadioMapArchive.Visitor() {
+                    @Override
+                    public void onLocation(int index, IndoorLocation location) {
+                        insertLocation.clearBindings();
+                        insertLocation.bindLong(1, index + 1);
+                        insertLocation.bindLong(2, location.floor);
+                        bindStringOrNull(insertLocation, 3, location.room);
+                        bindStringOrNull(insertLocation, 4, location.building);
+                        insertLocation.bindDouble(5, location.lat);
+                        insertLocation.bindDouble(6, location.lng);
+                        insertLocation.executeInsert();
+                    }
+
+                    @Override
+                    public void onAccessPoint(int index, int accessPointId, String bssid, String ssid) {
+                        insertAccessPoint.clearBindings();
+                        insertAccessPoint.bindLong(1, index + 1);
+                        bindStringOrNull(insertAccessPoint, 2, bssid);
+                        bindStringOrNull(insertAccessPoint, 3, ssid);
+                        insertAccessPoint.executeInsert();
+                    }
+
+                    @Override
+                    public void onStatistics(int location, int accessPoint, SignalStatistics statistics) {
+                        insertStatistics(insertStatistics, location + 1, accessPoint + 1, statistics);
+                    }
+
+                    @Override
+                    public void onSignal(int location, int accessPoint, long timestamp, double level) {
+                        insertSignal.clearBindings();
+                        insertSignal.bindLong(1, location + 1);
+                        insertSignal.bindLong(2, timestamp);
+                        if (accessPoint == -1) {
+                            insertSignal.bindNull(3);
+                        } else {
+                            insertSignal.bindLong(3, accessPoint + 1);
+                        }
+                        insertSignal.bindDouble(4, level);
+                        insertSignal.executeInsert();
+                    }
+                }, true);
+            } finally {
+                insertLocation.close();
+                insertAccessPoint.close();
+                insertStatistics.close();
+                insertSignal.close();
+            }
+            importDb.setTransactionSuccessful();
+        } finally {
+            importDb.endTransaction();
+        }
+    }
+
+    /**
+     * Same as mergeDatabase() but done on the writer thread. Progress and the result are passed to
+     * the listeners on the main thread.
+     * @param importPath
+     * @param progressListener  - can be null
+     * @param listener          - receives the number of merged signals or -1 if the merge failed
+     * @return
+     */
+    public Future<Integer> mergeDatabaseAsync(final String importPath, final OnMergeProgressListener progressListener,
+                                              OnWriteFinishedListener<Integer> listener) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    return mergeDatabase(importPath, progressListener == null ? null : new OnMergeProgressListener() {
+                        @Override
+                        public void onMergeProgress(final int mergedLocations, final int totalLocations) {
+                            mainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    progressListener.onMergeProgress(mergedLocations, totalLocations);
+                                }
+                            });
+                        }
+                    });
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    Log.d(TAG, "Error while trying to merge database");
+                    return -1;
+                }
+            }
+        }, listener);
+    }
+
+    /**
+     * Merges the opened database, which is already of the current version, into this one.
+     * @param importDb
+     * @param listener
+     * @return number of merged signals
+     */
+    private int mergeDatabase(SQLiteDatabase importDb, OnMergeProgressListener listener) {
+        SQLiteDatabase db = getWritableDatabase();
+
+        // Routers: ids of the imported database mapped to the ids of this one
+        Map<Integer, Integer> accessPointIds = new HashMap<>();
+        db.beginTransaction();
+        Cursor cursor = importDb.query(TABLE_ACCESS_POINTS, new String[]{KEY_ACCESS_POINT_ID, KEY_AP_BSSID, KEY_AP_SSID},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                accessPointIds.put(cursor.getInt(0), accessPoints.getOrInsertId(db, cursor.getString(1), cursor.getString(2)));
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            accessPoints.clear();
+            throw e;
+        } finally {
+            cursor.close();
+            db.endTransaction();
+        }
+
+        // Locations: the same for their ids. Kept in the order of the imported ids, so they can be
+        // walked through in ranges below
+        List<Long> importLocationIds = new ArrayList<>();
+        Map<Long, Long> locationIds = new HashMap<>();
+        db.beginTransaction();
+        SQLiteStatement insertLocation = db.compileStatement(INSERT_OR_IGNORE_LOCATION_STATEMENT);
+        SQLiteStatement selectLocation = db.compileStatement(SELECT_LOCATION_ID_STATEMENT);
+        cursor = importDb.query(TABLE_INDOOR_LOCATIONS,
+                new String[]{KEY_LOCATION_ID, KEY_FLOOR, KEY_ROOM, KEY_BUILDING, KEY_LAT, KEY_LNG},
+                null, null, null, null, KEY_LOCATION_ID);
+        try {
+            while (cursor.moveToNext()) {
+                insertLocation.clearBindings();
+                insertLocation.bindLong(1, cursor.getLong(1));
+                bindStringOrNull(insertLocation, 2, cursor.getString(2));
+                bindStringOrNull(insertLocation, 3, cursor.getString(3));
+                insertLocation.bindDouble(4, cursor.getDouble(4));
+                insertLocation.bindDouble(5, cursor.getDouble(5));
+                long locationId = insertLocation.executeInsert();
+                if (locationId == -1) {
+                    // the location already exists
+                    selectLocation.bindDouble(1, cursor.getDouble(4));
+                    selectLocation.bindDouble(2, cursor.getDouble(5));
+                    selectLocation.bindLong(3, cursor.getLong(1));
+                    locationId = selectLocation.simpleQueryForLong();
+                }
+                importLocationIds.add(cursor.getLong(0));
+                locationIds.put(cursor.getLong(0), locationId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            cursor.close();
+            insertLocation.close();
+            selectLocation.close();
+            db.endTransaction();
+        }
+
+        // Signals and statistics, a range of locations at a time
+        int mergedSignals = 0;
+        int total = importLocationIds.size();
+        SQLiteStatement insertSignal = db.compileStatement(INSERT_SIGNAL_STATEMENT);
+        try {
+            for (int from = 0; from < total; from += MERGE_BATCH_LOCATIONS) {
+                int to = Math.min(from + MERGE_BATCH_LOCATIONS, total) - 1;
+                String[] range = new String[]{String.valueOf(importLocationIds.get(from)),
+                        String.valueOf(importLocationIds.get(to))};
+
+                db.beginTransaction();
+                try {
+                    // the signals are found through the index on their location
+                    cursor = importDb.query(TABLE_INDOOR_SIGNALS,
+                            new String[]{KEY_SIGNAL_LOCATION_ID_FK, KEY_TIMESTAMP, KEY_SIGNAL_ACCESS_POINT_ID_FK, KEY_LEVEL},
+                            KEY_SIGNAL_LOCATION_ID_FK + " BETWEEN ? AND ?", range, null, null, null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            insertSignal.clearBindings();
+                            insertSignal.bindLong(1, locationIds.get(cursor.getLong(0)));
+                            insertSignal.bindLong(2, cursor.getLong(1));
+                            Integer accessPointId = cursor.isNull(2) ? null : accessPointIds.get(cursor.getInt(2));
+                            if (accessPointId == null) {
+                                insertSignal.bindNull(3);
+                            } else {
+                                insertSignal.bindLong(3, accessPointId);
+                            }
+                            insertSignal.bindDouble(4, cursor.getDouble(3));
+                            insertSignal.executeInsert();
+                            mergedSignals++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+
+                    // statistics hold every sample, also the ones which were already compacted
+                    Map<Long, Map<Integer, SignalStatistics>> added = new HashMap<>();
+                    cursor = importDb.query(TABLE_SIGNAL_STATISTICS,
+                            new String[]{KEY_STATS_LOCATION_ID_FK, KEY_STATS_ACCESS_POINT_ID_FK, KEY_STATS_COUNT,
+                                    KEY_STATS_SUM, KEY_STATS_SUM_SQUARES, KEY_STATS_MIN, KEY_STATS_MAX, KEY_STATS_HISTOGRAM},
+                            KEY_STATS_LOCATION_ID_FK + " BETWEEN ? AND ?", range, null, null, null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            Integer accessPointId = accessPointIds.get(cursor.getInt(1));
+                            if (accessPointId == null) {
+                                continue;
+                            }
+                            SignalStatistics statistics = new SignalStatistics();
+                            statistics.count = cursor.getLong(2);
+                            statistics.sum = cursor.getDouble(3);
+                            statistics.sumSquares = cursor.getDouble(4);
+                            statistics.min = cursor.getDouble(5);
+                            statistics.max = cursor.getDouble(6);
+                            statistics.setHistogramBlob(cursor.getBlob(7));
+
+                            long locationId = locationIds.get(cursor.getLong(0));
+                            Map<Integer, SignalStatistics> locationStatistics = added.get(locationId);
+                            if (locationStatistics == null) {
+                                locationStatistics = new HashMap<>();
+                                added.put(locationId, locationStatistics);
+                            }
+                            locationStatistics.put(accessPointId, statistics);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    for (Map.Entry<Long, Map<Integer, SignalStatistics>> entry : added.entrySet()) {
+                        mergeStatistics(db, entry.getKey(), entry.getValue());
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (listener != null) {
+                    listener.onMergeProgress(to + 1, total);
+                }
+            }
+        } finally {
+            insertSignal.close();
+        }
+        return mergedSignals;
+    }
+
     /**
      * Export the database to the phone. Ensure that the folder you selected and the name of
      * the database exists, otherwise wil through exceptino.
@@ -397,6 +2983,15 @@ public class IndoorDatabaseHelper extends SQLiteOpenHelper {
         File newDb = new File(exportPath);
         File oldDb = new File(getDatabasePath());
 
+        // With write-ahead logging the latest changes might still be only in the -wal file,
+        // thus move them into the database file first
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+
         Log.e("export path", newDb.getAbsolutePath());
         if (!newDb.exists()) {
             FileUtils.copyFile(new FileInputStream(oldDb), new FileOutputStream(newDb));
@@ -449,94 +3044,18 @@ public class IndoorDatabaseHelper extends SQLiteOpenHelper {
 
     /**
      * Used to delete a single location from the database, which also deletes all signals
-     * related to that location.
-     * @param location    
+     * related to that location. Signals are removed by the ON DELETE CASCADE foreign key
+     * through the index on their location id, thus a single statement is enough.
+     * @param location
+     * @return number of deleted locations
      */
-    public void deleteSingleLocation(IndoorLocation location) {
+    public int deleteSingleLocation(IndoorLocation location) {
         //Open the database
         SQLiteDatabase db = getWritableDatabase();
 
-        // Begin the transaction
-        db.beginTransaction();
-        // Firstly need to find the location thus perform the query.
-        String locationsSelectQuery = String.format("SELECT %s FROM %s WHERE %s = ? AND %s = ? AND %s = ?",
-                KEY_LOCATION_ID, TABLE_INDOOR_LOCATIONS, KEY_LAT, KEY_LNG, KEY_FLOOR);
-        Cursor cursor = db.rawQuery(locationsSelectQuery,
+        // Delete the location by its unique key, the signals follow it
+        return deleteLocationsWhere(KEY_LAT + "= ? AND " + KEY_LNG + "= ? AND " + KEY_FLOOR + "= ?",
                 new String[]{String.valueOf(location.lat), String.valueOf(location.lng), String.valueOf(location.floor)});
-        // Cursor stores all of the selected location (there will only be onein practice)
-
-//        //these are global so that you can access from anywhere
-//        int rowCount = cursor.getCount();
-//        String[] BSSIDs = new String[rowCount];
-//        String[] signals = new String[rowCount];
-//        double[] lats = new double[rowCount];
-//        double[] lngs = new double[rowCount];
-//
-//        cursor.moveToFirst();
-//        int i = 0;
-//        do {
-//            BSSIDs[i] = cursor.getString(0);
-//            signals[i] = cursor.getString(1);
-//            lats[i] = cursor.getDouble(2);
-//            lngs[i] = cursor.getDouble(3);
-//            i++;
-//        } while (cursor.moveToNext());
-//
-//        // positioning stage stage
-//        double minSum = 100;
-//        double latitude;
-//        double longitude;
-//        for (int j = 0; j < rowCount; j++){
-//            String[] trainBssids = BSSIDs[j].split(" ");
-//            String[] splitSignals = signals[j].split(" ");
-//            int signalsCount = splitSignals.length;
-//            // need to parse signals as integers
-//            int[] trainSignals = new int[signalsCount];
-//            for (int k = 0; k < signalsCount; k++){
-//                trainSignals[k] = Integer.parseInt(splitSignals[k]);
-//            }
-//
-//            // perform comparison between test signals
-//            String[] testBssids;        // these come from current wifi scan (top 5?)
-//            int[] testSignals;
-//            int testCount = testBssids.length;
-//            double sum = 0;
-//            for (int k = 0; k < testCount; k++){
-//                if (testBssids[k].equals(trainBssids[k])){
-//                    sum += Math.pow(testSignals[k] - trainSignals[k], 2);
-//                }
-//            }
-//            sum = Math.sqrt(sum);
-//            if (minSum > sum){
-//                minSum = sum;
-//                latitude = lats[j];
-//                longitude = lngs[j];
-//            }
-//        }
-//
-//        // ur current detected location is in latitude and longitude
-
-        try {
-            if (cursor.moveToFirst()) {
-                // Get the ID of the location
-                int row = cursor.getInt(0);
-                // Delete all of the signals from the signals table that have the
-                // associated ID to the location equal to the row
-                db.execSQL("DELETE FROM " + TABLE_INDOOR_SIGNALS + " WHERE " + KEY_SIGNAL_LOCATION_ID_FK + "= " + row);
-
-                Log.e("row is", row + "");
-                // Now delete the location, which has the same id as the row
-                db.delete(TABLE_INDOOR_LOCATIONS, KEY_LOCATION_ID + "= ?",
-                        new String[]{String.valueOf(row)});
-                db.setTransactionSuccessful();
-            }
-        } finally {
-            // Close the cursor and end transaction
-            if (cursor != null && !cursor.isClosed()) {
-                cursor.close();
-            }
-            db.endTransaction();
-        }
     }
 
 }
\ No newline at end of file
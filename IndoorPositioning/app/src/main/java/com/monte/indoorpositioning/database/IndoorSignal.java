@@ -33,6 +33,7 @@ import java.util.Objects;
 public class IndoorSignal {
     public IndoorLocation location;         // A reference to the indoor location.
     public long timestamp;                  // Timestamp of when the signal was taken
+    public int accessPointId;               // Id of the router in the access points table (0 if not stored)
     public String bssid;                    // MAC address of the router
     public String ssid;                     // Router name
     public double level;                    // RSSI signal level in dBm
@@ -0,0 +1,734 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact file used to pass the collected radio map between devices. Unlike the copy of the
+ * database it holds no free pages, indexes or repeated router strings: the locations, the router
+ * dictionary, the statistics and the raw signals are written column by column, every column is
+ * delta and varint encoded and the whole body is compressed with Deflater.
+ *
+ * | HEADER: MAGIC | FORMAT VERSION | DATA VERSION |           not compressed
+ * | LOCATIONS: count | floors | lats | lngs | rooms | buildings |
+ * | ROUTERS: count | ids | bssids | ssids |
+ * | STATISTICS BLOCK: tag | rows | locations | routers | histograms |   repeated
+ * | SIGNALS BLOCK: tag | rows | locations | routers | timestamps | levels |  repeated
+ * | END: tag |
+ *
+ * Statistics and signals are written in blocks of up to BLOCK_ROWS rows, thus neither the writer
+ * nor the reader has to hold more than one block in memory. Rows reference locations and routers
+ * by their index in the file. Statistics blocks always come before the signal blocks, so a reader
+ * which only needs the radio map stops before the raw signals.
+ *
+ * Signal levels are stored as whole dBm, the same as ScanResult reports them. For the same reason
+ * the statistics are stored only as their histogram, the count, sums, min and max are recomputed
+ * from it when reading.
+ */
+public class RadioMapArchive implements RadioMapSource {
+    public static final String FILE_EXTENSION = ".rmz";
+
+    private static final int MAGIC = 0x49505241;        // "IPRA"
+    private static final int FORMAT_VERSION = 1;
+
+    // Number of rows of a single statistics or signals block
+    private static final int BLOCK_ROWS = 4096;
+    // Upper bound of the location and router counts, protects from allocating garbage sizes
+    private static final int MAX_DICTIONARY_SIZE = 1 << 24;
+    private static final int MAX_STRING_LENGTH = 1 << 16;
+
+    // Tags of the blocks after the dictionaries
+    private static final int BLOCK_END = 0;
+    private static final int BLOCK_STATISTICS = 1;
+    private static final int BLOCK_SIGNALS = 2;
+
+    // Encodings of the bssid column
+    private static final int BSSID_NULL = 0;
+    private static final int BSSID_STRING = 1;
+    private static final int BSSID_MAC = 2;             // 6 bytes of a lower case "xx:xx:xx:xx:xx:xx" address
+
+    private final long dataVersion;
+    private final Map<Long, Map<IndoorLocation, List<ProcessedSignal>>> floors;
+    private final Map<String, Integer> accessPointIds;
+
+    /**
+     * Receives the content of the archive while it is being read, in the order it is stored.
+     * Locations and routers are passed with their index, which is how the rest of the rows
+     * reference them.
+     */
+    public interface Visitor {
+        void onLocation(int index, IndoorLocation location);
+        void onAccessPoint(int index, int accessPointId, String bssid, String ssid);
+        void onStatistics(int location, int accessPoint, SignalStatistics statistics);
+        void onSignal(int location, int accessPoint, long timestamp, double level);  // accessPoint -1 if unknown
+    }
+
+    /**
+     * Constructor takes the decoded radio map. Use load() instead.
+     * @param dataVersion
+     * @param floors
+     * @param accessPointIds
+     */
+    private RadioMapArchive(long dataVersion, Map<Long, Map<IndoorLocation, List<ProcessedSignal>>> floors,
+                            Map<String, Integer> accessPointIds) {
+        this.dataVersion = dataVersion;
+        this.floors = floors;
+        this.accessPointIds = accessPointIds;
+    }
+
+    /**
+     * Reads the radio map of the archive, so it can be used for positioning without importing it
+     * into the database first. The raw signals are not read at all.
+     * @param file
+     * @return
+     * @throws IOException if the file is not a valid archive
+     */
+    public static RadioMapArchive load(File file) throws IOException {
+        final List<IndoorLocation> locations = new ArrayList<>();
+        final List<ProcessedSignal> routers = new ArrayList<>();
+        final Map<Long, Map<IndoorLocation, List<ProcessedSignal>>> floors = new HashMap<>();
+        final Map<String, Integer> accessPointIds = new HashMap<>();
+
+        long dataVersion = read(file, new Visitor() {
+            @Override
+            public void onLocation(int index, IndoorLocation location) {
+                locations.add(location);
+            }
+
+            @Override
+            public void onAccessPoint(int index, int accessPointId, String bssid, String ssid) {
+                // only used as a template of the router fields
+                ProcessedSignal router = new ProcessedSignal();
+                router.accessPointId = accessPointId;
+                router.bssid = bssid;
+                router.ssid = ssid;
+                routers.add(router);
+                accessPointIds.put(bssid, accessPointId);
+            }
+
+            @Override
+            public void onStatistics(int location, int accessPoint, SignalStatistics statistics) {
+                IndoorLocation indoorLocation = locations.get(location);
+                ProcessedSignal router = routers.get(accessPoint);
+                ProcessedSignal processedSignal = new ProcessedSignal();
+                processedSignal.location = indoorLocation;
+                processedSignal.accessPointId = router.accessPointId;
+                processedSignal.bssid = router.bssid;
+                processedSignal.ssid = router.ssid;
+                processedSignal.average = statistics.getAverage();
+                processedSignal.median = statistics.getMedian();
+
+                Map<IndoorLocation, List<ProcessedSignal>> floor = floors.get(indoorLocation.floor);
+                if (floor == null) {
+                    floor = new HashMap<>();
+                    floors.put(indoorLocation.floor, floor);
+                }
+                List<ProcessedSignal> signals = floor.get(indoorLocation);
+                if (signals == null) {
+                    signals = new ArrayList<>();
+                    floor.put(indoorLocation, signals);
+                }
+                signals.add(processedSignal);
+            }
+
+            @Override
+            public void onSignal(int location, int accessPoint, long timestamp, double level) {
+            }
+        }, false);
+        return new RadioMapArchive(dataVersion, floors, accessPointIds);
+    }
+
+    /**
+     * @return data version of the database the archive was written from
+     */
+    public long getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * Routers are identified by the ids of the database the archive was written from, which are
+     * not the same as the ids of this device's database.
+     * @param bssid
+     * @return id of the router in the archive or 0 if it is not there
+     */
+    public int getAccessPointId(String bssid) {
+        Integer accessPointId = accessPointIds.get(bssid);
+        return accessPointId == null ? AccessPointDictionary.UNKNOWN : accessPointId;
+    }
+
+    /**
+     * @param floor
+     * @return processed signals of every location on the floor
+     */
+    @Override
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedSignals(long floor) {
+        Map<IndoorLocation, List<ProcessedSignal>> processedMap = floors.get(floor);
+        // callers are free to change the returned map
+        return processedMap == null ? new HashMap<IndoorLocation, List<ProcessedSignal>>()
+                : new HashMap<>(processedMap);
+    }
+
+    /**
+     * Streams through the archive passing everything to the visitor. Only one block of rows is
+     * decoded at a time.
+     * @param file
+     * @param visitor
+     * @param readSignals   - false stops after the statistics, the raw signals are then skipped
+     * @return data version of the database the archive was written from
+     * @throws IOException if the file is not a valid archive
+     */
+    public static long read(File file, Visitor visitor, boolean readSignals) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        Inflater inflater = new Inflater();
+        try {
+            // The header is read without buffering, the compressed body starts right after it
+            DataInputStream header = new DataInputStream(fileStream);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a radio map archive");
+            }
+            int formatVersion = header.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported radio map archive version " + formatVersion);
+            }
+            long dataVersion = header.readLong();
+
+            InputStream in = new BufferedInputStream(new InflaterInputStream(fileStream, inflater), 8192);
+
+            // Locations
+            int locationCount = readCount(in, MAX_DICTIONARY_SIZE);
+            long[] floors = new long[locationCount];
+            double[] lats = new double[locationCount];
+            double[] lngs = new double[locationCount];
+            long previous = 0;
+            for (int i = 0; i < locationCount; i++) {
+                previous += decodeZigZag(readVarLong(in));
+                floors[i] = previous;
+            }
+            previous = 0;
+            for (int i = 0; i < locationCount; i++) {
+                previous ^= readVarLong(in);
+                lats[i] = Double.longBitsToDouble(previous);
+            }
+            previous = 0;
+            for (int i = 0; i < locationCount; i++) {
+                previous ^= readVarLong(in);
+                lngs[i] = Double.longBitsToDouble(previous);
+            }
+            String[] rooms = new String[locationCount];
+            for (int i = 0; i < locationCount; i++) {
+                rooms[i] = readString(in);
+            }
+            for (int i = 0; i < locationCount; i++) {
+                visitor.onLocation(i, new IndoorLocation(floors[i], rooms[i], readString(in), lats[i], lngs[i]));
+            }
+
+            // Routers
+            int routerCount = readCount(in, MAX_DICTIONARY_SIZE);
+            int[] routerIds = new int[routerCount];
+            String[] bssids = new String[routerCount];
+            previous = 0;
+            for (int i = 0; i < routerCount; i++) {
+                previous += decodeZigZag(readVarLong(in));
+                routerIds[i] = (int) previous;
+            }
+            for (int i = 0; i < routerCount; i++) {
+                bssids[i] = readBssid(in);
+            }
+            for (int i = 0; i < routerCount; i++) {
+                visitor.onAccessPoint(i, routerIds[i], bssids[i], readString(in));
+            }
+
+            // Blocks of statistics and signals
+            int[] rowLocations = new int[BLOCK_ROWS];
+            int[] rowAccessPoints = new int[BLOCK_ROWS];
+            while (true) {
+                int tag = in.read();
+                if (tag == BLOCK_END || (tag == BLOCK_SIGNALS && !readSignals)) {
+                    return dataVersion;
+                }
+                if (tag != BLOCK_STATISTICS && tag != BLOCK_SIGNALS) {
+                    throw new IOException(tag == -1 ? "Radio map archive is truncated" : "Radio map archive is corrupted");
+                }
+                int rows = readCount(in, BLOCK_ROWS);
+                int location = 0;
+                for (int i = 0; i < rows; i++) {
+                    location += (int) decodeZigZag(readVarLong(in));
+                    rowLocations[i] = checkIndex(location, locationCount);
+                }
+                for (int i = 0; i < rows; i++) {
+                    // stored one higher, thus signals without a router are 0
+                    rowAccessPoints[i] = (int) readVarLong(in) - 1;
+                    if (rowAccessPoints[i] != -1 || tag == BLOCK_STATISTICS) {
+                        checkIndex(rowAccessPoints[i], routerCount);
+                    }
+                }
+                if (tag == BLOCK_STATISTICS) {
+                    for (int i = 0; i < rows; i++) {
+                        visitor.onStatistics(rowLocations[i], rowAccessPoints[i], readHistogram(in));
+                    }
+                } else {
+                    long[] timestamps = new long[rows];
+                    long timestamp = 0;
+                    for (int i = 0; i < rows; i++) {
+                        timestamp += decodeZigZag(readVarLong(in));
+                        timestamps[i] = timestamp;
+                    }
+                    for (int i = 0; i < rows; i++) {
+                        visitor.onSignal(rowLocations[i], rowAccessPoints[i], timestamps[i],
+                                decodeZigZag(readVarLong(in)));
+                    }
+                }
+            }
+        } finally {
+            fileStream.close();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes an archive into a stream. The content has to be added in the order it is stored:
+     * writeLocations(), writeAccessPoints(), then every addStatistics() and lastly every
+     * addSignal(). The stream is complete only after close().
+     */
+    public static class Writer implements Closeable {
+        // Order in which the content has to be added
+        private static final int STAGE_LOCATIONS = 0;
+        private static final int STAGE_ACCESS_POINTS = 1;
+        private static final int STAGE_STATISTICS = 2;
+        private static final int STAGE_SIGNALS = 3;
+        private static final int STAGE_CLOSED = 4;
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private final OutputStream out;
+        private int stage = STAGE_LOCATIONS;
+
+        // Rows of the current block
+        private final int[] rowLocations = new int[BLOCK_ROWS];
+        private final int[] rowAccessPoints = new int[BLOCK_ROWS];
+        private final long[] rowTimestamps = new long[BLOCK_ROWS];
+        private final int[] rowLevels = new int[BLOCK_ROWS];
+        private final ByteArrayOutputStream histogramColumn = new ByteArrayOutputStream();
+        private int rows = 0;
+
+        /**
+         * Writes the header right away.
+         * @param outputStream  - closed together with the writer
+         * @param dataVersion   - IndoorDatabaseHelper.getDataVersion() of the database being written
+         * @throws IOException
+         */
+        public Writer(OutputStream outputStream, long dataVersion) throws IOException {
+            DataOutputStream header = new DataOutputStream(outputStream);
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+            header.writeLong(dataVersion);
+            header.flush();
+            out = new BufferedOutputStream(new DeflaterOutputStream(outputStream, deflater), 8192);
+        }
+
+        /**
+         * Writes every location, rows reference them by their index in the list.
+         * @param locations
+         * @throws IOException
+         */
+        public void writeLocations(List<IndoorLocation> locations) throws IOException {
+            checkStage(STAGE_LOCATIONS);
+            writeVarLong(out, locations.size());
+            // Locations are close to each other, thus the floor rarely changes and
+            // the high bits of the coordinates are the same
+            long previous = 0;
+            for (IndoorLocation location : locations) {
+                writeVarLong(out, encodeZigZag(location.floor - previous));
+                previous = location.floor;
+            }
+            previous = 0;
+            for (IndoorLocation location : locations) {
+                long bits = Double.doubleToLongBits(location.lat);
+                writeVarLong(out, bits ^ previous);
+                previous = bits;
+            }
+            previous = 0;
+            for (IndoorLocation location : locations) {
+                long bits = Double.doubleToLongBits(location.lng);
+                writeVarLong(out, bits ^ previous);
+                previous = bits;
+            }
+            for (IndoorLocation location : locations) {
+                writeString(out, location.room);
+            }
+            for (IndoorLocation location : locations) {
+                writeString(out, location.building);
+            }
+            stage = STAGE_ACCESS_POINTS;
+        }
+
+        /**
+         * Writes the router dictionary, rows reference the routers by their index in the lists.
+         * @param accessPointIds    - ids of the routers in the database, in increasing order
+         * @param bssids
+         * @param ssids
+         * @throws IOException
+         */
+        public void writeAccessPoints(List<Integer> accessPointIds, List<String> bssids, List<String> ssids)
+                throws IOException {
+            checkStage(STAGE_ACCESS_POINTS);
+            writeVarLong(out, accessPointIds.size());
+            long previous = 0;
+            for (int accessPointId : accessPointIds) {
+                writeVarLong(out, encodeZigZag(accessPointId - previous));
+                previous = accessPointId;
+            }
+            for (String bssid : bssids) {
+                writeBssid(out, bssid);
+            }
+            for (String ssid : ssids) {
+                writeString(out, ssid);
+            }
+            stage = STAGE_STATISTICS;
+        }
+
+        /**
+         * Adds the statistics of one router in one location. Rows sorted by location compress best.
+         * @param location      - index of the location
+         * @param accessPoint   - index of the router
+         * @param statistics    - only the histogram is stored
+         * @throws IOException
+         */
+        public void addStatistics(int location, int accessPoint, SignalStatistics statistics) throws IOException {
+            checkStage(STAGE_STATISTICS);
+            rowLocations[rows] = location;
+            rowAccessPoints[rows] = accessPoint;
+            int buckets = statistics.getHistogramSize();
+            writeVarLong(histogramColumn, buckets);
+            int previous = 0;
+            for (int i = 0; i < buckets; i++) {
+                int level = statistics.getHistogramLevel(i);
+                writeVarLong(histogramColumn, encodeZigZag(level - previous));
+                writeVarLong(histogramColumn, statistics.getHistogramCount(i));
+                previous = level;
+            }
+            if (++rows == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Adds a single raw signal. Rows sorted by location and time compress best.
+         * @param location      - index of the location
+         * @param accessPoint   - index of the router or -1 if it is unknown
+         * @param timestamp
+         * @param level         - rounded to whole dBm
+         * @throws IOException
+         */
+        public void addSignal(int location, int accessPoint, long timestamp, double level) throws IOException {
+            if (stage == STAGE_STATISTICS) {
+                // no more statistics can follow
+                writeBlock();
+                stage = STAGE_SIGNALS;
+            }
+            checkStage(STAGE_SIGNALS);
+            rowLocations[rows] = location;
+            rowAccessPoints[rows] = accessPoint;
+            rowTimestamps[rows] = timestamp;
+            rowLevels[rows] = (int) Math.round(level);
+            if (++rows == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Writes the last block, finishes the compression and closes the stream.
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            if (stage == STAGE_CLOSED) {
+                return;
+            }
+            try {
+                if (stage >= STAGE_STATISTICS) {
+                    writeBlock();
+                }
+                out.write(BLOCK_END);
+            } finally {
+                stage = STAGE_CLOSED;
+                out.close();
+                deflater.end();
+            }
+        }
+
+        /**
+         * Writes the buffered rows as one block, column after column.
+         * @throws IOException
+         */
+        private void writeBlock() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            out.write(stage == STAGE_STATISTICS ? BLOCK_STATISTICS : BLOCK_SIGNALS);
+            writeVarLong(out, rows);
+            // rows are sorted by location, thus the difference is mostly 0
+            int previous = 0;
+            for (int i = 0; i < rows; i++) {
+                writeVarLong(out, encodeZigZag(rowLocations[i] - previous));
+                previous = rowLocations[i];
+            }
+            for (int i = 0; i < rows; i++) {
+                writeVarLong(out, rowAccessPoints[i] + 1);
+            }
+            if (stage == STAGE_STATISTICS) {
+                histogramColumn.writeTo(out);
+                histogramColumn.reset();
+            } else {
+                long previousTimestamp = 0;
+                for (int i = 0; i < rows; i++) {
+                    writeVarLong(out, encodeZigZag(rowTimestamps[i] - previousTimestamp));
+                    previousTimestamp = rowTimestamps[i];
+                }
+                for (int i = 0; i < rows; i++) {
+                    writeVarLong(out, encodeZigZag(rowLevels[i]));
+                }
+            }
+            rows = 0;
+        }
+
+        private void checkStage(int expected) {
+            if (stage != expected) {
+                throw new IllegalStateException("Radio map archive content added out of order");
+            }
+        }
+    }
+
+    /**
+     * Reads the statistics stored by Writer.addStatistics().
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static SignalStatistics readHistogram(InputStream in) throws IOException {
+        SignalStatistics statistics = new SignalStatistics();
+        int buckets = readCount(in, 256);
+        int level = 0;
+        for (int i = 0; i < buckets; i++) {
+            level += (int) decodeZigZag(readVarLong(in));
+            long number = readVarLong(in);
+            if (number <= 0 || number > Integer.MAX_VALUE) {
+                throw new IOException("Radio map archive is corrupted");
+            }
+            statistics.addLevelCount(level, (int) number);
+            // the rest of the statistics follow from the histogram of whole dBm levels
+            if (statistics.count == 0) {
+                statistics.min = level;
+            }
+            statistics.max = level;
+            statistics.count += number;
+            statistics.sum += (double) level * number;
+            statistics.sumSquares += (double) level * level * number;
+        }
+        return statistics;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length plus one (0 for null) and the bytes.
+     * @param out
+     * @param string
+     * @throws IOException
+     */
+    private static void writeString(OutputStream out, String string) throws IOException {
+        if (string == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = string.getBytes("UTF-8");
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        int length = readCount(in, MAX_STRING_LENGTH);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        readFully(in, bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a bssid as 6 bytes when it is a MAC address the way Android reports it, otherwise as a string.
+     * @param out
+     * @param bssid
+     * @throws IOException
+     */
+    private static void writeBssid(OutputStream out, String bssid) throws IOException {
+        if (bssid == null) {
+            out.write(BSSID_NULL);
+            return;
+        }
+        if (!isPackableMac(bssid)) {
+            out.write(BSSID_STRING);
+            writeString(out, bssid);
+            return;
+        }
+        out.write(BSSID_MAC);
+        for (int i = 0; i < 6; i++) {
+            out.write(Integer.parseInt(bssid.substring(3 * i, 3 * i + 2), 16));
+        }
+    }
+
+    private static String readBssid(InputStream in) throws IOException {
+        int encoding = in.read();
+        if (encoding == BSSID_NULL) {
+            return null;
+        }
+        if (encoding == BSSID_STRING) {
+            return readString(in);
+        }
+        if (encoding != BSSID_MAC) {
+            throw new IOException("Radio map archive is corrupted");
+        }
+        byte[] bytes = new byte[6];
+        readFully(in, bytes);
+        StringBuilder bssid = new StringBuilder(17);
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) {
+                bssid.append(':');
+            }
+            bssid.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            bssid.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return bssid.toString();
+    }
+
+    /**
+     * Only the exact "xx:xx:xx:xx:xx:xx" lower case form is packed, thus it is read back unchanged.
+     * @param bssid
+     * @return
+     */
+    private static boolean isPackableMac(String bssid) {
+        if (bssid.length() != 17) {
+            return false;
+        }
+        for (int i = 0; i < 17; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return false;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the value 7 bits at a time, highest bit tells if more bytes follow.
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Radio map archive is truncated");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Radio map archive is corrupted");
+    }
+
+    /**
+     * Reads a count or a length and checks that it is sensible before anything is allocated for it.
+     * @param in
+     * @param max
+     * @return
+     * @throws IOException
+     */
+    private static int readCount(InputStream in, int max) throws IOException {
+        long count = readVarLong(in);
+        if (count < 0 || count > max) {
+            throw new IOException("Radio map archive is corrupted");
+        }
+        return (int) count;
+    }
+
+    private static int checkIndex(int index, int size) throws IOException {
+        if (index < 0 || index >= size) {
+            throw new IOException("Radio map archive is corrupted");
+        }
+        return index;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int read = 0;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n == -1) {
+                throw new EOFException("Radio map archive is truncated");
+            }
+            read += n;
+        }
+    }
+
+    // Zigzag maps small negative differences to small positive numbers: 0, -1, 1, -2, 2...
+    private static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
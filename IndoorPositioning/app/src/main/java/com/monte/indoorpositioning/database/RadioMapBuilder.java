@@ -0,0 +1,90 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds streamed signals into processed signals of every location. Instead of keeping a list of
+ * every signal (like WifiCollector.getProcessed() does) it only keeps running statistics of every
+ * router in every location, thus memory doesn't grow with the number of collected signals.
+ *
+ * Usage: pass it to IndoorDatabaseHelper.forEachSignal() and then call build().
+ */
+public class RadioMapBuilder implements IndoorDatabaseHelper.SignalVisitor {
+    // Locations and statistics of their routers are keyed by the location id from the database
+    private final Map<Long, IndoorLocation> locations = new HashMap<>();
+    private final Map<Long, Map<Integer, SignalStatistics>> statistics = new HashMap<>();
+    private final Map<Integer, IndoorSignal> routers = new HashMap<>();    // router bssid and name by id
+
+    @Override
+    public void onSignal(long locationId, IndoorLocation location, int accessPointId, String bssid,
+                         String ssid, double level, long timestamp) {
+        if (accessPointId == AccessPointDictionary.UNKNOWN) {
+            return;
+        }
+        Map<Integer, SignalStatistics> locationStatistics = statistics.get(locationId);
+        if (locationStatistics == null) {
+            locationStatistics = new HashMap<>();
+            statistics.put(locationId, locationStatistics);
+            locations.put(locationId, location);
+        }
+        SignalStatistics signalStatistics = locationStatistics.get(accessPointId);
+        if (signalStatistics == null) {
+            signalStatistics = new SignalStatistics();
+            locationStatistics.put(accessPointId, signalStatistics);
+            if (!routers.containsKey(accessPointId)) {
+                routers.put(accessPointId, new IndoorSignal(bssid, ssid, 0));
+            }
+        }
+        signalStatistics.add(level);
+    }
+
+    /**
+     * Creates the processed map with the same structure as WifiCollector.getProcessed() returns.
+     * @return
+     */
+    public Map<IndoorLocation, List<ProcessedSignal>> build() {
+        Map<IndoorLocation, List<ProcessedSignal>> returnMap = new HashMap<>();
+        for (Map.Entry<Long, Map<Integer, SignalStatistics>> locationEntry : statistics.entrySet()) {
+            IndoorLocation location = locations.get(locationEntry.getKey());
+            List<ProcessedSignal> signals = new ArrayList<>(locationEntry.getValue().size());
+            for (Map.Entry<Integer, SignalStatistics> signalEntry : locationEntry.getValue().entrySet()) {
+                IndoorSignal router = routers.get(signalEntry.getKey());
+                ProcessedSignal processedSignal = new ProcessedSignal();
+                processedSignal.location = location;
+                processedSignal.accessPointId = signalEntry.getKey();
+                processedSignal.bssid = router.bssid;
+                processedSignal.ssid = router.ssid;
+                processedSignal.average = signalEntry.getValue().getAverage();
+                processedSignal.median = signalEntry.getValue().getMedian();
+                signals.add(processedSignal);
+            }
+            returnMap.put(location, signals);
+        }
+        return returnMap;
+    }
+}
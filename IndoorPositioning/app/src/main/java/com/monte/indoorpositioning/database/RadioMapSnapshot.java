@@ -0,0 +1,476 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only binary file holding the compiled radio map. It is created from the database and then
+ * opened through a MappedByteBuffer, thus nothing has to be queried or processed when positioning
+ * starts and several processes opening the same file share the same memory pages.
+ *
+ * The file consists of a fixed size header followed by sections of fixed-width primitives:
+ *
+ * | HEADER: MAGIC | FORMAT VERSION | DATA VERSION | LOCATIONS | ROUTERS | ENTRIES | STRING BYTES | CRC32 |
+ * | LOCATION FLOORS  (long   x LOCATIONS)   |
+ * | LOCATION LATS    (double x LOCATIONS)   |
+ * | LOCATION LNGS    (double x LOCATIONS)   |
+ * | LOCATION ROOMS   (int    x LOCATIONS)   | offsets into the string pool
+ * | LOCATION BUILDING(int    x LOCATIONS)   |
+ * | FIRST ENTRIES    (int    x LOCATIONS+1) | entries of location i are [first[i], first[i+1])
+ * | ROUTER IDS       (int    x ROUTERS)     | router dictionary, ids from the access points table
+ * | ROUTER BSSIDS    (int    x ROUTERS)     | offsets into the string pool
+ * | ROUTER SSIDS     (int    x ROUTERS)     |
+ * | ENTRY ROUTERS    (int    x ENTRIES)     | index into the router dictionary
+ * | ENTRY AVERAGES   (float  x ENTRIES)     |
+ * | ENTRY MEDIANS    (float  x ENTRIES)     |
+ * | STRING POOL      (int length + UTF-8 bytes per string) |
+ *
+ * The CRC32 covers everything after the header. DATA VERSION is the IndoorDatabaseHelper.getDataVersion()
+ * of the database the snapshot was compiled from, which tells if the snapshot is out of date.
+ *
+ * Opening a snapshot only reads the header, thus it takes the same time whatever the size of the
+ * file. The CRC32 is checked by verify() instead, e.g. on a background thread once the snapshot is
+ * in use, and the router dictionary is decoded when the first floor is read.
+ */
+public class RadioMapSnapshot implements RadioMapSource {
+    public static final String FILE_EXTENSION = ".rmap";
+
+    private static final int MAGIC = 0x49505253;        // "IPRS"
+    private static final int FORMAT_VERSION = 2;         // version 2 added the router ids
+    private static final int HEADER_SIZE = 40;
+    private static final int NULL_STRING = -1;          // string offset used for null strings
+
+    private final ByteBuffer buffer;    // mapped file
+    private final long dataVersion;     // data version of the database the file was compiled from
+    private final int locationCount;
+    private final int routerCount;
+    private final int entryCount;
+
+    // Offsets of the sections in the file
+    private final int floorsOffset;
+    private final int latsOffset;
+    private final int lngsOffset;
+    private final int roomsOffset;
+    private final int buildingsOffset;
+    private final int firstEntriesOffset;
+    private final int routerIdsOffset;
+    private final int bssidsOffset;
+    private final int ssidsOffset;
+    private final int entryRoutersOffset;
+    private final int entryAveragesOffset;
+    private final int entryMediansOffset;
+    private final int stringsOffset;
+
+    private final int checksum;         // CRC32 stored in the header
+
+    // Router ids and strings are decoded once and then reused by every location, null until the first floor is read
+    private volatile Routers routers;
+    // Result of verify(), null until it was called. Guarded by "this"
+    private Boolean isValid;
+
+    /**
+     * The decoded router dictionary.
+     */
+    private static class Routers {
+        final int[] ids;
+        final String[] bssids;
+        final String[] ssids;
+
+        Routers(int routerCount) {
+            ids = new int[routerCount];
+            bssids = new String[routerCount];
+            ssids = new String[routerCount];
+        }
+    }
+
+    /**
+     * Constructor reads and checks the header, the rest of the file isn't read. Use open() instead.
+     * @param buffer
+     * @throws IOException
+     */
+    private RadioMapSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a radio map snapshot");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported radio map snapshot version " + buffer.getInt(4));
+        }
+        dataVersion = buffer.getLong(8);
+        locationCount = buffer.getInt(16);
+        routerCount = buffer.getInt(20);
+        entryCount = buffer.getInt(24);
+        int stringBytes = buffer.getInt(28);
+        checksum = buffer.getInt(32);
+
+        floorsOffset = HEADER_SIZE;
+        latsOffset = floorsOffset + 8 * locationCount;
+        lngsOffset = latsOffset + 8 * locationCount;
+        roomsOffset = lngsOffset + 8 * locationCount;
+        buildingsOffset = roomsOffset + 4 * locationCount;
+        firstEntriesOffset = buildingsOffset + 4 * locationCount;
+        routerIdsOffset = firstEntriesOffset + 4 * (locationCount + 1);
+        bssidsOffset = routerIdsOffset + 4 * routerCount;
+        ssidsOffset = bssidsOffset + 4 * routerCount;
+        entryRoutersOffset = ssidsOffset + 4 * routerCount;
+        entryAveragesOffset = entryRoutersOffset + 4 * entryCount;
+        entryMediansOffset = entryAveragesOffset + 4 * entryCount;
+        stringsOffset = entryMediansOffset + 4 * entryCount;
+
+        if (stringsOffset + stringBytes != buffer.capacity()) {
+            throw new IOException("Radio map snapshot is truncated");
+        }
+    }
+
+    /**
+     * Maps the snapshot file into memory and checks its header. The checksum of the rest is
+     * checked only by verify().
+     * @param file
+     * @return the snapshot or null if the file doesn't exist or its header is not valid
+     */
+    public static RadioMapSnapshot open(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new RadioMapSnapshot(buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return data version of the database the snapshot was compiled from
+     */
+    public long getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * Checks the CRC32 of everything after the header, which reads the whole file. Only the first
+     * call reads it, the next ones return the same result.
+     * @return false if the file was damaged
+     */
+    public synchronized boolean verify() {
+        if (isValid == null) {
+            isValid = checksum == checksum(buffer);
+        }
+        return isValid;
+    }
+
+    /**
+     * Decodes the router dictionary the first time it's needed.
+     * @return
+     */
+    private Routers getRouters() {
+        Routers decoded = routers;
+        if (decoded == null) {
+            // decoding it twice at once doesn't matter, both get the same values
+            decoded = new Routers(routerCount);
+            for (int i = 0; i < routerCount; i++) {
+                decoded.ids[i] = buffer.getInt(routerIdsOffset + 4 * i);
+                decoded.bssids[i] = readString(buffer.getInt(bssidsOffset + 4 * i));
+                decoded.ssids[i] = readString(buffer.getInt(ssidsOffset + 4 * i));
+            }
+            routers = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Creates the processed signals of every location on the floor straight from the mapped file.
+     * @param floor
+     * @return
+     */
+    @Override
+    public Map<IndoorLocation, List<ProcessedSignal>> getProcessedSignals(long floor) {
+        Map<IndoorLocation, List<ProcessedSignal>> processedMap = new HashMap<>();
+        Routers routers = getRouters();
+        for (int i = 0; i < locationCount; i++) {
+            if (buffer.getLong(floorsOffset + 8 * i) != floor) {
+                continue;
+            }
+            IndoorLocation location = new IndoorLocation(floor,
+                    readString(buffer.getInt(roomsOffset + 4 * i)),
+                    readString(buffer.getInt(buildingsOffset + 4 * i)),
+                    buffer.getDouble(latsOffset + 8 * i),
+                    buffer.getDouble(lngsOffset + 8 * i));
+
+            int first = buffer.getInt(firstEntriesOffset + 4 * i);
+            int last = buffer.getInt(firstEntriesOffset + 4 * (i + 1));
+            List<ProcessedSignal> signals = new ArrayList<>(last - first);
+            for (int e = first; e < last; e++) {
+                int router = buffer.getInt(entryRoutersOffset + 4 * e);
+                ProcessedSignal processedSignal = new ProcessedSignal();
+                processedSignal.location = location;
+                processedSignal.accessPointId = routers.ids[router];
+                processedSignal.bssid = routers.bssids[router];
+                processedSignal.ssid = routers.ssids[router];
+                processedSignal.average = (double) buffer.getFloat(entryAveragesOffset + 4 * e);
+                processedSignal.median = (double) buffer.getFloat(entryMediansOffset + 4 * e);
+                signals.add(processedSignal);
+            }
+            processedMap.put(location, signals);
+        }
+        return processedMap;
+    }
+
+    /**
+     * Compiles the processed signals into a snapshot file. The file is written next to the
+     * destination first and then renamed, thus readers never see a half written file.
+     * @param processedMap  - processed signals of every location (e.g. IndoorDatabaseHelper.getProcessedSignals())
+     * @param dataVersion   - data version of the database the signals came from
+     * @param file          - destination file
+     * @throws IOException
+     */
+    public static void write(Map<IndoorLocation, List<ProcessedSignal>> processedMap, long dataVersion,
+                             File file) throws IOException {
+        // Build the router dictionary and the string pool
+        Map<Integer, Integer> routerIndexes = new HashMap<>();     // index in the dictionary by router id
+        List<ProcessedSignal> routers = new ArrayList<>();
+        StringPool strings = new StringPool();
+        int entryCount = 0;
+        for (List<ProcessedSignal> signals : processedMap.values()) {
+            for (ProcessedSignal s : signals) {
+                if (!routerIndexes.containsKey(s.accessPointId)) {
+                    routerIndexes.put(s.accessPointId, routers.size());
+                    routers.add(s);
+                }
+                entryCount++;
+            }
+        }
+        int locationCount = processedMap.size();
+        int routerCount = routers.size();
+        int[] routerBssidOffsets = new int[routerCount];
+        int[] routerSsidOffsets = new int[routerCount];
+        for (int i = 0; i < routerCount; i++) {
+            routerBssidOffsets[i] = strings.add(routers.get(i).bssid);
+            routerSsidOffsets[i] = strings.add(routers.get(i).ssid);
+        }
+        int[] roomOffsets = new int[locationCount];
+        int[] buildingOffsets = new int[locationCount];
+        int index = 0;
+        for (IndoorLocation location : processedMap.keySet()) {
+            roomOffsets[index] = strings.add(location.room);
+            buildingOffsets[index] = strings.add(location.building);
+            index++;
+        }
+
+        int size = HEADER_SIZE + (8 + 8 + 8 + 4 + 4 + 4) * locationCount + 4 + 12 * routerCount +
+                12 * entryCount + strings.size();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.position(HEADER_SIZE);
+
+        // Location sections
+        for (IndoorLocation location : processedMap.keySet()) {
+            buffer.putLong(location.floor);
+        }
+        for (IndoorLocation location : processedMap.keySet()) {
+            buffer.putDouble(location.lat);
+        }
+        for (IndoorLocation location : processedMap.keySet()) {
+            buffer.putDouble(location.lng);
+        }
+        for (int offset : roomOffsets) {
+            buffer.putInt(offset);
+        }
+        for (int offset : buildingOffsets) {
+            buffer.putInt(offset);
+        }
+        int firstEntry = 0;
+        for (List<ProcessedSignal> signals : processedMap.values()) {
+            buffer.putInt(firstEntry);
+            firstEntry += signals.size();
+        }
+        buffer.putInt(firstEntry);
+
+        // Router dictionary
+        for (ProcessedSignal router : routers) {
+            buffer.putInt(router.accessPointId);
+        }
+        for (int offset : routerBssidOffsets) {
+            buffer.putInt(offset);
+        }
+        for (int offset : routerSsidOffsets) {
+            buffer.putInt(offset);
+        }
+
+        // Entry sections, in the same location order
+        for (List<ProcessedSignal> signals : processedMap.values()) {
+            for (ProcessedSignal s : signals) {
+                buffer.putInt(routerIndexes.get(s.accessPointId));
+            }
+        }
+        for (List<ProcessedSignal> signals : processedMap.values()) {
+            for (ProcessedSignal s : signals) {
+                buffer.putFloat(s.average.floatValue());
+            }
+        }
+        for (List<ProcessedSignal> signals : processedMap.values()) {
+            for (ProcessedSignal s : signals) {
+                buffer.putFloat(s.median.floatValue());
+            }
+        }
+        buffer.put(strings.toByteArray());
+
+        // Header
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putLong(8, dataVersion);
+        buffer.putInt(16, locationCount);
+        buffer.putInt(20, routerCount);
+        buffer.putInt(24, entryCount);
+        buffer.putInt(28, strings.size());
+        buffer.putInt(32, checksum(buffer));
+
+        // Write to a temporary file and then replace the old snapshot with it. Every write gets its
+        // own temporary file next to the destination, thus two writes never mix their bytes
+        File destination = file.getAbsoluteFile();
+        File tmpFile = File.createTempFile(destination.getName(), ".tmp", destination.getParentFile());
+        FileOutputStream outputStream = new FileOutputStream(tmpFile);
+        boolean isWritten = false;
+        try {
+            buffer.rewind();
+            FileChannel channel = outputStream.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            outputStream.getFD().sync();
+            isWritten = true;
+        } finally {
+            outputStream.close();
+            if (!isWritten) {
+                tmpFile.delete();
+            }
+        }
+        if (!tmpFile.renameTo(destination)) {
+            tmpFile.delete();
+            throw new IOException("Could not write " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Calculates the CRC32 of everything after the header.
+     * @param buffer
+     * @return
+     */
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        ByteBuffer body = buffer.duplicate();
+        body.clear();
+        body.position(HEADER_SIZE);
+        while (body.hasRemaining()) {
+            int length = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads a string from the string pool.
+     * @param offset
+     * @return
+     */
+    private String readString(int offset) {
+        if (offset == NULL_STRING) {
+            return null;
+        }
+        int position = stringsOffset + offset;
+        int length = buffer.getInt(position);
+        byte[] bytes = new byte[length];
+        ByteBuffer string = buffer.duplicate();
+        string.clear();
+        string.position(position + 4);
+        string.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * String pool used when writing the snapshot. Every distinct string is stored only once.
+     */
+    private static class StringPool {
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * @param string
+         * @return offset of the string in the pool
+         */
+        int add(String string) throws IOException {
+            if (string == null) {
+                return NULL_STRING;
+            }
+            Integer offset = offsets.get(string);
+            if (offset == null) {
+                offset = bytes.size();
+                byte[] encoded = string.getBytes("UTF-8");
+                bytes.write(ByteBuffer.allocate(4).putInt(encoded.length).array());
+                bytes.write(encoded);
+                offsets.put(string, offset);
+            }
+            return offset;
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
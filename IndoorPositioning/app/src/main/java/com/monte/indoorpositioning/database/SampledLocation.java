@@ -0,0 +1,49 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+/**
+ * SampledLocation has the same values as IndoorLocation but it additionally incorporates
+ * the id of the location in the database and how many signal samples were collected in it.
+ */
+public class SampledLocation extends IndoorLocation {
+    public long id;                 // Id of the location in the database
+    public long sampleCount;        // Number of signal samples collected in the location (of every router)
+
+    /**
+     * Constructor for easy initialisation of the instance
+     * @param id
+     * @param floor
+     * @param room
+     * @param building
+     * @param lat
+     * @param lng
+     * @param sampleCount
+     */
+    public SampledLocation(long id, long floor, String room, String building, double lat, double lng,
+                           long sampleCount) {
+        super(floor, room, building, lat, lng);
+        this.id = id;
+        this.sampleCount = sampleCount;
+    }
+}
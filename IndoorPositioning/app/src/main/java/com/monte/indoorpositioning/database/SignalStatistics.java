@@ -0,0 +1,237 @@
+package com.monte.indoorpositioning.database;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Running statistics of a single router's signal level in one location. Instead of keeping every
+ * collected sample it stores the count, sum, sum of squares, min and max of the levels plus a
+ * small histogram of the integer dBm levels, which allows finding the exact median.
+ *
+ * The histogram is stored in the database as a compact blob: for every level that was seen
+ * there is one byte for the level and a variable length count (usually one byte as well).
+ */
+public class SignalStatistics {
+    public long count;              // Number of collected samples
+    public double sum;              // Sum of the signal levels
+    public double sumSquares;       // Sum of the squared signal levels
+    public double min;              // Weakest collected level
+    public double max;              // Strongest collected level
+
+    // Sparse histogram: levels are sorted in increasing order, counts hold how many times each was seen
+    private int[] levels = new int[0];
+    private int[] counts = new int[0];
+
+    /**
+     * Adds a single signal level to the statistics.
+     * @param level - RSSI in dBm
+     */
+    public void add(double level) {
+        if (count == 0) {
+            min = level;
+            max = level;
+        } else {
+            min = Math.min(min, level);
+            max = Math.max(max, level);
+        }
+        count++;
+        sum += level;
+        sumSquares += level * level;
+        addToHistogram((int) Math.round(level), 1);
+    }
+
+    /**
+     * Adds a number of samples of the same level to the histogram only. Used when the rest of
+     * the statistics were already calculated elsewhere (e.g. in an SQL query).
+     * @param level
+     * @param number
+     */
+    void addLevelCount(int level, int number) {
+        addToHistogram(level, number);
+    }
+
+    /**
+     * @return number of distinct levels in the histogram
+     */
+    int getHistogramSize() {
+        return levels.length;
+    }
+
+    /**
+     * @param index - 0 based, levels are in increasing order
+     * @return level of the histogram bucket
+     */
+    int getHistogramLevel(int index) {
+        return levels[index];
+    }
+
+    /**
+     * @param index
+     * @return number of samples in the histogram bucket
+     */
+    int getHistogramCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * Merges other statistics into these ones, as if all of its samples were added here.
+     * @param other
+     */
+    public void merge(SignalStatistics other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0) {
+            min = other.min;
+            max = other.max;
+        } else {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+        count += other.count;
+        sum += other.sum;
+        sumSquares += other.sumSquares;
+        for (int i = 0; i < other.levels.length; i++) {
+            addToHistogram(other.levels[i], other.counts[i]);
+        }
+    }
+
+    /**
+     * @return average of the collected levels
+     */
+    public double getAverage() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return population variance of the collected levels
+     */
+    public double getVariance() {
+        if (count == 0) {
+            return 0;
+        }
+        double average = sum / count;
+        return Math.max(0, sumSquares / count - average * average);
+    }
+
+    /**
+     * Median is found by walking through the histogram. Same as sorting all of the samples, it is
+     * the middle value or, for even number of samples, the average of the two middle values.
+     * @return median of the collected levels
+     */
+    public double getMedian() {
+        if (count == 0) {
+            return 0;
+        }
+        // 0 based positions of the two middle samples (the same one for odd count)
+        long lower = (count - 1) / 2;
+        long upper = count / 2;
+        double lowerLevel = 0;
+        long seen = 0;
+        for (int i = 0; i < levels.length; i++) {
+            long next = seen + counts[i];
+            if (lower >= seen && lower < next) {
+                lowerLevel = levels[i];
+            }
+            if (upper >= seen && upper < next) {
+                return (lowerLevel + levels[i]) / 2.0;
+            }
+            seen = next;
+        }
+        return lowerLevel;
+    }
+
+    /**
+     * Encodes the histogram to be stored in the database.
+     * @return
+     */
+    public byte[] getHistogramBlob() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(levels.length * 2);
+        for (int i = 0; i < levels.length; i++) {
+            // level is written as a single byte, dBm values always fit into it
+            out.write(levels[i]);
+            // count is written 7 bits at a time, highest bit tells if more bytes follow
+            int value = counts[i];
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the histogram which was stored by getHistogramBlob().
+     * @param blob
+     */
+    public void setHistogramBlob(byte[] blob) {
+        levels = new int[0];
+        counts = new int[0];
+        if (blob == null) {
+            return;
+        }
+        int i = 0;
+        while (i < blob.length) {
+            int level = blob[i++];
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = blob[i++] & 0xFF;
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0 && i < blob.length);
+            addToHistogram(level, value);
+        }
+    }
+
+    /**
+     * Adds a number of samples with the same level to the sparse histogram keeping it sorted.
+     * @param level
+     * @param number
+     */
+    private void addToHistogram(int level, int number) {
+        // dBm levels are always within a byte, clamp anything odd
+        level = Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, level));
+        int index = Arrays.binarySearch(levels, level);
+        if (index >= 0) {
+            counts[index] += number;
+            return;
+        }
+        // insert a new bucket at the right place
+        index = -index - 1;
+        int[] newLevels = new int[levels.length + 1];
+        int[] newCounts = new int[counts.length + 1];
+        System.arraycopy(levels, 0, newLevels, 0, index);
+        System.arraycopy(counts, 0, newCounts, 0, index);
+        newLevels[index] = level;
+        newCounts[index] = number;
+        System.arraycopy(levels, index, newLevels, index + 1, levels.length - index);
+        System.arraycopy(counts, index, newCounts, index + 1, counts.length - index);
+        levels = newLevels;
+        counts = newCounts;
+    }
+}
@@ -0,0 +1,144 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import com.monte.indoorpositioning.database.IndoorLocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that KnnHeap keeps the same k locations as the first k of the whole sorted list, and that
+ * KNN with maxLocations returns the first maxLocations of the KNN which sorts every location.
+ */
+public class KnnHeapTest {
+
+    @Test
+    public void keepsTheFirstOfTheSortedList() {
+        Random random = new Random(1);
+        for (int round = 0; round < 200; round++) {
+            int count = random.nextInt(300);
+            int capacity = 1 + random.nextInt(10);
+            // few different distances, thus many ties which are ordered by the location number
+            double[] distances = new double[count];
+            KnnHeap heap = new KnnHeap(capacity);
+            for (int location = 0; location < count; location++) {
+                distances[location] = random.nextInt(20);
+                heap.offer(location, distances[location] * distances[location], distances[location]);
+            }
+            heap.sort();
+            assertSorted(sortAll(distances), heap, capacity);
+        }
+    }
+
+    @Test
+    public void mergedHeapsKeepTheSameLocations() {
+        Random random = new Random(2);
+        for (int round = 0; round < 200; round++) {
+            int count = random.nextInt(300);
+            int capacity = 1 + random.nextInt(10);
+            double[] distances = new double[count];
+            KnnHeap left = new KnnHeap(capacity);
+            KnnHeap right = new KnnHeap(capacity);
+            for (int location = 0; location < count; location++) {
+                distances[location] = random.nextInt(20);
+                // in any order and into either heap
+                KnnHeap heap = random.nextBoolean() ? left : right;
+                heap.offer(location, distances[location] * distances[location], distances[location]);
+            }
+            KnnHeap merged = new KnnHeap(capacity);
+            merged.offerAll(right);
+            merged.offerAll(left);
+            merged.sort();
+            assertSorted(sortAll(distances), merged, capacity);
+        }
+    }
+
+    @Test
+    public void worstSquareIsInfiniteUntilFull() {
+        KnnHeap heap = new KnnHeap(2);
+        assertEquals(Double.POSITIVE_INFINITY, heap.getWorstSquare(), 0);
+        heap.offer(0, 9, 3);
+        assertEquals(Double.POSITIVE_INFINITY, heap.getWorstSquare(), 0);
+        heap.offer(1, 16, 4);
+        assertEquals(16, heap.getWorstSquare(), 0);
+        heap.offer(2, 4, 2);
+        assertEquals(9, heap.getWorstSquare(), 0);
+        // farther than the worst one, thus not kept
+        heap.offer(3, 25, 5);
+        assertEquals(9, heap.getWorstSquare(), 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sortedHeapTakesNoMoreLocations() {
+        KnnHeap heap = new KnnHeap(2);
+        heap.offer(0, 1, 1);
+        heap.sort();
+        heap.offer(1, 0, 0);
+    }
+
+    @Test
+    public void knnKeepsTheFirstOfSortAll() {
+        new RadioMaps.KnnOracle(3, 5000, 1) {
+            @Override
+            void query(int scan, IndoorLocation at) {
+                isIgnoringDistance = scan % 2 == 0;
+                maxDistance = 20;
+                maxLocations = 1 + random.nextInt(10);
+            }
+        }.run(100);
+    }
+
+    /**
+     * @param distances - distance of every location by its number
+     * @return numbers of the locations, nearest first and then by their number
+     */
+    private static List<Integer> sortAll(final double[] distances) {
+        List<Integer> sorted = new ArrayList<>();
+        for (int location = 0; location < distances.length; location++) {
+            sorted.add(location);
+        }
+        // stable, thus equal distances stay in the order of the numbers
+        Collections.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(distances[o1], distances[o2]);
+            }
+        });
+        return sorted;
+    }
+
+    private static void assertSorted(List<Integer> expected, KnnHeap heap, int capacity) {
+        assertEquals(Math.min(capacity, expected.size()), heap.size());
+        for (int i = 0; i < heap.size(); i++) {
+            assertEquals((int) expected.get(i), heap.getLocation(i));
+        }
+    }
+}
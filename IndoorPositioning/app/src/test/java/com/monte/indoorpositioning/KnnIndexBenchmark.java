@@ -0,0 +1,86 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import com.google.android.gms.maps.model.LatLng;
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.IndoorSignal;
+import com.monte.indoorpositioning.database.ProcessedSignal;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Time of a single KNN query over the inverted index against the KNN which sorts every location,
+ * on radio maps of a growing number of locations. The whole map is compared (isIgnoringDistance),
+ * as while the position of the user is unknown. Only run when asked for, as it takes a while:
+ *
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests '*KnnIndexBenchmark'
+ */
+public class KnnIndexBenchmark {
+    private static final int[] LOCATION_COUNTS = {1000, 5000, 10000, 20000, 40000};
+    private static final int SCANS = 200;
+    private static final int WARM_UP_SCANS = 50;
+
+    @Test
+    public void indexAgainstSortAll() {
+        Assume.assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        System.out.println("locations | sort all (ms/scan) | index (ms/scan) | speed-up");
+        for (int locationCount : LOCATION_COUNTS) {
+            RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(locationCount, locationCount, 1);
+            Map<IndoorLocation, List<ProcessedSignal>> radioMap = oracle.radioMap;
+            RadioMapIndex index = oracle.index;
+            List<List<IndoorSignal>> scans = new ArrayList<>();
+            for (int i = 0; i < WARM_UP_SCANS + SCANS; i++) {
+                scans.add(oracle.randomScan());
+            }
+
+            double sortAll = 0;
+            double indexed = 0;
+            int found = 0;
+            for (int i = 0; i < scans.size(); i++) {
+                long start = System.nanoTime();
+                found += RadioMaps.sortAllKnn(radioMap, index, scans.get(i), false, 4, true,
+                        RadioMaps.ORIGIN_LAT, RadioMaps.ORIGIN_LNG, 0, true, 0).size();
+                long middle = System.nanoTime();
+                found -= WifiCollector.getKnn(index, new ArrayList<>(scans.get(i)), null, false, 4, true,
+                        new LatLng(RadioMaps.ORIGIN_LAT, RadioMaps.ORIGIN_LNG), 0, true, 0, 0).size();
+                long end = System.nanoTime();
+                if (i >= WARM_UP_SCANS) {
+                    sortAll += (middle - start) / 1e6;
+                    indexed += (end - middle) / 1e6;
+                }
+            }
+            // both found the same number of locations
+            assertEquals(0, found);
+            System.out.println(String.format("%9d | %18.3f | %15.3f | %7.1fx", locationCount,
+                    sortAll / SCANS, indexed / SCANS, sortAll / indexed));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.IndoorSignal;
+import com.monte.indoorpositioning.database.ProcessedLocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scoring the candidates in chunks on a ForkJoinPool finds the same locations as
+ * scoring them on a single thread, and both the same as the KNN which sorts every location.
+ */
+public class KnnScoringTest {
+    private static final int LOCATIONS = 3 * KnnScoring.PARALLEL_THRESHOLD;
+
+    @Test
+    public void parallelMatchesSerialAndSortAll() {
+        final ForkJoinPool[] pools = {new ForkJoinPool(1), new ForkJoinPool(2), new ForkJoinPool(4)};
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(1, LOCATIONS, 1) {
+            @Override
+            void query(int scan, IndoorLocation at) {
+                knnNumber = 3;
+                maxLocations = scan % 2 == 0 ? 0 : 1 + random.nextInt(10);
+            }
+
+            @Override
+            void check(List<IndoorSignal> testSignals, List<ProcessedLocation> expected) {
+                KnnScoring scoring = scoring(index, strongest(testSignals, knnNumber), maxLocations);
+                // every location is a candidate, as when the position is unknown
+                int[] candidates = allLocations(index);
+
+                KnnHeap serial = scoring.score(candidates, 0, candidates.length);
+                serial.sort();
+                assertEquals(maxLocations == 0 ? expected.size() : Math.min(maxLocations, expected.size()), serial.size());
+                for (int i = 0; i < serial.size(); i++) {
+                    assertEquals(expected.get(i).lat, index.getLocation(serial.getLocation(i)).lat, 0);
+                    assertEquals(expected.get(i).euclidian, serial.getDistance(i), 0);
+                }
+
+                for (ForkJoinPool pool : pools) {
+                    KnnHeap parallel = scoring.score(candidates, pool);
+                    parallel.sort();
+                    assertEquals(serial.size(), parallel.size());
+                    for (int i = 0; i < serial.size(); i++) {
+                        assertEquals(serial.getLocation(i), parallel.getLocation(i));
+                        assertEquals(serial.getDistance(i), parallel.getDistance(i), 0);
+                    }
+                }
+            }
+        };
+        oracle.run(20);
+        for (ForkJoinPool pool : pools) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void fewCandidatesAreScoredOnTheCallingThread() {
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(2, 1000, 1);
+        KnnScoring scoring = scoring(oracle.index, strongest(oracle.randomScan(), 3), 5);
+
+        int[] candidates = allLocations(oracle.index);
+        KnnHeap expected = scoring.score(candidates, 0, candidates.length);
+        scoring.scoringThread = null;
+        KnnHeap actual = scoring.score(candidates);
+        assertSame(Thread.currentThread(), scoring.scoringThread);
+        expected.sort();
+        actual.sort();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getLocation(i), actual.getLocation(i));
+        }
+    }
+
+    /**
+     * @param index
+     * @return number of every location of the index, as the candidates of a query
+     */
+    static int[] allLocations(RadioMapIndex index) {
+        int[] candidates = new int[index.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = i;
+        }
+        return candidates;
+    }
+
+    /**
+     * @param index
+     * @param testSignals   - every one of them is compared
+     * @param maxLocations
+     * @return scoring of the whole floor 0, unweighted, by the averages
+     */
+    static KnnScoring scoring(RadioMapIndex index, List<IndoorSignal> testSignals, int maxLocations) {
+        int[] accessPointIds = new int[testSignals.size()];
+        RadioMapIndex.Postings[] testPostings = new RadioMapIndex.Postings[testSignals.size()];
+        double[] levels = new double[testSignals.size()];
+        for (int i = 0; i < levels.length; i++) {
+            accessPointIds[i] = testSignals.get(i).accessPointId;
+            testPostings[i] = index.getPostings(accessPointIds[i]);
+            levels[i] = testSignals.get(i).level;
+        }
+        return new KnnScoring(index, accessPointIds, testPostings, levels, false, true, RadioMaps.ORIGIN_LAT, RadioMaps.ORIGIN_LNG,
+                0, true, 0, maxLocations);
+    }
+
+    /**
+     * @param scan
+     * @param count
+     * @return the strongest signals of the scan, which is what getKnn() compares
+     */
+    static List<IndoorSignal> strongest(List<IndoorSignal> scan, int count) {
+        List<IndoorSignal> sorted = new ArrayList<>(scan);
+        // insertion sort, stable as the sort in getKnn()
+        for (int i = 1; i < sorted.size(); i++) {
+            for (int j = i; j > 0 && sorted.get(j - 1).level < sorted.get(j).level; j--) {
+                sorted.set(j, sorted.set(j - 1, sorted.get(j)));
+            }
+        }
+        return new ArrayList<>(sorted.subList(0, Math.min(count, sorted.size())));
+    }
+}
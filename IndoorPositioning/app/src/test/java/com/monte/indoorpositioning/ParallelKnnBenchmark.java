@@ -0,0 +1,83 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Time of scoring every location of a large radio map on pools of 1 to 8 threads, against scoring
+ * them on the calling thread. The speed-up can only be as good as the cores of the machine running
+ * it, so availableProcessors() is printed along with it. Only run when asked for:
+ *
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests '*ParallelKnnBenchmark'
+ */
+public class ParallelKnnBenchmark {
+    private static final int LOCATIONS = 50000;
+    private static final int[] POOL_SIZES = {1, 2, 4, 8};
+    private static final int SCANS = 100;
+    private static final int WARM_UP_SCANS = 20;
+
+    @Test
+    public void poolsAgainstSerial() {
+        Assume.assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(LOCATIONS, LOCATIONS, 1);
+        List<KnnScoring> scorings = new ArrayList<>();
+        for (int i = 0; i < WARM_UP_SCANS + SCANS; i++) {
+            scorings.add(KnnScoringTest.scoring(oracle.index, KnnScoringTest.strongest(oracle.randomScan(), 4), 0));
+        }
+        // every location is a candidate, as when the position is unknown
+        int[] candidates = KnnScoringTest.allLocations(oracle.index);
+
+        double serial = 0;
+        for (int i = 0; i < scorings.size(); i++) {
+            long start = System.nanoTime();
+            scorings.get(i).score(candidates, 0, candidates.length);
+            if (i >= WARM_UP_SCANS) {
+                serial += (System.nanoTime() - start) / 1e6;
+            }
+        }
+
+        System.out.println(LOCATIONS + " locations, " + Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println("threads | ms/scan | speed-up");
+        System.out.println(String.format(" serial | %7.3f | %7.1fx", serial / SCANS, 1.0));
+        for (int poolSize : POOL_SIZES) {
+            ForkJoinPool pool = new ForkJoinPool(poolSize);
+            double parallel = 0;
+            for (int i = 0; i < scorings.size(); i++) {
+                long start = System.nanoTime();
+                scorings.get(i).score(candidates, pool);
+                if (i >= WARM_UP_SCANS) {
+                    parallel += (System.nanoTime() - start) / 1e6;
+                }
+            }
+            pool.shutdown();
+            System.out.println(String.format("%7d | %7.3f | %7.1fx", poolSize, parallel / SCANS, serial / parallel));
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import com.google.android.gms.maps.model.LatLng;
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.IndoorSignal;
+import com.monte.indoorpositioning.database.ProcessedLocation;
+import com.monte.indoorpositioning.database.ProcessedSignal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares KNN over the inverted index with the KNN which sorts every location, and checks the
+ * posting lists and the grid of the index.
+ */
+public class RadioMapIndexTest {
+    private static final int LOCATIONS = 3000;
+    private static final int SCANS = 50;
+
+    @Test
+    public void knnMatchesSortAll() {
+        new RadioMaps.KnnOracle(1, LOCATIONS, 2) {
+            @Override
+            void query(int scan, IndoorLocation at) {
+                isIgnoringDistance = scan % 2 == 0;
+                isAverageOrMedian = scan % 3 != 0;
+                maxDistance = 5 + random.nextInt(40);
+            }
+
+            @Override
+            void check(List<IndoorSignal> testSignals, List<ProcessedLocation> expected) {
+                List<ProcessedLocation> actual = getKnn(testSignals);
+                RadioMaps.assertSameLocations(expected, actual, 0);
+                // the location the scan was taken at is always a candidate
+                assertFalse(actual.isEmpty());
+            }
+        }.run(SCANS);
+    }
+
+    @Test
+    public void weightedKnnMatchesSortAll() {
+        new RadioMaps.KnnOracle(2, LOCATIONS, 1) {
+            @Override
+            void query(int scan, IndoorLocation at) {
+                isWeighted = true;
+                knnNumber = 5;
+                // a bit off the location, so no distance weight is infinite
+                lat = at.lat + 0.00001;
+                isIgnoringDistance = false;
+                maxDistance = 30;
+            }
+
+            @Override
+            void check(List<IndoorSignal> testSignals, List<ProcessedLocation> expected) {
+                List<ProcessedLocation> actual = getKnn(testSignals);
+                // the weights are multiplied in another order, thus the last digits may differ
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).euclidian, actual.get(i).euclidian, 1e-9 * expected.get(i).euclidian);
+                }
+            }
+        }.run(SCANS);
+    }
+
+    @Test
+    public void postingListsHaveEveryLocationOfTheRouter() {
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(3, LOCATIONS, 1);
+        Map<IndoorLocation, List<ProcessedSignal>> radioMap = oracle.radioMap;
+        RadioMapIndex index = oracle.index;
+
+        Map<Integer, Integer> locationCounts = new HashMap<>();
+        for (List<ProcessedSignal> signals : radioMap.values()) {
+            for (ProcessedSignal signal : signals) {
+                Integer count = locationCounts.get(signal.accessPointId);
+                locationCounts.put(signal.accessPointId, count == null ? 1 : count + 1);
+            }
+        }
+        for (Map.Entry<Integer, Integer> entry : locationCounts.entrySet()) {
+            RadioMapIndex.Postings postings = index.getPostings(entry.getKey());
+            assertEquals((int) entry.getValue(), postings.size());
+            for (int i = 0; i < postings.size(); i++) {
+                if (i > 0) {
+                    assertTrue(postings.locations[i - 1] < postings.locations[i]);
+                }
+                IndoorLocation location = index.getLocation(postings.locations[i]);
+                assertTrue(hasSignal(radioMap.get(location), entry.getKey(), postings.averages[i], postings.medians[i]));
+            }
+        }
+        assertNull(index.getPostings(-1));
+    }
+
+    @Test
+    public void locationsNearHaveEveryLocationWithinTheRadius() {
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(4, LOCATIONS, 1);
+        Random random = oracle.random;
+        RadioMapIndex index = oracle.index;
+
+        for (int query = 0; query < 200; query++) {
+            double lat = RadioMaps.ORIGIN_LAT + random.nextDouble() * 0.002;
+            double lng = RadioMaps.ORIGIN_LNG + random.nextDouble() * 0.003;
+            // up to a radius larger than the whole map, which reads every cell instead
+            double radius = query % 10 == 0 ? 1000 : 1 + random.nextInt(60);
+            int[] near = index.getLocationsNear(lat, lng, radius);
+
+            Set<Integer> found = new HashSet<>();
+            for (int i = 0; i < near.length; i++) {
+                if (i > 0) {
+                    assertTrue(near[i - 1] < near[i]);
+                }
+                found.add(near[i]);
+                // only the cells overlapping the square around the point are read
+                assertTrue(index.getDistance(near[i], lat, lng) <= radius * Math.sqrt(2) + 20);
+            }
+            for (int number = 0; number < index.size(); number++) {
+                if (index.getDistance(number, lat, lng) <= radius) {
+                    assertTrue(found.contains(number));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void patchMatchesRebuild() {
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(5, LOCATIONS, 1);
+        Random random = oracle.random;
+        RadioMapIndex index = oracle.index;
+        Map<IndoorLocation, List<ProcessedSignal>> expectedMap = new HashMap<>(oracle.radioMap);
+
+        for (int round = 0; round < 5; round++) {
+            // every round deletes, changes and adds a few locations
+            Set<IndoorLocation> removed = new HashSet<>();
+            Map<IndoorLocation, List<ProcessedSignal>> added = new HashMap<>();
+            List<IndoorLocation> locations = new ArrayList<>(expectedMap.keySet());
+            Map<IndoorLocation, List<ProcessedSignal>> newLocations = RadioMaps.random(random, 20, 1);
+            for (int i = 0; i < 10; i++) {
+                IndoorLocation deleted = locations.get(random.nextInt(locations.size()));
+                removed.add(RadioMapIndex.positionOf(deleted));
+                expectedMap.remove(deleted);
+            }
+            for (Map.Entry<IndoorLocation, List<ProcessedSignal>> entry : newLocations.entrySet()) {
+                IndoorLocation location = entry.getKey();
+                if (removed.add(RadioMapIndex.positionOf(location))) {
+                    added.put(location, entry.getValue());
+                    expectedMap.put(location, entry.getValue());
+                }
+            }
+            index = index.patch(removed, added);
+            assertEquals(expectedMap, index.getLocationMap());
+
+            RadioMapIndex rebuilt = new RadioMapIndex(expectedMap);
+            IndoorLocation at = locations.get(random.nextInt(locations.size()));
+            if (!expectedMap.containsKey(at)) {
+                continue;
+            }
+            List<IndoorSignal> testSignals = RadioMaps.scanAt(random, expectedMap, at);
+            List<ProcessedLocation> expected = WifiCollector.getKnn(rebuilt, new ArrayList<>(testSignals), null, false, 4,
+                    true, new LatLng(at.lat, at.lng), 0, true, 0, 0);
+            List<ProcessedLocation> actual = WifiCollector.getKnn(index, new ArrayList<>(testSignals), null, false, 4,
+                    true, new LatLng(at.lat, at.lng), 0, true, 0, 0);
+            // the locations are numbered in another order, thus only the distances are compared
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).euclidian, actual.get(i).euclidian, 0);
+            }
+        }
+    }
+
+    private static boolean hasSignal(List<ProcessedSignal> signals, int accessPointId, double average, double median) {
+        for (ProcessedSignal signal : signals) {
+            if (signal.accessPointId == accessPointId) {
+                return signal.average == average && signal.median == median;
+            }
+        }
+        return false;
+    }
+}
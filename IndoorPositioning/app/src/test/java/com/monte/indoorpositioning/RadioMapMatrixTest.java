@@ -0,0 +1,98 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.ProcessedSignal;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks when an index gets a RadioMapMatrix, and that KNN reading the matrix finds the same
+ * locations as the KNN which sorts every location.
+ */
+public class RadioMapMatrixTest {
+
+    @Test
+    public void denseFloorKnnMatchesSortAll() {
+        // a few rooms, every router is heard everywhere
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(1, 60, 1) {
+            @Override
+            void query(int scan, IndoorLocation at) {
+                knnNumber = 3;
+                isAverageOrMedian = scan % 2 == 0;
+                isIgnoringDistance = scan % 3 == 0;
+                maxDistance = 10;
+            }
+        };
+        assertNotNull(oracle.index.getMatrix());
+        assertEquals(60, oracle.index.getMatrix().getLocationCount());
+        // the levels are whole dBm, which a float holds exactly, thus the distances are the same
+        oracle.run(50);
+    }
+
+    @Test
+    public void columnsHaveTheLevelsOfThePostingLists() {
+        RadioMaps.KnnOracle oracle = new RadioMaps.KnnOracle(2, 60, 1);
+        Map<IndoorLocation, List<ProcessedSignal>> radioMap = oracle.radioMap;
+        RadioMapIndex index = oracle.index;
+        RadioMapMatrix matrix = index.getMatrix();
+
+        assertEquals(-1, matrix.getColumn(-1));
+        for (List<ProcessedSignal> signals : radioMap.values()) {
+            for (ProcessedSignal signal : signals) {
+                int column = matrix.getColumn(signal.accessPointId);
+                RadioMapIndex.Postings postings = index.getPostings(signal.accessPointId);
+                assertEquals(postings.size(), matrix.getCollected(column).cardinality());
+                for (int i = 0; i < postings.size(); i++) {
+                    int location = postings.locations[i];
+                    assertEquals(postings.averages[i], matrix.getAverages(column)[location], 0);
+                    assertEquals(postings.medians[i], matrix.getMedians(column)[location], 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sparseFloorGetsNoMatrix() {
+        // a campus, every location hears only the routers around it
+        assertNull(new RadioMaps.KnnOracle(3, 3000, 1).index.getMatrix());
+    }
+
+    @Test
+    public void hugeFloorGetsNoMatrix() {
+        // 50000 x 50000 cells don't fit into an int, nor into memory
+        int[] floors = new int[50000];
+        Map<Integer, RadioMapIndex.Postings> postings = new HashMap<>();
+        for (int router = 0; router < 50000; router++) {
+            postings.put(router, new RadioMapIndex.Postings(new int[0], new double[0], new double[0]));
+        }
+        assertNull(RadioMapMatrix.build(floors, postings));
+    }
+}
@@ -0,0 +1,288 @@
+package com.monte.indoorpositioning;
+/*
+ MIT License
+
+ Copyright (c) 2017 Montvydas
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+import com.google.android.gms.maps.model.LatLng;
+import com.monte.indoorpositioning.database.GridCell;
+import com.monte.indoorpositioning.database.IndoorLocation;
+import com.monte.indoorpositioning.database.IndoorSignal;
+import com.monte.indoorpositioning.database.ProcessedLocation;
+import com.monte.indoorpositioning.database.ProcessedSignal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Random radio maps for the KNN tests and benchmarks, and the KNN which sorts every location
+ * (as getKnn() did before the inverted index) to compare with.
+ *
+ * Locations are spread over a square campus with a router every ROUTER_SPACING metres in both
+ * directions. A location hears the routers within HEARING_RANGE metres, the nearer the stronger,
+ * thus posting lists get about as long as in a real survey, whatever the size of the map.
+ *
+ * KnnOracle is the fixture most of the KNN tests share: a random radio map with its index, scans
+ * taken at its locations and the sort-all KNN of every scan to compare with.
+ */
+class RadioMaps {
+    static final double ORIGIN_LAT = 55.92;
+    static final double ORIGIN_LNG = -3.17;
+    private static final double LOCATION_SPACING = 3;   // metres between neighbouring locations on average
+    private static final double ROUTER_SPACING = 25;    // metres
+    private static final double HEARING_RANGE = 40;     // metres
+
+    /**
+     * @param random
+     * @param locationCount
+     * @param floorCount    - locations are spread evenly over the floors
+     * @return radio map in the order the locations were made, which is the order of their numbers
+     * in a RadioMapIndex built from it
+     */
+    static Map<IndoorLocation, List<ProcessedSignal>> random(Random random, int locationCount, int floorCount) {
+        double side = Math.sqrt((double) locationCount / floorCount) * LOCATION_SPACING;
+        int routersPerSide = (int) Math.ceil(side / ROUTER_SPACING) + 1;
+
+        Map<IndoorLocation, List<ProcessedSignal>> radioMap = new LinkedHashMap<>();
+        while (radioMap.size() < locationCount) {
+            double north = random.nextDouble() * side;
+            double east = random.nextDouble() * side;
+            IndoorLocation location = new IndoorLocation(random.nextInt(floorCount), "room", "Campus",
+                    ORIGIN_LAT + GridCell.latitudeDegrees(north),
+                    ORIGIN_LNG + GridCell.longitudeDegrees(east, ORIGIN_LAT));
+
+            List<ProcessedSignal> signals = new ArrayList<>();
+            for (int row = 0; row < routersPerSide; row++) {
+                for (int column = 0; column < routersPerSide; column++) {
+                    double distance = Math.hypot(north - row * ROUTER_SPACING, east - column * ROUTER_SPACING);
+                    if (distance <= HEARING_RANGE) {
+                        ProcessedSignal signal = new ProcessedSignal();
+                        signal.accessPointId = 1 + row * routersPerSide + column;
+                        // whole dBm, thus there are ties between the locations too
+                        signal.average = (double) Math.round(-30 - distance - random.nextInt(6));
+                        signal.median = signal.average + random.nextInt(3) - 1;
+                        signals.add(signal);
+                    }
+                }
+            }
+            radioMap.put(location, signals);
+        }
+        return radioMap;
+    }
+
+    /**
+     * @param random
+     * @param radioMap
+     * @param location  - one of the locations of the radio map
+     * @return scan taken at the location, the levels are a few dBm off
+     */
+    static List<IndoorSignal> scanAt(Random random, Map<IndoorLocation, List<ProcessedSignal>> radioMap,
+                                     IndoorLocation location) {
+        List<IndoorSignal> scan = new ArrayList<>();
+        for (ProcessedSignal signal : radioMap.get(location)) {
+            IndoorSignal scanned = new IndoorSignal("bssid" + signal.accessPointId, "router",
+                    signal.average + random.nextInt(7) - 3);
+            scanned.accessPointId = signal.accessPointId;
+            scan.add(scanned);
+        }
+        return scan;
+    }
+
+    /**
+     * KNN the way getKnn() did it before the inverted index: every location of the floor is compared
+     * with the strongest test signals by searching through its signals, and the whole list is sorted.
+     * Distances to the user are the planar distances of the index, which has to be built from the
+     * same radio map.
+     */
+    static List<ProcessedLocation> sortAllKnn(Map<IndoorLocation, List<ProcessedSignal>> radioMap, RadioMapIndex index,
+                                              List<IndoorSignal> testSignals, boolean isWeighted, int knnNumber,
+                                              boolean isAverageOrMedian, double lat, double lng, int floor,
+                                              boolean isIgnoringDistance, double maxDistance) {
+        testSignals = new ArrayList<>(testSignals);
+        Collections.sort(testSignals, new Comparator<IndoorSignal>() {
+            @Override
+            public int compare(IndoorSignal o1, IndoorSignal o2) {
+                return Double.compare(o2.level, o1.level);
+            }
+        });
+        if (testSignals.size() >= knnNumber) {
+            testSignals = testSignals.subList(0, knnNumber);
+        }
+
+        List<ProcessedLocation> orderedLocations = new ArrayList<>();
+        int number = 0;
+        for (Map.Entry<IndoorLocation, List<ProcessedSignal>> trainLocation : radioMap.entrySet()) {
+            IndoorLocation key = trainLocation.getKey();
+            double locationDistance = index.getDistance(number++, lat, lng);
+            if (key.floor != floor || (locationDistance > maxDistance && !isIgnoringDistance)) {
+                continue;
+            }
+            double distanceWeight = isWeighted ? 1.0 / (Math.pow(locationDistance, 2) / 100.0) : 1;
+
+            double sum = 0;
+            int usedSpots = 0;
+            for (IndoorSignal testSignal : testSignals) {
+                for (ProcessedSignal trainSignal : trainLocation.getValue()) {
+                    if (testSignal.accessPointId == trainSignal.accessPointId) {
+                        double weight = isWeighted ? (Math.abs(1.0 / testSignal.level)) : 1.0;
+                        double trainValue = isAverageOrMedian ? trainSignal.average : trainSignal.median;
+                        sum += Math.pow(testSignal.level - trainValue, 2) * weight * distanceWeight;
+                        usedSpots++;
+                        break;
+                    }
+                }
+            }
+            if (usedSpots == testSignals.size()) {
+                ProcessedLocation p = new ProcessedLocation();
+                p.euclidian = Math.sqrt(sum);
+                p.floor = key.floor;
+                p.building = key.building;
+                p.lat = key.lat;
+                p.lng = key.lng;
+                p.room = key.room;
+                orderedLocations.add(p);
+            }
+        }
+        // stable, thus equal distances stay in the order of the locations
+        Collections.sort(orderedLocations, new Comparator<ProcessedLocation>() {
+            @Override
+            public int compare(ProcessedLocation x, ProcessedLocation y) {
+                return Double.compare(x.euclidian, y.euclidian);
+            }
+        });
+        return orderedLocations;
+    }
+
+    /**
+     * Checks that both lists have the same locations in the same order, with the same distances.
+     * @param expected
+     * @param actual
+     * @param count     - number of the first locations which are compared, 0 compares all of them
+     */
+    static void assertSameLocations(List<ProcessedLocation> expected, List<ProcessedLocation> actual, int count) {
+        int size = count == 0 ? expected.size() : Math.min(count, expected.size());
+        assertEquals(size, actual.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(expected.get(i).lat, actual.get(i).lat, 0);
+            assertEquals(expected.get(i).lng, actual.get(i).lng, 0);
+            assertEquals(expected.get(i).euclidian, actual.get(i).euclidian, 0);
+        }
+    }
+
+    /**
+     * A random radio map with its index, which takes scans at random locations of the map and
+     * compares the KNN of every scan with sortAllKnn(). A test sets the parameters of each query in
+     * query() and compares its own result in check(), by default getKnn() of the same query.
+     */
+    static class KnnOracle {
+        final Random random;
+        final Map<IndoorLocation, List<ProcessedSignal>> radioMap;
+        final RadioMapIndex index;
+        final List<IndoorLocation> locations;
+
+        // Parameters of the query of the current scan, see WifiCollector.getKnn()
+        boolean isWeighted;
+        int knnNumber;
+        boolean isAverageOrMedian;
+        double lat;
+        double lng;
+        int floor;
+        boolean isIgnoringDistance;
+        double maxDistance;
+        int maxLocations;
+
+        /**
+         * @param seed
+         * @param locationCount
+         * @param floorCount    - see random()
+         */
+        KnnOracle(long seed, int locationCount, int floorCount) {
+            random = new Random(seed);
+            radioMap = random(random, locationCount, floorCount);
+            index = new RadioMapIndex(radioMap);
+            locations = new ArrayList<>(radioMap.keySet());
+        }
+
+        /**
+         * @return scan taken at a random location of the map
+         */
+        List<IndoorSignal> randomScan() {
+            return scanAt(random, radioMap, locations.get(random.nextInt(locations.size())));
+        }
+
+        /**
+         * Takes the scans and checks the KNN of each of them.
+         * @param scanCount
+         */
+        void run(int scanCount) {
+            for (int scan = 0; scan < scanCount; scan++) {
+                IndoorLocation at = locations.get(random.nextInt(locations.size()));
+                List<IndoorSignal> testSignals = scanAt(random, radioMap, at);
+                // the unweighted KNN of the averages at the location, on its floor
+                isWeighted = false;
+                knnNumber = 4;
+                isAverageOrMedian = true;
+                lat = at.lat;
+                lng = at.lng;
+                floor = (int) at.floor;
+                isIgnoringDistance = true;
+                maxDistance = 0;
+                maxLocations = 0;
+                query(scan, at);
+                check(testSignals, sortAllKnn(radioMap, index, testSignals, isWeighted, knnNumber, isAverageOrMedian,
+                        lat, lng, floor, isIgnoringDistance, maxDistance));
+            }
+        }
+
+        /**
+         * Changes the parameters of the query of a scan.
+         * @param scan  - number of the scan
+         * @param at    - location the scan was taken at
+         */
+        void query(int scan, IndoorLocation at) {
+        }
+
+        /**
+         * Compares the KNN of the query with the sort-all KNN.
+         * @param testSignals
+         * @param expected  - result of sortAllKnn(), every location which passed
+         */
+        void check(List<IndoorSignal> testSignals, List<ProcessedLocation> expected) {
+            assertSameLocations(expected, getKnn(testSignals), maxLocations);
+        }
+
+        /**
+         * @param testSignals
+         * @return result of getKnn() for the query of the current scan
+         */
+        List<ProcessedLocation> getKnn(List<IndoorSignal> testSignals) {
+            return WifiCollector.getKnn(index, new ArrayList<>(testSignals), null, isWeighted, knnNumber,
+                    isAverageOrMedian, new LatLng(lat, lng), floor, isIgnoringDistance, maxDistance, maxLocations);
+        }
+    }
+}